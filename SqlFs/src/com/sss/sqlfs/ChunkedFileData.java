@@ -0,0 +1,477 @@
+package com.sss.sqlfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.sss.sqlfs.SqlFsErrCode.FsErr;
+import com.sss.sqlfs.helper.SqlStr;
+
+/**
+ *  An implementation of IFileData which keeps file data as fixed-size chunks in table
+ *  "DataChunk", keyed by (dID, chunkIdx). A file of any size is saved from an InputStream
+ *  and read to an OutputStream with only one chunk in memory at a time.
+ *
+ *  The DataBlock entry only holds the ID (other columns are left NULL), so it works with
+ *  DataBlock created by any IFileData.
+ *
+ *  Each chunk is compressed by a codec (see SqlFsCodec) and the codec ID is saved with it.
+ */
+public class ChunkedFileData extends IFileData
+{
+	//! chunk table name
+    static final String CTABLENAME = "DataChunk";
+    //! index name of (dID, chunkIdx)
+    static final String CIDXNAME = "DataChunkIDIdx";
+
+    enum DATACHUNK
+    {
+       dID,        ///< ID of the DataBlock entry
+       chunkIdx,   ///< 0, 1, 2, ...
+       chunkData,
+       chunkCodec  ///< SqlFsCodec ID of chunkData, NULL if not encoded
+    };
+
+    private static final String[][] colDataChunk = new String[][] {
+                       new String[]{DATACHUNK.dID.toString(), "integer"},
+                       new String[]{DATACHUNK.chunkIdx.toString(), "integer"},
+                       new String[]{DATACHUNK.chunkData.toString(), "blob"},
+                       new String[]{DATACHUNK.chunkCodec.toString(), "integer"}
+                                                                  };
+    private static final String[] IDXDATACHUNK = new String[]{DATACHUNK.dID.toString(),
+                                                              DATACHUNK.chunkIdx.toString()};
+
+    // SQL of DataBlock entry, only the ID is saved
+    private static final String SQLNEWBLOCK = "INSERT INTO " + DTABLENAME + " (" + IDCOL + ") VALUES (NULL)";
+    private static final String SQLRESETBLOCK = "INSERT OR REPLACE INTO " + DTABLENAME + " (" + IDCOL + ") VALUES (?)";
+    // SQL of chunks
+    private static final String SQLWRITECHUNK = "INSERT OR REPLACE INTO " + CTABLENAME + " (" +
+                                                DATACHUNK.dID.toString() + ", " +
+                                                DATACHUNK.chunkIdx.toString() + ", " +
+                                                DATACHUNK.chunkData.toString() + ", " +
+                                                DATACHUNK.chunkCodec.toString() + ") VALUES (?, ?, ?, ?)";
+    private static final String SQLTRUNCCHUNKS = "DELETE FROM " + CTABLENAME + " WHERE " +
+                                                 DATACHUNK.dID.toString() + " = ? AND " +
+                                                 DATACHUNK.chunkIdx.toString() + " >= ?";
+    private static final String[] COLSCHUNK = new String[]{DATACHUNK.chunkData.toString(), 
+                                                           DATACHUNK.chunkCodec.toString()};
+    private static final String SQLGETCHUNKS = SqlStr.genSelect(CTABLENAME, COLSCHUNK, DATACHUNK.dID.toString()) +
+                                               " ORDER BY " + DATACHUNK.chunkIdx.toString();
+    private static final String SQLGETCHUNK = SqlStr.genSelect(CTABLENAME, COLSCHUNK,
+                                                               DATACHUNK.dID.toString(), DATACHUNK.chunkIdx.toString());
+    private static final String SQLHASCHUNK = SqlStr.genSelect(CTABLENAME, new String[]{"count(*)"},
+                                                               DATACHUNK.dID.toString(), DATACHUNK.chunkIdx.toString());
+    private static final String SQLDELCHUNKS = SqlStr.genDelete(CTABLENAME, DATACHUNK.dID.toString());
+    private static final String SQLCOPYCHUNKS = "INSERT INTO " + CTABLENAME + " (" +
+                                                DATACHUNK.dID.toString() + ", " +
+                                                DATACHUNK.chunkIdx.toString() + ", " +
+                                                DATACHUNK.chunkData.toString() + ", " +
+                                                DATACHUNK.chunkCodec.toString() + ") SELECT ?, " +
+                                                DATACHUNK.chunkIdx.toString() + ", " +
+                                                DATACHUNK.chunkData.toString() + ", " +
+                                                DATACHUNK.chunkCodec.toString() + " FROM " + CTABLENAME +
+                                                " WHERE " + DATACHUNK.dID.toString() + " = ?";
+
+    private InputStream source = null;   ///< data to be saved
+    private OutputStream sink = null;    ///< where data read are written to
+    private int dataSize = 0;            ///< bytes saved or read last time
+    private IFsCodec codec;              ///< codec of chunks saved, null if not encoded
+
+    public ChunkedFileData()
+    {
+       this.codec = SqlFsCodec.getDefault();
+    }
+
+    /**
+     *  @param [in] codec -- a registered codec for chunks saved, null to save them as they are
+     */
+    public void setCodec(IFsCodec codec)
+    {
+       this.codec = codec;
+    }
+
+    /**
+     *  Data are read from 'source' (until end of stream) when the file is saved
+     */
+    public void setSource(InputStream source)
+    {
+       this.source = source;
+    }
+
+    /**
+     *  Data are written to 'sink' when the file is read
+     */
+    public void setSink(OutputStream sink)
+    {
+       this.sink = sink;
+    }
+
+    /**
+     *  Create chunk table, called when the DB is created or upgraded
+     */
+    static void createTable(SQLiteDatabase db)
+    {
+       db.execSQL(SqlStr.genCreateTable(CTABLENAME, colDataChunk));
+       db.execSQL(SqlStr.genCreateIndex(CIDXNAME, CTABLENAME, true, IDXDATACHUNK));
+    }
+
+    /**
+     *  Add codec column to chunk table of an older DB, chunks saved are not encoded
+     */
+    static void addCodecColumn(SQLiteDatabase db)
+    {
+       db.execSQL("ALTER TABLE " + CTABLENAME + " ADD COLUMN " + DATACHUNK.chunkCodec.toString() + " integer");
+    }
+
+    /**
+     *  Delete all chunks of a data block, if any
+     */
+    static boolean deleteChunks(SQLiteDatabase db, FsID dataBlockID)
+    {
+       try {
+          SQLiteStatement stmt = SqlFsStmtCache.getCache(db).getStatement(SQLDELCHUNKS);
+          stmt.bindLong(1, dataBlockID.getVal());
+          SqlFsExec.execute(db, stmt, SQLDELCHUNKS);
+       }
+       catch (Exception e) {
+          SqlFsLog.debug(e);
+          return false;
+       }
+
+       return true;
+    }
+
+    /**
+     *  Add a DataBlock entry for chunks, used by one file
+     *
+     *  @return ID of the new entry, INVALIDID if failed
+     */
+    static FsID newDataBlock(SQLiteDatabase db)
+    {
+       long newID = SqlFsExec.executeInsert(db, SqlFsStmtCache.getCache(db).getStatement(SQLNEWBLOCK), SQLNEWBLOCK);
+       if (newID < 0)
+          return SqlFsConst.INVALIDID;
+       
+       FsID dataBlockID = FsID.toFsID(newID);
+       SqlFsDataRef.add(db, dataBlockID, null);
+       return dataBlockID;
+    }
+
+    /**
+     *  Add a DataBlock entry for chunks of a stream, used by no file until the
+     *  stream is closed (see SqlFsDataRef.addPending)
+     *
+     *  @return ID of the new entry, INVALIDID if failed
+     */
+    static FsID newPendingDataBlock(SQLiteDatabase db)
+    {
+       long newID = SqlFsExec.executeInsert(db, SqlFsStmtCache.getCache(db).getStatement(SQLNEWBLOCK), SQLNEWBLOCK);
+       if (newID < 0)
+          return SqlFsConst.INVALIDID;
+       
+       FsID dataBlockID = FsID.toFsID(newID);
+       SqlFsDataRef.addPending(db, dataBlockID);
+       return dataBlockID;
+    }
+    
+    /**
+     *  Copy all chunks of a data block to another one (copy-on-write of shared data)
+     */
+    static void copyChunks(SQLiteDatabase db, FsID fromID, FsID toID)
+    {
+       SQLiteStatement stmt = SqlFsStmtCache.getCache(db).getStatement(SQLCOPYCHUNKS);
+       stmt.bindLong(1, toID.getVal());
+       stmt.bindLong(2, fromID.getVal());
+       SqlFsExec.execute(db, stmt, SQLCOPYCHUNKS);
+    }
+
+    /**
+     *  Clear all columns (of other IFileData) except ID of a DataBlock entry
+     */
+    static void resetDataBlock(SQLiteDatabase db, FsID dataBlockID)
+    {
+       SQLiteStatement stmt = SqlFsStmtCache.getCache(db).getStatement(SQLRESETBLOCK);
+       stmt.bindLong(1, dataBlockID.getVal());
+       SqlFsExec.executeInsert(db, stmt, SQLRESETBLOCK);
+    }
+
+    /**
+     *  Add or replace a chunk, encoded by the default codec
+     *
+     *  @param [in] chunk -- CHUNKSIZE bytes, except the last chunk of a file
+     */
+    static void writeChunk(SQLiteDatabase db, FsID dataBlockID, int chunkIdx, byte[] chunk)
+    {
+       writeChunk(db, dataBlockID, chunkIdx, chunk, SqlFsCodec.getDefault());
+    }
+
+    /**
+     *  @param [in] codec -- null to save chunk as it is
+     */
+    static void writeChunk(SQLiteDatabase db, FsID dataBlockID, int chunkIdx, byte[] chunk, IFsCodec codec)
+    {
+       byte[] encoded = SqlFsCodec.encode(codec, chunk);
+
+       SQLiteStatement stmt = SqlFsStmtCache.getCache(db).getStatement(SQLWRITECHUNK);
+       stmt.bindLong(1, dataBlockID.getVal());
+       stmt.bindLong(2, chunkIdx);
+       if (encoded != null) {
+          stmt.bindBlob(3, encoded);
+          stmt.bindLong(4, codec.getID());
+       }
+       else {
+          stmt.bindBlob(3, chunk);
+       }
+       SqlFsExec.execute(db, stmt, SQLWRITECHUNK);
+    }
+
+    /**
+     *  Decode a chunk queried with COLSCHUNK
+     */
+    private static byte[] getChunk(Cursor c) throws IOException
+    {
+       int codecID = c.isNull(1) ? SqlFsCodec.NONE : c.getInt(1);
+       return SqlFsCodec.decode(codecID, c.getBlob(0));
+    }
+
+    /**
+     *  Remove chunks from 'chunkIdx' onwards
+     */
+    static void truncateChunks(SQLiteDatabase db, FsID dataBlockID, int chunkIdx)
+    {
+       SQLiteStatement stmt = SqlFsStmtCache.getCache(db).getStatement(SQLTRUNCCHUNKS);
+       stmt.bindLong(1, dataBlockID.getVal());
+       stmt.bindLong(2, chunkIdx);
+       SqlFsExec.execute(db, stmt, SQLTRUNCCHUNKS);
+    }
+
+    /**
+     *  @return data of a chunk (decoded), null if not present
+     *
+     *  @throws IllegalStateException if the chunk can't be decoded
+     */
+    static byte[] readChunk(SQLiteDatabase db, FsID dataBlockID, int chunkIdx)
+    {
+       byte[] chunk = null;
+       Cursor c = null;
+       try {
+          c = SqlFsExec.rawQuery(db, SQLGETCHUNK, new String[]{dataBlockID.toString(), Integer.toString(chunkIdx)});
+          if (c.moveToFirst())
+             chunk = getChunk(c);
+       }
+       catch (IOException e) {
+          throw new IllegalStateException("cannot decode chunk, " + e.getMessage());
+       }
+       finally {
+          SqlFsFunc.close(c);
+       }
+
+       return chunk;
+    }
+
+    /**
+     *  @return true if the chunk is present
+     */
+    static boolean hasChunk(SQLiteDatabase db, FsID dataBlockID, int chunkIdx)
+    {
+       SQLiteStatement stmt = SqlFsStmtCache.getCache(db).getStatement(SQLHASCHUNK);
+       stmt.bindLong(1, dataBlockID.getVal());
+       stmt.bindLong(2, chunkIdx);
+       return (SqlFsExec.simpleQueryForLong(db, stmt, SQLHASCHUNK) > 0);
+    }
+
+    /**
+     *  Only the ID column is required
+     */
+    @Override
+	public String[][] getColSchema()
+	{
+		return new String[][]{new String[]{IFileData.IDCOL, IFileData.IDCOLTYPE}};
+	}
+
+    /**
+     *  Write all chunks to sink in order. Data saved by other IFileData (e.g. SimpleFileData)
+     *  are not read, DataNotChunked is set.
+     */
+    @Override
+    boolean getData(SQLiteDatabase db, FsID dataBlockID)
+    {
+       if (sink == null) {
+          SqlFsErrCode.setCurrentError(FsErr.GetFileDataErr);
+          return false;
+       }
+
+       long size = 0;
+       Cursor c = null;
+       try {
+          c = SqlFsExec.rawQuery(db, SQLGETCHUNKS, new String[]{dataBlockID.toString()});
+          if (c.moveToFirst()) {
+             do {
+                byte[] chunk = getChunk(c);
+                sink.write(chunk);
+                size += chunk.length;
+             } while (c.moveToNext());
+          }
+          else if (hasOtherData(db, dataBlockID)) {
+             SqlFsErrCode.setCurrentError(FsErr.DataNotChunked);
+             return false;
+          }
+          sink.flush();
+       }
+       catch (Exception e) {
+          SqlFsLog.debug(e);
+          SqlFsErrCode.setCurrentError(FsErr.GetFileDataErr);
+          return false;
+       }
+       finally {
+          SqlFsFunc.close(c);
+       }
+
+       this.dataSize = (int)size;
+       return true;
+    }
+
+    /**
+     *  @return true if any column (of other IFileData) of the DataBlock entry is set,
+     *          all are cleared when chunks are saved (see resetDataBlock)
+     */
+    private static boolean hasOtherData(SQLiteDatabase db, FsID dataBlockID)
+    {
+       Cursor c = null;
+       try {
+          c = SqlFsExec.rawQuery(db, IFileData.SQLGETDATA, new String[]{dataBlockID.toString()});
+          if (!c.moveToFirst())
+             return false;
+
+          for (int i = 0; i < c.getColumnCount(); ++i) {
+             if (!c.getColumnName(i).equalsIgnoreCase(IFileData.IDCOL) && !c.isNull(i))
+                return true;
+          }
+          return false;
+       }
+       finally {
+          SqlFsFunc.close(c);
+       }
+    }
+
+    /**
+     *  Read source until end of stream and save it chunk by chunk. If the same content 
+     *  is saved already, that data block is shared and the chunks written are dropped.
+     */
+    @Override
+    FsID saveData(SQLiteDatabase db, FsID dataBlockID)
+    {
+       if (source == null)
+          return SqlFsConst.INVALIDID;
+
+       FsID newDataBlockID = null;   // data block added, if any
+       try {
+          // DataBlock entry, existing columns (of other IFileData) are cleared.
+          // a shared one is left unchanged
+          if (dataBlockID.compare(SqlFsConst.INVALIDID) <= 0 || SqlFsDataRef.isShared(db, dataBlockID)) {
+             dataBlockID = newDataBlockID = newDataBlock(db);
+             if (dataBlockID.compare(SqlFsConst.INVALIDID) <= 0)
+                return SqlFsConst.INVALIDID;
+          }
+          else {
+             resetDataBlock(db, dataBlockID);
+          }
+
+          // write chunks
+          MessageDigest md = SqlFsDataRef.newDigest(SqlFsDataRef.HASHOFCHUNKS);
+          byte[] buf = new byte[SqlFsConst.CHUNKSIZE];
+          long size = 0;
+          int chunkIdx = 0;
+          int len;
+          while ((len = fillBuffer(buf)) > 0) {
+             size += len;
+             if (size > Integer.MAX_VALUE)
+                throw new IOException("file too large");
+
+             byte[] chunk = buf;
+             if (len < buf.length) {
+                // last chunk
+                chunk = new byte[len];
+                System.arraycopy(buf, 0, chunk, 0, len);
+             }
+
+             if (md != null)
+                md.update(chunk);
+             writeChunk(db, dataBlockID, chunkIdx++, chunk, codec);
+          }
+
+          // remove chunks left by a larger one
+          truncateChunks(db, dataBlockID, chunkIdx);
+
+          this.dataSize = (int)size;
+          
+          // same content already saved
+          byte[] hash = (md == null) ? null : md.digest();
+          FsID sameID = SqlFsDataRef.find(db, hash);
+          if (sameID.compare(SqlFsConst.INVALIDID) > 0 && !sameID.equals(dataBlockID)) {
+             SqlFsDataRef.addRef(db, sameID);
+             if (newDataBlockID != null && !SqlFsDataRef.release(db, newDataBlockID))
+                return SqlFsConst.INVALIDID;
+             return sameID;
+          }
+          
+          SqlFsDataRef.setHash(db, dataBlockID, hash);
+       }
+       catch (Exception e) {
+          SqlFsLog.debug(e);
+          return SqlFsConst.INVALIDID;
+       }
+
+       return dataBlockID;
+    }
+
+    /**
+     *  Fill buf from source
+     *
+     *  @return number of bytes read, less than buf.length only at end of stream
+     */
+    private int fillBuffer(byte[] buf) throws IOException
+    {
+       int total = 0;
+       while (total < buf.length) {
+          int n = source.read(buf, total, buf.length - total);
+          if (n < 0)
+             break;
+          total += n;
+       }
+
+       return total;
+    }
+
+    /**
+     *  Not used, data are read by getData()
+     */
+    @Override
+	protected void __getData(Cursor c)
+	{
+	}
+
+    /**
+     *  Not used, data are saved by saveData()
+     */
+    @Override
+	protected ContentValues __saveData()
+	{
+		return null;
+	}
+
+    /**
+	 *  Return the number of bytes saved or read last time
+	 */
+	@Override
+	public int getDataSizeInByte()
+	{
+		return this.dataSize;
+	}
+}
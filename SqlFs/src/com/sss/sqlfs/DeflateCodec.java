@@ -0,0 +1,82 @@
+package com.sss.sqlfs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ *  Built-in codec using java.util.zip (zlib format)
+ */
+public class DeflateCodec implements IFsCodec
+{
+   private int level;
+
+   /**
+    *  Codec with default compression level
+    */
+   public DeflateCodec()
+   {
+      this(Deflater.DEFAULT_COMPRESSION);
+   }
+
+   /**
+    *  @param [in] level -- Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION
+    */
+   public DeflateCodec(int level)
+   {
+      this.level = level;
+   }
+
+   public int getID()
+   {
+      return SqlFsCodec.DEFLATE;
+   }
+
+   public byte[] encode(byte[] data)
+   {
+      Deflater deflater = new Deflater(level);
+      try {
+         deflater.setInput(data);
+         deflater.finish();
+
+         ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+         byte[] buf = new byte[SqlFsConst.BUFSIZE * 32];
+         while (!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            out.write(buf, 0, n);
+         }
+
+         return out.toByteArray();
+      }
+      finally {
+         deflater.end();
+      }
+   }
+
+   public byte[] decode(byte[] data) throws IOException
+   {
+      Inflater inflater = new Inflater();
+      try {
+         inflater.setInput(data);
+
+         ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 3);
+         byte[] buf = new byte[SqlFsConst.BUFSIZE * 32];
+         while (!inflater.finished()) {
+            int n = inflater.inflate(buf);
+            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+               throw new IOException("truncated deflate data");
+            out.write(buf, 0, n);
+         }
+
+         return out.toByteArray();
+      }
+      catch (DataFormatException e) {
+         throw new IOException("bad deflate data, " + e.getMessage());
+      }
+      finally {
+         inflater.end();
+      }
+   }
+}
@@ -1,9 +1,10 @@
 package com.sss.sqlfs;
 
-import android.util.Log;
-
 /**
  * Class to represent an ID in the file system. May be 32bit or 64bit
+ *
+ * An immutable value used at the API boundary only, IDs are kept as primitive
+ * long inside (e.g. long[] for IDs in a fsChild blob).
  */
 public class FsID 
 {
@@ -16,45 +17,50 @@ public class FsID
     public static boolean isLongID() { return useLongID; }
     
 
-    private IFsID _fsID;
-    
-    private FsID() { }
-    
+    private final long id;   ///< kept as a primitive, truncated to 32 bit unless useLongID
     
     FsID(int id)
     {
-    	_fsID = useLongID ? new FsID64(id) : new FsID32(id); 
+    	this.id = id;
     }
     
     FsID(long id)
     {
-    	_fsID = useLongID ? new FsID64(id) : new FsID32((int)(id & 0xffffffff)); 
+    	this.id = useLongID ? id : (long)(int)id; 
     }
     
     public int compare(FsID value)
     {
-       return _fsID.compare(value._fsID);
+       if (this.id > value.id) return 1;
+       if (this.id < value.id) return -1;
+       return 0;
     }
     
     public boolean equals(FsID value)
     {
-       return _fsID.equals(value._fsID);
+       return value != null && this.id == value.id;
     }
     
     @Override
     public boolean equals(Object obj)
     {
        if (obj instanceof FsID) {
-    	   return this.getVal() == ((FsID)obj).getVal();
+    	   return this.id == ((FsID)obj).id;
        }
        
        return false;
     }
     
+    @Override
+    public int hashCode()
+    {
+       return (int)(id ^ (id >>> 32));
+    }
+    
     @Override
     public String toString()
     {
-       return Long.toString(getVal());
+       return Long.toString(id);
     }
     
     /**
@@ -62,7 +68,7 @@ public class FsID
      */
     public long getVal()
     {
-       return useLongID ? ((FsID64)_fsID).id : ((FsID32)_fsID).id;
+       return id;
     }
     
     /**
@@ -80,77 +86,4 @@ public class FsID
     {
        return new FsID(id);
     }
-    
-    //////////////////////// inner interface and class /////////////////////
-    
-    private interface IFsID
-    {
-       public int compare(IFsID aID);
-       public boolean equals(IFsID aID);
-    }
-    
-    /**
-     * 64bit FsID
-     */
-    private class FsID64 implements IFsID
-    {
-       private long id;
-       
-       public FsID64(int id)
-       {
-    	  this.id = id;
-       }
-       
-       public FsID64(long id)
-       {
-    	  this.id = id; 
-       }
-       
-       public int compare(IFsID aID)
-       {
-    	   if (! (aID instanceof FsID64)) 
-    		   return -1;
-    	   
-    	   long longID = ((FsID64)aID).id;
-    	   if (this.id > longID) return 1;
-    	   if (this.id < longID) return -1;
-    	   return 0;
-       }
-       
-       public boolean equals(IFsID aID)
-       {
-    	  if (! (aID instanceof FsID64)) return false;
-    	  return this.id == ((FsID64)aID).id;
-       }
-    }
-    
-    /**
-     * 32bit FsID
-     */
-    private class FsID32 implements IFsID
-    {
-       private int id;
-       
-       public FsID32(int id)
-       {
-    	  this.id = id;
-       }
-       
-       public int compare(IFsID aID)
-       {
-    	   if (! (aID instanceof FsID32)) 
-    		   return -1;
-    	   
-    	   int intID = ((FsID32)aID).id;
-    	   if (this.id > intID) return 1;
-    	   if (this.id < intID) return -1;
-    	   return 0;
-       }
-       
-       public boolean equals(IFsID aID)
-       {
-    	  if (! (aID instanceof FsID32)) return false;
-    	  return this.id == ((FsID32)aID).id;
-       }
-    }
 }
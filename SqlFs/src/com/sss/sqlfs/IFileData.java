@@ -19,19 +19,22 @@ public abstract class IFileData
     public static final String IDCOL = "dID";
     //! ID column type
     public static final String IDCOLTYPE = "integer primary key autoincrement";
+    
+    // SQL to get/delete a data block by ID
+    static final String SQLGETDATA = "SELECT * FROM " + DTABLENAME + " WHERE " + IDCOL + " = ?";
+    static final String SQLDELDATA = SqlStr.genDelete(DTABLENAME, IDCOL);
+    // "WHERE" of updating a data block, the ID is bound
+    private static final String WHEREDATAID = IDCOL + " = ?";
 
     /**
      *  For derived class to return DataBlock table schema
      */
     public abstract String[][] getColSchema();
 
-    protected FsID getLastInsertID(SQLiteDatabase db)
-    {
-       return SqlFs.getLastInsertID(db);
-    }
-    
     /**
      *  Called by SqlFile.GetFileData
+     *  
+     *  Overridden by ChunkedFileData, which keeps data outside DataBlock
      */
     boolean getData(SQLiteDatabase db, FsID dataBlockID)
     {
@@ -53,13 +56,10 @@ public abstract class IFileData
      */
     private boolean __getData(SQLiteDatabase db, FsID dataBlockID)
     {
-    	String where = SqlStr.genWhere(new SqlStr.SqlSimpCond(IFileData.IDCOL, "=", dataBlockID));
  	    Cursor c = null;
  	       
         try {
-     	   
-     	  c = db.query(IFileData.DTABLENAME.toString(), null, 
-                        where, null, null, null, null);
+     	  c = SqlFsExec.rawQuery(db, SQLGETDATA, new String[]{dataBlockID.toString()});
      	   
      	  if (c.moveToFirst()) {
      		 __getData(c);
@@ -84,7 +84,10 @@ public abstract class IFileData
     protected abstract void __getData(Cursor c);
 
     /**
-     *  Called by SqlFile.SaveFileData
+     *  Called by SqlFile.SaveFileData, the caller releases 'dataBlockID' if another 
+     *  ID is returned
+     *  
+     *  Overridden by ChunkedFileData, which keeps data outside DataBlock
      */
     FsID saveData(SQLiteDatabase db, FsID dataBlockID)
     {
@@ -93,11 +96,12 @@ public abstract class IFileData
 
     /**
      * 
-     *  Save data to data block table
+     *  Save data to data block table. If the same content is saved already, that data block
+     *  is shared instead. A data block used by other files is never updated.
      *
      *  @param [in] dataBlockID -- the data block ID if exist. Pass 0 if not exist
      *
-     *  @return dataBlockID if OK
+     *  @return ID of the data block saved or shared, which may differ from dataBlockID
      *  @return 0 if failed
      */
     private FsID __saveData(SQLiteDatabase db, FsID dataBlockID)
@@ -106,21 +110,39 @@ public abstract class IFileData
     	ContentValues contValues = __saveData();
     	
         try {
+        	byte[] hash = SqlFsDataRef.hash(contValues);
+        	
+        	// same content already saved
+        	FsID sameID = SqlFsDataRef.find(db, hash);
+        	if (sameID.compare(SqlFsConst.INVALIDID) > 0) {
+        	   if (!sameID.equals(dataBlockID))
+        	      SqlFsDataRef.addRef(db, sameID);
+        	   return sameID;
+        	}
 			
-			if (dataBlockID.compare(SqlFsConst.INVALIDID) <= 0) {
+			if (dataBlockID.compare(SqlFsConst.INVALIDID) <= 0 || SqlFsDataRef.isShared(db, dataBlockID)) {
 						
 			   // save new data
-			   if (db.insert(IFileData.DTABLENAME.toString(), null, contValues) < 0)
+			   // insert returns rowID of the new entry, which is also its ID
+			   long newID = SqlFsExec.insert(db, IFileData.DTABLENAME.toString(), contValues);
+			   if (newID < 0) {
 				  dataBlockID = SqlFsConst.INVALIDID;
-			   else
-		          dataBlockID = getLastInsertID(db);
+			   }
+			   else {
+		          dataBlockID = FsID.toFsID(newID);
+		          SqlFsDataRef.add(db, dataBlockID, hash);
+			   }
 			}
 			else {
 				
 			   // update data
-			   String where = SqlStr.genWhere(new SqlStr.SqlSimpCond(IFileData.IDCOL, "=", dataBlockID));
-		       if (db.update(IFileData.DTABLENAME.toString(), contValues, where, null) == 0)
+		       if (SqlFsExec.update(db, IFileData.DTABLENAME.toString(), contValues, WHEREDATAID, 
+		    		         new String[]{dataBlockID.toString()}) == 0)
 		          dataBlockID = SqlFsConst.INVALIDID;
+		       else if (!ChunkedFileData.deleteChunks(db, dataBlockID))  // may be saved by ChunkedFileData before
+		    	  dataBlockID = SqlFsConst.INVALIDID;
+		       else
+		    	  SqlFsDataRef.setHash(db, dataBlockID, hash);
 			}
 		}
 	    catch (Exception e) {
@@ -0,0 +1,28 @@
+package com.sss.sqlfs;
+
+import java.io.IOException;
+
+/**
+ *  Codec to compress file data before it is saved, see SqlFsCodec.
+ *
+ *  The ID of the codec is saved with the data, so a codec must be registered by
+ *  SqlFsCodec.register() before data encoded by it are read.
+ */
+public interface IFsCodec
+{
+   /**
+    *  @return ID saved with encoded data, 1 to SqlFsCodec.MAXID. IDs below 
+    *          SqlFsCodec.USERID are reserved for built-in codecs.
+    */
+   int getID();
+
+   /**
+    *  @return encoded data, null if failed
+    */
+   byte[] encode(byte[] data);
+
+   /**
+    *  @return data decoded from what encode() returned
+    */
+   byte[] decode(byte[] data) throws IOException;
+}
@@ -0,0 +1,15 @@
+package com.sss.sqlfs;
+
+/**
+ *  Called for each node found by SqlFs.find(), in order of path
+ */
+public interface IFsFindCallback
+{
+   /**
+    *  @param [in] path -- absolute path of the node
+    *  @param [in] info -- snapshot of the node
+    *
+    *  @return false to stop finding
+    */
+   boolean onFound(String path, SqlFsNodeInfo info);
+}
@@ -0,0 +1,38 @@
+package com.sss.sqlfs;
+
+/**
+ *  Listener of FS operations, set by SqlFs.setMetrics(). SqlFsMetrics keeps histograms
+ *  of them in memory.
+ *
+ *  An operation is a public call taking the FS lock, e.g. SqlFile.saveFileData(). Calls
+ *  nested in it (and all operations of a SqlFsBatch) are counted as part of it.
+ */
+public interface IFsMetrics
+{
+   enum FSOP
+   {
+      GETFSNODE,      ///< path lookup, SqlFs/SqlDir getFsNode(), getDir(), getFile(), exists(), getChild()
+      GETINFO,        ///< attributes of a node
+      LIST,           ///< children of a dir
+      ADDDIR,
+      ADDFILE,
+      GETFILEDATA,
+      SAVEFILEDATA,
+      READ,           ///< random access or stream
+      WRITE,          ///< random access or stream
+      TRUNCATE,
+      RENAME,
+      MOVE,
+      COPY,
+      DELETE,
+      FIND,
+      BATCH           ///< from SqlFs.beginBatch() to commit() or rollback()
+   };
+
+   /**
+    *  Called by the thread running the operation when it ends, with the FS unlocked
+    *
+    *  @param [in] stats -- stats of the operation, not changed after the call
+    */
+   void onOpDone(SqlFsOpStats stats);
+}
@@ -0,0 +1,17 @@
+package com.sss.sqlfs;
+
+/**
+ *  Callback of long-running operations on a whole tree, e.g. SqlDir.delete(IFsProgress)
+ */
+public interface IFsProgress
+{
+   /**
+    *  Called by the thread running the operation, with the FS locked
+    *
+    *  @param [in] done -- number of nodes processed so far
+    *  @param [in] total -- number of nodes in the tree
+    *
+    *  @return false to cancel, the operation is then rolled back
+    */
+   boolean onProgress(int done, int total);
+}
@@ -0,0 +1,15 @@
+package com.sss.sqlfs;
+
+/**
+ *  An operation run by SqlFsAsync on one of its threads
+ */
+public interface IFsTask<T>
+{
+   /**
+    *  Called by a thread of SqlFsAsync, with the SqlFs of that thread. Nodes got from 'fs'
+    *  belong to that thread and must not be returned.
+    *
+    *  @return result of the future, the error code of the thread is kept by the future
+    */
+   T run(SqlFs fs) throws Exception;
+}
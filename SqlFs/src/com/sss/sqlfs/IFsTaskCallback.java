@@ -0,0 +1,16 @@
+package com.sss.sqlfs;
+
+/**
+ *  Called when an operation submitted to SqlFsAsync ends
+ */
+public interface IFsTaskCallback<T>
+{
+   /**
+    *  Called by the thread which ran the operation, with the FS unlocked, possibly after
+    *  get() of the future has returned in another thread. Must not wait for other
+    *  operations of the same SqlFsAsync.
+    *
+    *  @param [in] future -- done, get() does not block
+    */
+   void onDone(SqlFsFuture<T> future);
+}
@@ -1,5 +1,6 @@
 package com.sss.sqlfs;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 import com.sss.sqlfs.helper.SqlStr;
@@ -8,6 +9,9 @@ import android.database.Cursor;
 
 /**
  *  An implementation of IFileData which saves text data or raw binary data.  
+ *
+ *  Data are compressed by a codec (see SqlFsCodec), then text is saved as UTF-8 bytes
+ *  in dRawBinData.
  */
 public class SimpleFileData extends IFileData
 {
@@ -17,7 +21,8 @@ public class SimpleFileData extends IFileData
        dID, // just a place holder
        dFileType,
        dTextData,
-       dRawBinData
+       dRawBinData,
+       dCodec      ///< SqlFsCodec ID of dRawBinData, NULL if not encoded
     };
     
     protected enum FILETYPE
@@ -30,14 +35,25 @@ public class SimpleFileData extends IFileData
                        new String[]{IFileData.IDCOL, IFileData.IDCOLTYPE}, // first column from IFileData
                        new String[]{FILEDATABLOCK.dFileType.toString(), "integer"},
                        new String[]{FILEDATABLOCK.dTextData.toString(), "text"},
-                       new String[]{FILEDATABLOCK.dRawBinData.toString(), "blob"}
+                       new String[]{FILEDATABLOCK.dRawBinData.toString(), "blob"},
+                       new String[]{FILEDATABLOCK.dCodec.toString(), "integer"}
                                                                   };
     
     private byte[] rawBinData;
     private String textData;
+    private IFsCodec codec;      ///< codec of data saved, null if not encoded
     
     public SimpleFileData()
     {
+       this.codec = SqlFsCodec.getDefault();
+    }
+    
+    /**
+     *  @param [in] codec -- a registered codec for data saved, null to save data as they are
+     */
+    public void setCodec(IFsCodec codec)
+    {
+       this.codec = codec;
     }
     
     public byte[] getRawBinData()
@@ -83,7 +99,25 @@ public class SimpleFileData extends IFileData
 	protected void __getData(Cursor c)
 	{
 	   int fileType = c.getInt(FILEDATABLOCK.dFileType.ordinal());
-	   if (fileType == FILETYPE.fBin.ordinal()) {
+	   int codecID = (c.getColumnCount() <= FILEDATABLOCK.dCodec.ordinal() || c.isNull(FILEDATABLOCK.dCodec.ordinal())) ?
+			         SqlFsCodec.NONE : c.getInt(FILEDATABLOCK.dCodec.ordinal());
+	   
+	   if (codecID != SqlFsCodec.NONE) {
+		  // encoded, text as well
+		  try {
+		     byte[] data = SqlFsCodec.decode(codecID, c.getBlob(FILEDATABLOCK.dRawBinData.ordinal()));
+		     if (fileType == FILETYPE.fText.ordinal())
+		        setTextData(new String(data, "UTF-8"));
+		     else
+		        setRawBinData(data);
+		  }
+		  catch (IOException e) {
+		     IllegalStateException ex = new IllegalStateException("cannot decode file data, " + e.getMessage());
+		     ex.initCause(e);
+		     throw ex;
+		  }
+	   }
+	   else if (fileType == FILETYPE.fBin.ordinal()) {
           this.rawBinData = c.getBlob(FILEDATABLOCK.dRawBinData.ordinal());
           this.textData = null; // clear
 	   }
@@ -101,20 +135,37 @@ public class SimpleFileData extends IFileData
 	{
 		ArrayList<Object> colsAndValues = new ArrayList<Object>(2);
 		FILETYPE fType = FILETYPE.fBin;
+		byte[] encoded = null;
 		if (this.rawBinData != null) {
+		   encoded = SqlFsCodec.encode(this.codec, this.rawBinData);
 		   colsAndValues.add(FILEDATABLOCK.dRawBinData.toString()); 
-		   colsAndValues.add(this.rawBinData);
+		   colsAndValues.add((encoded != null) ? encoded : this.rawBinData);
 		   colsAndValues.add(FILEDATABLOCK.dTextData.toString()); // clear text column 
 		   colsAndValues.add("");
 		}
 		else if (this.textData != null) {
-		   colsAndValues.add(FILEDATABLOCK.dTextData.toString()); 
-		   colsAndValues.add(this.textData);
-		   colsAndValues.add(FILEDATABLOCK.dRawBinData.toString()); // clear rawbin column
-		   colsAndValues.add(null);
+		   if (this.codec != null && this.textData.length() >= SqlFsCodec.MINSIZE)
+		      encoded = SqlFsCodec.encode(this.codec, toUtf8(this.textData));
+		   
+		   if (encoded != null) {
+			  colsAndValues.add(FILEDATABLOCK.dRawBinData.toString()); 
+			  colsAndValues.add(encoded);
+			  colsAndValues.add(FILEDATABLOCK.dTextData.toString()); // clear text column 
+			  colsAndValues.add("");
+		   }
+		   else {
+		      colsAndValues.add(FILEDATABLOCK.dTextData.toString()); 
+		      colsAndValues.add(this.textData);
+		      colsAndValues.add(FILEDATABLOCK.dRawBinData.toString()); // clear rawbin column
+		      colsAndValues.add(null);
+		   }
 		   fType = FILETYPE.fText;
 		}
 		
+		// codec
+		colsAndValues.add(FILEDATABLOCK.dCodec.toString()); 
+		colsAndValues.add((encoded != null) ? (Object)this.codec.getID() : null);
+		
 		// file type
 		colsAndValues.add(FILEDATABLOCK.dFileType.toString()); 
 		colsAndValues.add(fType.ordinal());
@@ -122,8 +173,18 @@ public class SimpleFileData extends IFileData
 		return SqlStr.genContentValues(colsAndValues);
 	}
 	
+	private static byte[] toUtf8(String text)
+	{
+	   try {
+	      return text.getBytes("UTF-8");
+	   }
+	   catch (IOException e) {
+	      throw new IllegalStateException(e.getMessage());   // never, UTF-8 is always supported
+	   }
+	}
+	
 	/**
-	 *  Return the number of bytes used up by rawBin or text data 
+	 *  Return the number of bytes used up by rawBin or text data (before encoded)
 	 */
 	@Override
 	public int getDataSizeInByte()
@@ -1,6 +1,7 @@
 package com.sss.sqlfs;
 
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.database.Cursor;
 
 import com.sss.sqlfs.SqlFsErrCode.FsErr;
@@ -13,6 +14,48 @@ import java.util.ArrayList;
  */
 public class SqlDir extends SqlFsNode
 {
+    // SQL to query children (all with fsParent = ?)
+    private static final String SQLCHILDCOUNT = SqlStr.genSelect(SqlFs.DBNAMES.FsBlock.toString(), new String[]{"count(*)"},
+                                                                 SqlFs.FSBLOCK.fsParent.toString());
+    private static final String SQLCHILDREN = SqlStr.genSelect(SqlFs.DBNAMES.FsBlock.toString(), SqlFsNodeInfo.COLUMNS,
+                                                               SqlFs.FSBLOCK.fsParent.toString());
+    private static final String SQLCHILDRENBYTYPE = SqlStr.genSelect(SqlFs.DBNAMES.FsBlock.toString(), SqlFsNodeInfo.COLUMNS,
+                                                                     SqlFs.FSBLOCK.fsParent.toString(), 
+                                                                     SqlFs.FSBLOCK.fsType.toString());
+    private static final String SQLCHILDBYNAME = SqlStr.genSelect(SqlFs.DBNAMES.FsBlock.toString(), SqlFsNodeInfo.COLUMNS,
+                                                                  SqlFs.FSBLOCK.fsParent.toString(), 
+                                                                  SqlFs.FSBLOCK.fsName.toString());
+    private static final String SQLCHILDBYNAMETYPE = SqlStr.genSelect(SqlFs.DBNAMES.FsBlock.toString(), SqlFsNodeInfo.COLUMNS,
+                                                                      SqlFs.FSBLOCK.fsParent.toString(), 
+                                                                      SqlFs.FSBLOCK.fsName.toString(),
+                                                                      SqlFs.FSBLOCK.fsType.toString());
+    // SQL to delete a level of the tree collected by SqlFsSubtree, data blocks are deleted
+    // only if no longer used by any file
+    private static final String SQLRELEASEOFLEVEL = "UPDATE " + SqlFsDataRef.TABNAME + " SET " +
+                                                    SqlFsDataRef.DATAREF.dRefCount.toString() + " = " +
+                                                    SqlFsDataRef.DATAREF.dRefCount.toString() + " - (SELECT count(*) FROM " +
+                                                    SqlFsSubtree.TABNAME + " s WHERE s." + 
+                                                    SqlFsSubtree.SUBTREENODE.level.toString() + " = ? AND s." +
+                                                    SqlFsSubtree.SUBTREENODE.dataID.toString() + " = " +
+                                                    SqlFsDataRef.TABNAME + "." + SqlFsDataRef.DATAREF.dID.toString() +
+                                                    ") WHERE " + SqlFsDataRef.DATAREF.dID.toString() + " IN (" +
+                                                    SqlFsSubtree.SELDATAOFLEVEL + ")";
+    private static final String SELFREEOFLEVEL = "SELECT " + SqlFsDataRef.DATAREF.dID.toString() + " FROM " +
+                                                 SqlFsDataRef.TABNAME + " WHERE " + 
+                                                 SqlFsDataRef.DATAREF.dID.toString() + " IN (" +
+                                                 SqlFsSubtree.SELDATAOFLEVEL + ") AND " +
+                                                 SqlFsDataRef.DATAREF.dRefCount.toString() + " <= 0";
+    private static final String SQLDELCHUNKSOFLEVEL = "DELETE FROM " + ChunkedFileData.CTABLENAME + " WHERE " +
+                                                      ChunkedFileData.DATACHUNK.dID.toString() + " IN (" +
+                                                      SELFREEOFLEVEL + ")";
+    private static final String SQLDELDATAOFLEVEL = "DELETE FROM " + IFileData.DTABLENAME + " WHERE " +
+                                                    IFileData.IDCOL + " IN (" + SELFREEOFLEVEL + ")";
+    private static final String SQLDELREFSOFLEVEL = "DELETE FROM " + SqlFsDataRef.TABNAME + " WHERE " +
+                                                    SqlFsDataRef.DATAREF.dID.toString() + " IN (" +
+                                                    SELFREEOFLEVEL + ")";
+    private static final String SQLDELNODESOFLEVEL = "DELETE FROM " + SqlFs.DBNAMES.FsBlock.toString() + " WHERE " +
+                                                     SqlFs.FSBLOCK.fsID.toString() + " IN (" +
+                                                     SqlFsSubtree.SELNODESOFLEVEL + ")";
 	
 	static SqlDir getDir(SQLiteDatabase db, SqlFsLocker fsLocker, FsID id)
     {
@@ -20,10 +63,15 @@ public class SqlDir extends SqlFsNode
        return d;
     }
 
+    /**
+     *  Get a dir from a cursor queried with SqlFsNodeInfo.COLUMNS, the snapshot is filled as well
+     */
     static SqlDir getDir(SQLiteDatabase db, SqlFsLocker fsLocker, Cursor c)
     {
-       FsID id = SqlFsFunc.getID(c, SqlFs.FSBLOCK.fsID.ordinal());
-       return SqlDir.getDir(db, fsLocker, id);
+       SqlFsNodeInfo info = SqlFsNodeInfo.getInfo(c);
+       SqlDir d = SqlDir.getDir(db, fsLocker, info.getID());
+       d.info = info;
+       return d;
     }
 
 	private SqlDir() { }
@@ -43,7 +91,33 @@ public class SqlDir extends SqlFsNode
     {
        SqlFsErrCode.setCurrentError(FsErr.OK);
     	
-       return (Integer)getField(SqlFs.FSBLOCK.fsChildCount);
+       fsLocker.getFsReadLock(IFsMetrics.FSOP.LIST);
+       try {
+          return __getChildCount();
+       }
+       finally {
+          fsLocker.dispose();
+       }
+    }
+    
+    /**
+     *  Count children using index on fsParent
+     */
+    private int __getChildCount()
+    {
+       int count = 0;
+       
+       try {
+          SQLiteStatement stmt = SqlFsStmtCache.getCache(db).getStatement(SQLCHILDCOUNT);
+          stmt.bindLong(1, this.getID().getVal());
+          count = (int)SqlFsExec.simpleQueryForLong(db, stmt, SQLCHILDCOUNT);
+       }
+       catch (Exception e) {
+          SqlFsLog.debug(e);
+          SqlFsErrCode.setCurrentError(FsErr.GetFieldError);
+       }
+       
+       return count;
     }
 
     /**
@@ -52,28 +126,34 @@ public class SqlDir extends SqlFsNode
      */
     private Cursor getEntryByName(String name, SqlFsConst.FSTYPE type)
     {
-       // conditions
-       ArrayList<Object> conds = new ArrayList<Object>(10);
-       conds.add(new SqlStr.SqlSimpCond(SqlFs.FSBLOCK.fsParent.toString(), "=", this.getID()));
-
-       if (name != null) {
-          conds.add("and");
-          conds.add(new SqlStr.SqlSimpCond(SqlFs.FSBLOCK.fsName.toString(), "=", name));
+       // pick the query and its arguments
+       String sql;
+       String[] args;
+       if (name == null) {
+          if (type == SqlFsConst.FSTYPE.ANY) {
+             sql = SQLCHILDREN;
+             args = new String[]{this.getID().toString()};
+          }
+          else {
+             sql = SQLCHILDRENBYTYPE;
+             args = new String[]{this.getID().toString(), Integer.toString(type.v())};
+          }
        }
-
-       if (type != SqlFsConst.FSTYPE.ANY) {
-          conds.add("and");
-          conds.add(new SqlStr.SqlSimpCond(SqlFs.FSBLOCK.fsType.toString(), "=", type.v()));
+       else {
+          if (type == SqlFsConst.FSTYPE.ANY) {
+             sql = SQLCHILDBYNAME;
+             args = new String[]{this.getID().toString(), name};
+          }
+          else {
+             sql = SQLCHILDBYNAMETYPE;
+             args = new String[]{this.getID().toString(), name, Integer.toString(type.v())};
+          }
        }
 
-       String where = SqlStr.genWhere(conds);
-
        // query from DB
        Cursor c = null;
        try {
-    	   c = db.query(SqlFs.DBNAMES.FsBlock.toString(), 
-                        new String[]{SqlFs.FSBLOCK.fsID.toString(), SqlFs.FSBLOCK.fsType.toString()}, 
-                        where, null, null, null, null);
+    	   c = SqlFsExec.rawQuery(db, sql, args);
        } 
        catch (Exception e) {
           SqlFsLog.debug(e);
@@ -93,7 +173,7 @@ public class SqlDir extends SqlFsNode
     {
     	SqlFsErrCode.setCurrentError(FsErr.OK);
     	
-    	fsLocker.getFsLock();
+    	fsLocker.getFsReadLock(IFsMetrics.FSOP.GETFSNODE);
         try {
            return __isAlreadyExist(name);
         }
@@ -124,55 +204,7 @@ public class SqlDir extends SqlFsNode
      */
     static FsID addDir(SQLiteDatabase db, String dirName, FsID parentID)
     {
-       return SqlFsNode.addFsNode(db, SqlFsConst.FSTYPE.DIR, dirName, parentID);
-    }
-    
-    /**
-     *  Update the INT child list to db
-     *
-     *  @param [in] fsOp -- ADD, REPLACE or DEL
-     *  @param [in] id1 -- id to be added or replaced or deleted 
-     *  @param [in] id2 -- for REPLACE only (the new ID)
-     */
-    boolean updateChildList(SqlFsConst.FSOP fsOp, FsID id1, FsID id2)
-    {
-       ArrayList<FsID> childList = (ArrayList<FsID>)getField(SqlFs.FSBLOCK.fsChild);
-       
-       boolean isMod = false;
-
-       switch (fsOp) {
-          case ADD:
-             if (childList == null)
-                childList = new ArrayList<FsID>(1);  // make a new one if empty
-
-             if (childList.indexOf(id1) < 0) { // add only if it is not already there
-                childList.add(id1);
-                isMod = true;
-             }
-             break;
-          case REPLACE:
-             if (childList == null)
-                break;
-
-             int index = childList.indexOf(id1);
-             if (index >= 0) {
-                childList.set(index, id2);
-                isMod = true;
-             }
-             break;
-          case DEL:
-             if (childList == null)
-                break;
-             if (childList.remove(id1))
-                isMod = true;             
-             break;
-       }
-       
-       if (isMod)
-          return setField(SqlFs.FSBLOCK.fsChild, childList);
-
-       SqlFsErrCode.setCurrentError(FsErr.ChildListNotUpdated);
-       return false;
+       return SqlFsNode.addFsNode(db, SqlFsConst.FSTYPE.DIR, dirName, parentID, null);
     }
     
     public SqlDir addDir(String dirName)
@@ -180,7 +212,7 @@ public class SqlDir extends SqlFsNode
     	SqlFsErrCode.setCurrentError(FsErr.OK);
     	
     	SqlDir childDir = null;
-    	fsLocker.getFsLock();
+    	fsLocker.getFsLock(IFsMetrics.FSOP.ADDDIR);
         SqlFsTransaction fsTran = new SqlFsTransaction(db);
         try {
            childDir = __addDir(dirName);
@@ -212,15 +244,15 @@ public class SqlDir extends SqlFsNode
           return null;
        }
 
-       FsID newID = SqlDir.addDir(db, dirName, this.getID());
-       if (newID.compare(SqlFsConst.INVALIDID) <= 0) {
-    	  SqlFsErrCode.setCurrentError(FsErr.NoNewIDForNewFsNode);
+       // update last mod time, which also makes sure this dir still exists
+       if (!this.touch()) {
+    	  SqlFsErrCode.setCurrentError(FsErr.ChildListNotUpdated);
           return null;
        }
 
-       if ( ! updateChildList(SqlFsConst.FSOP.ADD, newID, FsID.toFsID(0))) {
-          // delete entry just created
-          SqlFs.deleteEntryByID(db, SqlFs.DBNAMES.FsBlock.toString(), SqlFs.FSBLOCK.fsID.toString(), newID);
+       FsID newID = SqlDir.addDir(db, dirName, this.getID());
+       if (newID.compare(SqlFsConst.INVALIDID) <= 0) {
+    	  SqlFsErrCode.setCurrentError(FsErr.NoNewIDForNewFsNode);
           return null;
        }
 
@@ -232,7 +264,7 @@ public class SqlDir extends SqlFsNode
     	SqlFsErrCode.setCurrentError(FsErr.OK);
     	
     	SqlFile newFile = null;
-    	fsLocker.getFsLock();
+    	fsLocker.getFsLock(IFsMetrics.FSOP.ADDFILE);
         SqlFsTransaction fsTran = new SqlFsTransaction(db);
         try {
         	newFile = __addFile(fileName);
@@ -263,37 +295,46 @@ public class SqlDir extends SqlFsNode
           return null;
        }
 
-       FsID newID = SqlFile.addFile(db, fileName, this.getID());
-       if (newID.compare(SqlFsConst.INVALIDID) <= 0) {
-    	  SqlFsErrCode.setCurrentError(FsErr.NoNewIDForNewFsNode);
+       // update last mod time, which also makes sure this dir still exists
+       if (!this.touch()) {
+    	  SqlFsErrCode.setCurrentError(FsErr.ChildListNotUpdated);
           return null;
        }
 
-       if ( ! updateChildList(SqlFsConst.FSOP.ADD, newID, FsID.toFsID(0))) {
-          // delete entry just created
-          SqlFs.deleteEntryByID(db, SqlFs.DBNAMES.FsBlock.toString(), SqlFs.FSBLOCK.fsID.toString(), newID);
+       FsID newID = SqlFile.addFile(db, fileName, this.getID());
+       if (newID.compare(SqlFsConst.INVALIDID) <= 0) {
+    	  SqlFsErrCode.setCurrentError(FsErr.NoNewIDForNewFsNode);
           return null;
        }
 
-       SqlFile f = SqlFile.getFile(db, fsLocker, newID);
-       f.setDataBlockID(SqlFsConst.NOFILEDATAID);
-       return f;
+       return SqlFile.getFile(db, fsLocker, newID);
     }
 
     @Override
     public boolean delete()
+    {
+       return delete(null);
+    }
+
+    /**
+     *  Delete this dir and everything under it. For root, only its children are deleted.
+     *
+     *  @param [in] progress -- called after each level of the tree is deleted, can be null
+     */
+    public boolean delete(IFsProgress progress)
     {
     	SqlFsErrCode.setCurrentError(FsErr.OK);
 	
     	boolean isOK = false;
-    	fsLocker.getFsLock();
+    	fsLocker.getFsLock(IFsMetrics.FSOP.DELETE);
         SqlFsTransaction fsTran = new SqlFsTransaction(db);
         try {
-           isOK = __delete();
+           isOK = __delete(progress);
            if (isOK)
               fsTran.fsOpSuccess();
         }
         finally {
+           SqlFsSubtree.clear(db);
      	   fsTran.dispose();
      	   fsLocker.dispose();
         }
@@ -302,47 +343,74 @@ public class SqlDir extends SqlFsNode
     }
     
     /**
-     *  delete all dirs and files recursively
+     *  delete all dirs and files under this dir, a level of the tree at a time
      */
-    private boolean __delete()
+    private boolean __delete(IFsProgress progress)
     {
        boolean isOK = false;
+       boolean isRoot = this.getID().equals(SqlFsConst.ROOTDIRID);
+       this.info = null;
+
+       // drop all cached paths under this dir
+       if (isRoot)
+          fsLocker.getPathCache().clear();
+       else
+          fsLocker.getPathCache().invalidate(this.getID(), true);
 
        do {
-          // delete itself from parent
-          if (!this.getID().equals(SqlFsConst.ROOTDIRID)) {  // root has no parent
-             SqlDir parent = this.getParent();
+          // update last mod time of parent, it is unlinked once its own entry is deleted
+          if (!isRoot) {  // root has no parent
+             SqlDir parent = this.getParentFromDB();
              if (parent == null) {
             	SqlFsErrCode.setCurrentError(FsErr.NoParent);
                 break;
              }
 
-             if (!parent.updateChildList(SqlFsConst.FSOP.DEL, this.getID(), FsID.toFsID(0)))
-            	break;
+             parent.touch();
           }
           
-          // delete underlying subdirs and files
-          ArrayList<SqlFsNode> childList = this.getChildList();
+          // IDs of the whole tree
+          int[] levelCount = SqlFsSubtree.collect(db, this.getID(), SqlFsConst.FSTYPE.DIR);
+          if (levelCount == null)
+             break;
 
-          if (childList != null) {
-             // delete children one by one
-             for(SqlFsNode fsNode : childList) {
-                fsNode.delete();
+          // root itself is kept
+          int lastLevel = isRoot ? 1 : 0;
+          int total = 0;
+          for (int level = lastLevel; level < levelCount.length; ++level)
+             total += levelCount[level];
+
+          // delete data and entries, deepest level first
+          int done = 0;
+          boolean isCancelled = false;
+          try {
+             for (int level = levelCount.length - 1; level >= lastLevel; --level) {
+                SqlFsSubtree.execForLevel(db, SQLRELEASEOFLEVEL, level);
+                SqlFsSubtree.execForLevel(db, SQLDELCHUNKSOFLEVEL, level);
+                SqlFsSubtree.execForLevel(db, SQLDELDATAOFLEVEL, level);
+                SqlFsSubtree.execForLevel(db, SQLDELREFSOFLEVEL, level);
+                done += SqlFsSubtree.execForLevel(db, SQLDELNODESOFLEVEL, level);
+
+                if (progress != null && !progress.onProgress(done, total)) {
+                   isCancelled = true;
+                   break;
+                }
              }
           }
-
-          // delete itself
-          if (this.getID().equals(SqlFsConst.ROOTDIRID)) {
-             // for root, just clear all children
-             this.setField(SqlFs.FSBLOCK.fsChild, null);
+          catch (Exception e) {
+             SqlFsLog.debug(e);
+             SqlFsErrCode.setCurrentError(FsErr.CannotDeleteFsEntry);
+             break;
           }
-          else {
-             if (!SqlFs.deleteEntryByID(db, SqlFs.DBNAMES.FsBlock.toString(), 
-            		                    SqlFs.FSBLOCK.fsID.toString(), this.getID())) {
-            	 SqlFsErrCode.setCurrentError(FsErr.CannotDeleteFsEntry);
-            	 break;
-             }
+
+          if (isCancelled) {
+             SqlFsErrCode.setCurrentError(FsErr.OpCancelled);
+             break;
           }
+
+          // for root, children are gone already
+          if (isRoot)
+             this.touch();
           
           isOK = true;
        } while(false);
@@ -355,7 +423,7 @@ public class SqlDir extends SqlFsNode
     {
     	SqlFsErrCode.setCurrentError(FsErr.OK);
     	
-    	fsLocker.getFsLock();
+    	fsLocker.getFsReadLock(IFsMetrics.FSOP.GETFSNODE);
         try {
            return __getChild(name);
         }
@@ -378,7 +446,7 @@ public class SqlDir extends SqlFsNode
        }
        else if (name.equals(SqlFsConst.PARENTDIR)) {
     	  // parent or itself if already root
-          fsNode = (this.getID().equals(SqlFsConst.ROOTDIRID) ? this : this.getParent()); 
+          fsNode = (this.getID().equals(SqlFsConst.ROOTDIRID) ? this : this.getParentFromDB()); 
        }
        else {
 
@@ -396,11 +464,111 @@ public class SqlDir extends SqlFsNode
        return fsNode;
     }
     
+    /**
+     *  Resolve all segments of a relative path in one query (see SqlFsPath).
+     *  Paths from root are looked up in the path cache first.
+     *
+     *  @return nodes in the same order as 'pathSeg' (null for empty segment or not found)
+     *  @return null if the segments must be walked one by one, i.e. path contains '.' or '..'
+     *          or is too deep
+     */
+    private SqlFsNode[] __resolvePath(String[] pathSeg)
+    {
+       ArrayList<String> names = new ArrayList<String>(pathSeg.length);
+       for (String seg : pathSeg) {
+          if (SqlFsFunc.isNullOrEmpty(seg))
+             continue;
+
+          if (seg.equals(SqlFsConst.CURDIR) || seg.equals(SqlFsConst.PARENTDIR))
+             return null;
+
+          names.add(seg);
+       }
+
+       if (names.isEmpty() || names.size() > SqlFsPath.MAXDEPTH)
+          return null;
+
+       int depth = names.size();
+       FsID[] ids = new FsID[depth];
+       SqlFsConst.FSTYPE[] types = new SqlFsConst.FSTYPE[depth];
+       int resolved = -1;
+
+       // only absolute paths are cached
+       SqlFsPathCache pathCache = this.getID().equals(SqlFsConst.ROOTDIRID) ? fsLocker.getPathCache() : null;
+       String[] keys = null;
+
+       if (pathCache != null) {
+          keys = new String[depth];
+          StringBuilder sb = new StringBuilder(SqlFsConst.BUFSIZE);
+          for (int i = 0; i < depth; ++i) {
+             sb.append(SqlFsConst.PATHSEP).append(names.get(i));
+             keys[i] = sb.toString();
+          }
+
+          SqlFsPathCache.CacheEntry e = pathCache.get(keys[depth - 1]);
+          if (e != null) {
+             for (int i = 0; i < depth; ++i) {
+                ids[i] = FsID.toFsID(e.ids[i]);
+                types[i] = (i == depth - 1) ? e.type : SqlFsConst.FSTYPE.DIR;
+             }
+             resolved = depth;
+          }
+       }
+
+       if (resolved < 0) {
+          resolved = SqlFsPath.resolve(db, this.getID(), names.toArray(new String[depth]), ids, types);
+          if (resolved < 0)
+             return null;
+
+          if (pathCache != null) {
+             // cache every part of the path found
+             for (int i = 0; i < resolved; ++i) {
+                long[] idVals = new long[i + 1];
+                for (int j = 0; j <= i; ++j)
+                   idVals[j] = ids[j].getVal();
+                pathCache.put(keys[i], idVals, types[i]);
+             }
+          }
+       }
+
+       SqlFsNode[] nodes = new SqlFsNode[pathSeg.length];
+       for (int i = 0, j = 0; i < pathSeg.length && j < resolved; ++i) {
+          if (SqlFsFunc.isNullOrEmpty(pathSeg[i]))
+             continue;
+
+          nodes[i] = SqlFsNode.getFsNode(db, fsLocker, ids[j], types[j]);
+          ++j;
+       }
+
+       return nodes;
+    }
+    
+    /**
+     *  Children in ascending order of name, fetched page by page (DEFAULTPAGESIZE)
+     */
+    public SqlFsDirListing listChildren()
+    {
+       return listChildren(SqlFsConst.FSTYPE.ANY, SqlFsDirListing.DEFAULTPAGESIZE, false);
+    }
+    
+    /**
+     *  Children fetched page by page when iterated, better than getChildList() for a large dir
+     *  as neither all nodes are created nor the lock is held till all are fetched
+     *
+     *  @param [in] type -- DIR, FILE or ANY
+     *  @param [in] pageSize -- number of entries fetched at once
+     *  @param [in] isDescending -- false for names in ascending order
+     */
+    public SqlFsDirListing listChildren(SqlFsConst.FSTYPE type, int pageSize, boolean isDescending)
+    {
+       return new SqlFsDirListing(db, fsLocker, this.getID(), type, pageSize, isDescending);
+    }
+    
     public ArrayList<SqlFsNode> getChildList()
     {
     	SqlFsErrCode.setCurrentError(FsErr.OK);
     	
-    	fsLocker.getFsLock();
+    	fsLocker.getFsReadLock(IFsMetrics.FSOP.LIST);
         try {
            return __getChildList();
         }
@@ -434,7 +602,7 @@ public class SqlDir extends SqlFsNode
     {
     	SqlFsErrCode.setCurrentError(FsErr.OK);
     	
-    	fsLocker.getFsLock();
+    	fsLocker.getFsReadLock(IFsMetrics.FSOP.LIST);
         try {
            return __getSubDirs();
         }
@@ -468,7 +636,7 @@ public class SqlDir extends SqlFsNode
     {
     	SqlFsErrCode.setCurrentError(FsErr.OK);
     	
-    	fsLocker.getFsLock();
+    	fsLocker.getFsReadLock(IFsMetrics.FSOP.LIST);
         try {
            return __getFiles();
         }
@@ -502,7 +670,7 @@ public class SqlDir extends SqlFsNode
     {
     	SqlFsErrCode.setCurrentError(FsErr.OK);
     	
-    	fsLocker.getFsLock();
+    	fsLocker.getFsReadLock(IFsMetrics.FSOP.GETFSNODE);
         try {
            return __getFsNode(path);
         }
@@ -536,13 +704,14 @@ public class SqlDir extends SqlFsNode
        }
 
        SqlFsNode curNode = this;
+       SqlFsNode[] resolved = __resolvePath(pathSeg);
 
        // start looping to target node
        for (int i = 0; i < pathSeg.length; ++i) {
           if (SqlFsFunc.isNullOrEmpty(pathSeg[i]))  // to prevent empty space between separator
              continue;
 
-          curNode = ((SqlDir)curNode).__getChild(pathSeg[i]);
+          curNode = (resolved != null) ? resolved[i] : ((SqlDir)curNode).__getChild(pathSeg[i]);
           if (curNode == null) {
         	 SqlFsErrCode.setCurrentError(FsErr.ChildNotFound);
              break;
@@ -562,7 +731,7 @@ public class SqlDir extends SqlFsNode
     {
     	SqlFsErrCode.setCurrentError(FsErr.OK);
     	
-    	fsLocker.getFsLock();
+    	fsLocker.getFsReadLock(IFsMetrics.FSOP.GETFSNODE);
         try {
            return __getDir(dirPath);
         }
@@ -596,13 +765,14 @@ public class SqlDir extends SqlFsNode
        }
 
        SqlFsNode curNode = this;
+       SqlFsNode[] resolved = __resolvePath(dirSeg);
 
        // start looping to target dir
-       for(String dir : dirSeg) {
-          if (SqlFsFunc.isNullOrEmpty(dir))  // to prevent empty space between separator
+       for (int i = 0; i < dirSeg.length; ++i) {
+          if (SqlFsFunc.isNullOrEmpty(dirSeg[i]))  // to prevent empty space between separator
              continue;
 
-          curNode = ((SqlDir)curNode).__getChild(dir);
+          curNode = (resolved != null) ? resolved[i] : ((SqlDir)curNode).__getChild(dirSeg[i]);
           if (curNode == null || !curNode.isDir()) {
              curNode = null;
              SqlFsErrCode.setCurrentError(FsErr.ChildNotFound);
@@ -618,7 +788,7 @@ public class SqlDir extends SqlFsNode
     {
     	SqlFsErrCode.setCurrentError(FsErr.OK);
     	
-    	fsLocker.getFsLock();
+    	fsLocker.getFsReadLock(IFsMetrics.FSOP.GETFSNODE);
         try {
            return __getFile(filePath);
         }
@@ -650,13 +820,14 @@ public class SqlDir extends SqlFsNode
        }
 
        SqlFsNode curNode = this;
+       SqlFsNode[] resolved = __resolvePath(dirSeg);
 
        // start looping to target file
        for (int i = 0; i < dirSeg.length; ++i) {
           if (SqlFsFunc.isNullOrEmpty(dirSeg[i]))  // to prevent empty space between separator
              continue;
 
-          curNode = ((SqlDir)curNode).__getChild(dirSeg[i]);
+          curNode = (resolved != null) ? resolved[i] : ((SqlDir)curNode).__getChild(dirSeg[i]);
           if (i == dirSeg.length - 1) {
              if (curNode == null || curNode.isDir()) {  // last one must be a file
                 curNode = null;
@@ -1,6 +1,10 @@
 package com.sss.sqlfs;
 
-import java.util.ArrayList; 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 import android.database.sqlite.SQLiteDatabase;
 import android.database.Cursor;
@@ -20,10 +24,15 @@ public class SqlFile extends SqlFsNode
        return f;
     }
 
+    /**
+     *  Get a file from a cursor queried with SqlFsNodeInfo.COLUMNS, the snapshot is filled as well
+     */
     static SqlFile getFile(SQLiteDatabase db, SqlFsLocker fsLocker, Cursor c)
     {
-       FsID id = SqlFsFunc.getID(c, SqlFs.FSBLOCK.fsID.ordinal());
-       return SqlFile.getFile(db, fsLocker, id);
+       SqlFsNodeInfo info = SqlFsNodeInfo.getInfo(c);
+       SqlFile f = SqlFile.getFile(db, fsLocker, info.getID());
+       f.info = info;
+       return f;
     }
     
     /**
@@ -33,7 +42,8 @@ public class SqlFile extends SqlFsNode
      */
     static FsID addFile(SQLiteDatabase db, String fileName, FsID parentID)
     {
-       return SqlFsNode.addFsNode(db, SqlFsConst.FSTYPE.FILE, fileName, parentID);
+       // no data yet, mark its data block ID as NOFILEDATAID in the same insert
+       return SqlFsNode.addFsNode(db, SqlFsConst.FSTYPE.FILE, fileName, parentID, toIDList(SqlFsConst.NOFILEDATAID));
     }
     
 	private SqlFile() { }
@@ -51,17 +61,20 @@ public class SqlFile extends SqlFsNode
     
     FsID getDataBlockID()
     {
-       ArrayList<FsID> dbID = (ArrayList<FsID>)getField(SqlFs.FSBLOCK.fsChild);
-       if (dbID != null && !dbID.isEmpty())
-          return dbID.get(0);
+       long[] dbID = (long[])getField(SqlFs.FSBLOCK.fsChild);
+       if (dbID != null && dbID.length > 0)
+          return FsID.toFsID(dbID[0]);
        return SqlFsConst.INVALIDID;
     }
 
     void setDataBlockID(FsID value) 
     {
-       ArrayList<FsID> dbID = new ArrayList<FsID>(1);
-       dbID.add(value);
-       setField(SqlFs.FSBLOCK.fsChild, dbID);
+       setField(SqlFs.FSBLOCK.fsChild, toIDList(value));
+    }
+    
+    private static long[] toIDList(FsID value)
+    {
+       return new long[]{value.getVal()};
     }
     
     @Override
@@ -70,7 +83,7 @@ public class SqlFile extends SqlFsNode
     	SqlFsErrCode.setCurrentError(FsErr.OK);
     	
     	boolean isOK = false;
-    	fsLocker.getFsLock();
+    	fsLocker.getFsLock(IFsMetrics.FSOP.DELETE);
         SqlFsTransaction fsTran = new SqlFsTransaction(db);
         try {
            isOK = __delete();
@@ -88,17 +101,19 @@ public class SqlFile extends SqlFsNode
     private boolean __delete()
     {
        boolean isOK = false;
+       this.info = null;
+
+       fsLocker.getPathCache().invalidate(this.getID(), false);
 
        do {
-          // delete itself from parent
-          SqlDir parent = this.getParent();
+          // update last mod time of parent, it is unlinked once its own entry is deleted
+          SqlDir parent = this.getParentFromDB();
           if (parent == null) {
         	 SqlFsErrCode.setCurrentError(FsErr.NoParent);
              break;
           }
 
-          if (!parent.updateChildList(SqlFsConst.FSOP.DEL, this.getID(), FsID.toFsID(0)))
-        	 break;
+          parent.touch();
 
           // delete entry in data block table
           FsID dataBlockID = this.getDataBlockID();
@@ -108,14 +123,14 @@ public class SqlFile extends SqlFsNode
              break;
           }
 
-          if (!SqlFs.deleteEntryByID(db, IFileData.DTABLENAME, IFileData.IDCOL, dataBlockID)) {
+          // data are deleted only if not used by other files
+          if (!SqlFsDataRef.release(db, dataBlockID)) {
         	 SqlFsErrCode.setCurrentError(FsErr.CannotDeleteDataBlockEntry);
              break;
           }
 
           // delete its own entry
-          if (!SqlFs.deleteEntryByID(db, SqlFs.DBNAMES.FsBlock.toString(), 
-        		                     SqlFs.FSBLOCK.fsID.toString(), this.getID())) {
+          if (!SqlFs.deleteEntryByID(db, SqlFs.SQLDELFSBLOCK, this.getID())) {
         	 SqlFsErrCode.setCurrentError(FsErr.CannotDeleteFsEntry);
              break;
           }
@@ -131,7 +146,7 @@ public class SqlFile extends SqlFsNode
     {
     	SqlFsErrCode.setCurrentError(FsErr.OK);
     	
-    	fsLocker.getFsLock();
+    	fsLocker.getFsReadLock(IFsMetrics.FSOP.GETFILEDATA);
         try {
            return __getFileData(fileData);
         }
@@ -151,7 +166,11 @@ public class SqlFile extends SqlFsNode
           return false;
        }
        
-       return fileData.getData(db, dataBlockID);
+       if (!fileData.getData(db, dataBlockID))
+          return false;
+       
+       SqlFsOpTrace.addBytesRead(fileData.getDataSizeInByte());
+       return true;
     }
     
     public boolean saveFileData(IFileData fileData)
@@ -159,7 +178,7 @@ public class SqlFile extends SqlFsNode
     	SqlFsErrCode.setCurrentError(FsErr.OK);
     	
     	boolean isOK = false;
-    	fsLocker.getFsLock();
+    	fsLocker.getFsLock(IFsMetrics.FSOP.SAVEFILEDATA);
         SqlFsTransaction fsTran = new SqlFsTransaction(db);
         try {
            isOK = __saveFileData(fileData);
@@ -194,15 +213,626 @@ public class SqlFile extends SqlFsNode
               break;
            }
            
+           // saved to the same data block, streams reading it must not go on
+           if (newDataBlockID.equals(dataBlockID))
+              fsLocker.dataChanged(dataBlockID);
+           
+           // switched to another data block (new or shared), release the old one
+           if (dataBlockID.compare(SqlFsConst.INVALIDID) > 0 && !newDataBlockID.equals(dataBlockID)) {
+              if (!SqlFsDataRef.release(db, dataBlockID)) {
+            	 SqlFsErrCode.setCurrentError(FsErr.CannotDeleteDataBlockEntry);
+                 break;
+              }
+           }
+           
            // update file size
            this.setField(FSBLOCK.fsFileSize, fileData.getDataSizeInByte());
 
            // update itself (data block table) so that last mod time can be updated
            this.setDataBlockID(newDataBlockID); 
 
+           SqlFsOpTrace.addBytesWritten(fileData.getDataSizeInByte());
            isOK = true;
        } while (false);
 
        return isOK;
     }
+    
+    /////////////////////////// streams of chunked data /////////////////////////
+    
+    /**
+     *  Open a stream to read file data saved as chunks (by ChunkedFileData or openOutputStream), 
+     *  only one chunk is in memory at a time
+     *
+     *  @return null if failed, e.g. data are saved by another IFileData
+     */
+    public InputStream openInputStream()
+    {
+    	SqlFsErrCode.setCurrentError(FsErr.OK);
+    	
+    	fsLocker.getFsReadLock(IFsMetrics.FSOP.READ);
+        try {
+           return __openInputStream();
+        }
+        finally {
+      	   fsLocker.dispose();
+        }
+    }
+    
+    private SqlFileInputStream __openInputStream()
+    {
+       SqlFileInputStream in = null;
+       
+       do {
+          FsID dataBlockID = this.getDataBlockID();
+          if (dataBlockID.equals(SqlFsConst.NOFILEDATAID)) {
+             // never saved, empty
+             in = new SqlFileInputStream(this, dataBlockID, 0, null, -1);
+             break;
+          }
+          
+          if (dataBlockID.compare(SqlFsConst.INVALIDID) <= 0) {
+             SqlFsErrCode.setCurrentError(FsErr.DataBlockIDNotValid);
+             break;
+          }
+          
+          int size = (Integer)getField(FSBLOCK.fsFileSize);
+          byte[] firstChunk = null;
+          if (size > 0) {
+             try {
+                firstChunk = ChunkedFileData.readChunk(db, dataBlockID, 0);
+             }
+             catch (Exception e) {
+                SqlFsLog.debug(e);
+                SqlFsErrCode.setCurrentError(FsErr.GetFileDataErr);
+                break;
+             }
+             
+             if (firstChunk == null) {
+                SqlFsErrCode.setCurrentError(FsErr.DataNotChunked);
+                break;
+             }
+          }
+          
+          in = new SqlFileInputStream(this, dataBlockID, size, firstChunk, fsLocker.openRead(dataBlockID));
+       } while(false);
+       
+       return in;
+    }
+    
+    /**
+     *  Open a stream to write file data as chunks, the data are saved when the stream is closed.
+     *  Chunks of a stream never closed are deleted when the DB is opened next time.
+     *
+     *  @return null if failed
+     */
+    public OutputStream openOutputStream()
+    {
+    	SqlFsErrCode.setCurrentError(FsErr.OK);
+    	
+    	SqlFileOutputStream out = null;
+    	fsLocker.getFsLock(IFsMetrics.FSOP.WRITE);
+        try {
+           // a new data block, pending until the file is switched to it when the stream is closed
+           FsID newDataBlockID = SqlFsConst.INVALIDID;
+           SqlFsTransaction fsTran = new SqlFsTransaction(db);
+           try {
+              newDataBlockID = ChunkedFileData.newPendingDataBlock(db);
+              if (newDataBlockID.compare(SqlFsConst.INVALIDID) > 0)
+                 fsTran.fsOpSuccess();
+           }
+           finally {
+              fsTran.dispose();
+           }
+           
+           if (newDataBlockID.compare(SqlFsConst.INVALIDID) <= 0)
+              SqlFsErrCode.setCurrentError(FsErr.SaveFileDataErr);
+           else
+              out = new SqlFileOutputStream(this, newDataBlockID);
+        }
+        catch (Exception e) {
+           SqlFsLog.debug(e);
+           SqlFsErrCode.setCurrentError(FsErr.SaveFileDataErr);
+        }
+        finally {
+     	   fsLocker.dispose();
+        }
+        
+        return out;
+    }
+    
+    /**
+     *  Channel version of openInputStream()
+     */
+    public ReadableByteChannel openReadableChannel()
+    {
+       InputStream in = openInputStream();
+       return (in == null) ? null : Channels.newChannel(in);
+    }
+    
+    /**
+     *  Channel version of openOutputStream()
+     */
+    public WritableByteChannel openWritableChannel()
+    {
+       OutputStream out = openOutputStream();
+       return (out == null) ? null : Channels.newChannel(out);
+    }
+    
+    /**
+     *  Called by SqlFileInputStream when closed
+     */
+    void closeRead(FsID dataBlockID)
+    {
+       fsLocker.closeRead(dataBlockID);
+    }
+    
+    /**
+     *  Called by SqlFileInputStream
+     *
+     *  @param [in] generation -- generation of the data block when the stream is opened
+     *
+     *  @return null if not found, or the data block is changed in place since then
+     */
+    byte[] readChunk(FsID dataBlockID, int chunkIdx, int generation)
+    {
+       fsLocker.getFsReadLock(IFsMetrics.FSOP.READ);
+       try {
+          if (fsLocker.getGeneration(dataBlockID) != generation)
+             return null;
+          
+          byte[] chunk = ChunkedFileData.readChunk(db, dataBlockID, chunkIdx);
+          if (chunk != null)
+             SqlFsOpTrace.addBytesRead(chunk.length);
+          return chunk;
+       }
+       catch (Exception e) {
+          SqlFsLog.debug(e);
+          return null;
+       }
+       finally {
+     	  fsLocker.dispose();
+       }
+    }
+    
+    /**
+     *  Called by SqlFileOutputStream, write chunks[0 .. count - 1] in one transaction
+     *
+     *  @param [in] firstIdx -- index of chunks[0] in the data block
+     */
+    boolean writeChunks(FsID dataBlockID, int firstIdx, byte[][] chunks, int count)
+    {
+       boolean isOK = false;
+       fsLocker.getFsLock(IFsMetrics.FSOP.WRITE);
+       try {
+          SqlFsTransaction fsTran = new SqlFsTransaction(db);
+          try {
+             for (int i = 0; i < count; ++i) {
+                ChunkedFileData.writeChunk(db, dataBlockID, firstIdx + i, chunks[i]);
+                SqlFsOpTrace.addBytesWritten(chunks[i].length);
+             }
+             fsTran.fsOpSuccess();
+             isOK = true;
+          }
+          finally {
+             fsTran.dispose();
+          }
+       }
+       catch (Exception e) {
+          SqlFsLog.debug(e);
+          isOK = false;
+       }
+       finally {
+     	  fsLocker.dispose();
+       }
+       
+       return isOK;
+    }
+    
+    /**
+     *  Called by SqlFileOutputStream when closed, switch to the new data block 
+     *  (or a data block with the same content) and release the old one. The new 
+     *  data block is deleted if failed.
+     *
+     *  @param [in] hash -- hash of chunks written, can be null
+     */
+    boolean commitChunks(FsID newDataBlockID, int size, byte[] hash)
+    {
+    	boolean isOK = false;
+    	fsLocker.getFsLock(IFsMetrics.FSOP.WRITE);
+    	try {
+    	   SqlFsTransaction fsTran = new SqlFsTransaction(db);
+           try {
+              isOK = __commitChunks(newDataBlockID, size, hash);
+              if (isOK)
+                 fsTran.fsOpSuccess();
+           }
+           finally {
+        	  fsTran.dispose();
+           }
+           
+           if (!isOK) {
+              // discard data written
+              SqlFsDataRef.release(db, newDataBlockID);
+           }
+    	}
+    	finally {
+    	   fsLocker.dispose();
+    	}
+    	
+    	return isOK;
+    }
+    
+    private boolean __commitChunks(FsID newDataBlockID, int size, byte[] hash)
+    {
+       boolean isOK = false;
+       
+       do {
+          FsID dataBlockID = this.getDataBlockID();
+          if (dataBlockID.compare(SqlFsConst.INVALIDID) == 0) {  // not found or deleted
+         	 SqlFsErrCode.setCurrentError(FsErr.DataBlockIDNotValid);
+             break;
+          }
+          
+          if (!this.setField(FSBLOCK.fsFileSize, size)) {
+        	 SqlFsErrCode.setCurrentError(FsErr.SaveFileDataErr);
+             break;
+          }
+          
+          // share the same content if already saved
+          FsID sameID = SqlFsDataRef.find(db, hash);
+          if (sameID.compare(SqlFsConst.INVALIDID) > 0 && !sameID.equals(dataBlockID)) {
+             SqlFsDataRef.addRef(db, sameID);
+             if (!SqlFsDataRef.release(db, newDataBlockID)) {
+            	SqlFsErrCode.setCurrentError(FsErr.CannotDeleteDataBlockEntry);
+                break;
+             }
+             newDataBlockID = sameID;
+          }
+          else if (sameID.equals(dataBlockID)) {
+             // content not changed, keep the old one
+             if (!SqlFsDataRef.release(db, newDataBlockID)) {
+            	SqlFsErrCode.setCurrentError(FsErr.CannotDeleteDataBlockEntry);
+                break;
+             }
+             isOK = true;
+             break;
+          }
+          else {
+             SqlFsDataRef.commitPending(db, newDataBlockID, hash);
+          }
+          
+          if (!this.setField(FSBLOCK.fsChild, toIDList(newDataBlockID))) {
+        	 SqlFsErrCode.setCurrentError(FsErr.SaveFileDataErr);
+             break;
+          }
+          
+          // release old data
+          if (dataBlockID.compare(SqlFsConst.INVALIDID) > 0) {
+             if (!SqlFsDataRef.release(db, dataBlockID)) {
+            	 SqlFsErrCode.setCurrentError(FsErr.CannotDeleteDataBlockEntry);
+                 break;
+             }
+          }
+          
+          isOK = true;
+       } while(false);
+       
+       return isOK;
+    }
+    
+    /////////////////////////// random access of chunked data //////////////////
+    
+    /**
+     *  Read part of file data saved as chunks, only the chunks covering the range are read
+     *
+     *  @param [in] offset -- position in file
+     *  @param [out] dst -- buffer
+     *  @param [in] off -- start index in 'dst'
+     *  @param [in] len -- max. number of bytes
+     *
+     *  @return number of bytes read, 0 if 'offset' is at or beyond end of file
+     *  @return -1 if failed
+     */
+    public int read(long offset, byte[] dst, int off, int len)
+    {
+    	SqlFsErrCode.setCurrentError(FsErr.OK);
+    	
+    	fsLocker.getFsReadLock(IFsMetrics.FSOP.READ);
+        try {
+           return __read(offset, dst, off, len);
+        }
+        catch (Exception e) {
+           SqlFsLog.debug(e);
+           SqlFsErrCode.setCurrentError(FsErr.GetFileDataErr);
+           return -1;
+        }
+        finally {
+      	   fsLocker.dispose();
+        }
+    }
+    
+    private int __read(long offset, byte[] dst, int off, int len)
+    {
+       if (offset < 0 || off < 0 || len < 0 || off + len > dst.length) {
+    	  SqlFsErrCode.setCurrentError(FsErr.InvalidFileRange);
+          return -1;
+       }
+       
+       FsID dataBlockID = this.getDataBlockID();
+       if (dataBlockID.equals(SqlFsConst.NOFILEDATAID))
+          return 0;    // never saved
+       if (dataBlockID.compare(SqlFsConst.INVALIDID) <= 0) {
+    	  SqlFsErrCode.setCurrentError(FsErr.DataBlockIDNotValid);
+          return -1;
+       }
+       
+       int size = (Integer)getField(FSBLOCK.fsFileSize);
+       if (offset >= size)
+          return 0;
+       
+       len = (int)Math.min((long)len, size - offset);
+       int pos = (int)offset;
+       int total = 0;
+       while (total < len) {
+          int chunkIdx = pos / SqlFsConst.CHUNKSIZE;
+          int offInChunk = pos % SqlFsConst.CHUNKSIZE;
+          
+          byte[] chunk = ChunkedFileData.readChunk(db, dataBlockID, chunkIdx);
+          if (chunk == null || chunk.length <= offInChunk) {
+        	 SqlFsErrCode.setCurrentError(FsErr.DataNotChunked);
+             return -1;
+          }
+          
+          int n = Math.min(len - total, chunk.length - offInChunk);
+          System.arraycopy(chunk, offInChunk, dst, off + total, n);
+          total += n;
+          pos += n;
+       }
+       
+       SqlFsOpTrace.addBytesRead(total);
+       return total;
+    }
+    
+    /**
+     *  Write part of file data saved as chunks, only the chunks covering the range are rewritten.
+     *  Writing beyond end of file extends it, the gap is filled with zeros.
+     *
+     *  @param [in] offset -- position in file
+     *  @param [in] src -- data
+     *  @param [in] off -- start index in 'src'
+     *  @param [in] len -- number of bytes
+     *
+     *  @return true if OK
+     */
+    public boolean write(long offset, byte[] src, int off, int len)
+    {
+    	SqlFsErrCode.setCurrentError(FsErr.OK);
+    	
+    	boolean isOK = false;
+    	fsLocker.getFsLock(IFsMetrics.FSOP.WRITE);
+        SqlFsTransaction fsTran = new SqlFsTransaction(db);
+        try {
+           isOK = __write(offset, src, off, len);
+           if (isOK)
+              fsTran.fsOpSuccess();
+        }
+        catch (Exception e) {
+           SqlFsLog.debug(e);
+           SqlFsErrCode.setCurrentError(FsErr.SaveFileDataErr);
+        }
+        finally {
+     	   fsTran.dispose();
+     	   fsLocker.dispose();
+        }
+        
+        return isOK;
+    }
+    
+    private boolean __write(long offset, byte[] src, int off, int len)
+    {
+       if (offset < 0 || off < 0 || len < 0 || off + len > src.length || offset + len > Integer.MAX_VALUE) {
+    	  SqlFsErrCode.setCurrentError(FsErr.InvalidFileRange);
+          return false;
+       }
+       
+       FsID dataBlockID = getChunkedDataBlockID();
+       if (dataBlockID == null)
+          return false;
+       
+       int oldSize = (Integer)getField(FSBLOCK.fsFileSize);
+       int start = (int)offset;
+       int end = start + len;
+       int newSize = Math.max(oldSize, end);
+       if (len == 0)
+          return this.touch();
+       
+       if ((dataBlockID = unshare(dataBlockID)) == null)
+          return false;
+       fsLocker.dataChanged(dataBlockID);
+       
+       // from the chunk to be padded (if writing beyond end) to the last chunk written
+       int firstIdx = Math.min(start, oldSize) / SqlFsConst.CHUNKSIZE;
+       int lastIdx = (end - 1) / SqlFsConst.CHUNKSIZE;
+       for (int chunkIdx = firstIdx; chunkIdx <= lastIdx; ++chunkIdx) {
+          int chunkStart = chunkIdx * SqlFsConst.CHUNKSIZE;
+          int chunkLen = Math.min(SqlFsConst.CHUNKSIZE, newSize - chunkStart);
+          byte[] chunk = new byte[chunkLen];
+          
+          // existing data, if not fully overwritten
+          if (chunkStart < oldSize && (start > chunkStart || end < chunkStart + chunkLen)) {
+             byte[] oldChunk = ChunkedFileData.readChunk(db, dataBlockID, chunkIdx);
+             if (oldChunk == null) {
+            	SqlFsErrCode.setCurrentError(FsErr.DataNotChunked);
+            	return false;
+             }
+             System.arraycopy(oldChunk, 0, chunk, 0, Math.min(oldChunk.length, chunkLen));
+          }
+          
+          // new data
+          int from = Math.max(start, chunkStart);
+          int to = Math.min(end, chunkStart + chunkLen);
+          if (from < to)
+             System.arraycopy(src, off + (from - start), chunk, from - chunkStart, to - from);
+          
+          ChunkedFileData.writeChunk(db, dataBlockID, chunkIdx, chunk);
+       }
+       
+       // also updates last mod time
+       if (!this.setField(FSBLOCK.fsFileSize, newSize)) {
+     	  SqlFsErrCode.setCurrentError(FsErr.SaveFileDataErr);
+          return false;
+       }
+       
+       SqlFsOpTrace.addBytesWritten(len);
+       return true;
+    }
+    
+    /**
+     *  Cut file data saved as chunks to 'size' bytes, no effect if already not larger than it
+     *
+     *  @return true if OK
+     */
+    public boolean truncate(long size)
+    {
+    	SqlFsErrCode.setCurrentError(FsErr.OK);
+    	
+    	boolean isOK = false;
+    	fsLocker.getFsLock(IFsMetrics.FSOP.TRUNCATE);
+        SqlFsTransaction fsTran = new SqlFsTransaction(db);
+        try {
+           isOK = __truncate(size);
+           if (isOK)
+              fsTran.fsOpSuccess();
+        }
+        catch (Exception e) {
+           SqlFsLog.debug(e);
+           SqlFsErrCode.setCurrentError(FsErr.SaveFileDataErr);
+        }
+        finally {
+     	   fsTran.dispose();
+     	   fsLocker.dispose();
+        }
+        
+        return isOK;
+    }
+    
+    private boolean __truncate(long size)
+    {
+       if (size < 0) {
+    	  SqlFsErrCode.setCurrentError(FsErr.InvalidFileRange);
+          return false;
+       }
+       
+       FsID dataBlockID = getChunkedDataBlockID();
+       if (dataBlockID == null)
+          return false;
+       
+       int oldSize = (Integer)getField(FSBLOCK.fsFileSize);
+       if (size >= oldSize)
+          return true;
+       
+       if ((dataBlockID = unshare(dataBlockID)) == null)
+          return false;
+       fsLocker.dataChanged(dataBlockID);
+       
+       int newSize = (int)size;
+       int chunkCount = (newSize + SqlFsConst.CHUNKSIZE - 1) / SqlFsConst.CHUNKSIZE;
+       ChunkedFileData.truncateChunks(db, dataBlockID, chunkCount);
+       
+       // cut the new last chunk
+       int lastLen = newSize % SqlFsConst.CHUNKSIZE;
+       if (lastLen != 0) {
+          byte[] oldChunk = ChunkedFileData.readChunk(db, dataBlockID, chunkCount - 1);
+          if (oldChunk == null) {
+        	 SqlFsErrCode.setCurrentError(FsErr.DataNotChunked);
+        	 return false;
+          }
+          
+          if (oldChunk.length > lastLen) {
+             byte[] chunk = new byte[lastLen];
+             System.arraycopy(oldChunk, 0, chunk, 0, lastLen);
+             ChunkedFileData.writeChunk(db, dataBlockID, chunkCount - 1, chunk);
+          }
+       }
+       
+       if (!this.setField(FSBLOCK.fsFileSize, newSize)) {
+     	  SqlFsErrCode.setCurrentError(FsErr.SaveFileDataErr);
+          return false;
+       }
+       
+       return true;
+    }
+    
+    /**
+     *  Get data block ID for random access, a new one is created if the file is never saved
+     *
+     *  @return null if failed, e.g. data are saved by another IFileData
+     */
+    private FsID getChunkedDataBlockID()
+    {
+       FsID dataBlockID = this.getDataBlockID();
+       if (dataBlockID.equals(SqlFsConst.NOFILEDATAID)) {
+          dataBlockID = ChunkedFileData.newDataBlock(db);
+          if (dataBlockID.compare(SqlFsConst.INVALIDID) <= 0 || 
+        	  !this.setField(FSBLOCK.fsChild, toIDList(dataBlockID))) {
+        	 SqlFsErrCode.setCurrentError(FsErr.SaveFileDataErr);
+             return null;
+          }
+          
+          return dataBlockID;
+       }
+       
+       if (dataBlockID.compare(SqlFsConst.INVALIDID) <= 0) {
+    	  SqlFsErrCode.setCurrentError(FsErr.DataBlockIDNotValid);
+          return null;
+       }
+       
+       // non-empty data must be chunks
+       int size = (Integer)getField(FSBLOCK.fsFileSize);
+       if (size > 0 && !ChunkedFileData.hasChunk(db, dataBlockID, 0)) {
+    	  SqlFsErrCode.setCurrentError(FsErr.DataNotChunked);
+          return null;
+       }
+       
+       return dataBlockID;
+    }
+    
+    /**
+     *  Prepare a data block to be changed in place. If it is shared by other files, its 
+     *  chunks are copied to a new one for this file (copy-on-write). 
+     *
+     *  @return ID of the data block to be changed, null if failed
+     */
+    private FsID unshare(FsID dataBlockID)
+    {
+       if (SqlFsDataRef.isShared(db, dataBlockID)) {
+          FsID newDataBlockID = ChunkedFileData.newDataBlock(db);
+          if (newDataBlockID.compare(SqlFsConst.INVALIDID) <= 0) {
+        	 SqlFsErrCode.setCurrentError(FsErr.SaveFileDataErr);
+             return null;
+          }
+          
+          ChunkedFileData.copyChunks(db, dataBlockID, newDataBlockID);
+          if (!this.setField(FSBLOCK.fsChild, toIDList(newDataBlockID)) || 
+              !SqlFsDataRef.release(db, dataBlockID)) {
+        	 SqlFsErrCode.setCurrentError(FsErr.SaveFileDataErr);
+             return null;
+          }
+          
+          return newDataBlockID;
+       }
+       
+       // content is changed, never shared by hash
+       SqlFsDataRef.setHash(db, dataBlockID, null);
+       return dataBlockID;
+    }
+    
+    /**
+     *  Open a channel for random access, see SqlFileChannel
+     */
+    public SqlFileChannel openChannel()
+    {
+       return new SqlFileChannel(this);
+    }
 }
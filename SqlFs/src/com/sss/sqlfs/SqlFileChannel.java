@@ -0,0 +1,132 @@
+package com.sss.sqlfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+
+/**
+ *  A channel with a position for random access of file data saved as chunks,
+ *  returned by SqlFile.openChannel().
+ *
+ *  It has the same methods as SeekableByteChannel (which is not available on
+ *  all platforms), each read/write is done by SqlFile.read()/write().
+ */
+public class SqlFileChannel implements ByteChannel
+{
+   private SqlFile file;
+   private long position = 0;
+
+   SqlFileChannel(SqlFile file)
+   {
+      this.file = file;
+   }
+
+   private SqlFile getFile() throws ClosedChannelException
+   {
+      if (file == null)
+         throw new ClosedChannelException();
+      return file;
+   }
+
+   /**
+    *  @return number of bytes read, -1 at end of file
+    */
+   public int read(ByteBuffer dst) throws IOException
+   {
+      SqlFile f = getFile();
+      int len = dst.remaining();
+      if (len == 0)
+         return 0;
+
+      int n;
+      if (dst.hasArray()) {
+         n = f.read(position, dst.array(), dst.arrayOffset() + dst.position(), len);
+         if (n > 0)
+            dst.position(dst.position() + n);
+      }
+      else {
+         byte[] buf = new byte[Math.min(len, SqlFsConst.CHUNKSIZE)];
+         n = f.read(position, buf, 0, buf.length);
+         if (n > 0)
+            dst.put(buf, 0, n);
+      }
+
+      if (n < 0)
+         throw new IOException("cannot read file data, " + SqlFsErrCode.getLastError().name());
+      if (n == 0)
+         return -1;
+
+      position += n;
+      return n;
+   }
+
+   public int write(ByteBuffer src) throws IOException
+   {
+      SqlFile f = getFile();
+      int len = src.remaining();
+
+      boolean isOK;
+      if (src.hasArray()) {
+         isOK = f.write(position, src.array(), src.arrayOffset() + src.position(), len);
+         if (isOK)
+            src.position(src.position() + len);
+      }
+      else {
+         byte[] buf = new byte[len];
+         src.get(buf);
+         isOK = f.write(position, buf, 0, len);
+      }
+
+      if (!isOK)
+         throw new IOException("cannot write file data, " + SqlFsErrCode.getLastError().name());
+
+      position += len;
+      return len;
+   }
+
+   public long position() throws IOException
+   {
+      getFile();
+      return position;
+   }
+
+   public SqlFileChannel position(long newPosition) throws IOException
+   {
+      getFile();
+      if (newPosition < 0)
+         throw new IllegalArgumentException();
+
+      this.position = newPosition;
+      return this;
+   }
+
+   public long size() throws IOException
+   {
+      return getFile().refresh().getFileSize();
+   }
+
+   public SqlFileChannel truncate(long size) throws IOException
+   {
+      SqlFile f = getFile();
+      if (size < 0)
+         throw new IllegalArgumentException();
+
+      if (!f.truncate(size))
+         throw new IOException("cannot truncate file data, " + SqlFsErrCode.getLastError().name());
+
+      if (position > size)
+         position = size;
+      return this;
+   }
+
+   public boolean isOpen()
+   {
+      return (file != null);
+   }
+
+   public void close()
+   {
+      file = null;
+   }
+}
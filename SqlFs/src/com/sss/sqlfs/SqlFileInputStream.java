@@ -0,0 +1,111 @@
+package com.sss.sqlfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ *  Stream to read file data saved as chunks, one chunk is fetched at a time.
+ *  Returned by SqlFile.openInputStream().
+ *
+ *  Note:
+ *    read() throws IOException once the data block being read is changed in place 
+ *    (by SqlFile.write/truncate or saving ChunkedFileData to the file) by any SqlFs of
+ *    the process, or deleted, so data read are never a mix of old and new chunks. 
+ *    A change rolled back later also counts. If the file is switched to another data 
+ *    block and the old one is still used by other files, the stream keeps reading 
+ *    the old data. Changes by other processes are not detected.
+ */
+class SqlFileInputStream extends InputStream
+{
+   private SqlFile file;
+   private FsID dataBlockID;
+   private int size;             ///< file size when opened
+   private int pos = 0;          ///< position in file
+   private int chunkIdx;         ///< index of 'chunk'
+   private byte[] chunk;         ///< current chunk, null if not fetched yet
+   private int generation;       ///< of the data block when opened, -1 if nothing to read
+
+   /**
+    *  @param [in] firstChunk -- chunk 0 if already fetched, can be null
+    *  @param [in] generation -- returned by SqlFsLocker.openRead(), -1 if not called
+    */
+   SqlFileInputStream(SqlFile file, FsID dataBlockID, int size, byte[] firstChunk, int generation)
+   {
+      this.file = file;
+      this.dataBlockID = dataBlockID;
+      this.size = size;
+      this.chunkIdx = 0;
+      this.chunk = firstChunk;
+      this.generation = generation;
+   }
+
+   @Override
+   public int read() throws IOException
+   {
+      byte[] b = new byte[1];
+      return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+   }
+
+   @Override
+   public int read(byte[] b, int off, int len) throws IOException
+   {
+      if (file == null)
+         throw new IOException("stream closed");
+
+      if (len == 0)
+         return 0;
+      if (pos >= size)
+         return -1;
+
+      int total = 0;
+      while (total < len && pos < size) {
+         int idx = pos / SqlFsConst.CHUNKSIZE;
+         int offInChunk = pos % SqlFsConst.CHUNKSIZE;
+
+         if (chunk == null || chunkIdx != idx) {
+            chunk = file.readChunk(dataBlockID, idx, generation);
+            chunkIdx = idx;
+            if (chunk == null || chunk.length <= offInChunk) {
+               chunk = null;
+               throw new IOException("file data changed while reading");
+            }
+         }
+
+         int n = Math.min(Math.min(len - total, chunk.length - offInChunk), size - pos);
+         System.arraycopy(chunk, offInChunk, b, off + total, n);
+         total += n;
+         pos += n;
+      }
+
+      return total;
+   }
+
+   @Override
+   public long skip(long n) throws IOException
+   {
+      if (n <= 0)
+         return 0;
+
+      int skipped = (int)Math.min(n, (long)(size - pos));
+      pos += skipped;
+      return skipped;
+   }
+
+   @Override
+   public int available() throws IOException
+   {
+      // bytes left in current chunk
+      if (chunk == null || chunkIdx != pos / SqlFsConst.CHUNKSIZE)
+         return 0;
+      return Math.max(Math.min(chunk.length, size - chunkIdx * SqlFsConst.CHUNKSIZE) - pos % SqlFsConst.CHUNKSIZE, 0);
+   }
+
+   @Override
+   public void close()
+   {
+      if (file != null && generation >= 0)
+         file.closeRead(dataBlockID);
+      file = null;
+      chunk = null;
+   }
+}
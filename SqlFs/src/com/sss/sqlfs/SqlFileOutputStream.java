@@ -0,0 +1,123 @@
+package com.sss.sqlfs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/**
+ *  Stream to write file data as chunks, up to STREAMCHUNKS full chunks are kept and
+ *  written to DB in one transaction. Returned by SqlFile.openOutputStream().
+ *
+ *  Data are written to a new data block, which is pending (see SqlFsDataRef) until the
+ *  stream is closed. The file is switched to it (and the old data are deleted) only
+ *  when the stream is closed, so readers see either the old or the new data.
+ *  If the stream is not closed, chunks written so far stay in the DB until it is
+ *  opened next time, when pending data blocks are deleted.
+ *  If the same content is saved already, the file shares that data instead.
+ */
+class SqlFileOutputStream extends OutputStream
+{
+   private SqlFile file;
+   private FsID dataBlockID;     ///< the new data block
+   private byte[][] chunks;      ///< chunks not written yet, allocated when needed
+   private int numChunks = 0;    ///< full chunks in 'chunks'
+   private byte[] buf;           ///< current chunk, chunks[numChunks]
+   private int bufLen = 0;       ///< bytes in 'buf'
+   private int chunkIdx = 0;     ///< index of chunks[0]
+   private long size = 0;        ///< bytes written
+   private MessageDigest md;     ///< hash of chunks written, null if not available
+
+   SqlFileOutputStream(SqlFile file, FsID dataBlockID)
+   {
+      this.file = file;
+      this.dataBlockID = dataBlockID;
+      this.chunks = new byte[SqlFsConst.STREAMCHUNKS][];
+      this.buf = chunks[0] = new byte[SqlFsConst.CHUNKSIZE];
+      this.md = SqlFsDataRef.newDigest(SqlFsDataRef.HASHOFCHUNKS);
+   }
+
+   @Override
+   public void write(int b) throws IOException
+   {
+      write(new byte[]{(byte)b}, 0, 1);
+   }
+
+   @Override
+   public void write(byte[] b, int off, int len) throws IOException
+   {
+      if (file == null)
+         throw new IOException("stream closed");
+
+      if (size + len > Integer.MAX_VALUE)
+         throw new IOException("file too large");
+
+      while (len > 0) {
+         int n = Math.min(len, buf.length - bufLen);
+         System.arraycopy(b, off, buf, bufLen, n);
+         bufLen += n;
+         off += n;
+         len -= n;
+         size += n;
+
+         if (bufLen == buf.length) {
+            if (numChunks + 1 == chunks.length)
+               writeChunks(chunks.length);   // retried by next write() if failed
+            else
+               ++numChunks;
+
+            if (chunks[numChunks] == null)
+               chunks[numChunks] = new byte[SqlFsConst.CHUNKSIZE];
+            buf = chunks[numChunks];
+            bufLen = 0;
+         }
+      }
+   }
+
+   /**
+    *  Write chunks[0 .. count - 1], which are kept until written
+    */
+   private void writeChunks(int count) throws IOException
+   {
+      if (count == 0)
+         return;
+
+      if (!file.writeChunks(dataBlockID, chunkIdx, chunks, count))
+         throw new IOException("cannot write file data");
+
+      if (md != null) {
+         for (int i = 0; i < count; ++i)
+            md.update(chunks[i]);
+      }
+
+      chunkIdx += count;
+      numChunks = 0;
+   }
+
+   /**
+    *  Write the last chunk and switch the file to the new data
+    */
+   @Override
+   public void close() throws IOException
+   {
+      if (file == null)
+         return;
+
+      try {
+         if (bufLen > 0) {
+            // last chunk, shorter than CHUNKSIZE
+            byte[] chunk = new byte[bufLen];
+            System.arraycopy(buf, 0, chunk, 0, bufLen);
+            chunks[numChunks++] = chunk;
+         }
+         writeChunks(numChunks);
+
+         if (!file.commitChunks(dataBlockID, (int)size, (md == null) ? null : md.digest()))
+            throw new IOException("cannot save file data");
+      }
+      finally {
+         file = null;
+         chunks = null;
+         buf = null;
+      }
+   }
+}
@@ -1,10 +1,11 @@
 package com.sss.sqlfs;
 
 import android.content.Context;
-import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 
 import com.sss.sqlfs.SqlFsErrCode.FsErr;
 import com.sss.sqlfs.helper.*;
@@ -13,6 +14,7 @@ import java.io.File;
 import java.util.Calendar;
 import java.util.TimeZone;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -31,6 +33,8 @@ public class SqlFs
         SQLITE_MASTER,
         //! table names
         FsBlock, FsInfo,
+        //! index names
+        FsBlockParentName, FsBlockPath,
         //! master column names
         type, table, name
     };
@@ -45,10 +49,8 @@ public class SqlFs
         fsFileSize,
         fsName, 
         fsParent, 
-        fsChild,
-
-        // it is not part of columns
-        fsChildCount,
+        fsChild,     ///< data block ID of a file, not used by dir (see SqlFsConst.FORMATVER)
+        fsPath,      ///< absolute path, "" for root (see SqlFsPath)
     };
     
     enum FSINFO 
@@ -64,6 +66,8 @@ public class SqlFs
         createTimeUtc,
         fsLabel,
         IDSize,
+        formatVer,
+        openProfile,     ///< SqlFsOptions given last time the DB is opened with options
     };
     
  // table names       
@@ -79,17 +83,36 @@ public class SqlFs
                        new String[]{FSBLOCK.fsFileSize.toString(), "integer"},
                        new String[]{FSBLOCK.fsName.toString(), "varchar(512)"},
                        new String[]{FSBLOCK.fsParent.toString(), "integer"},
-                       new String[]{FSBLOCK.fsChild.toString(), "blob"}
+                       new String[]{FSBLOCK.fsChild.toString(), "blob"},
+                       new String[]{FSBLOCK.fsPath.toString(), "text"}
                                                                   };
+    // FsBlock index to look up a child by name
+    private static final String[] IDXFSBLOCKPARENTNAME = new String[]{FSBLOCK.fsParent.toString(), 
+                                                                      FSBLOCK.fsName.toString()};
+    // FsBlock index to look up a node by path
+    private static final String[] IDXFSBLOCKPATH = new String[]{FSBLOCK.fsPath.toString()};
+    // wildcards of a glob segment
+    private static final char[] GLOBCHARS = new char[]{'*', '?', '['};
     // FsInfo column
     private static final String[][] COLFSINFO = new String[][] {
                        new String[]{FSINFO.infoName.toString(), "varchar(128) primary key"},
                        new String[]{FSINFO.infoVal.toString(), "varchar(128)"}
                                                                   };
+    // SQL to get/write a single info (infoName is the primary key)
+    private static final String SQLGETINFO = SqlStr.genSelect(DBNAMES.FsInfo.toString(), 
+                                                              new String[]{FSINFO.infoVal.toString()},
+                                                              FSINFO.infoName.toString());
+    private static final String SQLWRITEINFO = "INSERT OR REPLACE INTO " + DBNAMES.FsInfo.toString() + 
+                                               " (" + FSINFO.infoName.toString() + ", " + FSINFO.infoVal.toString() + 
+                                               ") VALUES (?, ?)";
+    // SQL to delete a FsBlock entry by ID
+    static final String SQLDELFSBLOCK = SqlStr.genDelete(DBNAMES.FsBlock.toString(), FSBLOCK.fsID.toString());
     
     private SQLiteDatabase db = null;     ///< sqlite database
     private String dbPath = null;         ///< database full path 
     private SqlFsLocker fsLocker = null;  ///< locker to ensure single access
+    private SqlDir rootDir = null;        ///< root dir, which never changes once fetched
+    private SqlFsOptions options = null;  ///< connection settings, null for SQLite defaults
     
     private SqlFs() { }
 
@@ -127,6 +150,23 @@ public class SqlFs
 
     public static SqlFs create(String dbPath, IFileData dummyInst, 
 	 	                       Context ctxt, AtomicBoolean isNewTableCreated) 
+    {
+       return SqlFs.create(dbPath, dummyInst, ctxt, isNewTableCreated, null);
+    }
+    
+    /**
+     *  Create db with connection settings
+     *
+     *  @param [in] options -- e.g. SqlFsOptions.balanced(), null to use SQLite defaults
+     */
+    public static SqlFs create(String dbPath, Context ctxt, SqlFsOptions options)
+    {
+	   AtomicBoolean isNewTableCreated = new AtomicBoolean(false);
+       return SqlFs.create(dbPath, new SimpleFileData(), ctxt, isNewTableCreated, options);
+    }
+    
+    public static SqlFs create(String dbPath, IFileData dummyInst, 
+	 	                       Context ctxt, AtomicBoolean isNewTableCreated, SqlFsOptions options) 
     {
        SqlFsErrCode.setCurrentError(FsErr.OK);
     	
@@ -136,6 +176,7 @@ public class SqlFs
           if (dbPath != null) {
              fs = new SqlFs(ctxt, dbPath);
              if (fs != null) {
+                fs.options = options;
                 fs.fsLocker.getFsLock();
                 try {
                    fs.open();
@@ -158,6 +199,8 @@ public class SqlFs
     private void open()
     {
        this.db = SQLiteDatabase.openOrCreateDatabase(this.dbPath, null);
+       if (this.options != null)
+    	   this.options.apply(this.db);
        if (this.fsLocker == null)
     	   this.fsLocker = SqlFsLocker.getFsLocker(this.dbPath);
     }
@@ -169,10 +212,17 @@ public class SqlFs
     {
        SqlFsErrCode.unset();
        
+       // batch not committed
+       SqlFsBatch batch = SqlFsBatch.getBatch(db);
+       if (batch != null)
+    	  batch.rollback();
+       
        SqlFsLocker.close(fsLocker);
        fsLocker = null;
+       rootDir = null;
        
        if (this.db != null) {
+    	  SqlFsStmtCache.close(this.db);
     	  this.db.close();
     	  this.db = null;
        }
@@ -189,6 +239,8 @@ public class SqlFs
     	  db.execSQL(SqlStr.genCreateTable(DBNAMES.FsBlock.toString(), COLFSBLOCK));
     	  db.execSQL(SqlStr.genCreateTable(DBNAMES.FsInfo.toString(), COLFSINFO));
     	  db.execSQL(SqlStr.genCreateTable(IFileData.DTABLENAME, dummyInst.getColSchema()));
+    	  ChunkedFileData.createTable(db);
+    	  SqlFsDataRef.createTable(db);
             
           // create root dir, too
           createRootDir();
@@ -200,10 +252,161 @@ public class SqlFs
          		            		Calendar.getInstance(TimeZone.getTimeZone("GMT+00:00"))));
           writeInfo(FSINFOFIELDS.fsLabel.toString(), SqlFsConst.DEFFSLABEL);
           writeInfo(FSINFOFIELDS.IDSize.toString(), Integer.toString(FsID.getIDSize()));
+          writeInfo(FSINFOFIELDS.formatVer.toString(), Integer.toString(SqlFsConst.FORMATVER));
 
           isNewTableCreated.set(true);
        }
-             
+
+       // new DB or DB created by an older version
+       createIndex();
+       upgrade();
+       createPathIndex();
+       addDataColumns(dummyInst);
+       
+       // data blocks of streams never closed, unless another SqlFs may still be writing them
+       if (SqlFsLocker.isOnlyUser(this.fsLocker))
+          deletePendingData();
+       
+       if (this.options != null)
+          writeInfo(FSINFOFIELDS.openProfile.toString(), this.options.toString());
+    }
+
+    /**
+     *  Convert a DB created by an older version to the current format (one-time)
+     */
+    private void upgrade()
+    {
+       int formatVer = 0;
+       String strVer = __getInfo(FSINFOFIELDS.formatVer.toString());
+       if (strVer != null) {
+          try {
+             formatVer = Integer.parseInt(strVer);
+          }
+          catch (NumberFormatException e) {
+             SqlFsLog.debug(e);
+          }
+       }
+
+       if (formatVer >= SqlFsConst.FORMATVER)
+          return;
+
+       SqlFsTransaction fsTran = new SqlFsTransaction(db);
+       try {
+          if (formatVer < SqlFsConst.FORMATVER_CHILDBYPARENT) {
+             // children are found by fsParent, child ID list of dirs is no longer needed
+             ArrayList<Object> colsAndValues = new ArrayList<Object>(2);
+             colsAndValues.add(FSBLOCK.fsChild.toString()); colsAndValues.add(null);
+             String where = SqlStr.genWhere(new SqlStr.SqlSimpCond(FSBLOCK.fsType.toString(), "=", 
+                                                                   SqlFsConst.FSTYPE.DIR.v()));
+             db.update(DBNAMES.FsBlock.toString(), SqlStr.genContentValues(colsAndValues), where, null);
+          }
+          
+          if (formatVer < SqlFsConst.FORMATVER_DATACHUNK) {
+             // new table for ChunkedFileData
+             ChunkedFileData.createTable(db);
+          }
+          
+          if (formatVer < SqlFsConst.FORMATVER_DATAREF) {
+             // reference count of data blocks, each one is used by one file so far
+             SqlFsDataRef.createTable(db);
+             SqlFsDataRef.addAll(db);
+          }
+          
+          if (formatVer >= SqlFsConst.FORMATVER_DATACHUNK && formatVer < SqlFsConst.FORMATVER_CHUNKCODEC) {
+             // chunk table created before codec is supported
+             ChunkedFileData.addCodecColumn(db);
+          }
+          
+          if (formatVer < SqlFsConst.FORMATVER_PATH) {
+             // path of each node
+             db.execSQL("ALTER TABLE " + DBNAMES.FsBlock.toString() + " ADD COLUMN " + 
+                        FSBLOCK.fsPath.toString() + " text");
+             SqlFsPath.fillAll(db);
+          }
+
+          __writeInfo(FSINFOFIELDS.formatVer.toString(), Integer.toString(SqlFsConst.FORMATVER));
+          fsTran.fsOpSuccess();
+       }
+       finally {
+          fsTran.dispose();
+       }
+    }
+
+    /**
+     *  Delete data blocks written by SqlFileOutputStream which is never closed
+     */
+    private void deletePendingData()
+    {
+       SqlFsTransaction fsTran = new SqlFsTransaction(db);
+       try {
+          SqlFsDataRef.deleteAllPending(db);
+          fsTran.fsOpSuccess();
+       }
+       finally {
+          fsTran.dispose();
+       }
+    }
+
+    /**
+     *  Add columns of DataBlock which the IFileData has but the DB hasn't, i.e. added
+     *  by a later version of the IFileData (e.g. dCodec of SimpleFileData)
+     */
+    private void addDataColumns(IFileData dummyInst)
+    {
+       HashSet<String> colNames = new HashSet<String>();
+       Cursor c = null;
+       try {
+          c = db.rawQuery("PRAGMA table_info(" + IFileData.DTABLENAME + ")", null);
+          int nameIdx = c.getColumnIndex("name");
+          if (c.moveToFirst()) {
+             do {
+                colNames.add(c.getString(nameIdx).toLowerCase());
+             } while (c.moveToNext());
+          }
+       }
+       finally {
+          SqlFsFunc.close(c);
+       }
+       
+       for (String[] col : dummyInst.getColSchema()) {
+          if (!colNames.contains(col[0].toLowerCase()))
+             db.execSQL("ALTER TABLE " + IFileData.DTABLENAME + " ADD COLUMN " + col[0] + " " + col[1]);
+       }
+    }
+
+    /**
+     *  Create index on FsBlock (fsParent, fsName) if not already exists
+     */
+    private void createIndex()
+    {
+       try {
+          db.execSQL(SqlStr.genCreateIndex(DBNAMES.FsBlockParentName.toString(), DBNAMES.FsBlock.toString(), 
+                                           true, IDXFSBLOCKPARENTNAME));
+       }
+       catch (SQLiteException e) {
+          // may be duplicated names left in an old DB, use a non-unique one
+          SqlFsLog.debug(e);
+          db.execSQL(SqlStr.genCreateIndex(DBNAMES.FsBlockParentName.toString(), DBNAMES.FsBlock.toString(), 
+                                           false, IDXFSBLOCKPARENTNAME));
+       }
+    }
+
+    /**
+     *  Create index on FsBlock (fsPath) if not already exists, after the column is added
+     *  to an older DB
+     */
+    private void createPathIndex()
+    {
+       try {
+          db.execSQL(SqlStr.genCreateIndex(DBNAMES.FsBlockPath.toString(), DBNAMES.FsBlock.toString(), 
+                                           true, IDXFSBLOCKPATH));
+       }
+       catch (SQLiteException e) {
+          // may be duplicated names left in an old DB, use a non-unique one
+          SqlFsLog.debug(e);
+          db.execSQL(SqlStr.genCreateIndex(DBNAMES.FsBlockPath.toString(), DBNAMES.FsBlock.toString(), 
+                                           false, IDXFSBLOCKPATH));
+       }
     }
 
     /**
@@ -281,6 +484,7 @@ public class SqlFs
     private void createRootDir()
     {
        SqlDir.addDir(db, SqlFsConst.ROOTDIRNAME, SqlFsConst.ROOTPARENTID);
+       SqlFsPath.setPath(db, SqlFsConst.ROOTDIRID, null);
     }
 
     //////////////////////////FS Info /////////////////////////////////////////
@@ -289,7 +493,7 @@ public class SqlFs
     {
     	SqlFsErrCode.setCurrentError(FsErr.OK);
     	
-    	fsLocker.getFsLock();
+    	fsLocker.getFsReadLock();
         try {
            return __getInfo(infoName);
         }
@@ -306,24 +510,19 @@ public class SqlFs
     private String __getInfo(String infoName)
     {
        String value = null;
-       String where = SqlStr.genWhere(new SqlStr.SqlSimpCond(FSINFO.infoName.toString(), "=", infoName));                                                    
        
-       Cursor c = null;
        try {
-    	  c = db.query(DBNAMES.FsInfo.toString(), new String[]{FSINFO.infoVal.toString()}, 
-    			       where, null, null, null, null); 
-          
-          if (c != null && c.moveToFirst()) {
-             value = c.getString(0);             
-          }
+    	  SQLiteStatement stmt = SqlFsStmtCache.getCache(db).getStatement(SQLGETINFO);
+    	  stmt.bindString(1, infoName);
+    	  value = SqlFsExec.simpleQueryForString(db, stmt, SQLGETINFO);
        } 
+       catch (SQLiteDoneException e) {
+    	  // info not present
+       }
        catch (SQLiteException e) {
           SqlFsLog.debug(e);
           SqlFsErrCode.setCurrentError(FsErr.GetFsInfoErr); 
        }
-       finally {
-    	  SqlFsFunc.close(c); 
-       }
        
        return value;
     }
@@ -353,19 +552,14 @@ public class SqlFs
 	    */
     private void __writeInfo(String infoName, String infoVal)
     {
-       
-       ArrayList<Object> colsAndValues = new ArrayList<Object>();
-       colsAndValues.add(FSINFO.infoName.toString()); colsAndValues.add(infoName);
-       colsAndValues.add(FSINFO.infoVal.toString()); colsAndValues.add(infoVal);
-       ContentValues contVals = SqlStr.genContentValues(colsAndValues);
-       String where = SqlStr.genWhere(new SqlStr.SqlSimpCond(FSINFO.infoName.toString(), "=", infoName));
-       
        try {
-    	  // try update first   
-          if (db.update(DBNAMES.FsInfo.toString(), contVals, where, null) == 0) {
-             // nothing is updated, insert to table
-        	 db.insert(DBNAMES.FsInfo.toString(), null, contVals);
-          }
+    	  SQLiteStatement stmt = SqlFsStmtCache.getCache(db).getStatement(SQLWRITEINFO);
+    	  stmt.bindString(1, infoName);
+    	  if (infoVal == null)
+    		 stmt.bindNull(2);
+    	  else
+    	     stmt.bindString(2, infoVal);
+    	  SqlFsExec.execute(db, stmt, SQLWRITEINFO);
        }
        catch(SQLiteException e) {
           SqlFsLog.debug(e);
@@ -375,6 +569,37 @@ public class SqlFs
     }
 
     
+    //////////////////////////Batch ////////////////////////////////////////////
+    
+    /**
+     *  Begin a batch, all FS operations in this thread until SqlFsBatch.commit() 
+     *  are run in one transaction (see SqlFsBatch)
+     *
+     *  @return null if this thread has begun a batch on the DB already, by this SqlFs or another one
+     */
+    public SqlFsBatch beginBatch()
+    {
+    	SqlFsErrCode.setCurrentError(FsErr.OK);
+    	
+    	// another connection to the same file would wait for the transaction of the batch
+    	if (SqlFsBatch.hasBatch(fsLocker)) {
+    	   SqlFsErrCode.setCurrentError(FsErr.BatchAlreadyBegun);
+    	   return null;
+    	}
+    	
+    	SqlFsBatch batch = new SqlFsBatch(db, fsLocker);
+    	batch.begin();
+    	return batch;
+    }
+    
+    /**
+     *  @return true if a batch begun by this thread is not ended yet
+     */
+    boolean isInBatch()
+    {
+    	return (SqlFsBatch.getBatch(db) != null);
+    }
+    
     //////////////////////////FS operations ///////////////////////////////////
 
     /**
@@ -384,14 +609,10 @@ public class SqlFs
     {
        SqlFsNode fsNode = null;
 
-       String where = SqlStr.genWhere(new SqlStr.SqlSimpCond(SqlFs.FSBLOCK.fsID.toString(), "=", id));
        Cursor c = null;
        
        try {
-    	   
-    	  c = db.query(SqlFs.DBNAMES.FsBlock.toString(), 
-                   new String[]{SqlFs.FSBLOCK.fsID.toString(), SqlFs.FSBLOCK.fsType.toString()}, 
-                   where, null, null, null, null);
+    	  c = SqlFsExec.rawQuery(db, SqlFsNodeInfo.SQLGETBYID, new String[]{id.toString()});
     	   
     	  if (c.moveToFirst()) {
     		 fsNode = SqlFsNode.getFsNode(db, fsLocker, c);
@@ -416,17 +637,18 @@ public class SqlFs
     /**
      *  Delete entry in a table using ID
      *
-     *  @param [in] tableName -- table name
-     *  @param [in] idColName -- ID column name
+     *  @param [in] deleteSql -- a constant SQL deleting by ID, e.g. SQLDELFSBLOCK
      *  @param [in] id -- the actual ID
      */
-    static boolean deleteEntryByID(SQLiteDatabase db, String tableName, String idColName, FsID id)
+    static boolean deleteEntryByID(SQLiteDatabase db, String deleteSql, FsID id)
     {  
-       String where = SqlStr.genWhere(new SqlStr.SqlSimpCond(idColName, "=", id));
-       
        boolean isOK = false;
        try {
-    	  if (db.delete(tableName, where, null) > 0)
+    	  SqlFsStmtCache stmtCache = SqlFsStmtCache.getCache(db);
+    	  SQLiteStatement stmt = stmtCache.getStatement(deleteSql);
+    	  stmt.bindLong(1, id.getVal());
+    	  SqlFsExec.execute(db, stmt, deleteSql);
+    	  if (stmtCache.changes() > 0)
     	     isOK = true;
        }
        catch (Exception e) {
@@ -437,38 +659,11 @@ public class SqlFs
        return isOK;
     }
 
-    
-    /**
-     *  Get the last (autoIncrement) rowID after a 'INSERT'
-     */
-    static FsID getLastInsertID(SQLiteDatabase db)
-    {
-       // retrieve the ID of the new entry
-       FsID newID = SqlFsConst.INVALIDID;
-       String sql = "SELECT last_insert_rowid() as [id]";
-       Cursor c = null;
-       try {
-          c = db.rawQuery(sql, null);
-          if (c.moveToFirst()) {
-             newID = SqlFsFunc.getID(c, 0);
-          }
-       }
-       catch (Exception e) {
-          SqlFsLog.debug(e);
-          SqlFsErrCode.setCurrentError(FsErr.GetLastInsertIDError);
-       }
-       finally {
-    	  SqlFsFunc.close(c);
-       }
-
-       return newID;
-    }
-
     public SqlDir getRootDir()
     {
     	SqlFsErrCode.setCurrentError(FsErr.OK);
     	
-    	fsLocker.getFsLock();
+    	fsLocker.getFsReadLock();
         try {
            return __getRootDir();
         }
@@ -482,15 +677,19 @@ public class SqlFs
      */
     private SqlDir __getRootDir()
     {
-       SqlFsNode fsNode = getFsNodeByID(SqlFsConst.ROOTDIRID);
-       return (SqlDir)fsNode;
+       if (this.rootDir == null) {
+          SqlFsNode fsNode = getFsNodeByID(SqlFsConst.ROOTDIRID);
+          this.rootDir = (SqlDir)fsNode;
+       }
+       
+       return this.rootDir;
     }
     
     public SqlFsNode getFsNode(String path)
     {
     	SqlFsErrCode.setCurrentError(FsErr.OK);
     	
-    	fsLocker.getFsLock();
+    	fsLocker.getFsReadLock(IFsMetrics.FSOP.GETFSNODE);
         try {
            return __getFsNode(path);
         }
@@ -515,7 +714,7 @@ public class SqlFs
        }
 
        path = SqlFsFunc.trim(path, new char[]{SqlFsConst.PATHSEP});
-       SqlDir rootDir = getRootDir();
+       SqlDir rootDir = __getRootDir();
        if (rootDir == null) {
     	  SqlFsErrCode.setCurrentError(FsErr.CannotAccessRoot);
           return null;
@@ -531,7 +730,7 @@ public class SqlFs
     {
     	SqlFsErrCode.setCurrentError(FsErr.OK);
     	
-    	fsLocker.getFsLock();
+    	fsLocker.getFsReadLock(IFsMetrics.FSOP.GETFSNODE);
         try {
            return __getDir(dirPath);
         }
@@ -556,7 +755,7 @@ public class SqlFs
        }
 
        dirPath = SqlFsFunc.trim(dirPath, new char[]{SqlFsConst.PATHSEP});
-       SqlDir rootDir = getRootDir();
+       SqlDir rootDir = __getRootDir();
        if (rootDir == null) {
     	  SqlFsErrCode.setCurrentError(FsErr.CannotAccessRoot);
           return null;
@@ -572,7 +771,7 @@ public class SqlFs
     {
     	SqlFsErrCode.setCurrentError(FsErr.OK);
     	
-    	fsLocker.getFsLock();
+    	fsLocker.getFsReadLock(IFsMetrics.FSOP.GETFSNODE);
         try {
            return __getFile(filePath);
         }
@@ -598,7 +797,7 @@ public class SqlFs
 
        filePath = SqlFsFunc.trim(filePath, new char[]{SqlFsConst.PATHSEP});
        
-       SqlDir rootDir = getRootDir();
+       SqlDir rootDir = __getRootDir();
        if (rootDir == null) {
     	  SqlFsErrCode.setCurrentError(FsErr.CannotAccessRoot);
           return null;
@@ -611,7 +810,7 @@ public class SqlFs
     {
     	SqlFsErrCode.setCurrentError(FsErr.OK);
     	
-    	fsLocker.getFsLock();
+    	fsLocker.getFsReadLock(IFsMetrics.FSOP.GETFSNODE);
         try {
            return __exists(path);
         }
@@ -639,7 +838,7 @@ public class SqlFs
        if (SqlFsFunc.isNullOrEmpty(path))   // if empty after trim, it refers to root
           return true;
 
-       SqlDir rootDir = getRootDir();
+       SqlDir rootDir = __getRootDir();
        if (rootDir == null) {
     	  SqlFsErrCode.setCurrentError(FsErr.CannotAccessRoot);
           return false;
@@ -650,4 +849,194 @@ public class SqlFs
        return (fsNode != null);
     }
 
+    //////////////////////////Find ////////////////////////////////////////////
+
+    /**
+     *  Find nodes by a glob of absolute path, e.g. "/logs/**\/*.json" (see find(String, SqlFsFindFilter, IFsFindCallback))
+     *
+     *  @return absolute paths in order, null if failed
+     */
+    public ArrayList<String> find(String glob)
+    {
+       return find(glob, null);
+    }
+
+    /**
+     *  @param [in] filter -- can be null
+     *
+     *  @return absolute paths in order, null if failed
+     */
+    public ArrayList<String> find(String glob, SqlFsFindFilter filter)
+    {
+       final ArrayList<String> paths = new ArrayList<String>();
+       boolean isOK = find(glob, filter, new IFsFindCallback() {
+          public boolean onFound(String path, SqlFsNodeInfo info)
+          {
+             paths.add(path);
+             return true;
+          }
+       });
+
+       return isOK ? paths : null;
+    }
+
+    /**
+     *  Find nodes by a glob of absolute path, and pass each one to a callback in order of path.
+     *
+     *  Each segment of the glob is matched by GLOB of SQLite ('*', '?', '[...]', case sensitive)
+     *  against one name, and "**" matches any number of dirs. Leading segments without
+     *  wildcards are looked up as a dir, only nodes under it are searched.
+     *
+     *  Nodes found are collected (in a TEMP table of the connection) and read into memory
+     *  under the shared lock, then passed to the callback with the FS unlocked, so the
+     *  callback does not block other threads and may call other operations.
+     *
+     *  @param [in] glob -- e.g. "/logs/**\/*.json", "/photos/2014-0[1-6]/*"
+     *  @param [in] filter -- can be null
+     *
+     *  @return false if failed
+     */
+    public boolean find(String glob, SqlFsFindFilter filter, IFsFindCallback callback)
+    {
+    	SqlFsErrCode.setCurrentError(FsErr.OK);
+    	
+    	ArrayList<String> paths = new ArrayList<String>();
+    	ArrayList<SqlFsNodeInfo> infos = new ArrayList<SqlFsNodeInfo>();
+    	
+    	fsLocker.getFsReadLock(IFsMetrics.FSOP.FIND);
+        try {
+           if (!__find(glob, filter, paths, infos))
+              return false;
+        }
+        finally {
+      	   fsLocker.dispose();
+        }
+        
+        for (int i = 0; i < paths.size(); ++i) {
+           if (!callback.onFound(paths.get(i), infos.get(i)))
+              break;
+        }
+        return true;
+    }
+
+    private boolean __find(String glob, SqlFsFindFilter filter, 
+    		               ArrayList<String> paths, ArrayList<SqlFsNodeInfo> infos)
+    {
+       if (SqlFsFunc.isNullOrEmpty(glob)) {
+     	  SqlFsErrCode.setCurrentError(FsErr.EmptyString);
+          return false;
+       }
+
+       if (!glob.startsWith(SqlFsConst.STRPATHSEP)) {  // must start with '/'
+     	  SqlFsErrCode.setCurrentError(FsErr.MustUseAbsolutePath);
+          return false;
+       }
+
+       ArrayList<String> segs = new ArrayList<String>();
+       for (String seg : glob.split(SqlFsConst.STRPATHSEP)) {
+          if (seg.length() > 0)
+             segs.add(seg);
+       }
+       if (segs.isEmpty())
+          return true;   // root itself is never found
+
+       SqlDir rootDir = __getRootDir();
+       if (rootDir == null) {
+    	  SqlFsErrCode.setCurrentError(FsErr.CannotAccessRoot);
+          return false;
+       }
+
+       // leading segments without wildcards, the last one is always matched by GLOB
+       int fixedCount = 0;
+       StringBuilder topPath = new StringBuilder();
+       while (fixedCount < segs.size() - 1 && SqlFsFunc.indexOfAny(segs.get(fixedCount), GLOBCHARS) < 0)
+          topPath.append(SqlFsConst.PATHSEP).append(segs.get(fixedCount++));
+
+       SqlDir topDir = rootDir;
+       if (fixedCount > 0) {
+          SqlFsNode fsNode = rootDir.getFsNode(topPath.substring(1));
+          if (fsNode == null || !fsNode.isDir()) {
+             SqlFsErrCode.setCurrentError(FsErr.OK);   // nothing found
+             return true;
+          }
+          topDir = (SqlDir)fsNode;
+       }
+
+       String[] patSegs = segs.subList(fixedCount, segs.size()).toArray(new String[segs.size() - fixedCount]);
+
+       // only the TEMP table of this connection is changed by find, so no transaction on
+       // the DB is needed; other writers of the process wait for the shared lock
+       return SqlFsFind.find(db, topDir.getID(), topPath.toString(), patSegs, filter, paths, infos);
+    }
+
+    //////////////////////////Path cache //////////////////////////////////////
+
+    /**
+     *  Number of absolute path lookups answered by the path cache.
+     *  The cache is shared by all SqlFs instances of the same DB.
+     */
+    public long getPathCacheHitCount()
+    {
+       return fsLocker.getPathCache().getHitCount();
+    }
+    
+    /**
+     *  Number of absolute path lookups which have to query the DB
+     */
+    public long getPathCacheMissCount()
+    {
+       return fsLocker.getPathCache().getMissCount();
+    }
+    
+    /**
+     *  Set max. number of paths kept in cache, 0 to disable it
+     */
+    public void setPathCacheSize(int maxEntries)
+    {
+       SqlFsErrCode.setCurrentError(FsErr.OK);
+       
+       fsLocker.getPathCache().setMaxEntries(maxEntries);
+    }
+
+    //////////////////////////Metrics /////////////////////////////////////////
+
+    /**
+     *  Set listener of operations (e.g. SqlFsMetrics), null to disable. It is shared by 
+     *  all SqlFs instances of the same DB and dropped when the last one is closed.
+     *  Waits for operations running in other threads.
+     */
+    public void setMetrics(IFsMetrics metrics)
+    {
+       SqlFsErrCode.setCurrentError(FsErr.OK);
+       
+       fsLocker.setMetrics(metrics);
+    }
+    
+    /**
+     *  @return listener set by setMetrics(), null if none
+     */
+    public IFsMetrics getMetrics()
+    {
+       return fsLocker.getMetrics();
+    }
+    
+    /**
+     *  Set diagnostic mode (see SqlFsDiagnostics), null to disable. Like setMetrics(), it is
+     *  shared by all SqlFs instances of the same DB, and both can be set at the same time.
+     */
+    public void setDiagnostics(SqlFsDiagnostics diagnostics)
+    {
+       SqlFsErrCode.setCurrentError(FsErr.OK);
+       
+       fsLocker.setDiagnostics(diagnostics);
+    }
+    
+    /**
+     *  @return diagnostics set by setDiagnostics(), null if none
+     */
+    public SqlFsDiagnostics getDiagnostics()
+    {
+       return fsLocker.getDiagnostics();
+    }
+
 }
@@ -0,0 +1,501 @@
+package com.sss.sqlfs;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+
+import com.sss.sqlfs.SqlFsErrCode.FsErr;
+import com.sss.sqlfs.helper.*;
+
+/**
+ *  Runs FS operations on its own threads, so the caller does not wait for the FS lock
+ *  and SQLite I/O. Operations changing the DB run one at a time on a single writer
+ *  thread (they take the exclusive lock anyway), and operations only reading it run on
+ *  a pool of reader threads, concurrently with each other.
+ *
+ *  e.g.
+ *     SqlFsAsync async = SqlFsAsync.create(dbPath, ctxt, SqlFsOptions.balanced(), 2, null);
+ *     SqlFsFuture<Boolean> f = async.saveFileData("/dir/a.txt", fd, null);
+ *     ...
+ *     if (!f.get())
+ *        Log.e(TAG, "save failed, " + f.getError());
+ *     ...
+ *     async.close();
+ *
+ *  If the DB can't be opened by the thread, get() throws ExecutionException and
+ *  getError() is FsErr.CannotOpenDB.
+ *
+ *  Each thread opens its own SqlFs on the DB when it runs its first operation and closes
+ *  it when the SqlFsAsync is closed, so SqlFs instances are never shared between threads.
+ *  Nodes (SqlDir, SqlFile) can't be passed to or from the operations; they are given a
+ *  path and return plain results. An IFileData passed in must not be touched by the
+ *  caller until the future is done.
+ *
+ *  All SqlFs instances on the DB share one FS lock (see SqlFsLocker), so readers still
+ *  wait while the writer runs an operation, whatever the journal mode.
+ *
+ *  Group commit (see setGroupCommit()): saveFileData() and delete() queued one after
+ *  another are run by the writer in one SqlFsBatch, so they share one commit (and fsync)
+ *  instead of paying one each. Each future still gets the result of its own operation.
+ */
+public class SqlFsAsync implements IDisposable
+{
+   public static final int DEFREADERS = 2;
+
+   private String dbPath;
+   private Context ctxt;
+   private IFileData dummyInst;
+   private SqlFsOptions options;
+   private ThreadPoolExecutor writer;
+   private ThreadPoolExecutor readers;   ///< same as 'writer' if no reader threads
+   private LinkedBlockingQueue<Runnable> writeQueue;   ///< queue of 'writer'
+   private final Object writeSignal = new Object();    ///< notified when 'writeQueue' gets an operation
+   private volatile int maxGroupSize = 1;      ///< 1 if group commit is disabled
+   private volatile long groupWindowNs = 0;
+
+   //! SqlFs of each thread
+   private ThreadLocal<SqlFs> threadFs = new ThreadLocal<SqlFs>();
+
+   /**
+    *  Create with the default "SimpleFileData", DEFREADERS reader threads and
+    *  SQLite defaults
+    */
+   public static SqlFsAsync create(String dbPath, Context ctxt)
+   {
+      return create(dbPath, new SimpleFileData(), ctxt, null, DEFREADERS, null);
+   }
+
+   /**
+    *  @param [in] options -- e.g. SqlFsOptions.balanced(), null to use SQLite defaults
+    *  @param [in] readerCount -- number of reader threads, 0 to run reads on the writer thread
+    *  @param [in] threadFactory -- creates the writer and reader threads, e.g. one of virtual
+    *                               threads where the VM has them; null for daemon threads
+    */
+   public static SqlFsAsync create(String dbPath, Context ctxt, SqlFsOptions options,
+		                           int readerCount, ThreadFactory threadFactory)
+   {
+      return create(dbPath, new SimpleFileData(), ctxt, options, readerCount, threadFactory);
+   }
+
+   public static SqlFsAsync create(String dbPath, IFileData dummyInst, Context ctxt,
+		                           SqlFsOptions options, int readerCount, ThreadFactory threadFactory)
+   {
+      SqlFsErrCode.setCurrentError(FsErr.OK);
+
+      if (dbPath == null) {
+         SqlFsErrCode.setCurrentError(FsErr.CannotOpenDB);
+         return null;
+      }
+
+      return new SqlFsAsync(dbPath, dummyInst, ctxt, options, Math.max(readerCount, 0), threadFactory);
+   }
+
+   private SqlFsAsync(String dbPath, IFileData dummyInst, Context ctxt, SqlFsOptions options,
+		              int readerCount, ThreadFactory threadFactory)
+   {
+      this.dbPath = dbPath;
+      this.dummyInst = dummyInst;
+      this.ctxt = ctxt;
+      this.options = options;
+
+      writeQueue = new LinkedBlockingQueue<Runnable>();
+      writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, writeQueue,
+                                      new WorkerFactory(threadFactory, "SqlFsAsync-writer"));
+      if (readerCount == 0)
+         readers = writer;
+      else
+         readers = new ThreadPoolExecutor(readerCount, readerCount, 0, TimeUnit.MILLISECONDS,
+                                          new LinkedBlockingQueue<Runnable>(),
+                                          new WorkerFactory(threadFactory, "SqlFsAsync-reader"));
+   }
+
+   /**
+    *  Creates threads which close their SqlFs when they end
+    */
+   private class WorkerFactory implements ThreadFactory
+   {
+      private ThreadFactory threadFactory;
+      private String name;
+      private AtomicInteger count = new AtomicInteger(0);
+
+      WorkerFactory(ThreadFactory threadFactory, String name)
+      {
+         this.threadFactory = threadFactory;
+         this.name = name;
+      }
+
+      public Thread newThread(final Runnable r)
+      {
+         Runnable worker = new Runnable() {
+            public void run() {
+               try {
+                  r.run();
+               }
+               finally {
+                  closeFs();
+               }
+            }
+         };
+
+         if (threadFactory != null)
+            return threadFactory.newThread(worker);
+
+         Thread t = new Thread(worker, name + "-" + count.incrementAndGet());
+         t.setDaemon(true);
+         return t;
+      }
+   }
+
+   /**
+    *  @return SqlFs of the running thread, null if the DB can't be opened
+    */
+   private SqlFs getFs()
+   {
+      SqlFs fs = threadFs.get();
+      if (fs == null) {
+         fs = SqlFs.create(dbPath, dummyInst, ctxt, new AtomicBoolean(false), options);
+         if (fs != null && SqlFsErrCode.getLastError() == FsErr.CannotOpenDB) {
+            fs.close();   // not opened, tried again by the next operation
+            fs = null;
+            SqlFsErrCode.setCurrentError(FsErr.CannotOpenDB);
+         }
+         if (fs != null)
+            threadFs.set(fs);
+      }
+
+      return fs;
+   }
+
+   private void closeFs()
+   {
+      SqlFs fs = threadFs.get();
+      if (fs != null) {
+         threadFs.remove();
+         fs.close();
+      }
+   }
+
+   /**
+    *  Enable group commit of saveFileData() and delete()
+    *
+    *  @param [in] maxSize -- most operations committed together, 1 to disable (default)
+    *  @param [in] windowMs -- how long the writer waits for more operations to join a group,
+    *                          0 to group only those already queued (no extra latency)
+    */
+   public void setGroupCommit(int maxSize, long windowMs)
+   {
+      maxGroupSize = Math.max(maxSize, 1);
+      groupWindowNs = Math.max(windowMs, 0) * 1000000L;
+   }
+
+   /**
+    *  Run an operation on the running thread, called by SqlFsFuture
+    */
+   <T> T runTask(SqlFsFuture<T> future, IFsTask<T> task) throws Exception
+   {
+      SqlFs fs = getFs();
+      if (fs == null) {
+         // error code CannotOpenDB is kept by the future
+         throw new IllegalStateException("cannot open database " + dbPath);
+      }
+
+      if (future.isGroupable() && maxGroupSize > 1)
+         return runGroup(fs, future);
+
+      SqlFsErrCode.setCurrentError(FsErr.OK);
+      return task.run(fs);
+   }
+
+   /**
+    *  Run 'leader' (by the writer) with the groupable operations queued after it in one
+    *  batch. If the batch fails, e.g. one operation fails, it is rolled back and each
+    *  operation is run again on its own, so the others still succeed.
+    *
+    *  @return result of 'leader', the futures of others are completed here
+    */
+   private <T> T runGroup(SqlFs fs, SqlFsFuture<T> leader) throws Exception
+   {
+      ArrayList<SqlFsFuture<?>> group = new ArrayList<SqlFsFuture<?>>();
+      group.add(leader);
+
+      int maxSize = maxGroupSize;
+      long deadline = System.nanoTime() + groupWindowNs;
+      while (group.size() < maxSize) {
+         Runnable r = writeQueue.peek();
+         if (r == null && (r = waitForWrite(deadline)) == null)
+            break;
+
+         // one not groupable is left in the queue, run after 'leader' is completed
+         if (!(r instanceof SqlFsFuture<?>) || !((SqlFsFuture<?>)r).isGroupable())
+            break;
+
+         writeQueue.poll();   // 'r', only the writer takes from the queue
+         // cancelled by the caller, skipped as FutureTask.run() would
+         if (!((SqlFsFuture<?>)r).isCancelled())
+            group.add((SqlFsFuture<?>)r);
+      }
+
+      try {
+         if (group.size() == 1 || !commitGroup(fs, group)) {
+            for (SqlFsFuture<?> f : group)
+               f.runInGroup(fs);
+         }
+      }
+      catch (RuntimeException e) {
+         // e.g. the commit failed (disk full, I/O error), nothing of the group is known to be saved
+         for (SqlFsFuture<?> f : group)
+            f.failGroup(e);
+      }
+      finally {
+         // every future is completed, whatever happens above
+         for (int i = 1; i < group.size(); ++i)
+            group.get(i).completeGroup();
+      }
+
+      return leader.getGroupResult();
+   }
+
+   /**
+    *  Wait until an operation is queued for the writer, without taking it
+    *
+    *  @return the operation at the head of the queue, null if none until 'deadline'
+    */
+   private Runnable waitForWrite(long deadline)
+   {
+      synchronized (writeSignal) {
+         Runnable r;
+         while ((r = writeQueue.peek()) == null) {
+            long waitNs = deadline - System.nanoTime();
+            if (waitNs <= 0)
+               return null;
+
+            try {
+               writeSignal.wait(waitNs / 1000000L, (int)(waitNs % 1000000L));
+            }
+            catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               return null;
+            }
+         }
+         return r;
+      }
+   }
+
+   /**
+    *  @return false if rolled back
+    *
+    *  @throws RuntimeException if the commit fails
+    */
+   private boolean commitGroup(SqlFs fs, ArrayList<SqlFsFuture<?>> group)
+   {
+      SqlFsBatch batch = fs.beginBatch();
+      if (batch == null)
+         return false;
+
+      boolean isOK = true;
+      try {
+         for (SqlFsFuture<?> f : group) {
+            f.runInGroup(fs);
+
+            // the batch is certain to be rolled back, run the rest on their own
+            if (f.isGroupFailed() || batch.getFailedCount() > 0) {
+               isOK = false;
+               break;
+            }
+         }
+      }
+      finally {
+         if (isOK)
+            isOK = batch.commit();
+         else
+            batch.rollback();
+      }
+
+      return isOK;
+   }
+
+   private <T> SqlFsFuture<T> submit(ExecutorService executor, IFsTask<T> task, IFsTaskCallback<T> callback,
+		                             boolean isGroupable)
+   {
+      SqlFsErrCode.setCurrentError(FsErr.OK);
+
+      SqlFsFuture<T> future = new SqlFsFuture<T>(task, this, callback);
+      if (isGroupable)
+         future.setGroupable();
+      try {
+         executor.execute(future);
+      }
+      catch (RejectedExecutionException e) {
+         SqlFsErrCode.setCurrentError(FsErr.AsyncClosed);
+         return null;
+      }
+
+      // the writer may be waiting for more operations to join a group
+      if (executor == writer && groupWindowNs > 0) {
+         synchronized (writeSignal) {
+            writeSignal.notifyAll();
+         }
+      }
+
+      return future;
+   }
+
+   /**
+    *  Run an operation changing the DB on the writer thread, after all operations
+    *  submitted by submitWrite() before it
+    *
+    *  @param [in] callback -- null if none
+    *
+    *  @return null if closed
+    */
+   public <T> SqlFsFuture<T> submitWrite(IFsTask<T> task, IFsTaskCallback<T> callback)
+   {
+      return submit(writer, task, callback, false);
+   }
+
+   /**
+    *  Run an operation only reading the DB on a reader thread. It may run before
+    *  operations submitted earlier by submitWrite() are done.
+    *
+    *  @param [in] callback -- null if none
+    *
+    *  @return null if closed
+    */
+   public <T> SqlFsFuture<T> submitRead(IFsTask<T> task, IFsTaskCallback<T> callback)
+   {
+      return submit(readers, task, callback, false);
+   }
+
+   //////////////////////////FS operations ///////////////////////////////////
+
+   public SqlFsFuture<Boolean> exists(final String path, IFsTaskCallback<Boolean> callback)
+   {
+      return submitRead(new IFsTask<Boolean>() {
+         public Boolean run(SqlFs fs) {
+            return fs.exists(path);
+         }
+      }, callback);
+   }
+
+   /**
+    *  @param [in] filePath -- absolute path of the file
+    *  @param [in] fileData -- filled when the future is done
+    */
+   public SqlFsFuture<Boolean> getFileData(final String filePath, final IFileData fileData,
+		                                   IFsTaskCallback<Boolean> callback)
+   {
+      return submitRead(new IFsTask<Boolean>() {
+         public Boolean run(SqlFs fs) {
+            SqlFile file = fs.getFile(filePath);
+            return (file != null && file.getFileData(fileData));
+         }
+      }, callback);
+   }
+
+   /**
+    *  Save data of a file, the file is added if its dir exists but it doesn't
+    *
+    *  @param [in] filePath -- absolute path of the file
+    */
+   public SqlFsFuture<Boolean> saveFileData(final String filePath, final IFileData fileData,
+		                                    IFsTaskCallback<Boolean> callback)
+   {
+      return submit(writer, new IFsTask<Boolean>() {
+         public Boolean run(SqlFs fs) {
+            return saveOrAddFile(fs, filePath, fileData);
+         }
+      }, callback, true);
+   }
+
+   /**
+    *  Delete a file or a dir with all its contents
+    *
+    *  @param [in] path -- absolute path of the file or dir
+    */
+   public SqlFsFuture<Boolean> delete(final String path, IFsTaskCallback<Boolean> callback)
+   {
+      return submit(writer, new IFsTask<Boolean>() {
+         public Boolean run(SqlFs fs) {
+            SqlFsNode node = fs.getFsNode(path);
+            return (node != null && node.delete());
+         }
+      }, callback, true);
+   }
+
+   /**
+    *  Add (if needed) and save the file in one batch, so a file is not left empty
+    *  if saving fails. In a group commit, the group is that batch.
+    */
+   static boolean saveOrAddFile(SqlFs fs, String filePath, IFileData fileData)
+   {
+      SqlFile file = fs.getFile(filePath);
+      if (file != null)
+         return file.saveFileData(fileData);
+
+      int p = (filePath == null) ? -1 : filePath.lastIndexOf(SqlFsConst.PATHSEP);
+      if (p < 0) {
+         SqlFsErrCode.setCurrentError(FsErr.MustUseAbsolutePath);
+         return false;
+      }
+
+      SqlFsBatch batch = null;
+      if (!fs.isInBatch()) {
+         batch = fs.beginBatch();
+         if (batch == null)
+            return false;
+      }
+
+      boolean isOK = false;
+      try {
+         SqlDir dir = (p == 0) ? fs.getRootDir() : fs.getDir(filePath.substring(0, p));
+         file = (dir == null) ? null : dir.addFile(filePath.substring(p + 1));
+         isOK = (file != null && file.saveFileData(fileData));
+      }
+      finally {
+         if (batch != null) {
+            if (isOK)
+               isOK = batch.commit();
+            else
+               batch.rollback();   // keeps the error code of the failed step
+         }
+      }
+
+      return isOK;
+   }
+
+   //////////////////////////Close ///////////////////////////////////////////
+
+   /**
+    *  Run operations submitted so far, then end all threads (each closing its SqlFs).
+    *  Must not be called by an operation or a callback.
+    */
+   public void close()
+   {
+      writer.shutdown();
+      readers.shutdown();
+
+      try {
+         while (!writer.awaitTermination(1, TimeUnit.SECONDS)) { }
+         while (!readers.awaitTermination(1, TimeUnit.SECONDS)) { }
+      }
+      catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    *  Same as close()
+    */
+   public void dispose()
+   {
+      close();
+   }
+}
@@ -0,0 +1,216 @@
+package com.sss.sqlfs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.sss.sqlfs.SqlFsErrCode.FsErr;
+import com.sss.sqlfs.helper.*;
+
+/**
+ *  A group of FS operations run in one transaction, returned by SqlFs.beginBatch()
+ *
+ *  e.g.
+ *     SqlFsBatch batch = fs.beginBatch();
+ *     try {
+ *        dir.addFile("a.txt").saveFileData(fd);
+ *        ...
+ *     }
+ *     finally {
+ *        isOK = batch.commit();
+ *     }
+ *
+ *  The exclusive lock of the DB is held until commit() or rollback(), so other threads
+ *  (and other SqlFs on the same DB) wait for the batch. Operations must be called by the
+ *  thread which begins the batch. A thread may have batches on different DBs at the same 
+ *  time, but only one on each DB file.
+ *
+ *  All or nothing: if any operation fails, commit() rolls back all of them. The error
+ *  code of each operation changing the DB (add, save, rename, move, delete, ...) is kept, 
+ *  see getError().
+ */
+public class SqlFsBatch implements IDisposable
+{
+   //! batches of each thread, by connection
+   private static ThreadLocal<HashMap<SQLiteDatabase, SqlFsBatch>> threadLocalBatches = 
+                  new ThreadLocal<HashMap<SQLiteDatabase, SqlFsBatch>>();
+
+   /**
+    *  Get current batch of a DB in this thread
+    *
+    *  @return null if no batch
+    */
+   static SqlFsBatch getBatch(SQLiteDatabase db)
+   {
+      HashMap<SQLiteDatabase, SqlFsBatch> batches = threadLocalBatches.get();
+      return (batches == null) ? null : batches.get(db);
+   }
+
+   /**
+    *  @return true if this thread has a batch on the DB of 'fsLocker', by any connection
+    */
+   static boolean hasBatch(SqlFsLocker fsLocker)
+   {
+      HashMap<SQLiteDatabase, SqlFsBatch> batches = threadLocalBatches.get();
+      if (batches == null)
+         return false;
+
+      for (SqlFsBatch batch : batches.values()) {
+         if (batch.fsLocker == fsLocker)
+            return true;
+      }
+      return false;
+   }
+
+   private SQLiteDatabase db;
+   private SqlFsLocker fsLocker;
+   private int depth = 0;                ///< nesting of transactions of operations
+   private ArrayList<FsErr> opErrors;    ///< error code of each operation
+   private int failedCount = 0;
+   private boolean isEnded = false;      ///< committed or rolled back
+
+   SqlFsBatch(SQLiteDatabase db, SqlFsLocker fsLocker)
+   {
+      this.db = db;
+      this.fsLocker = fsLocker;
+      this.opErrors = new ArrayList<FsErr>();
+   }
+
+   /**
+    *  Get lock and begin transaction, called by SqlFs.beginBatch()
+    */
+   void begin()
+   {
+      fsLocker.getFsLock(IFsMetrics.FSOP.BATCH);
+      db.beginTransaction();
+
+      HashMap<SQLiteDatabase, SqlFsBatch> batches = threadLocalBatches.get();
+      if (batches == null) {
+         batches = new HashMap<SQLiteDatabase, SqlFsBatch>();
+         threadLocalBatches.set(batches);
+      }
+      batches.put(db, this);
+   }
+
+   /**
+    *  Called when an operation (or operation nested in it) begins its transaction
+    */
+   void opBegin()
+   {
+      ++depth;
+   }
+
+   /**
+    *  Called when an operation (or operation nested in it) ends its transaction
+    */
+   void opEnd(boolean isSuccess)
+   {
+      if (--depth > 0)
+         return;
+
+      // an operation called directly in the batch
+      if (isSuccess) {
+         opErrors.add(FsErr.OK);
+      }
+      else {
+         FsErr err = SqlFsErrCode.getLastError();
+         opErrors.add((err == FsErr.OK) ? FsErr.BatchOpFailed : err);
+         ++failedCount;
+      }
+   }
+
+   /**
+    *  @return number of operations run so far
+    */
+   public int getOpCount()
+   {
+      return opErrors.size();
+   }
+
+   /**
+    *  @return number of operations failed
+    */
+   public int getFailedCount()
+   {
+      return failedCount;
+   }
+
+   /**
+    *  @param [in] opIndex -- 0 for the first operation
+    *
+    *  @return error code of an operation, FsErr.OK if succeeded
+    */
+   public FsErr getError(int opIndex)
+   {
+      return opErrors.get(opIndex);
+   }
+
+   /**
+    *  Commit all operations, or roll back all of them if any one failed
+    *
+    *  @return true if committed
+    */
+   public boolean commit()
+   {
+      if (isEnded)
+         return false;
+
+      boolean isOK = (failedCount == 0);
+      end(isOK);
+
+      if (!isOK)
+         SqlFsErrCode.setCurrentError(FsErr.BatchRolledBack);
+      return isOK;
+   }
+
+   /**
+    *  Roll back all operations
+    */
+   public void rollback()
+   {
+      if (isEnded)
+         return;
+
+      end(false);
+   }
+
+   /**
+    *  Same as rollback() if not committed yet
+    */
+   public void dispose()
+   {
+      rollback();
+   }
+
+   private void end(boolean isSuccess)
+   {
+      isEnded = true;
+      HashMap<SQLiteDatabase, SqlFsBatch> batches = threadLocalBatches.get();
+      if (batches != null && batches.get(db) == this) {
+         batches.remove(db);
+         if (batches.isEmpty())
+            threadLocalBatches.remove();
+      }
+
+      try {
+         if (isSuccess)
+            db.setTransactionSuccessful();
+         if (SqlFsOpTrace.isEnabled()) {
+            long startTime = System.nanoTime();
+            db.endTransaction();
+            SqlFsOpTrace.addCommitTime(System.nanoTime() - startTime);
+         }
+         else {
+            db.endTransaction();
+         }
+
+         // paths found in the batch may be gone
+         if (!isSuccess)
+            fsLocker.getPathCache().clear();
+      }
+      finally {
+         fsLocker.dispose();
+      }
+   }
+}
@@ -0,0 +1,107 @@
+package com.sss.sqlfs;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ *  Registry of codecs compressing file data, each chunk (ChunkedFileData) or DataBlock 
+ *  entry (SimpleFileData) is encoded on its own and the codec ID is saved with it.
+ *
+ *  Data smaller than MINSIZE, or not becoming smaller by 1/8 when encoded, are saved as 
+ *  they are (codec NONE). Sizes reported (file size, getDataSizeInByte) are always the
+ *  sizes before encoding.
+ *
+ *  e.g. to use your own codec (say, LZ4) for all new data:
+ *     SqlFsCodec.register(new MyLz4Codec());   // getID() returns SqlFsCodec.USERID
+ *     SqlFsCodec.setDefault(SqlFsCodec.get(SqlFsCodec.USERID));
+ */
+public class SqlFsCodec
+{
+   public static final int NONE = 0;        ///< saved as it is
+   public static final int DEFLATE = 1;     ///< DeflateCodec
+   public static final int USERID = 16;     ///< first ID for codecs not built in
+   public static final int MAXID = 127;
+
+   //! min. size of data to be encoded
+   public static final int MINSIZE = 256;
+
+   private static HashMap<Integer, IFsCodec> codecTable = new HashMap<Integer, IFsCodec>();
+   private static IFsCodec defaultCodec;
+
+   static {
+      defaultCodec = new DeflateCodec();
+      codecTable.put(DEFLATE, defaultCodec);
+   }
+
+   private SqlFsCodec() { }
+
+   /**
+    *  Register a codec, replacing the one with the same ID
+    */
+   public static synchronized void register(IFsCodec codec)
+   {
+      int id = codec.getID();
+      if (id <= NONE || id > MAXID)
+         throw new IllegalArgumentException("codec ID out of range: " + id);
+
+      codecTable.put(id, codec);
+   }
+
+   /**
+    *  @return null if not registered
+    */
+   public static synchronized IFsCodec get(int id)
+   {
+      return codecTable.get(id);
+   }
+
+   /**
+    *  Codec used for new data unless set by ChunkedFileData.setCodec() or SimpleFileData.setCodec()
+    */
+   public static synchronized IFsCodec getDefault()
+   {
+      return defaultCodec;
+   }
+
+   /**
+    *  @param [in] codec -- a registered codec, null to save data as they are
+    */
+   public static synchronized void setDefault(IFsCodec codec)
+   {
+      defaultCodec = codec;
+   }
+
+   /**
+    *  Encode data if worth it
+    *
+    *  @param [in] codec -- null for no encoding
+    *
+    *  @return encoded data, null if the data should be saved as they are
+    */
+   static byte[] encode(IFsCodec codec, byte[] data)
+   {
+      if (codec == null || data == null || data.length < MINSIZE)
+         return null;
+
+      byte[] encoded = codec.encode(data);
+      if (encoded == null || encoded.length > data.length - data.length / 8)
+         return null;    // incompressible
+
+      return encoded;
+   }
+
+   /**
+    *  Decode data saved with a codec ID
+    */
+   static byte[] decode(int codecID, byte[] data) throws IOException
+   {
+      if (codecID == NONE || data == null)
+         return data;
+
+      IFsCodec codec = get(codecID);
+      if (codec == null)
+         throw new IOException("codec not registered: " + codecID);
+
+      return codec.decode(data);
+   }
+}
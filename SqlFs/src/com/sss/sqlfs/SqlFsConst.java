@@ -37,13 +37,6 @@ public class SqlFsConst
       
    };
 
-   enum FSOP
-   {
-      ADD,
-      REPLACE,
-      DEL
-   };
-   
    static final int TRUE = 1;
    static final int FALSE = 0;
 
@@ -74,5 +67,28 @@ public class SqlFsConst
    // default fs label
    static final String DEFFSLABEL = "SQLFS";
    
+   // format of DB, saved in FsInfo
+   //   0 -- child IDs of a dir are kept in its fsChild
+   //   1 -- children of a dir are found by fsParent (FORMATVER_CHILDBYPARENT)
+   //   2 -- table DataChunk added for ChunkedFileData (FORMATVER_DATACHUNK)
+   //   3 -- data blocks are shared by files with the same content, see table DataRef (FORMATVER_DATAREF)
+   //   4 -- chunks are encoded, column chunkCodec added to DataChunk (FORMATVER_CHUNKCODEC)
+   //   5 -- absolute path of each node is kept in fsPath of FsBlock (FORMATVER_PATH)
+   static final int FORMATVER_CHILDBYPARENT = 1;
+   static final int FORMATVER_DATACHUNK = 2;
+   static final int FORMATVER_DATAREF = 3;
+   static final int FORMATVER_CHUNKCODEC = 4;
+   static final int FORMATVER_PATH = 5;
+   static final int FORMATVER = FORMATVER_PATH;
+   
+   // default max. number of entries in path cache
+   static final int PATHCACHESIZE = 4096;
+   
+   // size of a chunk of ChunkedFileData, well below the size of a cursor window
+   public static final int CHUNKSIZE = 64 * 1024;
+   
+   // chunks kept by SqlFileOutputStream and written in one transaction
+   static final int STREAMCHUNKS = 8;
+   
 
 }
@@ -0,0 +1,331 @@
+package com.sss.sqlfs;
+
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import com.sss.sqlfs.helper.SqlStr;
+
+/**
+ *  Reference count and content hash of each data block, kept in table "DataRef".
+ *
+ *  Files with the same content share one data block: a data block is looked up by the
+ *  hash of its content before a new one is written, and it is deleted only when the
+ *  last file referring to it is gone. A shared data block is never changed in place,
+ *  the file is switched to a new one instead (copy-on-write).
+ *
+ *  Hash is NULL for data block changed in place by random access, which is then never
+ *  shared by saving the same content.
+ *
+ *  Reference count is 0 for data block being written by SqlFileOutputStream, which is
+ *  not used by any file until the stream is closed. Such a block left by a stream never
+ *  closed is deleted when the DB is opened (see deleteAllPending).
+ */
+class SqlFsDataRef
+{
+   static final String TABNAME = "DataRef";
+   private static final String IDXNAME = "DataRefHashIdx";
+
+   enum DATAREF
+   {
+      dID,          ///< ID of the DataBlock entry
+      dHash,        ///< hash of content, NULL if unknown
+      dRefCount     ///< number of files referring to it, 0 if pending
+   };
+
+   private static final String[][] colDataRef = new String[][] {
+                      new String[]{DATAREF.dID.toString(), "integer primary key"},
+                      new String[]{DATAREF.dHash.toString(), "blob"},
+                      new String[]{DATAREF.dRefCount.toString(), "integer"}
+                                                               };
+
+   // hash of content, prefixed by how the content is saved
+   private static final String HASHALGORITHM = "SHA-256";
+   static final String HASHOFVALUES = "values";   ///< DataBlock columns of IFileData
+   static final String HASHOFCHUNKS = "chunks";   ///< ChunkedFileData
+
+   private static final String SQLADD = "INSERT OR REPLACE INTO " + TABNAME + " (" +
+                                        DATAREF.dID.toString() + ", " +
+                                        DATAREF.dHash.toString() + ", " +
+                                        DATAREF.dRefCount.toString() + ") VALUES (?, ?, 1)";
+   private static final String SQLADDPENDING = "INSERT OR REPLACE INTO " + TABNAME + " (" +
+                                               DATAREF.dID.toString() + ", " +
+                                               DATAREF.dRefCount.toString() + ") VALUES (?, 0)";
+   // every data block of an older DB is used by one file
+   private static final String SQLADDALL = "INSERT OR IGNORE INTO " + TABNAME + " (" +
+                                           DATAREF.dID.toString() + ", " +
+                                           DATAREF.dRefCount.toString() + ") SELECT " +
+                                           IFileData.IDCOL + ", 1 FROM " + IFileData.DTABLENAME;
+   private static final String SQLFIND = SqlStr.genSelect(TABNAME, new String[]{DATAREF.dID.toString()},
+                                                          DATAREF.dHash.toString()) + " LIMIT 1";
+   private static final String SQLGETCOUNT = SqlStr.genSelect(TABNAME, new String[]{DATAREF.dRefCount.toString()},
+                                                              DATAREF.dID.toString());
+   private static final String SQLADDREF = "UPDATE " + TABNAME + " SET " + DATAREF.dRefCount.toString() + " = " +
+                                           DATAREF.dRefCount.toString() + " + 1 WHERE " +
+                                           DATAREF.dID.toString() + " = ?";
+   private static final String SQLDELREF = "UPDATE " + TABNAME + " SET " + DATAREF.dRefCount.toString() + " = " +
+                                           DATAREF.dRefCount.toString() + " - 1 WHERE " +
+                                           DATAREF.dID.toString() + " = ?";
+   private static final String SQLSETHASH = SqlStr.genUpdate(TABNAME, new String[]{DATAREF.dHash.toString()},
+                                                             DATAREF.dID.toString());
+   private static final String SQLDELETE = SqlStr.genDelete(TABNAME, DATAREF.dID.toString());
+   private static final String SQLCOMMITPENDING = "UPDATE " + TABNAME + " SET " + DATAREF.dHash.toString() + " = ?, " +
+                                                  DATAREF.dRefCount.toString() + " = 1 WHERE " +
+                                                  DATAREF.dID.toString() + " = ?";
+   // data blocks of streams never closed
+   private static final String SELPENDING = "SELECT " + DATAREF.dID.toString() + " FROM " + TABNAME + " WHERE " +
+                                            DATAREF.dRefCount.toString() + " = 0";
+   private static final String SQLDELPENDINGCHUNKS = "DELETE FROM " + ChunkedFileData.CTABLENAME + " WHERE " +
+                                                     ChunkedFileData.DATACHUNK.dID.toString() + " IN (" + SELPENDING + ")";
+   private static final String SQLDELPENDINGDATA = "DELETE FROM " + IFileData.DTABLENAME + " WHERE " +
+                                                   IFileData.IDCOL + " IN (" + SELPENDING + ")";
+   private static final String SQLDELPENDING = "DELETE FROM " + TABNAME + " WHERE " +
+                                               DATAREF.dRefCount.toString() + " = 0";
+
+   private SqlFsDataRef() { }
+
+   /**
+    *  Create table, called when the DB is created or upgraded
+    */
+   static void createTable(SQLiteDatabase db)
+   {
+      db.execSQL(SqlStr.genCreateTable(TABNAME, colDataRef));
+      db.execSQL(SqlStr.genCreateIndex(IDXNAME, TABNAME, false, new String[]{DATAREF.dHash.toString()}));
+   }
+
+   /**
+    *  Add entries of all data blocks of an older DB
+    */
+   static void addAll(SQLiteDatabase db)
+   {
+      db.execSQL(SQLADDALL);
+   }
+
+   /**
+    *  Add the entry of a new data block, used by one file
+    *
+    *  @param [in] hash -- can be null
+    */
+   static void add(SQLiteDatabase db, FsID dataBlockID, byte[] hash)
+   {
+      SQLiteStatement stmt = SqlFsStmtCache.getCache(db).getStatement(SQLADD);
+      stmt.bindLong(1, dataBlockID.getVal());
+      if (hash != null)
+         stmt.bindBlob(2, hash);
+      SqlFsExec.execute(db, stmt, SQLADD);
+   }
+
+   /**
+    *  Add the entry of a new data block being written, used by no file yet
+    */
+   static void addPending(SQLiteDatabase db, FsID dataBlockID)
+   {
+      SQLiteStatement stmt = SqlFsStmtCache.getCache(db).getStatement(SQLADDPENDING);
+      stmt.bindLong(1, dataBlockID.getVal());
+      SqlFsExec.execute(db, stmt, SQLADDPENDING);
+   }
+
+   /**
+    *  A pending data block is used by the file, set its hash as well
+    *
+    *  @param [in] hash -- can be null
+    */
+   static void commitPending(SQLiteDatabase db, FsID dataBlockID, byte[] hash)
+   {
+      SQLiteStatement stmt = SqlFsStmtCache.getCache(db).getStatement(SQLCOMMITPENDING);
+      if (hash != null)
+         stmt.bindBlob(1, hash);
+      stmt.bindLong(2, dataBlockID.getVal());
+      SqlFsExec.execute(db, stmt, SQLCOMMITPENDING);
+   }
+
+   /**
+    *  Delete all pending data blocks, called when the DB is opened and no other
+    *  SqlFs of the process is using it
+    */
+   static void deleteAllPending(SQLiteDatabase db)
+   {
+      db.execSQL(SQLDELPENDINGCHUNKS);
+      db.execSQL(SQLDELPENDINGDATA);
+      db.execSQL(SQLDELPENDING);
+   }
+
+   /**
+    *  Find a data block by hash of its content
+    *
+    *  @return INVALIDID if not found
+    */
+   static FsID find(SQLiteDatabase db, byte[] hash)
+   {
+      if (hash == null)
+         return SqlFsConst.INVALIDID;
+
+      try {
+         SQLiteStatement stmt = SqlFsStmtCache.getCache(db).getStatement(SQLFIND);
+         stmt.bindBlob(1, hash);
+         return FsID.toFsID(SqlFsExec.simpleQueryForLong(db, stmt, SQLFIND));
+      }
+      catch (SQLiteDoneException e) {
+         return SqlFsConst.INVALIDID;
+      }
+   }
+
+   /**
+    *  @return number of files referring to a data block, 1 if no entry
+    */
+   static int getRefCount(SQLiteDatabase db, FsID dataBlockID)
+   {
+      try {
+         SQLiteStatement stmt = SqlFsStmtCache.getCache(db).getStatement(SQLGETCOUNT);
+         stmt.bindLong(1, dataBlockID.getVal());
+         return (int)SqlFsExec.simpleQueryForLong(db, stmt, SQLGETCOUNT);
+      }
+      catch (SQLiteDoneException e) {
+         return 1;
+      }
+   }
+
+   /**
+    *  @return true if a data block is used by more than one file
+    */
+   static boolean isShared(SQLiteDatabase db, FsID dataBlockID)
+   {
+      return getRefCount(db, dataBlockID) > 1;
+   }
+
+   /**
+    *  One more file refers to a data block
+    */
+   static void addRef(SQLiteDatabase db, FsID dataBlockID)
+   {
+      SqlFsStmtCache cache = SqlFsStmtCache.getCache(db);
+      SQLiteStatement stmt = cache.getStatement(SQLADDREF);
+      stmt.bindLong(1, dataBlockID.getVal());
+      SqlFsExec.execute(db, stmt, SQLADDREF);
+
+      if (cache.changes() == 0) {
+         // no entry, it has been used by one file
+         add(db, dataBlockID, null);
+         addRef(db, dataBlockID);
+      }
+   }
+
+   /**
+    *  A file no longer refers to a data block, which is deleted if it is the last one
+    */
+   static boolean release(SQLiteDatabase db, FsID dataBlockID)
+   {
+      try {
+         if (isShared(db, dataBlockID)) {
+            SQLiteStatement stmt = SqlFsStmtCache.getCache(db).getStatement(SQLDELREF);
+            stmt.bindLong(1, dataBlockID.getVal());
+            SqlFsExec.execute(db, stmt, SQLDELREF);
+            return true;
+         }
+
+         if (!SqlFs.deleteEntryByID(db, IFileData.SQLDELDATA, dataBlockID) ||
+             !ChunkedFileData.deleteChunks(db, dataBlockID))
+            return false;
+
+         SQLiteStatement stmt = SqlFsStmtCache.getCache(db).getStatement(SQLDELETE);
+         stmt.bindLong(1, dataBlockID.getVal());
+         SqlFsExec.execute(db, stmt, SQLDELETE);
+      }
+      catch (Exception e) {
+         SqlFsLog.debug(e);
+         return false;
+      }
+
+      return true;
+   }
+
+   /**
+    *  Set hash after content is saved, or clear it (null) if content is changed in place
+    */
+   static void setHash(SQLiteDatabase db, FsID dataBlockID, byte[] hash)
+   {
+      SQLiteStatement stmt = SqlFsStmtCache.getCache(db).getStatement(SQLSETHASH);
+      if (hash != null)
+         stmt.bindBlob(1, hash);
+      stmt.bindLong(2, dataBlockID.getVal());
+      SqlFsExec.execute(db, stmt, SQLSETHASH);
+   }
+
+   /**
+    *  @param [in] format -- HASHOFVALUES or HASHOFCHUNKS, same content saved in different
+    *                        ways never has the same hash
+    *
+    *  @return null if the algorithm is not available
+    */
+   static MessageDigest newDigest(String format)
+   {
+      try {
+         MessageDigest md = MessageDigest.getInstance(HASHALGORITHM);
+         md.update(format.getBytes("UTF-8"));
+         return md;
+      }
+      catch (Exception e) {
+         SqlFsLog.debug(e);
+         return null;
+      }
+   }
+
+   /**
+    *  Hash of DataBlock columns to be saved, in order of column names
+    *
+    *  @return null if the algorithm is not available
+    */
+   static byte[] hash(ContentValues values)
+   {
+      MessageDigest md = newDigest(HASHOFVALUES);
+      if (md == null)
+         return null;
+
+      TreeMap<String, Object> sorted = new TreeMap<String, Object>();
+      for (Map.Entry<String, Object> e : values.valueSet())
+         sorted.put(e.getKey(), e.getValue());
+
+      try {
+         for (Map.Entry<String, Object> e : sorted.entrySet()) {
+            Object val = e.getValue();
+            byte[] bytes;
+            char type;
+            if (val == null) {
+               type = 'N';
+               bytes = new byte[0];
+            }
+            else if (val instanceof byte[]) {
+               type = 'B';
+               bytes = (byte[])val;
+            }
+            else if (val instanceof String) {
+               type = 'S';
+               bytes = ((String)val).getBytes("UTF-8");
+            }
+            else {
+               type = 'V';
+               bytes = val.toString().getBytes("UTF-8");
+            }
+
+            // name, type and length before each value, so that values never run into each other
+            md.update(e.getKey().getBytes("UTF-8"));
+            md.update((byte)0);
+            md.update((byte)type);
+            md.update(Integer.toString(bytes.length).getBytes("UTF-8"));
+            md.update((byte)0);
+            md.update(bytes);
+         }
+      }
+      catch (Exception ex) {
+         SqlFsLog.debug(ex);
+         return null;
+      }
+
+      return md.digest();
+   }
+}
@@ -0,0 +1,363 @@
+package com.sss.sqlfs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ *  Diagnostic mode, set by SqlFs.setDiagnostics(). Each SQL statement run by an operation
+ *  (see IFsMetrics) is counted per operation, and
+ *     - a statement slower than the threshold is logged with its EXPLAIN QUERY PLAN
+ *     - a statement whose plan scans the whole FsBlock, DataBlock or DataChunk table
+ *       is logged the first time it runs
+ *  Both are also kept (up to MAXRECORDS each) for getSlowStmts() and getFullScans().
+ *
+ *  e.g.
+ *     SqlFsDiagnostics diag = new SqlFsDiagnostics(50);
+ *     fs.setDiagnostics(diag);
+ *     ...
+ *     for (SqlFsDiagnostics.StmtRecord r : diag.getFullScans())
+ *        Log.w(TAG, r.toString());
+ *
+ *  Each statement is timed and each new SQL is explained on the connection of the
+ *  operation, so it is for debugging and tests, not for production.
+ */
+public class SqlFsDiagnostics
+{
+   public static final long DEFSLOWMS = 100;      ///< default threshold of slow statements
+   public static final int MAXRECORDS = 100;      ///< slow statements/full scans kept
+   private static final int MAXPLANS = 1000;      ///< plans kept, each SQL is explained once
+
+   //! tables which must not be scanned in full
+   private static final String[] SCANTABLES = new String[] {
+      SqlFs.DBNAMES.FsBlock.toString(), IFileData.DTABLENAME, ChunkedFileData.CTABLENAME
+   };
+
+   /**
+    *  A statement logged
+    */
+   public static class StmtRecord
+   {
+      private final IFsMetrics.FSOP op;
+      private final String sql;
+      private final long timeNs;
+      private final String plan;
+
+      StmtRecord(IFsMetrics.FSOP op, String sql, long timeNs, String plan)
+      {
+         this.op = op;
+         this.sql = sql;
+         this.timeNs = timeNs;
+         this.plan = plan;
+      }
+
+      /**
+       *  @return operation running the statement
+       */
+      public IFsMetrics.FSOP getOp()
+      {
+         return op;
+      }
+
+      public String getSql()
+      {
+         return sql;
+      }
+
+      public long getTimeNs()
+      {
+         return timeNs;
+      }
+
+      /**
+       *  @return detail of each step of EXPLAIN QUERY PLAN, one per line; "" if not available
+       */
+      public String getPlan()
+      {
+         return plan;
+      }
+
+      /**
+       *  e.g. "GETFSNODE 1520us: SELECT ... \n   SCAN TABLE FsBlock"
+       */
+      public String toString()
+      {
+         return op.name() + " " + (timeNs / 1000) + "us: " + sql +
+                (plan.length() == 0 ? "" : "\n   " + plan.replace("\n", "\n   "));
+      }
+   }
+
+   private final long slowNs;
+   private volatile int maxStmtsPerOp = 0;
+   private final ConcurrentHashMap<String, String> planTable = new ConcurrentHashMap<String, String>();
+   private final List<StmtRecord> slowStmts = new ArrayList<StmtRecord>();
+   private final List<StmtRecord> fullScans = new ArrayList<StmtRecord>();
+   private final AtomicLongArray opCount;        ///< index is ordinal of FSOP
+   private final AtomicLongArray stmtCount;      ///< index is ordinal of FSOP
+   private final AtomicLongArray maxStmtCount;   ///< index is ordinal of FSOP
+
+   public SqlFsDiagnostics()
+   {
+      this(DEFSLOWMS);
+   }
+
+   /**
+    *  @param [in] slowMs -- statements taking this long or longer are logged
+    */
+   public SqlFsDiagnostics(long slowMs)
+   {
+      this.slowNs = Math.max(slowMs, 0) * 1000000L;
+
+      int n = IFsMetrics.FSOP.values().length;
+      opCount = new AtomicLongArray(n);
+      stmtCount = new AtomicLongArray(n);
+      maxStmtCount = new AtomicLongArray(n);
+   }
+
+   public long getSlowThresholdMs()
+   {
+      return slowNs / 1000000L;
+   }
+
+   /**
+    *  Log operations running more statements than 'count', 0 (default) to disable
+    */
+   public void setMaxStmtsPerOp(int count)
+   {
+      maxStmtsPerOp = Math.max(count, 0);
+   }
+
+   public int getMaxStmtsPerOp()
+   {
+      return maxStmtsPerOp;
+   }
+
+   /**
+    *  Number of operations done
+    */
+   public long getOpCount(IFsMetrics.FSOP op)
+   {
+      return opCount.get(op.ordinal());
+   }
+
+   /**
+    *  Total number of SQL statements run
+    */
+   public long getStmtCount(IFsMetrics.FSOP op)
+   {
+      return stmtCount.get(op.ordinal());
+   }
+
+   /**
+    *  Most SQL statements run by one operation
+    */
+   public long getMaxStmtCount(IFsMetrics.FSOP op)
+   {
+      return maxStmtCount.get(op.ordinal());
+   }
+
+   /**
+    *  @return statements slower than the threshold, oldest first
+    */
+   public List<StmtRecord> getSlowStmts()
+   {
+      synchronized (slowStmts) {
+         return new ArrayList<StmtRecord>(slowStmts);
+      }
+   }
+
+   /**
+    *  @return statements scanning FsBlock, DataBlock or DataChunk in full, one for each SQL
+    */
+   public List<StmtRecord> getFullScans()
+   {
+      synchronized (fullScans) {
+         return new ArrayList<StmtRecord>(fullScans);
+      }
+   }
+
+   /**
+    *  Clear all counts and records, full scans are reported again
+    */
+   public void reset()
+   {
+      for (int i = 0; i < opCount.length(); ++i) {
+         opCount.set(i, 0);
+         stmtCount.set(i, 0);
+         maxStmtCount.set(i, 0);
+      }
+
+      synchronized (slowStmts) {
+         slowStmts.clear();
+      }
+      synchronized (fullScans) {
+         fullScans.clear();
+      }
+      planTable.clear();
+   }
+
+   /**
+    *  One line for each type of operation done, e.g.
+    *
+    *  GETINFO ops=10 stmts=40 maxStmts=4
+    */
+   public String toString()
+   {
+      StringBuilder sb = new StringBuilder();
+      for (IFsMetrics.FSOP op : IFsMetrics.FSOP.values()) {
+         int i = op.ordinal();
+         if (opCount.get(i) == 0)
+            continue;
+
+         sb.append(op.name());
+         sb.append(" ops=").append(opCount.get(i));
+         sb.append(" stmts=").append(stmtCount.get(i));
+         sb.append(" maxStmts=").append(maxStmtCount.get(i));
+         sb.append('\n');
+      }
+
+      return sb.toString();
+   }
+
+   /**
+    *  Called by the thread running the operation when it ends, with the FS unlocked
+    */
+   void onOpDone(SqlFsOpStats stats)
+   {
+      int i = stats.getOp().ordinal();
+      int count = stats.getStmtCount();
+      opCount.incrementAndGet(i);
+      stmtCount.addAndGet(i, count);
+
+      long max;
+      while ((max = maxStmtCount.get(i)) < count && !maxStmtCount.compareAndSet(i, max, count)) { }
+
+      int limit = maxStmtsPerOp;
+      if (limit > 0 && count > limit)
+         SqlFsLog.debug(stats.getOp().name() + " ran " + count + " statements");
+   }
+
+   /**
+    *  Called after each statement of an operation, with the FS locked
+    *
+    *  @param [in] canExplain -- false if 'sql' is only a description of the statement
+    */
+   void onStmt(SQLiteDatabase db, IFsMetrics.FSOP op, String sql, long timeNs, boolean canExplain)
+   {
+      String plan = "";
+      if (canExplain) {
+         plan = planTable.get(sql);
+         if (plan == null) {
+            plan = explain(db, sql);
+            if (planTable.size() >= MAXPLANS)
+               planTable.clear();
+            planTable.put(sql, plan);
+
+            String table = getScannedTable(sql, plan);
+            if (table != null) {
+               StmtRecord r = new StmtRecord(op, sql, timeNs, plan);
+               addRecord(fullScans, r);
+               SqlFsLog.debug("full scan of " + table + " by " + r.toString());
+            }
+         }
+      }
+
+      if (timeNs >= slowNs) {
+         StmtRecord r = new StmtRecord(op, sql, timeNs, plan);
+         addRecord(slowStmts, r);
+         SqlFsLog.debug("slow SQL by " + r.toString());
+      }
+   }
+
+   private static void addRecord(List<StmtRecord> records, StmtRecord r)
+   {
+      synchronized (records) {
+         if (records.size() >= MAXRECORDS)
+            records.remove(0);
+         records.add(r);
+      }
+   }
+
+   /**
+    *  Run EXPLAIN QUERY PLAN, bound arguments are left NULL
+    *
+    *  @return detail of each step, one per line; "" if failed
+    */
+   private static String explain(SQLiteDatabase db, String sql)
+   {
+      StringBuilder sb = new StringBuilder();
+      Cursor c = null;
+      try {
+         c = db.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+         int detailIdx = c.getColumnIndex("detail");
+         if (detailIdx < 0)
+            detailIdx = c.getColumnCount() - 1;
+
+         while (c.moveToNext()) {
+            if (sb.length() > 0)
+               sb.append('\n');
+            sb.append(c.getString(detailIdx));
+         }
+      }
+      catch (Exception e) {
+         SqlFsLog.debug(e);
+      }
+      finally {
+         if (c != null)
+            c.close();
+      }
+
+      return sb.toString();
+   }
+
+   /**
+    *  A full scan is reported as a step of the plan like
+    *     - "TABLE FsBlock" or "TABLE FsBlock AS b" before SQLite 3.7.4 (Android 2.x), where
+    *       a step using an index has "WITH [AUTOMATIC] INDEX ..." or "USING PRIMARY KEY" after it
+    *     - "SCAN TABLE FsBlock" or "SCAN TABLE FsBlock AS b" up to SQLite 3.35
+    *     - "SCAN b" or "SCAN FsBlock USING COVERING INDEX ..." in newer ones
+    *  so an alias is resolved from 'sql'
+    *
+    *  @return name of the table in SCANTABLES which is scanned in full, null if none
+    */
+   static String getScannedTable(String sql, String plan)
+   {
+      for (String step : plan.split("\n")) {
+         String[] words = step.trim().split("\\s+");
+         if (words.length < 2)
+            continue;
+
+         String name;
+         if (words[0].equals("SCAN")) {
+            name = words[1];
+            if (name.equals("TABLE") && words.length > 2)
+               name = words[2];
+         }
+         else if (words[0].equals("TABLE") && step.indexOf(" WITH ") < 0 && 
+                  step.indexOf(" USING PRIMARY KEY") < 0) {
+            name = words[1];
+         }
+         else {
+            continue;
+         }
+
+         for (String table : SCANTABLES) {
+            if (table.equalsIgnoreCase(name))
+               return table;
+
+            Matcher m = Pattern.compile("\\b" + table + "\\s+(AS\\s+)?" + Pattern.quote(name) + "\\b",
+                                        Pattern.CASE_INSENSITIVE).matcher(sql);
+            if (m.find())
+               return table;
+         }
+      }
+
+      return null;
+   }
+}
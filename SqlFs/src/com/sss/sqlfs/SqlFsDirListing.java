@@ -0,0 +1,183 @@
+package com.sss.sqlfs;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.sss.sqlfs.SqlFsErrCode.FsErr;
+
+/**
+ *  Children of a dir fetched page by page in order of name, returned by SqlDir.listChildren().
+ *
+ *  e.g.
+ *     for (SqlFsNodeInfo entry : dir.listChildren(SqlFsConst.FSTYPE.FILE, 500, false))
+ *        total += entry.getFileSize();
+ *
+ *  Each entry is a snapshot of a row (name, type, size, times), no SqlFsNode is created.
+ *  Use SqlDir.getChild(entry.getName()) to get the node of an entry.
+ *
+ *  The read lock is held only while a page is fetched. A page starts after the last
+ *  entry of the previous page (by name and ID), so entries added or deleted by others
+ *  between pages never make it skip or repeat the others. If a page cannot be fetched,
+ *  the iteration ends and the error code is set.
+ */
+public class SqlFsDirListing implements Iterable<SqlFsNodeInfo>
+{
+   public static final int DEFAULTPAGESIZE = 256;
+
+   private SQLiteDatabase db;
+   private SqlFsLocker fsLocker;
+   private FsID dirID;
+   private SqlFsConst.FSTYPE type;
+   private int pageSize;
+   private String sqlFirstPage;
+   private String sqlNextPage;
+
+   /**
+    *  @param [in] type -- DIR, FILE or ANY
+    *  @param [in] pageSize -- number of entries fetched at once
+    *  @param [in] isDescending -- false for names in ascending order
+    */
+   SqlFsDirListing(SQLiteDatabase db, SqlFsLocker fsLocker, FsID dirID, SqlFsConst.FSTYPE type,
+                   int pageSize, boolean isDescending)
+   {
+      this.db = db;
+      this.fsLocker = fsLocker;
+      this.dirID = dirID;
+      this.type = type;
+      this.pageSize = (pageSize > 0) ? pageSize : DEFAULTPAGESIZE;
+      this.sqlFirstPage = genPageSql(false, isDescending);
+      this.sqlNextPage = genPageSql(true, isDescending);
+   }
+
+   /**
+    *  SELECT COLUMNS FROM FsBlock WHERE fsParent = ? [AND fsType = ?]
+    *     [AND fsName >= ? AND (fsName > ? OR fsID > ?)] ORDER BY fsName, fsID LIMIT ?
+    *
+    *  so that the index on (fsParent, fsName) is used for both filter and order
+    */
+   private String genPageSql(boolean isAfterLast, boolean isDescending)
+   {
+      String name = SqlFs.FSBLOCK.fsName.toString();
+      String id = SqlFs.FSBLOCK.fsID.toString();
+      String order = isDescending ? " DESC" : "";
+
+      StringBuilder sb = new StringBuilder("SELECT ");
+      for (int i = 0; i < SqlFsNodeInfo.COLUMNS.length; ++i) {
+         if (i > 0)
+            sb.append(", ");
+         sb.append(SqlFsNodeInfo.COLUMNS[i]);
+      }
+      sb.append(" FROM ").append(SqlFs.DBNAMES.FsBlock.toString());
+      sb.append(" WHERE ").append(SqlFs.FSBLOCK.fsParent.toString()).append(" = ?");
+      if (type != SqlFsConst.FSTYPE.ANY)
+         sb.append(" AND ").append(SqlFs.FSBLOCK.fsType.toString()).append(" = ?");
+      if (isAfterLast) {
+         String op = isDescending ? "<" : ">";
+         sb.append(" AND ").append(name).append(' ').append(op).append("= ?");
+         sb.append(" AND (").append(name).append(' ').append(op).append(" ? OR ");
+         sb.append(id).append(' ').append(op).append(" ?)");
+      }
+      sb.append(" ORDER BY ").append(name).append(order).append(", ").append(id).append(order);
+      sb.append(" LIMIT ").append(pageSize);
+
+      return sb.toString();
+   }
+
+   public Iterator<SqlFsNodeInfo> iterator()
+   {
+      return new PageIterator();
+   }
+
+   /**
+    *  Fetch a page, the read lock is held during the query only
+    *
+    *  @param [in] last -- last entry of previous page, null for the first page
+    *
+    *  @return null if error
+    */
+   private ArrayList<SqlFsNodeInfo> fetchPage(SqlFsNodeInfo last)
+   {
+      SqlFsErrCode.setCurrentError(FsErr.OK);
+
+      ArrayList<String> args = new ArrayList<String>(5);
+      args.add(dirID.toString());
+      if (type != SqlFsConst.FSTYPE.ANY)
+         args.add(Integer.toString(type.v()));
+      if (last != null) {
+         args.add(last.getName());
+         args.add(last.getName());
+         args.add(last.getID().toString());
+      }
+
+      fsLocker.getFsReadLock(IFsMetrics.FSOP.LIST);
+      Cursor c = null;
+      try {
+         c = SqlFsExec.rawQuery(db, (last == null) ? sqlFirstPage : sqlNextPage, args.toArray(new String[args.size()]));
+         ArrayList<SqlFsNodeInfo> page = new ArrayList<SqlFsNodeInfo>(c.getCount());
+         if (c.moveToFirst()) {
+            do {
+               page.add(SqlFsNodeInfo.getInfo(c));
+            } while (c.moveToNext());
+         }
+         return page;
+      }
+      catch (Exception e) {
+         SqlFsLog.debug(e);
+         SqlFsErrCode.setCurrentError(FsErr.NoEntryByName);
+         return null;
+      }
+      finally {
+         SqlFsFunc.close(c);
+         fsLocker.dispose();
+      }
+   }
+
+   private class PageIterator implements Iterator<SqlFsNodeInfo>
+   {
+      private ArrayList<SqlFsNodeInfo> page;   ///< current page, null if not fetched yet
+      private int pageIdx = 0;                 ///< next entry in 'page'
+      private boolean isEnd = false;
+
+      public boolean hasNext()
+      {
+         if (isEnd)
+            return false;
+
+         if (page != null && pageIdx < page.size())
+            return true;
+
+         // a page not full is the last one
+         if (page != null && page.size() < pageSize) {
+            isEnd = true;
+            return false;
+         }
+
+         SqlFsNodeInfo last = (page == null) ? null : page.get(page.size() - 1);
+         page = fetchPage(last);
+         pageIdx = 0;
+         if (page == null || page.isEmpty()) {
+            isEnd = true;
+            return false;
+         }
+
+         return true;
+      }
+
+      public SqlFsNodeInfo next()
+      {
+         if (!hasNext())
+            throw new NoSuchElementException();
+
+         return page.get(pageIdx++);
+      }
+
+      public void remove()
+      {
+         throw new UnsupportedOperationException();
+      }
+   }
+}
@@ -37,6 +37,17 @@ public class SqlFsErrCode
       GetFsInfoErr,
       WriteFsInfoErr,
       CannotAccessRoot,
+      DataNotChunked,
+      InvalidFileRange,
+      BatchOpFailed,
+      BatchRolledBack,
+      BatchAlreadyBegun,
+      CannotCollectSubtree,
+      OpCancelled,
+      CannotCopyToSubdir,
+      CannotCopyFsEntry,
+      CannotFind,
+      AsyncClosed,
    };
    
    private static ThreadLocal<FsErr> threadLocalFsErr = new ThreadLocal<FsErr>() 
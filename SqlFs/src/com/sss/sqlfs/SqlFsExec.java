@@ -0,0 +1,123 @@
+package com.sss.sqlfs;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ *  Runs the SQL of FS operations, so that each statement is counted for IFsMetrics and
+ *  timed for SqlFsDiagnostics. When neither is set, it is a check of SqlFsOpTrace only.
+ *
+ *  All SQL run while the FS lock is held must go through here; creating and upgrading
+ *  tables when a DB is opened does not.
+ */
+final class SqlFsExec
+{
+   private SqlFsExec() { }
+
+   /**
+    *  @param [in] sql -- SQL of 'stmt', for diagnostics
+    */
+   static void execute(SQLiteDatabase db, SQLiteStatement stmt, String sql)
+   {
+      if (!SqlFsOpTrace.addStmt()) {
+         stmt.execute();
+         return;
+      }
+
+      long start = System.nanoTime();
+      stmt.execute();
+      SqlFsOpTrace.stmtDone(db, sql, System.nanoTime() - start, true);
+   }
+
+   static long executeInsert(SQLiteDatabase db, SQLiteStatement stmt, String sql)
+   {
+      if (!SqlFsOpTrace.addStmt())
+         return stmt.executeInsert();
+
+      long start = System.nanoTime();
+      long rowID = stmt.executeInsert();
+      SqlFsOpTrace.stmtDone(db, sql, System.nanoTime() - start, true);
+      return rowID;
+   }
+
+   static long simpleQueryForLong(SQLiteDatabase db, SQLiteStatement stmt, String sql)
+   {
+      if (!SqlFsOpTrace.addStmt())
+         return stmt.simpleQueryForLong();
+
+      long start = System.nanoTime();
+      long val = stmt.simpleQueryForLong();
+      SqlFsOpTrace.stmtDone(db, sql, System.nanoTime() - start, true);
+      return val;
+   }
+
+   static String simpleQueryForString(SQLiteDatabase db, SQLiteStatement stmt, String sql)
+   {
+      if (!SqlFsOpTrace.addStmt())
+         return stmt.simpleQueryForString();
+
+      long start = System.nanoTime();
+      String val = stmt.simpleQueryForString();
+      SqlFsOpTrace.stmtDone(db, sql, System.nanoTime() - start, true);
+      return val;
+   }
+
+   /**
+    *  A cursor runs its query when first moved, so with diagnostics the query
+    *  is run here (by getCount()) to be timed
+    */
+   static Cursor rawQuery(SQLiteDatabase db, String sql, String[] args)
+   {
+      if (!SqlFsOpTrace.addStmt())
+         return db.rawQuery(sql, args);
+
+      long start = System.nanoTime();
+      Cursor c = db.rawQuery(sql, args);
+      if (c != null)
+         c.getCount();
+      SqlFsOpTrace.stmtDone(db, sql, System.nanoTime() - start, true);
+      return c;
+   }
+
+   static void execSQL(SQLiteDatabase db, String sql)
+   {
+      if (!SqlFsOpTrace.addStmt()) {
+         db.execSQL(sql);
+         return;
+      }
+
+      long start = System.nanoTime();
+      db.execSQL(sql);
+      SqlFsOpTrace.stmtDone(db, sql, System.nanoTime() - start, true);
+   }
+
+   /**
+    *  SQLiteDatabase.insert(), the SQL is generated by it, so there is no plan to diagnose
+    */
+   static long insert(SQLiteDatabase db, String table, ContentValues values)
+   {
+      if (!SqlFsOpTrace.addStmt())
+         return db.insert(table, null, values);
+
+      long start = System.nanoTime();
+      long rowID = db.insert(table, null, values);
+      SqlFsOpTrace.stmtDone(db, "INSERT INTO " + table, System.nanoTime() - start, false);
+      return rowID;
+   }
+
+   /**
+    *  SQLiteDatabase.update(), the SQL is generated by it, so there is no plan to diagnose
+    */
+   static int update(SQLiteDatabase db, String table, ContentValues values, String where, String[] args)
+   {
+      if (!SqlFsOpTrace.addStmt())
+         return db.update(table, values, where, args);
+
+      long start = System.nanoTime();
+      int count = db.update(table, values, where, args);
+      SqlFsOpTrace.stmtDone(db, "UPDATE " + table + " WHERE " + where, System.nanoTime() - start, false);
+      return count;
+   }
+}
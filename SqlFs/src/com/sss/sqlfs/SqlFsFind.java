@@ -0,0 +1,340 @@
+package com.sss.sqlfs;
+
+import java.util.ArrayList;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.sss.sqlfs.SqlFsErrCode.FsErr;
+
+/**
+ *  Find nodes under a dir by a glob of their paths, e.g. "logs/**\/*.json" relative to
+ *  the dir. Each segment is matched by GLOB of SQLite, "**" matches any number of dirs.
+ *
+ *  Nodes are collected with their paths into TEMP table "FindNode", one INSERT ... SELECT
+ *  per segment before "**" (matched while collecting, so only matching dirs are descended
+ *  into), then everything under the dirs matched so far by one INSERT ... SELECT on ranges
+ *  of the index on fsPath. The result is one SELECT on the collected nodes with the name
+ *  and filter conditions.
+ *
+ *  Statements on the TEMP table are not cached, the table is gone if the transaction
+ *  creating it is rolled back.
+ */
+class SqlFsFind
+{
+   static final String ANYDIRS = "**";
+
+   private static final String TABNAME = "FindNode";
+   private static final String IDXNAME = "FindNodeLevelIdx";
+
+   enum FINDNODE
+   {
+      id,         ///< fsID
+      level,      ///< 0 for the top dir
+      path        ///< absolute path, "" for root
+   };
+
+   private static final String SQLCREATE = "CREATE TEMP TABLE IF NOT EXISTS " + TABNAME + " (" +
+                                           FINDNODE.id.toString() + " integer primary key, " +
+                                           FINDNODE.level.toString() + " integer, " +
+                                           FINDNODE.path.toString() + " text)";
+   private static final String SQLCREATEIDX = "CREATE INDEX IF NOT EXISTS " + IDXNAME + " ON " + TABNAME +
+                                              " (" + FINDNODE.level.toString() + ")";
+   private static final String SQLCLEAR = "DELETE FROM " + TABNAME;
+   private static final String SQLADDTOP = "INSERT INTO " + TABNAME + " (" +
+                                           FINDNODE.id.toString() + ", " +
+                                           FINDNODE.level.toString() + ", " +
+                                           FINDNODE.path.toString() + ") VALUES (?, 0, ?)";
+   // children of all nodes of a level, the conditions on name and type are appended
+   private static final String SQLADDLEVEL = "INSERT OR IGNORE INTO " + TABNAME + " (" +
+                                             FINDNODE.id.toString() + ", " +
+                                             FINDNODE.level.toString() + ", " +
+                                             FINDNODE.path.toString() + ") SELECT b." +
+                                             SqlFs.FSBLOCK.fsID.toString() + ", ?, f." +
+                                             FINDNODE.path.toString() + " || '" + SqlFsConst.PATHSEP + "' || b." +
+                                             SqlFs.FSBLOCK.fsName.toString() + " FROM " +
+                                             SqlFs.DBNAMES.FsBlock.toString() + " b, " + TABNAME + " f WHERE f." +
+                                             FINDNODE.level.toString() + " = ? AND b." +
+                                             SqlFs.FSBLOCK.fsParent.toString() + " = f." + FINDNODE.id.toString();
+   // all nodes under the nodes of a level, level of a node is the level of the one it is under
+   // plus the difference of number of separators in their paths
+   private static final String SQLADDUNDER = "INSERT OR IGNORE INTO " + TABNAME + " (" +
+                                             FINDNODE.id.toString() + ", " +
+                                             FINDNODE.level.toString() + ", " +
+                                             FINDNODE.path.toString() + ") SELECT b." +
+                                             SqlFs.FSBLOCK.fsID.toString() + ", f." + FINDNODE.level.toString() +
+                                             " + " + countSeps("b." + SqlFs.FSBLOCK.fsPath.toString()) +
+                                             " - " + countSeps("f." + FINDNODE.path.toString()) + ", b." +
+                                             SqlFs.FSBLOCK.fsPath.toString() + " FROM " + TABNAME + " f, " +
+                                             SqlFs.DBNAMES.FsBlock.toString() + " b WHERE f." +
+                                             FINDNODE.level.toString() + " = ? AND b." +
+                                             SqlFs.FSBLOCK.fsPath.toString() + " > f." + FINDNODE.path.toString() +
+                                             " || '" + SqlFsConst.PATHSEP + "' AND b." +
+                                             SqlFs.FSBLOCK.fsPath.toString() + " < f." + FINDNODE.path.toString() +
+                                             " || '" + SqlFsPath.PATHSEPNEXT + "'";
+
+   private SqlFsFind() { }
+
+   /**
+    *  @param [in] topID -- the dir to find under
+    *  @param [in] topPath -- absolute path of the dir, "" for root
+    *  @param [in] patSegs -- segments of the glob relative to the dir, at least one
+    *  @param [in] filter -- can be null
+    *  @param [out] paths -- absolute paths of the nodes found, in order
+    *  @param [out] infos -- snapshots of the nodes found, in the same order
+    *
+    *  @return false if failed
+    */
+   static boolean find(SQLiteDatabase db, FsID topID, String topPath, String[] patSegs,
+                       SqlFsFindFilter filter, ArrayList<String> paths, ArrayList<SqlFsNodeInfo> infos)
+   {
+      int anyDirsIdx = indexOfAnyDirs(patSegs, 0);
+      int fixedLevels = (anyDirsIdx < 0) ? patSegs.length : anyDirsIdx;
+      SQLiteStatement stmt = null;
+      Cursor c = null;
+
+      try {
+         SqlFsExec.execSQL(db, SQLCREATE);
+         SqlFsExec.execSQL(db, SQLCREATEIDX);
+         SqlFsExec.execSQL(db, SQLCLEAR);
+
+         stmt = db.compileStatement(SQLADDTOP);
+         stmt.bindLong(1, topID.getVal());
+         stmt.bindString(2, topPath);
+         SqlFsExec.execute(db, stmt, SQLADDTOP);
+         stmt.close();
+         stmt = null;
+
+         // levels before "**", matched by name, only dirs are descended into
+         int level = 0;
+         for (; level < fixedLevels; ++level) {
+            boolean isLast = (level == patSegs.length - 1);
+            if (addLevel(db, level, patSegs[level], !isLast) <= 0)
+               return true;   // nothing found
+         }
+
+         // "**", everything under the dirs matched so far
+         if (anyDirsIdx >= 0) {
+            stmt = db.compileStatement(SQLADDUNDER);
+            stmt.bindLong(1, level);
+            SqlFsExec.execute(db, stmt, SQLADDUNDER);
+            stmt.close();
+            stmt = null;
+         }
+
+         // nodes at the levels the glob can match, with the name of the last segment
+         String lastSeg = patSegs[patSegs.length - 1];
+         ArrayList<String> args = new ArrayList<String>();
+         StringBuilder sb = new StringBuilder("SELECT ");
+         for (int i = 0; i < SqlFsNodeInfo.COLUMNS.length; ++i)
+            sb.append("b.").append(SqlFsNodeInfo.COLUMNS[i]).append(", ");
+         sb.append("f.").append(FINDNODE.path.toString());
+         sb.append(" FROM ").append(SqlFs.DBNAMES.FsBlock.toString()).append(" b, ").append(TABNAME).append(" f");
+         sb.append(" WHERE b.").append(SqlFs.FSBLOCK.fsID.toString()).append(" = f.").append(FINDNODE.id.toString());
+         sb.append(" AND f.").append(FINDNODE.level.toString()).append(" >= ?");
+         args.add(Integer.toString(Math.max(1, countFixedSegs(patSegs))));
+         if (anyDirsIdx < 0) {
+            sb.append(" AND f.").append(FINDNODE.level.toString()).append(" = ?");
+            args.add(Integer.toString(patSegs.length));
+         }
+         else if (!lastSeg.equals(ANYDIRS)) {
+            sb.append(" AND b.").append(SqlFs.FSBLOCK.fsName.toString()).append(" GLOB ?");
+            args.add(lastSeg);
+         }
+         if (filter != null)
+            filter.appendWhere(sb, args, "b.");
+         sb.append(" ORDER BY f.").append(FINDNODE.path.toString());
+
+         c = SqlFsExec.rawQuery(db, sb.toString(), args.toArray(new String[args.size()]));
+         int pathIdx = SqlFsNodeInfo.COLUMNS.length;
+         if (c.moveToFirst()) {
+            do {
+               String path = c.getString(pathIdx);
+               // segments between "**" are not matched by SQL
+               if (anyDirsIdx >= 0 && !matchPath(patSegs, path.substring(topPath.length() + 1)))
+                  continue;
+
+               paths.add(path);
+               infos.add(SqlFsNodeInfo.getInfo(c));
+            } while (c.moveToNext());
+         }
+      }
+      catch (Exception e) {
+         SqlFsLog.debug(e);
+         SqlFsErrCode.setCurrentError(FsErr.CannotFind);
+         return false;
+      }
+      finally {
+         SqlFsFunc.close(c);
+         if (stmt != null)
+            stmt.close();
+         clear(db);
+      }
+
+      return true;
+   }
+
+   /**
+    *  @param [in] namePattern -- GLOB on name, null for all
+    *
+    *  @return number of nodes added to the next level
+    */
+   private static int addLevel(SQLiteDatabase db, int level, String namePattern, boolean isDirOnly)
+   {
+      String sql = SQLADDLEVEL;
+      if (namePattern != null)
+         sql += " AND b." + SqlFs.FSBLOCK.fsName.toString() + " GLOB ?";
+      if (isDirOnly)
+         sql += " AND b." + SqlFs.FSBLOCK.fsType.toString() + " = " + SqlFsConst.FSTYPE.DIR.v();
+
+      SQLiteStatement stmt = db.compileStatement(sql);
+      try {
+         stmt.bindLong(1, level + 1);
+         stmt.bindLong(2, level);
+         if (namePattern != null)
+            stmt.bindString(3, namePattern);
+         SqlFsExec.execute(db, stmt, sql);
+      }
+      finally {
+         stmt.close();
+      }
+
+      return SqlFsStmtCache.getCache(db).changes();
+   }
+
+   /**
+    *  SQL expression of the number of separators in a path
+    */
+   private static String countSeps(String expr)
+   {
+      return "(length(" + expr + ") - length(replace(" + expr + ", '" + SqlFsConst.PATHSEP + "', '')))";
+   }
+
+   private static void clear(SQLiteDatabase db)
+   {
+      try {
+         SqlFsExec.execSQL(db, SQLCLEAR);
+      }
+      catch (Exception e) {
+         SqlFsLog.debug(e);   // table not created
+      }
+   }
+
+   private static int indexOfAnyDirs(String[] patSegs, int from)
+   {
+      for (int i = from; i < patSegs.length; ++i) {
+         if (patSegs[i].equals(ANYDIRS))
+            return i;
+      }
+      return -1;
+   }
+
+   private static int countFixedSegs(String[] patSegs)
+   {
+      int count = 0;
+      for (String seg : patSegs) {
+         if (!seg.equals(ANYDIRS))
+            ++count;
+      }
+      return count;
+   }
+
+   /**
+    *  Match a path relative to the top dir against all segments
+    */
+   static boolean matchPath(String[] patSegs, String relPath)
+   {
+      return matchSegs(patSegs, 0, relPath.split(SqlFsConst.STRPATHSEP), 0);
+   }
+
+   private static boolean matchSegs(String[] patSegs, int pi, String[] names, int ni)
+   {
+      if (pi == patSegs.length)
+         return ni == names.length;
+
+      if (patSegs[pi].equals(ANYDIRS)) {
+         // zero or more names, but "**" at the end matches at least one
+         for (int n = ni; n <= names.length; ++n) {
+            if (pi == patSegs.length - 1 && n == names.length && n == ni)
+               continue;
+            if (matchSegs(patSegs, pi + 1, names, n))
+               return true;
+         }
+         return false;
+      }
+
+      return ni < names.length && matchName(patSegs[pi], 0, names[ni], 0) &&
+             matchSegs(patSegs, pi + 1, names, ni + 1);
+   }
+
+   /**
+    *  Same as GLOB of SQLite: '*', '?' and '[...]' (with '^' and ranges), case sensitive
+    */
+   static boolean matchName(String pat, int pi, String name, int ni)
+   {
+      while (pi < pat.length()) {
+         char p = pat.charAt(pi);
+         if (p == '*') {
+            for (int n = ni; n <= name.length(); ++n) {
+               if (matchName(pat, pi + 1, name, n))
+                  return true;
+            }
+            return false;
+         }
+
+         if (ni >= name.length())
+            return false;
+
+         char ch = name.charAt(ni);
+         if (p == '?') {
+            ++pi;
+         }
+         else if (p == '[') {
+            // same steps as patternCompare() of SQLite: ']' first (after '^') is a member,
+            // '-' makes a range only after a member which is not the end of a range
+            int i = pi + 1;
+            boolean isNot = (i < pat.length() && pat.charAt(i) == '^');
+            if (isNot)
+               ++i;
+
+            boolean isIn = false;
+            if (i < pat.length() && pat.charAt(i) == ']') {
+               isIn = (ch == ']');
+               ++i;
+            }
+
+            char prior = 0;
+            while (i < pat.length() && pat.charAt(i) != ']') {
+               char c = pat.charAt(i);
+               if (c == '-' && prior > 0 && i + 1 < pat.length() && pat.charAt(i + 1) != ']') {
+                  char to = pat.charAt(++i);
+                  if (ch >= prior && ch <= to)
+                     isIn = true;
+                  prior = 0;
+               }
+               else {
+                  if (c == ch)
+                     isIn = true;
+                  prior = c;
+               }
+               ++i;
+            }
+            if (i >= pat.length())
+               return false;   // no closing ']'
+
+            if (isIn == isNot)
+               return false;
+            pi = i + 1;
+         }
+         else {
+            if (p != ch)
+               return false;
+            ++pi;
+         }
+         ++ni;
+      }
+
+      return ni == name.length();
+   }
+}
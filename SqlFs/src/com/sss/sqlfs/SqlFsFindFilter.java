@@ -0,0 +1,96 @@
+package com.sss.sqlfs;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+
+/**
+ *  Conditions on nodes found by SqlFs.find(), in addition to the glob of their paths.
+ *  Conditions left as default (null or -1) are not checked.
+ *
+ *  e.g. JSON files larger than 1MB changed since yesterday
+ *     SqlFsFindFilter filter = new SqlFsFindFilter();
+ *     filter.setType(SqlFsConst.FSTYPE.FILE);
+ *     filter.setSizeRange(1024 * 1024, -1);
+ *     filter.setModTimeRange(yesterday, null);
+ *     fs.find("/logs/**", filter);
+ */
+public class SqlFsFindFilter
+{
+   private String namePattern = null;                       ///< GLOB on name
+   private SqlFsConst.FSTYPE type = SqlFsConst.FSTYPE.ANY;
+   private long minSize = -1;                               ///< in bytes
+   private long maxSize = -1;
+   private Calendar modifiedFrom = null;
+   private Calendar modifiedTo = null;
+
+   public SqlFsFindFilter() { }
+
+   /**
+    *  @param [in] namePattern -- e.g. "*.json", same as GLOB of SQLite (case sensitive)
+    */
+   public void setNamePattern(String namePattern)
+   {
+      this.namePattern = namePattern;
+   }
+
+   /**
+    *  @param [in] type -- DIR, FILE or ANY
+    */
+   public void setType(SqlFsConst.FSTYPE type)
+   {
+      this.type = (type == null) ? SqlFsConst.FSTYPE.ANY : type;
+   }
+
+   /**
+    *  @param [in] minSize -- min. file size (inclusive), -1 for no limit
+    *  @param [in] maxSize -- max. file size (inclusive), -1 for no limit
+    */
+   public void setSizeRange(long minSize, long maxSize)
+   {
+      this.minSize = minSize;
+      this.maxSize = maxSize;
+   }
+
+   /**
+    *  @param [in] from -- last modified at or after, null for no limit
+    *  @param [in] to -- last modified at or before, null for no limit
+    */
+   public void setModTimeRange(Calendar from, Calendar to)
+   {
+      this.modifiedFrom = from;
+      this.modifiedTo = to;
+   }
+
+   /**
+    *  Append conditions on FsBlock (aliased) to a WHERE clause
+    *
+    *  @param [in] alias -- alias of FsBlock in the query, e.g. "b."
+    */
+   void appendWhere(StringBuilder sb, ArrayList<String> args, String alias)
+   {
+      if (namePattern != null) {
+         sb.append(" AND ").append(alias).append(SqlFs.FSBLOCK.fsName.toString()).append(" GLOB ?");
+         args.add(namePattern);
+      }
+      if (type != SqlFsConst.FSTYPE.ANY) {
+         sb.append(" AND ").append(alias).append(SqlFs.FSBLOCK.fsType.toString()).append(" = ?");
+         args.add(Integer.toString(type.v()));
+      }
+      if (minSize >= 0) {
+         sb.append(" AND ").append(alias).append(SqlFs.FSBLOCK.fsFileSize.toString()).append(" >= ?");
+         args.add(Long.toString(minSize));
+      }
+      if (maxSize >= 0) {
+         sb.append(" AND ").append(alias).append(SqlFs.FSBLOCK.fsFileSize.toString()).append(" <= ?");
+         args.add(Long.toString(maxSize));
+      }
+      if (modifiedFrom != null) {
+         sb.append(" AND ").append(alias).append(SqlFs.FSBLOCK.fsLastModTime.toString()).append(" >= ?");
+         args.add(Long.toString(SqlFsFunc.calToFileTime(modifiedFrom)));
+      }
+      if (modifiedTo != null) {
+         sb.append(" AND ").append(alias).append(SqlFs.FSBLOCK.fsLastModTime.toString()).append(" <= ?");
+         args.add(Long.toString(SqlFsFunc.calToFileTime(modifiedTo)));
+      }
+   }
+}
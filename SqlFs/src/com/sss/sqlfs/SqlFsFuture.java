@@ -0,0 +1,151 @@
+package com.sss.sqlfs;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import com.sss.sqlfs.SqlFsErrCode.FsErr;
+
+/**
+ *  Result of an operation submitted to SqlFsAsync
+ *
+ *  get() returns the result of the operation, or throws ExecutionException if it threw.
+ *  The error code is that of the thread which ran the operation (SqlFsErrCode is kept
+ *  per thread), see getError().
+ */
+public class SqlFsFuture<T> extends FutureTask<T>
+{
+   private volatile FsErr err = FsErr.OK;
+   private IFsTaskCallback<T> callback;
+   private TaskCall<T> call;
+   private boolean isGroupable = false;   ///< may be run in a group commit of SqlFsAsync
+
+   // result of runInGroup()
+   private T groupResult = null;
+   private Exception groupException = null;
+   private FsErr groupErr = FsErr.OK;
+
+   private static class TaskCall<T> implements Callable<T>
+   {
+      private IFsTask<T> task;
+      private SqlFsAsync async;
+      private SqlFsFuture<T> future;
+
+      TaskCall(IFsTask<T> task, SqlFsAsync async)
+      {
+         this.task = task;
+         this.async = async;
+      }
+
+      public T call() throws Exception
+      {
+         try {
+            return async.runTask(future, task);
+         }
+         finally {
+            future.err = SqlFsErrCode.getLastError();
+         }
+      }
+   }
+
+   SqlFsFuture(IFsTask<T> task, SqlFsAsync async, IFsTaskCallback<T> callback)
+   {
+      this(new TaskCall<T>(task, async), callback);
+   }
+
+   private SqlFsFuture(TaskCall<T> call, IFsTaskCallback<T> callback)
+   {
+      super(call);
+      call.future = this;
+      this.call = call;
+      this.callback = callback;
+   }
+
+   void setGroupable()
+   {
+      isGroupable = true;
+   }
+
+   boolean isGroupable()
+   {
+      return isGroupable;
+   }
+
+   /**
+    *  Run the operation with the SqlFs of the writer thread, keeping its result
+    *  for getGroupResult() or completeGroup()
+    */
+   void runInGroup(SqlFs fs)
+   {
+      groupResult = null;
+      groupException = null;
+      SqlFsErrCode.setCurrentError(FsErr.OK);
+      try {
+         groupResult = call.task.run(fs);
+      }
+      catch (Exception e) {
+         groupException = e;
+      }
+      groupErr = SqlFsErrCode.getLastError();
+   }
+
+   /**
+    *  The group was lost by an exception not from the operation (e.g. the commit failed)
+    */
+   void failGroup(Exception e)
+   {
+      groupResult = null;
+      groupException = e;
+      groupErr = FsErr.BatchRolledBack;
+   }
+
+   boolean isGroupFailed()
+   {
+      return (groupException != null);
+   }
+
+   /**
+    *  Result of runInGroup() when the future is the one run by the writer, the
+    *  error code of the thread is set to that of the operation
+    */
+   T getGroupResult() throws Exception
+   {
+      SqlFsErrCode.setCurrentError(groupErr);
+      if (groupException != null)
+         throw groupException;
+      return groupResult;
+   }
+
+   /**
+    *  Complete with the result of runInGroup(), when the future is taken from the
+    *  queue of the writer
+    */
+   void completeGroup()
+   {
+      err = groupErr;
+      if (groupException != null)
+         setException(groupException);
+      else
+         set(groupResult);
+   }
+
+   /**
+    *  @return error code when the operation ends, FsErr.OK if succeeded or not done yet
+    */
+   public FsErr getError()
+   {
+      return err;
+   }
+
+   protected void done()
+   {
+      if (callback == null)
+         return;
+
+      try {
+         callback.onDone(this);
+      }
+      catch (Exception e) {
+         SqlFsLog.debug(e);
+      }
+   }
+}
@@ -0,0 +1,132 @@
+package com.sss.sqlfs;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *  Histogram of non-negative values (e.g. latency in ns) with fixed relative precision,
+ *  like HdrHistogram: each power of 2 is split into SUBCOUNT buckets, so a value read
+ *  back is within 1/SUBCOUNT (6.25%) of the recorded one. Memory is fixed (~8KB) for the
+ *  whole range of long.
+ *
+ *  Values can be recorded by many threads at the same time without locking.
+ */
+public class SqlFsHistogram
+{
+   private static final int SUBBITS = 4;
+   private static final int SUBCOUNT = 1 << SUBBITS;
+   private static final int NUMBUCKETS = (64 - SUBBITS + 1) * SUBCOUNT;
+
+   private final AtomicLongArray counts = new AtomicLongArray(NUMBUCKETS);
+   private final AtomicLong totalCount = new AtomicLong();
+   private final AtomicLong totalSum = new AtomicLong();
+   private final AtomicLong maxValue = new AtomicLong();
+
+   public SqlFsHistogram() { }
+
+   /**
+    *  Values below SUBCOUNT have a bucket each, others are bucketed by the highest bit
+    *  and the SUBBITS bits after it
+    */
+   private static int indexOf(long value)
+   {
+      if (value < SUBCOUNT)
+         return (int)value;
+
+      int msb = 63 - Long.numberOfLeadingZeros(value);
+      int sub = (int)(value >>> (msb - SUBBITS)) - SUBCOUNT;
+      return (msb - SUBBITS + 1) * SUBCOUNT + sub;
+   }
+
+   /**
+    *  @return the highest value of a bucket
+    */
+   private static long highestOf(int index)
+   {
+      int range = index / SUBCOUNT;
+      int sub = index % SUBCOUNT;
+      if (range == 0)
+         return sub;
+
+      long lowest = (long)(SUBCOUNT + sub) << (range - 1);
+      return lowest + (1L << (range - 1)) - 1;
+   }
+
+   /**
+    *  @param [in] value -- negative values are recorded as 0
+    */
+   public void record(long value)
+   {
+      if (value < 0)
+         value = 0;
+
+      counts.incrementAndGet(indexOf(value));
+      totalCount.incrementAndGet();
+      totalSum.addAndGet(value);
+
+      long max;
+      while ((max = maxValue.get()) < value && !maxValue.compareAndSet(max, value)) { }
+   }
+
+   public long getCount()
+   {
+      return totalCount.get();
+   }
+
+   public long getMax()
+   {
+      return maxValue.get();
+   }
+
+   /**
+    *  @return 0 if nothing recorded
+    */
+   public long getMean()
+   {
+      long count = totalCount.get();
+      return (count == 0) ? 0 : totalSum.get() / count;
+   }
+
+   /**
+    *  @param [in] percentile -- 0 to 100, e.g. 99.9
+    *
+    *  @return value which 'percentile' percent of the recorded ones are at or below,
+    *          0 if nothing recorded
+    */
+   public long getValueAtPercentile(double percentile)
+   {
+      long count = totalCount.get();
+      if (count == 0)
+         return 0;
+
+      long rank = (long)Math.ceil(Math.min(Math.max(percentile, 0), 100) / 100 * count);
+      rank = Math.max(rank, 1);
+
+      long seen = 0;
+      for (int i = 0; i < NUMBUCKETS; ++i) {
+         seen += counts.get(i);
+         if (seen >= rank)
+            return Math.min(highestOf(i), getMax());
+      }
+
+      return getMax();
+   }
+
+   public void reset()
+   {
+      for (int i = 0; i < NUMBUCKETS; ++i)
+         counts.set(i, 0);
+      totalCount.set(0);
+      totalSum.set(0);
+      maxValue.set(0);
+   }
+
+   /**
+    *  e.g. "count=10 mean=150 p50=143 p90=207 p99=255 max=255"
+    */
+   public String toString()
+   {
+      return "count=" + getCount() + " mean=" + getMean() + " p50=" + getValueAtPercentile(50) +
+             " p90=" + getValueAtPercentile(90) + " p99=" + getValueAtPercentile(99) + " max=" + getMax();
+   }
+}
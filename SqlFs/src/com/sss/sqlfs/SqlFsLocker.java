@@ -1,10 +1,22 @@
 package com.sss.sqlfs;
 
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.HashMap;
 
 import com.sss.sqlfs.helper.*;
 
+/**
+ *  Lock shared by all SqlFs instances on the same DB
+ *
+ *  Operations which only read the DB take the shared (read) lock by getFsReadLock(), 
+ *  so readers on different threads (each with its own SqlFs) run concurrently.
+ *  Operations which change the DB take the exclusive (write) lock by getFsLock().
+ *  Either one is released by dispose().
+ *
+ *  Note: 
+ *    A thread holding the write lock may take the read lock (it gets the write lock again), 
+ *    but a thread holding the read lock must not take the write lock, which would deadlock.
+ */
 class SqlFsLocker implements IDisposable
 {
    private static HashMap<String, SqlFsLocker> lockerTable = null;
@@ -40,12 +52,18 @@ class SqlFsLocker implements IDisposable
    }
    
    private String tableKey;
-   private ReentrantLock lock;
+   private ReentrantReadWriteLock lock;
+   private SqlFsPathCache pathCache;   ///< path cache of the same DB
+   private volatile IFsMetrics metrics = null;   ///< listener of operations on the DB, null if none
+   private volatile SqlFsDiagnostics diagnostics = null;   ///< diagnostic mode of the DB, null if off
+   //! data blocks read by SqlFileInputStream, ID -> {streams open, generation}
+   private HashMap<Long, int[]> readBlocks = new HashMap<Long, int[]>();
    
    private SqlFsLocker(String tableKey) 
    { 
 	  this.tableKey = tableKey;
-	  lock = new ReentrantLock();   
+	  lock = new ReentrantReadWriteLock();   
+	  pathCache = new SqlFsPathCache(SqlFsConst.PATHCACHESIZE);
    }
    
    private String getTableKey()
@@ -53,19 +71,194 @@ class SqlFsLocker implements IDisposable
 	  return tableKey;
    }
 	
+   /**
+    *  Get exclusive lock, for operations changing the DB
+    */
    void getFsLock()
    {
-	  lock.lock();
+	  getFsLock(null);
+   }
+   
+   /**
+    *  @param [in] op -- type of the operation for metrics, null if not an operation of its own
+    */
+   void getFsLock(IFsMetrics.FSOP op)
+   {
+	  IFsMetrics m = metrics;
+	  SqlFsDiagnostics d = diagnostics;
+	  if (m == null && d == null) {
+		 lock.writeLock().lock();
+		 return;
+	  }
+	  
+	  long requestTime = System.nanoTime();
+	  lock.writeLock().lock();
+	  SqlFsOpTrace.enter(m, d, op, requestTime, System.nanoTime());
+   }
+   
+   /**
+    *  Get shared lock, for operations only reading the DB
+    */
+   void getFsReadLock()
+   {
+	  getFsReadLock(null);
+   }
+   
+   /**
+    *  @param [in] op -- type of the operation for metrics, null if not an operation of its own
+    */
+   void getFsReadLock(IFsMetrics.FSOP op)
+   {
+	  IFsMetrics m = metrics;
+	  SqlFsDiagnostics d = diagnostics;
+	  boolean isTraced = (m != null || d != null);
+	  long requestTime = isTraced ? System.nanoTime() : 0;
+	  
+	  // nested in a write operation, keep it exclusive so that dispose() stays paired
+	  if (lock.isWriteLockedByCurrentThread())
+		 lock.writeLock().lock();
+	  else
+		 lock.readLock().lock();
+	  
+	  if (isTraced)
+		 SqlFsOpTrace.enter(m, d, op, requestTime, System.nanoTime());
    }
    
    public void dispose()
    {
-	  lock.unlock();
+	  // metrics never change while the lock is held (see setMetrics)
+	  boolean isTraced = (metrics != null || diagnostics != null);
+	  
+	  if (lock.isWriteLockedByCurrentThread())
+		 lock.writeLock().unlock();
+	  else
+		 lock.readLock().unlock();
+	  
+	  if (isTraced)
+		 SqlFsOpTrace.exit();
+   }
+   
+   /**
+    *  Set listener of operations on the DB, null to disable. Waits for operations
+    *  running in other threads.
+    */
+   void setMetrics(IFsMetrics metrics)
+   {
+	  setTracers(metrics, diagnostics);
+   }
+   
+   IFsMetrics getMetrics()
+   {
+	  return metrics;
+   }
+   
+   /**
+    *  Set diagnostic mode of the DB, null to disable. Waits for operations
+    *  running in other threads.
+    */
+   void setDiagnostics(SqlFsDiagnostics diagnostics)
+   {
+	  setTracers(metrics, diagnostics);
+   }
+   
+   SqlFsDiagnostics getDiagnostics()
+   {
+	  return diagnostics;
+   }
+   
+   private void setTracers(IFsMetrics metrics, SqlFsDiagnostics diagnostics)
+   {
+	  lock.writeLock().lock();
+	  try {
+		 boolean wasTraced = (this.metrics != null || this.diagnostics != null);
+		 boolean isTraced = (metrics != null || diagnostics != null);
+		 if (!wasTraced && isTraced)
+			SqlFsOpTrace.enable(true);
+		 else if (wasTraced && !isTraced)
+			SqlFsOpTrace.enable(false);
+		 
+		 this.metrics = metrics;
+		 this.diagnostics = diagnostics;
+		 SqlFsOpTrace.reset();
+	  }
+	  finally {
+		 lock.writeLock().unlock();
+	  }
+   }
+   
+   SqlFsPathCache getPathCache()
+   {
+	  return pathCache;
+   }
+   
+   /**
+    *  A stream begins to read a data block
+    *
+    *  @return generation of the data block, see getGeneration()
+    */
+   synchronized int openRead(FsID dataBlockID)
+   {
+	  int[] entry = readBlocks.get(dataBlockID.getVal());
+	  if (entry == null) {
+		 entry = new int[]{0, 0};
+		 readBlocks.put(dataBlockID.getVal(), entry);
+	  }
+	  ++entry[0];
+	  return entry[1];
+   }
+   
+   /**
+    *  A stream opened by openRead() is closed
+    */
+   synchronized void closeRead(FsID dataBlockID)
+   {
+	  int[] entry = readBlocks.get(dataBlockID.getVal());
+	  if (entry != null && --entry[0] <= 0)
+		 readBlocks.remove(dataBlockID.getVal());
+   }
+   
+   /**
+    *  Chunks of a data block are changed in place, called with the exclusive lock held
+    */
+   synchronized void dataChanged(FsID dataBlockID)
+   {
+	  int[] entry = readBlocks.get(dataBlockID.getVal());
+	  if (entry != null)
+		 ++entry[1];
+   }
+   
+   /**
+    *  @return number of times a data block read by streams is changed in place, 
+    *          -1 if no stream is reading it
+    */
+   synchronized int getGeneration(FsID dataBlockID)
+   {
+	  int[] entry = readBlocks.get(dataBlockID.getVal());
+	  return (entry == null) ? -1 : entry[1];
    }
    
    private void close()
    {
+	  if (metrics != null || diagnostics != null) {
+		 metrics = null;
+		 diagnostics = null;
+		 SqlFsOpTrace.enable(false);
+	  }
 	  lock = null;
+	  pathCache.clear();
+	  readBlocks.clear();
+   }
+   
+   /**
+    * @return true if no other SqlFs instance of the process is on the same DB
+    */
+   final static synchronized boolean isOnlyUser(SqlFsLocker locker)
+   {
+	  if (refCountTable == null)
+		  return false;
+	  
+	  Integer count = refCountTable.get(locker.getTableKey());
+	  return count != null && count.intValue() == 1;
    }
    
    /**
@@ -0,0 +1,143 @@
+package com.sss.sqlfs;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sss.sqlfs.SqlFsErrCode.FsErr;
+
+/**
+ *  IFsMetrics keeping histograms (in ns) and totals of each type of operation in memory.
+ *
+ *  e.g.
+ *     SqlFsMetrics metrics = new SqlFsMetrics();
+ *     fs.setMetrics(metrics);
+ *     ...
+ *     long p99 = metrics.getLatency(IFsMetrics.FSOP.SAVEFILEDATA).getValueAtPercentile(99);
+ *     Log.i(TAG, metrics.toString());
+ *
+ *  Can be shared by SqlFs on different DBs.
+ */
+public class SqlFsMetrics implements IFsMetrics
+{
+   private static class OpMetrics
+   {
+      final SqlFsHistogram latency = new SqlFsHistogram();
+      final SqlFsHistogram lockWait = new SqlFsHistogram();
+      final SqlFsHistogram commit = new SqlFsHistogram();
+      final AtomicLong errorCount = new AtomicLong();
+      final AtomicLong stmtCount = new AtomicLong();
+      final AtomicLong bytesRead = new AtomicLong();
+      final AtomicLong bytesWritten = new AtomicLong();
+   }
+
+   private final OpMetrics[] opMetrics;   ///< index is ordinal of FSOP
+
+   public SqlFsMetrics()
+   {
+      opMetrics = new OpMetrics[FSOP.values().length];
+      for (int i = 0; i < opMetrics.length; ++i)
+         opMetrics[i] = new OpMetrics();
+   }
+
+   public void onOpDone(SqlFsOpStats stats)
+   {
+      OpMetrics m = opMetrics[stats.getOp().ordinal()];
+      m.latency.record(stats.getLatencyNs());
+      m.lockWait.record(stats.getLockWaitNs());
+      m.commit.record(stats.getCommitNs());
+      if (stats.getError() != FsErr.OK)
+         m.errorCount.incrementAndGet();
+      m.stmtCount.addAndGet(stats.getStmtCount());
+      m.bytesRead.addAndGet(stats.getBytesRead());
+      m.bytesWritten.addAndGet(stats.getBytesWritten());
+   }
+
+   /**
+    *  Number of operations done
+    */
+   public long getCount(FSOP op)
+   {
+      return opMetrics[op.ordinal()].latency.getCount();
+   }
+
+   /**
+    *  Number of operations ended with an error code
+    */
+   public long getErrorCount(FSOP op)
+   {
+      return opMetrics[op.ordinal()].errorCount.get();
+   }
+
+   public SqlFsHistogram getLatency(FSOP op)
+   {
+      return opMetrics[op.ordinal()].latency;
+   }
+
+   public SqlFsHistogram getLockWait(FSOP op)
+   {
+      return opMetrics[op.ordinal()].lockWait;
+   }
+
+   public SqlFsHistogram getCommitTime(FSOP op)
+   {
+      return opMetrics[op.ordinal()].commit;
+   }
+
+   /**
+    *  Total number of SQL statements run
+    */
+   public long getStmtCount(FSOP op)
+   {
+      return opMetrics[op.ordinal()].stmtCount.get();
+   }
+
+   public long getBytesRead(FSOP op)
+   {
+      return opMetrics[op.ordinal()].bytesRead.get();
+   }
+
+   public long getBytesWritten(FSOP op)
+   {
+      return opMetrics[op.ordinal()].bytesWritten.get();
+   }
+
+   public void reset()
+   {
+      for (OpMetrics m : opMetrics) {
+         m.latency.reset();
+         m.lockWait.reset();
+         m.commit.reset();
+         m.errorCount.set(0);
+         m.stmtCount.set(0);
+         m.bytesRead.set(0);
+         m.bytesWritten.set(0);
+      }
+   }
+
+   /**
+    *  One line for each type of operation done, e.g.
+    *
+    *  SAVEFILEDATA errors=0 stmts=120 bytesRead=0 bytesWritten=40960 latency: count=10 mean=...
+    *  lockWait: count=10 ... commit: count=10 ...
+    */
+   public String toString()
+   {
+      StringBuilder sb = new StringBuilder();
+      for (FSOP op : FSOP.values()) {
+         OpMetrics m = opMetrics[op.ordinal()];
+         if (m.latency.getCount() == 0)
+            continue;
+
+         sb.append(op.name());
+         sb.append(" errors=").append(m.errorCount.get());
+         sb.append(" stmts=").append(m.stmtCount.get());
+         sb.append(" bytesRead=").append(m.bytesRead.get());
+         sb.append(" bytesWritten=").append(m.bytesWritten.get());
+         sb.append(" latency: ").append(m.latency.toString());
+         sb.append(" lockWait: ").append(m.lockWait.toString());
+         sb.append(" commit: ").append(m.commit.toString());
+         sb.append('\n');
+      }
+
+      return sb.toString();
+   }
+}
@@ -1,11 +1,11 @@
 package com.sss.sqlfs;
 
 import java.util.Calendar;
-import java.util.ArrayList;
 
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
 import android.database.Cursor;
-import android.content.ContentValues;
 
 import com.sss.sqlfs.SqlFsErrCode.FsErr;
 import com.sss.sqlfs.helper.*;
@@ -18,6 +18,39 @@ public abstract class SqlFsNode
 	protected SQLiteDatabase db;   ///< sqlite connection
     protected FsID id;             ///< ID in FsBlock
     protected SqlFsLocker fsLocker;  ///< FS lock
+    protected SqlFsNodeInfo info;    ///< snapshot of FsBlock row, null if not fetched yet
+    
+    // SQL to add a new entry, all columns except fsID are bound, fsPath is from the parent's
+    private static final String SQLADDFSNODE = "INSERT INTO " + SqlFs.DBNAMES.FsBlock.toString() + " (" + 
+                                               SqlFs.FSBLOCK.fsType.toString() + ", " +
+                                               SqlFs.FSBLOCK.fsCreateTime.toString() + ", " +
+                                               SqlFs.FSBLOCK.fsLastModTime.toString() + ", " +
+                                               SqlFs.FSBLOCK.fsFileSize.toString() + ", " +
+                                               SqlFs.FSBLOCK.fsName.toString() + ", " +
+                                               SqlFs.FSBLOCK.fsParent.toString() + ", " +
+                                               SqlFs.FSBLOCK.fsChild.toString() + ", " +
+                                               SqlFs.FSBLOCK.fsPath.toString() + ") VALUES (?, ?, ?, ?, ?, ?, ?, " +
+                                               "(SELECT p." + SqlFs.FSBLOCK.fsPath.toString() + " FROM " +
+                                               SqlFs.DBNAMES.FsBlock.toString() + " p WHERE p." +
+                                               SqlFs.FSBLOCK.fsID.toString() + " = ?) || '" +
+                                               SqlFsConst.PATHSEP + "' || ?)";
+    // SQL to get a single field by ID (index is ordinal of SqlFs.FSBLOCK)
+    private static final String[] SQLGETFIELD = new String[SqlFs.FSBLOCK.values().length];
+    // SQL to set a single field (and last mod time) by ID
+    private static final String[] SQLSETFIELD = new String[SqlFs.FSBLOCK.values().length];
+    
+    static {
+       String tabName = SqlFs.DBNAMES.FsBlock.toString();
+       String colID = SqlFs.FSBLOCK.fsID.toString();
+       String colLastModTime = SqlFs.FSBLOCK.fsLastModTime.toString();
+       
+       for (SqlFs.FSBLOCK field : SqlFs.FSBLOCK.values()) {
+          SQLGETFIELD[field.ordinal()] = SqlStr.genSelect(tabName, new String[]{field.toString()}, colID);
+          SQLSETFIELD[field.ordinal()] = (field == SqlFs.FSBLOCK.fsLastModTime) ? 
+        		  SqlStr.genUpdate(tabName, new String[]{colLastModTime}, colID) :
+        		  SqlStr.genUpdate(tabName, new String[]{field.toString(), colLastModTime}, colID);
+       }
+    }
 
     protected SqlFsNode() { }
     
@@ -33,35 +66,93 @@ public abstract class SqlFsNode
        return this.id;
     }
     
-    public Calendar getCreateTime()
+    /**
+     *  Get snapshot of all attributes. It is fetched once (or comes with the 
+     *  node from getChildList, getFiles, getSubDirs) and kept until refresh()
+     */
+    public SqlFsNodeInfo getInfo()
     {
        SqlFsErrCode.setCurrentError(FsErr.OK);
-    	
-       long fileTimeUtc = (Long)getField(SqlFs.FSBLOCK.fsCreateTime);
-       return SqlFsFunc.fileTimeToCal(fileTimeUtc);
+       
+       fsLocker.getFsReadLock(IFsMetrics.FSOP.GETINFO);
+       try {
+          if (this.info == null)
+             this.info = __fetchInfo();
+          return this.info;
+       }
+       finally {
+          fsLocker.dispose();
+       }
     }
     
-    public Calendar getLastModTime()
+    /**
+     *  Fetch all attributes from DB again
+     */
+    public SqlFsNodeInfo refresh()
     {
        SqlFsErrCode.setCurrentError(FsErr.OK);
-    	
-       long fileTimeUtc = (Long)getField(SqlFs.FSBLOCK.fsLastModTime);
-       return SqlFsFunc.fileTimeToCal(fileTimeUtc);
+       
+       fsLocker.getFsReadLock(IFsMetrics.FSOP.GETINFO);
+       try {
+          this.info = __fetchInfo();
+          return this.info;
+       }
+       finally {
+          fsLocker.dispose();
+       }
+    }
+    
+    /**
+     *  Get all attributes (except fsChild) with one query
+     */
+    private SqlFsNodeInfo __fetchInfo()
+    {
+       Cursor c = null;
+       SqlFsNodeInfo fsInfo = null;
+       
+       try {
+          c = SqlFsExec.rawQuery(db, SqlFsNodeInfo.SQLGETBYID, new String[]{this.getID().toString()});
+          
+          if (c.moveToFirst())
+             fsInfo = SqlFsNodeInfo.getInfo(c);
+       }
+       catch (Exception e) {
+          SqlFsLog.debug(e);
+          SqlFsErrCode.setCurrentError(FsErr.GetFieldError);
+       }
+       finally {
+          SqlFsFunc.close(c);
+       }
+       
+       return (fsInfo != null) ? fsInfo : SqlFsNodeInfo.getDefault(this.getID());
+    }
+    
+    public Calendar getCreateTime()
+    {
+       return getInfo().getCreateTime();
+    }
+    
+    public Calendar getLastModTime()
+    {
+       return getInfo().getLastModTime();
     }
     
     public int getFileSize()
     {
-       SqlFsErrCode.setCurrentError(FsErr.OK);
-    	
-       int fileSize = (Integer)getField(SqlFs.FSBLOCK.fsFileSize);
-       return fileSize;
+       return getInfo().getFileSize();
     }
     
     public String getName()
     {
-       SqlFsErrCode.setCurrentError(FsErr.OK);
-    	
-       return (String)getField(SqlFs.FSBLOCK.fsName);
+       return getInfo().getName();
+    }
+
+    /**
+     *  Absolute path, e.g. "/path/to/file", "/" for root
+     */
+    public String getFullPath()
+    {
+       return getInfo().getPath();
     }
 
     /**
@@ -69,15 +160,20 @@ public abstract class SqlFsNode
      */
     public SqlFsConst.FSTYPE getType()
     {
-       SqlFsErrCode.setCurrentError(FsErr.OK);
-    	
-       return SqlFsConst.FSTYPE.toFSTYPE((Integer)getField(SqlFs.FSBLOCK.fsType));       
+       return getInfo().getType();
     }      
     
     public SqlDir getParent()
     {
-       SqlFsErrCode.setCurrentError(FsErr.OK);
-    	
+       FsID parentID = getInfo().getParentID();
+       return (SqlDir)SqlFs.getFsNodeByID(db, fsLocker, parentID);
+    }
+    
+    /**
+     *  Get parent using the current value in DB rather than the snapshot
+     */
+    SqlDir getParentFromDB()
+    {
        FsID parentID = (FsID)getField(SqlFs.FSBLOCK.fsParent);
        return (SqlDir)SqlFs.getFsNodeByID(db, fsLocker, parentID);
     }
@@ -89,18 +185,17 @@ public abstract class SqlFsNode
     /**
      *  Convert ID list to byte array (little endian)
      */
-    private static byte[] idList2Blob(ArrayList<FsID> idList)
+    private static byte[] idList2Blob(long[] idList)
     {
-       if (idList == null || idList.size() == 0)
+       if (idList == null || idList.length == 0)
           return null;
 
        int j = 0;
-       byte[] blob = new byte[idList.size() * FsID.getIDSize()];
+       byte[] blob = new byte[idList.length * FsID.getIDSize()];
        byte b;
 
-       for(FsID item : idList) {
+       for(long id : idList) {
           // save integer in blob (little endian)
-    	  long id = item.getVal();
           for (int i = 0; i < FsID.getIDSize(); ++i) {
              b = (byte)((id >> (i * 8)) & 0xff);
              blob[j++] = b;
@@ -111,22 +206,23 @@ public abstract class SqlFsNode
     }
     
     /**
-     *  Convert byte array to ID list (little endian)
+     *  Convert byte array to ID list (little endian), IDs are kept as primitives
+     *  without creating a FsID for each
      */
-    private static ArrayList<FsID> blob2idList(byte[] blob)
+    static long[] blob2idList(byte[] blob)
     {
        if (blob == null)
           return null;
 
-       ArrayList<FsID> idList = new ArrayList<FsID>(blob.length / FsID.getIDSize());
+       long[] idList = new long[blob.length / FsID.getIDSize()];
 
-       for (int i = 0; i < blob.length; i += FsID.getIDSize()) {
+       for (int i = 0, k = 0; k < idList.length; i += FsID.getIDSize(), ++k) {
           long t = 0;
           // get integer from blob (little endian)
           for (int j = 0; j < FsID.getIDSize(); ++j)
              t |= (((long)blob[i + j] & 0xff) << (j * 8));
 
-          idList.add(new FsID(t));
+          idList[k] = FsID.isLongID() ? t : (long)(int)t;
        }
 
        return idList;
@@ -148,28 +244,54 @@ public abstract class SqlFsNode
 
        return fsNode;
     }
-    
-    /**  
+
+    /**
+     *  Get a fsNode from an ID whose type is already known
+     */
+    static SqlFsNode getFsNode(SQLiteDatabase db, SqlFsLocker fsLocker, FsID id, SqlFsConst.FSTYPE type)
+    {
+       SqlFsNode fsNode = null;
+
+       if (type == SqlFsConst.FSTYPE.DIR)
+          fsNode = SqlDir.getDir(db, fsLocker, id);
+       else if (type == SqlFsConst.FSTYPE.FILE)
+          fsNode = SqlFile.getFile(db, fsLocker, id);
+
+       return fsNode;
+    }
+
+    /**
      *  Create a new entry in FsBlock
      *
+     *  @param [in] childList -- initial value of fsChild, can be null
+     *
      *  @return new ID for the inserted node
      */
-    static FsID addFsNode(SQLiteDatabase db, SqlFsConst.FSTYPE type, String dirName, FsID parentID)
+    static FsID addFsNode(SQLiteDatabase db, SqlFsConst.FSTYPE type, String dirName, FsID parentID, 
+    		              long[] childList)
     {
        long curTime = SqlFsFunc.calToFileTime(Calendar.getInstance());
-       ArrayList<Object> colsAndValues = new ArrayList<Object>(10);
-       
-       colsAndValues.add(SqlFs.FSBLOCK.fsCreateTime.toString()); colsAndValues.add(curTime);
-       colsAndValues.add(SqlFs.FSBLOCK.fsLastModTime.toString()); colsAndValues.add(curTime);
-       colsAndValues.add(SqlFs.FSBLOCK.fsFileSize.toString()); colsAndValues.add(0);
-       colsAndValues.add(SqlFs.FSBLOCK.fsType.toString()); colsAndValues.add(type.v());
-       colsAndValues.add(SqlFs.FSBLOCK.fsName.toString()); colsAndValues.add(dirName);
-       colsAndValues.add(SqlFs.FSBLOCK.fsParent.toString()); colsAndValues.add(parentID);
-       
-       ContentValues contValues = SqlStr.genContentValues(colsAndValues);
+       long newID = -1;
        
        try {
-          db.insert(SqlFs.DBNAMES.FsBlock.toString(), null, contValues);
+          SQLiteStatement stmt = SqlFsStmtCache.getCache(db).getStatement(SQLADDFSNODE);
+          stmt.bindLong(1, type.v());
+          stmt.bindLong(2, curTime);
+          stmt.bindLong(3, curTime);
+          stmt.bindLong(4, 0);
+          stmt.bindString(5, dirName);
+          stmt.bindLong(6, parentID.getVal());
+          
+          byte[] blob = idList2Blob(childList);
+          if (blob == null)
+             stmt.bindNull(7);
+          else
+             stmt.bindBlob(7, blob);
+          stmt.bindLong(8, parentID.getVal());
+          stmt.bindString(9, dirName);
+          
+          // rowID of the new entry, which is also its ID
+          newID = SqlFsExec.executeInsert(db, stmt, SQLADDFSNODE);
        }
        catch (Exception e) {
     	  SqlFsLog.debug(e);
@@ -177,13 +299,17 @@ public abstract class SqlFsNode
           return SqlFsConst.INVALIDID;
        }
 
-       // retrieve the ID of the new entry
-       return SqlFs.getLastInsertID(db);
+       if (newID < 0) {
+          SqlFsErrCode.setCurrentError(FsErr.AddFsNodeError);
+          return SqlFsConst.INVALIDID;
+       }
+       
+       return FsID.toFsID(newID);
     }
         
     protected Object getField(SqlFs.FSBLOCK field)
     { 
-       fsLocker.getFsLock();
+       fsLocker.getFsReadLock();
        try {
           return __getField(field);
        }
@@ -198,60 +324,55 @@ public abstract class SqlFsNode
      */
     private Object __getField(SqlFs.FSBLOCK field) 
     {
-    	String where = SqlStr.genWhere(new SqlStr.SqlSimpCond(SqlFs.FSBLOCK.fsID.toString(), "=", this.getID()));
-        // little adjustment
-        SqlFs.FSBLOCK tField = (field == SqlFs.FSBLOCK.fsChildCount) ? SqlFs.FSBLOCK.fsChild : field;
-        Cursor c = null;
         Object val = null;
         
         try {
-        	c = db.query(SqlFs.DBNAMES.FsBlock.toString(), 
-                    new String[]{tField.toString()}, 
-                    where, null, null, null, null);
-        	
-        	if (c.moveToFirst() && !c.isNull(0)) {
+        	if (field == SqlFs.FSBLOCK.fsChild) {
+        		// blob can only be read by a cursor
+        		Cursor c = null;
+        		try {
+        			c = SqlFsExec.rawQuery(db, SQLGETFIELD[field.ordinal()], new String[]{this.getID().toString()});
+        			if (c.moveToFirst() && !c.isNull(0))
+        				val = blob2idList(c.getBlob(0));
+        		}
+        		finally {
+        			SqlFsFunc.close(c);
+        		}
+        	}
+        	else {
+        		SQLiteStatement stmt = SqlFsStmtCache.getCache(db).getStatement(SQLGETFIELD[field.ordinal()]);
+        		stmt.bindLong(1, this.getID().getVal());
+        		
         		switch (field) {
         		 case fsCreateTime:
         		 case fsLastModTime:
-                    val = c.getLong(0);
+                    val = SqlFsExec.simpleQueryForLong(db, stmt, SQLGETFIELD[field.ordinal()]);
                     break;
         		 case fsFileSize:
                  case fsType:
-                    val = c.getInt(0);
+                    val = (int)SqlFsExec.simpleQueryForLong(db, stmt, SQLGETFIELD[field.ordinal()]);
                     break;
                  case fsName:
-                    val = c.getString(0);
+                 case fsPath:
+                    val = SqlFsExec.simpleQueryForString(db, stmt, SQLGETFIELD[field.ordinal()]);
                     break;
                  case fsParent:
-                    val = SqlFsFunc.getID(c, 0);
-                    break;
-                 case fsChild:
-                    {
-                	   byte[] buf = c.getBlob(0);
-                	   val = blob2idList(buf);
-                    }
-                    break;
-                 case fsChildCount:
-                    {
-                	   byte[] buf = c.getBlob(0);
-                       val = buf.length / FsID.getIDSize();
-                    }
+                    val = FsID.toFsID(SqlFsExec.simpleQueryForLong(db, stmt, SQLGETFIELD[field.ordinal()]));
                     break;
         		}
         	}
-        	else {
-        		val = __getDefaultValue(field);
-        	}
+        }
+        catch (SQLiteDoneException e) {
+        	// no such row
         }
         catch (Exception e) {
         	SqlFsLog.debug(e);
         	SqlFsErrCode.setCurrentError(FsErr.GetFieldError);
-        	val = __getDefaultValue(field); // return a default value here 
-        }
-        finally {
-        	SqlFsFunc.close(c);
         }
         
+        if (val == null)
+        	val = __getDefaultValue(field); // return a default value here 
+        
         return val;
     }
     
@@ -270,14 +391,12 @@ public abstract class SqlFsNode
               val = (int)0;
               break;
            case fsName:
+           case fsPath:
               val = "";
               break;
            case fsParent:
               val = SqlFsConst.INVALIDID;
               break;
-           case fsChildCount:
-              val = (int)0;
-              break;
         }
         
         return val;
@@ -299,34 +418,45 @@ public abstract class SqlFsNode
      */
     private boolean __setField(SqlFs.FSBLOCK field, Object val)
     {
-    	ArrayList<Object> colsAndValues = new ArrayList<Object>(4);
-
-        switch (field) {
-          case fsFileSize:
-          case fsType:
-          case fsName:
-          case fsParent:
-             colsAndValues.add(field.toString());
-             colsAndValues.add(val);
-             break;
-          case fsChild:
-             byte[] blob = idList2Blob((ArrayList<FsID>)val);
-             colsAndValues.add(field.toString());
-             colsAndValues.add(blob);
-             break;
-        }
-
-        // update last mod time as well
-        colsAndValues.add(SqlFs.FSBLOCK.fsLastModTime.toString());
-        colsAndValues.add(SqlFsFunc.calToFileTime(Calendar.getInstance()));
-        ContentValues contValues = SqlStr.genContentValues(colsAndValues);
+        // snapshot is no longer valid
+        this.info = null;
 
-    	String where = SqlStr.genWhere(new SqlStr.SqlSimpCond(SqlFs.FSBLOCK.fsID.toString(), "=", this.getID()));
-    	
     	int rowAffected = 0;
     	
         try {
-           rowAffected = db.update(SqlFs.DBNAMES.FsBlock.toString(), contValues, where, null);
+           SqlFsStmtCache stmtCache = SqlFsStmtCache.getCache(db);
+           SQLiteStatement stmt = stmtCache.getStatement(SQLSETFIELD[field.ordinal()]);
+           int index = 1;
+           
+           switch (field) {
+             case fsFileSize:
+             case fsType:
+                stmt.bindLong(index++, ((Number)val).longValue());
+                break;
+             case fsName:
+             case fsPath:
+                stmt.bindString(index++, (String)val);
+                break;
+             case fsParent:
+                stmt.bindLong(index++, ((FsID)val).getVal());
+                break;
+             case fsChild:
+                byte[] blob = idList2Blob((long[])val);
+                if (blob == null)
+                   stmt.bindNull(index++);
+                else
+                   stmt.bindBlob(index++, blob);
+                break;
+             case fsLastModTime:
+                break;  // updated below anyway
+           }
+
+           // update last mod time as well
+           stmt.bindLong(index++, SqlFsFunc.calToFileTime(Calendar.getInstance()));
+           stmt.bindLong(index, this.getID().getVal());
+           
+           SqlFsExec.execute(db, stmt, SQLSETFIELD[field.ordinal()]);
+           rowAffected = stmtCache.changes();
         }
         catch (Exception e) {
            SqlFsLog.debug(e);
@@ -336,6 +466,16 @@ public abstract class SqlFsNode
         return (rowAffected > 0);
     }
     
+    /**
+     *  Update last mod time only
+     *
+     *  @return false if the entry no longer exists
+     */
+    protected boolean touch()
+    {
+       return setField(SqlFs.FSBLOCK.fsLastModTime, null);
+    }
+    
     /**
      *  Check if a dir/file name contains invalid character
      *
@@ -372,7 +512,7 @@ public abstract class SqlFsNode
        SqlFsErrCode.setCurrentError(FsErr.OK);
     	
        boolean isOK = false;
-       fsLocker.getFsLock();
+       fsLocker.getFsLock(IFsMetrics.FSOP.RENAME);
        SqlFsTransaction fsTran = new SqlFsTransaction(db);
        try {
     	  isOK = __rename(newName);
@@ -402,7 +542,7 @@ public abstract class SqlFsNode
           return false;
        }
        
-       SqlDir parentDir = this.getParent();
+       SqlDir parentDir = this.getParentFromDB();
        if (parentDir == null) {
     	  SqlFsErrCode.setCurrentError(FsErr.NoParent);
           return false;
@@ -413,7 +553,10 @@ public abstract class SqlFsNode
           return false;
        }
 
+       fsLocker.getPathCache().invalidate(this.getID(), this.isDir());
+       String oldPath = (String)getField(SqlFs.FSBLOCK.fsPath);
        setField(SqlFs.FSBLOCK.fsName, newName);
+       SqlFsPath.setPath(db, this.getID(), this.isDir() ? oldPath : null);
 
        return true;
     }
@@ -427,7 +570,7 @@ public abstract class SqlFsNode
     {
        SqlFsErrCode.setCurrentError(FsErr.OK);
     	
-       fsLocker.getFsLock();
+       fsLocker.getFsReadLock(IFsMetrics.FSOP.GETINFO);
        try {
           return __isAncestor(dir);
        }
@@ -441,25 +584,19 @@ public abstract class SqlFsNode
      */
     private boolean __isAncestor(SqlDir dir)
     {
-       boolean found = false;
-       SqlFsNode curNode = this;
-
-       do {
-          curNode = curNode.getParent();
-          if (curNode == null)
-             break;
-
-          if (curNode.getID().equals(dir.getID())) {
-             found = true;
-             break;
-          }
+       if (this.getID().equals(SqlFsConst.ROOTDIRID))   // root has no ancestor
+          return false;
 
-          if (curNode.getID().equals(SqlFsConst.ROOTDIRID)) // reach root
-             break;
+       if (dir.getID().equals(SqlFsConst.ROOTDIRID))
+          return true;
 
-       } while(true);
+       // an ancestor's path is a leading part of its path
+       String dirPath = SqlFsPath.getPath(db, dir.getID());
+       String path = SqlFsPath.getPath(db, this.getID());
+       if (dirPath == null || path == null)
+          return false;
 
-       return found;
+       return path.startsWith(dirPath + SqlFsConst.PATHSEP);
     }
 
     public boolean move(String destPath)
@@ -467,7 +604,7 @@ public abstract class SqlFsNode
     	SqlFsErrCode.setCurrentError(FsErr.OK);
     	
     	boolean isOK = false;
-        fsLocker.getFsLock();
+        fsLocker.getFsLock(IFsMetrics.FSOP.MOVE);
         SqlFsTransaction fsTran = new SqlFsTransaction(db);
         try {
      	   isOK = __move(destPath);
@@ -503,7 +640,7 @@ public abstract class SqlFsNode
        }
        else {
           // relative path
-          SqlDir parent = this.getParent();
+          SqlDir parent = this.getParentFromDB();
           if (parent != null)
              destDir = parent.getDir(destPath);
        }
@@ -520,7 +657,7 @@ public abstract class SqlFsNode
     	SqlFsErrCode.setCurrentError(FsErr.OK);
     	
     	boolean isOK = false;
-        fsLocker.getFsLock();
+        fsLocker.getFsLock(IFsMetrics.FSOP.MOVE);
         SqlFsTransaction fsTran = new SqlFsTransaction(db);
         try {
      	   isOK = __move(destDir);
@@ -556,28 +693,32 @@ public abstract class SqlFsNode
              break;
           }
 
-          if (destDir.isAlreadyExist(this.getName())) { // can't move if there is one with the same name
+          if (destDir.isAlreadyExist((String)getField(SqlFs.FSBLOCK.fsName))) { // can't move if there is one with the same name
     	     SqlFsErrCode.setCurrentError(FsErr.NameAlreadyExists);
              break;
           }
 
-          // unlink itself from parent
-          SqlDir parent = this.getParent();
+          fsLocker.getPathCache().invalidate(this.getID(), this.isDir());
+
+          SqlDir parent = this.getParentFromDB();
           if (parent == null) {
     	     SqlFsErrCode.setCurrentError(FsErr.NoParent);
              break;
           }
 
-          if (!parent.updateChildList(SqlFsConst.FSOP.DEL, this.getID(), FsID.toFsID(0)))
-    	     break;
+          // dest dir must still exist
+          if (!destDir.touch()) {
+        	 SqlFsErrCode.setCurrentError(FsErr.DestDirNotFound);
+             break;
+          }
 
-          // update parent ID
+          // update parent ID, which moves itself to dest dir
+          String oldPath = (String)getField(SqlFs.FSBLOCK.fsPath);
           if (!setField(SqlFs.FSBLOCK.fsParent, destDir.getID()))
         	 break;
+          SqlFsPath.setPath(db, this.getID(), this.isDir() ? oldPath : null);
 
-          // add itself to dest dir
-          if (!destDir.updateChildList(SqlFsConst.FSOP.ADD, this.getID(), FsID.toFsID(0)))
-    	     break;
+          parent.touch();
        
           return true;
           
@@ -586,4 +727,71 @@ public abstract class SqlFsNode
        return false;
     }
 
+    public SqlFsNode copyTo(SqlDir destDir)
+    {
+    	SqlFsErrCode.setCurrentError(FsErr.OK);
+    	
+    	SqlFsNode copy = null;
+        fsLocker.getFsLock(IFsMetrics.FSOP.COPY);
+        SqlFsTransaction fsTran = new SqlFsTransaction(db);
+        try {
+           copy = __copyTo(destDir);
+     	   if (copy != null)
+     	      fsTran.fsOpSuccess();
+        }
+        finally {
+           SqlFsSubtree.clear(db);
+     	   fsTran.dispose();
+     	   fsLocker.dispose();
+        }
+        
+        return copy;
+    }
+
+    /**
+     *  Copy itself (and everything under it for dir) to a destination dir, with the same name.
+     *  File data are copied inside the DB, never loaded.
+     *
+     *  @return the copy
+     */
+    private SqlFsNode __copyTo(SqlDir destDir)
+    {
+       do {
+          if (this.isDir() && (this.getID().equals(destDir.getID()) ||     // can't copy to itself or its subdir
+                               destDir.isAncestor((SqlDir)this))) {
+             SqlFsErrCode.setCurrentError(FsErr.CannotCopyToSubdir);
+             break;
+          }
+
+          String name = (String)getField(SqlFs.FSBLOCK.fsName);
+          if (name == null) {
+             SqlFsErrCode.setCurrentError(FsErr.GetFieldError);
+             break;
+          }
+
+          if (destDir.isAlreadyExist(name)) { // can't copy if there is one with the same name
+    	     SqlFsErrCode.setCurrentError(FsErr.NameAlreadyExists);
+             break;
+          }
+
+          // dest dir must still exist
+          if (!destDir.touch()) {
+        	 SqlFsErrCode.setCurrentError(FsErr.DestDirNotFound);
+             break;
+          }
+
+          SqlFsConst.FSTYPE type = this.isDir() ? SqlFsConst.FSTYPE.DIR : SqlFsConst.FSTYPE.FILE;
+          if (SqlFsSubtree.collect(db, this.getID(), type) == null)
+             break;
+
+          FsID newID = SqlFsSubtree.copy(db, destDir.getID());
+          if (newID.compare(SqlFsConst.INVALIDID) <= 0)
+             break;
+
+          return SqlFsNode.getFsNode(db, fsLocker, newID, type);
+          
+       } while(false);
+
+       return null;
+    }
 }
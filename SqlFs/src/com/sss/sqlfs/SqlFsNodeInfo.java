@@ -0,0 +1,121 @@
+package com.sss.sqlfs;
+
+import java.util.Calendar;
+
+import android.database.Cursor;
+
+import com.sss.sqlfs.helper.SqlStr;
+
+/**
+ *  A snapshot of a FsBlock row (all columns except fsChild), filled by one query.
+ *
+ *  Values are not updated when the DB is changed by others, call SqlFsNode.refresh()
+ *  to fetch them again.
+ */
+public class SqlFsNodeInfo
+{
+   //! columns of the snapshot, in the same order (ordinal) as SqlFs.FSBLOCK up to fsParent, then fsPath
+   static final String[] COLUMNS = new String[]{SqlFs.FSBLOCK.fsID.toString(),
+                                                SqlFs.FSBLOCK.fsType.toString(),
+                                                SqlFs.FSBLOCK.fsCreateTime.toString(),
+                                                SqlFs.FSBLOCK.fsLastModTime.toString(),
+                                                SqlFs.FSBLOCK.fsFileSize.toString(),
+                                                SqlFs.FSBLOCK.fsName.toString(),
+                                                SqlFs.FSBLOCK.fsParent.toString(),
+                                                SqlFs.FSBLOCK.fsPath.toString()};
+   //! index of fsPath in 'COLUMNS', fsChild is skipped
+   private static final int PATHIDX = COLUMNS.length - 1;
+   //! SQL to get a snapshot by ID
+   static final String SQLGETBYID = SqlStr.genSelect(SqlFs.DBNAMES.FsBlock.toString(), COLUMNS, 
+                                                     SqlFs.FSBLOCK.fsID.toString());
+
+   private FsID id;
+   private SqlFsConst.FSTYPE type;
+   private long createTime;      ///< windows file time
+   private long lastModTime;     ///< windows file time
+   private int fileSize;
+   private String name;
+   private FsID parentID;
+   private String path;          ///< "" for root
+
+   private SqlFsNodeInfo() { }
+
+   /**
+    *  Snapshot with default values, for a row not found
+    */
+   static SqlFsNodeInfo getDefault(FsID id)
+   {
+      SqlFsNodeInfo info = new SqlFsNodeInfo();
+      info.id = id;
+      info.type = SqlFsConst.FSTYPE.toFSTYPE(0);
+      info.createTime = 0;
+      info.lastModTime = 0;
+      info.fileSize = 0;
+      info.name = "";
+      info.parentID = SqlFsConst.INVALIDID;
+      info.path = "";
+
+      return info;
+   }
+
+   /**
+    *  Get a snapshot from current row of a cursor queried with 'COLUMNS'
+    */
+   static SqlFsNodeInfo getInfo(Cursor c)
+   {
+      SqlFsNodeInfo info = new SqlFsNodeInfo();
+      info.id = SqlFsFunc.getID(c, SqlFs.FSBLOCK.fsID.ordinal());
+      info.type = SqlFsConst.FSTYPE.toFSTYPE(c.getInt(SqlFs.FSBLOCK.fsType.ordinal()));
+      info.createTime = c.getLong(SqlFs.FSBLOCK.fsCreateTime.ordinal());
+      info.lastModTime = c.getLong(SqlFs.FSBLOCK.fsLastModTime.ordinal());
+      info.fileSize = c.getInt(SqlFs.FSBLOCK.fsFileSize.ordinal());
+      info.name = c.isNull(SqlFs.FSBLOCK.fsName.ordinal()) ? "" : c.getString(SqlFs.FSBLOCK.fsName.ordinal());
+      info.parentID = SqlFsFunc.getID(c, SqlFs.FSBLOCK.fsParent.ordinal());
+      info.path = c.isNull(PATHIDX) ? "" : c.getString(PATHIDX);
+
+      return info;
+   }
+
+   FsID getID()
+   {
+      return id;
+   }
+
+   FsID getParentID()
+   {
+      return parentID;
+   }
+
+   public SqlFsConst.FSTYPE getType()
+   {
+      return type;
+   }
+
+   public Calendar getCreateTime()
+   {
+      return SqlFsFunc.fileTimeToCal(createTime);
+   }
+
+   public Calendar getLastModTime()
+   {
+      return SqlFsFunc.fileTimeToCal(lastModTime);
+   }
+
+   public int getFileSize()
+   {
+      return fileSize;
+   }
+
+   public String getName()
+   {
+      return name;
+   }
+
+   /**
+    *  @return absolute path, e.g. "/path/to/file", "/" for root
+    */
+   public String getPath()
+   {
+      return (path.length() == 0) ? SqlFsConst.STRPATHSEP : path;
+   }
+}
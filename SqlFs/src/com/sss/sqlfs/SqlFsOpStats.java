@@ -0,0 +1,68 @@
+package com.sss.sqlfs;
+
+import com.sss.sqlfs.SqlFsErrCode.FsErr;
+
+/**
+ *  Stats of an FS operation, passed to IFsMetrics.onOpDone()
+ *
+ *  Time spent running SQL is the latency less lock wait and commit.
+ */
+public class SqlFsOpStats
+{
+   IFsMetrics.FSOP op;
+   long latencyNs = 0;       ///< from requesting the lock to releasing it
+   long lockWaitNs = 0;      ///< waiting for the FS lock, including nested calls
+   long commitNs = 0;        ///< ending transactions
+   int stmtCount = 0;        ///< SQL statements run (see SqlFsExec)
+   long bytesRead = 0;       ///< file data
+   long bytesWritten = 0;    ///< file data
+   FsErr err = FsErr.OK;
+
+   SqlFsOpStats(IFsMetrics.FSOP op)
+   {
+      this.op = op;
+   }
+
+   public IFsMetrics.FSOP getOp()
+   {
+      return op;
+   }
+
+   public long getLatencyNs()
+   {
+      return latencyNs;
+   }
+
+   public long getLockWaitNs()
+   {
+      return lockWaitNs;
+   }
+
+   public long getCommitNs()
+   {
+      return commitNs;
+   }
+
+   public int getStmtCount()
+   {
+      return stmtCount;
+   }
+
+   public long getBytesRead()
+   {
+      return bytesRead;
+   }
+
+   public long getBytesWritten()
+   {
+      return bytesWritten;
+   }
+
+   /**
+    *  @return error code when the operation ends, FsErr.OK if succeeded
+    */
+   public FsErr getError()
+   {
+      return err;
+   }
+}
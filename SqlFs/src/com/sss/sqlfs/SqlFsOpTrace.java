@@ -0,0 +1,176 @@
+package com.sss.sqlfs;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ *  Stats of the FS operation running in each thread, collected only when an IFsMetrics
+ *  or SqlFsDiagnostics is set on a DB (see SqlFsLocker.setMetrics). Otherwise each hook
+ *  is a check of 'enabledCount' only.
+ *
+ *  The operation begins when the FS lock is taken (by getFsLock(op) or getFsReadLock(op))
+ *  and no operation is running in the thread, and ends when that lock is released.
+ */
+class SqlFsOpTrace
+{
+   //! number of DBs with metrics or diagnostics set
+   private static volatile int enabledCount = 0;
+
+   //! trace of each thread
+   private static ThreadLocal<SqlFsOpTrace> threadLocalTrace = new ThreadLocal<SqlFsOpTrace>()
+   {
+      protected SqlFsOpTrace initialValue() {
+         return new SqlFsOpTrace();
+      }
+   };
+
+   private int depth = 0;          ///< nesting of the FS lock
+   private int opDepth = 0;        ///< 'depth' where the running operation began
+   private long startTime = 0;     ///< System.nanoTime() when the lock is requested
+   private IFsMetrics metrics;
+   private SqlFsDiagnostics diagnostics;
+   private SqlFsOpStats stats;     ///< null if no operation is running
+
+   private SqlFsOpTrace() { }
+
+   static synchronized void enable(boolean isEnabled)
+   {
+      enabledCount += isEnabled ? 1 : -1;
+   }
+
+   static boolean isEnabled()
+   {
+      return enabledCount > 0;
+   }
+
+   /**
+    *  Called when the FS lock is taken
+    *
+    *  @param [in] metrics -- may be null
+    *  @param [in] diagnostics -- may be null
+    *  @param [in] op -- null if not an operation of its own
+    *  @param [in] requestTime -- System.nanoTime() when the lock is requested
+    *  @param [in] lockedTime -- System.nanoTime() when the lock is taken
+    */
+   static void enter(IFsMetrics metrics, SqlFsDiagnostics diagnostics, IFsMetrics.FSOP op, long requestTime, long lockedTime)
+   {
+      SqlFsOpTrace trace = threadLocalTrace.get();
+      ++trace.depth;
+
+      if (trace.stats == null) {
+         if (op == null)
+            return;
+
+         trace.stats = new SqlFsOpStats(op);
+         trace.metrics = metrics;
+         trace.diagnostics = diagnostics;
+         trace.opDepth = trace.depth;
+         trace.startTime = requestTime;
+      }
+
+      trace.stats.lockWaitNs += lockedTime - requestTime;
+   }
+
+   /**
+    *  Called when the FS lock is released
+    */
+   static void exit()
+   {
+      SqlFsOpTrace trace = threadLocalTrace.get();
+      if (trace.depth == 0)
+         return;   // metrics set while the lock was held
+
+      if (--trace.depth >= trace.opDepth || trace.stats == null)
+         return;
+
+      SqlFsOpStats stats = trace.stats;
+      IFsMetrics metrics = trace.metrics;
+      SqlFsDiagnostics diagnostics = trace.diagnostics;
+      stats.latencyNs = System.nanoTime() - trace.startTime;
+      stats.err = SqlFsErrCode.getLastError();
+      trace.stats = null;
+      trace.metrics = null;
+      trace.diagnostics = null;
+      trace.opDepth = 0;
+
+      try {
+         if (metrics != null)
+            metrics.onOpDone(stats);
+         if (diagnostics != null)
+            diagnostics.onOpDone(stats);
+      }
+      catch (Exception e) {
+         SqlFsLog.debug(e);
+      }
+   }
+
+   /**
+    *  Forget the operation of this thread, when metrics are changed
+    */
+   static void reset()
+   {
+      threadLocalTrace.remove();
+   }
+
+   private static SqlFsOpStats getStats()
+   {
+      return (enabledCount == 0) ? null : threadLocalTrace.get().stats;
+   }
+
+   /**
+    *  Count a statement run by the operation of this thread
+    *
+    *  @return true if the statement is to be timed and passed to stmtDone()
+    */
+   static boolean addStmt()
+   {
+      if (enabledCount == 0)
+         return false;
+
+      SqlFsOpTrace trace = threadLocalTrace.get();
+      if (trace.stats == null)
+         return false;
+
+      ++trace.stats.stmtCount;
+      return (trace.diagnostics != null);
+   }
+
+   /**
+    *  Called after a statement for which addStmt() returned true
+    *
+    *  @param [in] canExplain -- false if 'sql' is only a description of the statement
+    */
+   static void stmtDone(SQLiteDatabase db, String sql, long timeNs, boolean canExplain)
+   {
+      SqlFsOpTrace trace = threadLocalTrace.get();
+      if (trace.stats == null || trace.diagnostics == null)
+         return;
+
+      try {
+         trace.diagnostics.onStmt(db, trace.stats.op, sql, timeNs, canExplain);
+      }
+      catch (Exception e) {
+         SqlFsLog.debug(e);
+      }
+   }
+
+   static void addCommitTime(long ns)
+   {
+      SqlFsOpStats stats = getStats();
+      if (stats != null)
+         stats.commitNs += ns;
+   }
+
+   static void addBytesRead(long n)
+   {
+      SqlFsOpStats stats = getStats();
+      if (stats != null && n > 0)
+         stats.bytesRead += n;
+   }
+
+   static void addBytesWritten(long n)
+   {
+      SqlFsOpStats stats = getStats();
+      if (stats != null && n > 0)
+         stats.bytesWritten += n;
+   }
+}
@@ -0,0 +1,190 @@
+package com.sss.sqlfs;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ *  Connection settings (PRAGMAs) applied when a SqlFs is created
+ *
+ *  Use one of the presets, or a preset changed by the setters. Settings left as
+ *  default (null or 0) are not touched. All settings are applied best-effort,
+ *  a PRAGMA not supported by the SQLite of the device is ignored.
+ *
+ *  Note:
+ *    page size only takes effect on a new DB.
+ */
+public class SqlFsOptions
+{
+   public enum JOURNALMODE { DELETE, TRUNCATE, PERSIST, MEMORY, WAL, OFF };
+   public enum SYNCMODE { OFF, NORMAL, FULL };
+   public enum TEMPSTORE { DEFAULT, FILE, MEMORY };
+
+   //! names of the presets
+   public static final String PROFILEDURABLE = "durable";
+   public static final String PROFILEBALANCED = "balanced";
+   public static final String PROFILEBULKLOAD = "bulk-load";
+   public static final String PROFILECUSTOM = "custom";
+
+   private String profile;
+   private JOURNALMODE journalMode = null;
+   private SYNCMODE syncMode = null;
+   private int pageSize = 0;      ///< in bytes
+   private int cacheSize = 0;     ///< in pages if > 0, in KB if < 0 (same as PRAGMA cache_size)
+   private long mmapSize = -1;    ///< in bytes, -1 for default
+   private TEMPSTORE tempStore = null;
+
+   public SqlFsOptions()
+   {
+      this.profile = PROFILECUSTOM;
+   }
+
+   private SqlFsOptions(String profile)
+   {
+      this.profile = profile;
+   }
+
+   /**
+    *  Every transaction is synced, survives power loss
+    */
+   public static SqlFsOptions durable()
+   {
+      SqlFsOptions opt = new SqlFsOptions(PROFILEDURABLE);
+      opt.journalMode = JOURNALMODE.WAL;
+      opt.syncMode = SYNCMODE.FULL;
+      opt.pageSize = 4096;
+      return opt;
+   }
+
+   /**
+    *  Fewer syncs, the last transactions may be lost on power loss but the DB stays consistent
+    */
+   public static SqlFsOptions balanced()
+   {
+      SqlFsOptions opt = new SqlFsOptions(PROFILEBALANCED);
+      opt.journalMode = JOURNALMODE.WAL;
+      opt.syncMode = SYNCMODE.NORMAL;
+      opt.pageSize = 4096;
+      opt.cacheSize = -2048;              // 2MB
+      opt.mmapSize = 32L * 1024 * 1024;
+      opt.tempStore = TEMPSTORE.MEMORY;
+      return opt;
+   }
+
+   /**
+    *  For filling a DB from scratch, the DB may be corrupted on crash or power loss
+    */
+   public static SqlFsOptions bulkLoad()
+   {
+      SqlFsOptions opt = new SqlFsOptions(PROFILEBULKLOAD);
+      opt.journalMode = JOURNALMODE.MEMORY;
+      opt.syncMode = SYNCMODE.OFF;
+      opt.pageSize = 8192;
+      opt.cacheSize = -8192;              // 8MB
+      opt.mmapSize = 64L * 1024 * 1024;
+      opt.tempStore = TEMPSTORE.MEMORY;
+      return opt;
+   }
+
+   public String getProfile()
+   {
+      return profile;
+   }
+
+   public void setJournalMode(JOURNALMODE journalMode)
+   {
+      this.journalMode = journalMode;
+      this.profile = PROFILECUSTOM;
+   }
+
+   public void setSyncMode(SYNCMODE syncMode)
+   {
+      this.syncMode = syncMode;
+      this.profile = PROFILECUSTOM;
+   }
+
+   public void setPageSize(int pageSize)
+   {
+      this.pageSize = pageSize;
+      this.profile = PROFILECUSTOM;
+   }
+
+   public void setCacheSize(int cacheSize)
+   {
+      this.cacheSize = cacheSize;
+      this.profile = PROFILECUSTOM;
+   }
+
+   public void setMmapSize(long mmapSize)
+   {
+      this.mmapSize = mmapSize;
+      this.profile = PROFILECUSTOM;
+   }
+
+   public void setTempStore(TEMPSTORE tempStore)
+   {
+      this.tempStore = tempStore;
+      this.profile = PROFILECUSTOM;
+   }
+
+   /**
+    *  e.g. "balanced: journal_mode=WAL, synchronous=NORMAL, page_size=4096"
+    */
+   @Override
+   public String toString()
+   {
+      StringBuilder sb = new StringBuilder(128);
+      sb.append(profile).append(':');
+
+      String[] pragmas = getPragmas();
+      for (int i = 0; i < pragmas.length; ++i) {
+         if (pragmas[i] == null)
+            continue;
+         if (sb.charAt(sb.length() - 1) != ':')
+            sb.append(',');
+         sb.append(' ').append(pragmas[i]);
+      }
+
+      return sb.toString();
+   }
+
+   /**
+    *  "name=value" of each PRAGMA, null if not set.
+    *  Page size goes first since it must be set before anything is written to a new DB.
+    */
+   private String[] getPragmas()
+   {
+      return new String[] {
+         (pageSize > 0) ? "page_size=" + pageSize : null,
+         (journalMode != null) ? "journal_mode=" + journalMode.name() : null,
+         (syncMode != null) ? "synchronous=" + syncMode.name() : null,
+         (cacheSize != 0) ? "cache_size=" + cacheSize : null,
+         (mmapSize >= 0) ? "mmap_size=" + mmapSize : null,
+         (tempStore != null) ? "temp_store=" + tempStore.name() : null
+      };
+   }
+
+   /**
+    *  Apply the settings to a connection just opened, best-effort
+    */
+   void apply(SQLiteDatabase db)
+   {
+      for (String pragma : getPragmas()) {
+         if (pragma == null)
+            continue;
+
+         // some PRAGMAs return a row, so always run as a query
+         Cursor c = null;
+         try {
+            c = db.rawQuery("PRAGMA " + pragma, null);
+            if (c.moveToFirst() && c.getColumnCount() > 0)
+               SqlFsLog.debug("PRAGMA " + pragma + " --> " + c.getString(0));
+         }
+         catch (Exception e) {
+            SqlFsLog.debug("PRAGMA " + pragma + " not applied, " + e.getMessage());
+         }
+         finally {
+            SqlFsFunc.close(c);
+         }
+      }
+   }
+}
@@ -0,0 +1,225 @@
+package com.sss.sqlfs;
+
+import java.util.HashMap;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.database.Cursor;
+
+import com.sss.sqlfs.SqlFsErrCode.FsErr;
+
+/**
+ *  Absolute path of each node, kept in column fsPath of FsBlock (e.g. "/path/to/file",
+ *  "" for root) and indexed, so that
+ *    -- a whole path is resolved by equality probes of the index in a single query
+ *    -- all nodes under a dir are one range of the index: fsPath > "/dir/" AND fsPath < "/dir0"
+ *       ('0' comes right after '/')
+ *
+ *  The path is set when a node is added, and updated (for everything under it as well)
+ *  when it is renamed or moved.
+ */
+class SqlFsPath
+{
+   private SqlFsPath() { }
+
+   //! max. number of segments resolved in one query (one host parameter each)
+   static final int MAXDEPTH = 32;
+
+   //! the character right after PATHSEP, upper bound of paths under a dir
+   static final char PATHSEPNEXT = (char)(SqlFsConst.PATHSEP + 1);
+
+   //! generated SQL, index is depth
+   private static final String[] resolveSql = new String[MAXDEPTH + 1];
+
+   private static final String SQLGETPATH = "SELECT " + SqlFs.FSBLOCK.fsPath.toString() + " FROM " +
+                                            SqlFs.DBNAMES.FsBlock.toString() + " WHERE " +
+                                            SqlFs.FSBLOCK.fsID.toString() + " = ?";
+   // path from the parent's, "" for root
+   private static final String SELPATHFROMPARENT = "(SELECT p." + SqlFs.FSBLOCK.fsPath.toString() + " FROM " +
+                                                   SqlFs.DBNAMES.FsBlock.toString() + " p WHERE p." +
+                                                   SqlFs.FSBLOCK.fsID.toString() + " = " +
+                                                   SqlFs.DBNAMES.FsBlock.toString() + "." +
+                                                   SqlFs.FSBLOCK.fsParent.toString() + ") || '" +
+                                                   SqlFsConst.PATHSEP + "' || " + SqlFs.FSBLOCK.fsName.toString();
+   private static final String SQLSETPATH = "UPDATE " + SqlFs.DBNAMES.FsBlock.toString() + " SET " +
+                                            SqlFs.FSBLOCK.fsPath.toString() + " = CASE WHEN " +
+                                            SqlFs.FSBLOCK.fsID.toString() + " = " + SqlFsConst.ROOTDIRID.getVal() +
+                                            " THEN '' ELSE " + SELPATHFROMPARENT + " END WHERE " +
+                                            SqlFs.FSBLOCK.fsID.toString() + " = ?";
+   // replace leading part of paths under a dir, ? are new path, old path, old path
+   private static final String SQLMOVEUNDER = "UPDATE " + SqlFs.DBNAMES.FsBlock.toString() + " SET " +
+                                              SqlFs.FSBLOCK.fsPath.toString() + " = ? || substr(" +
+                                              SqlFs.FSBLOCK.fsPath.toString() + ", length(?) + 1) WHERE " +
+                                              SqlFs.FSBLOCK.fsPath.toString() + " > ? AND " +
+                                              SqlFs.FSBLOCK.fsPath.toString() + " < ?";
+   // fill paths of an older DB, level by level from root
+   private static final String SQLFILLROOT = "UPDATE " + SqlFs.DBNAMES.FsBlock.toString() + " SET " +
+                                             SqlFs.FSBLOCK.fsPath.toString() + " = '' WHERE " +
+                                             SqlFs.FSBLOCK.fsID.toString() + " = " + SqlFsConst.ROOTDIRID.getVal();
+   private static final String SQLFILLLEVEL = "UPDATE " + SqlFs.DBNAMES.FsBlock.toString() + " SET " +
+                                              SqlFs.FSBLOCK.fsPath.toString() + " = " + SELPATHFROMPARENT +
+                                              " WHERE " + SqlFs.FSBLOCK.fsPath.toString() + " IS NULL AND " +
+                                              SqlFs.FSBLOCK.fsParent.toString() + " IN (SELECT " +
+                                              SqlFs.FSBLOCK.fsID.toString() + " FROM " +
+                                              SqlFs.DBNAMES.FsBlock.toString() + " WHERE " +
+                                              SqlFs.FSBLOCK.fsType.toString() + " = " + SqlFsConst.FSTYPE.DIR.v() +
+                                              " AND " + SqlFs.FSBLOCK.fsPath.toString() + " IS NOT NULL)";
+
+   /**
+    *  Generate query like (for 3 segments)
+    *
+    *    SELECT fsID, fsType, fsPath FROM FsBlock WHERE fsPath IN (?, ?, ?)
+    */
+   private static String genResolveSql(int depth)
+   {
+      StringBuilder sb = new StringBuilder(128 + depth * 3);
+      sb.append("SELECT ").append(SqlFs.FSBLOCK.fsID.toString()).append(", ");
+      sb.append(SqlFs.FSBLOCK.fsType.toString()).append(", ");
+      sb.append(SqlFs.FSBLOCK.fsPath.toString());
+      sb.append(" FROM ").append(SqlFs.DBNAMES.FsBlock.toString());
+      sb.append(" WHERE ").append(SqlFs.FSBLOCK.fsPath.toString()).append(" IN (");
+      for (int i = 0; i < depth; ++i) {
+         if (i > 0)
+            sb.append(", ");
+         sb.append('?');
+      }
+      sb.append(')');
+
+      return sb.toString();
+   }
+
+   private static String getResolveSql(int depth)
+   {
+      synchronized (resolveSql) {
+         if (resolveSql[depth] == null)
+            resolveSql[depth] = genResolveSql(depth);
+
+         return resolveSql[depth];
+      }
+   }
+
+   /**
+    *  Resolve path segments starting from a dir
+    *
+    *  @param [in] startID -- ID of the dir where 'names[0]' is located
+    *  @param [in] names -- path segments, must not contain "", "." or ".."
+    *  @param [out] ids -- ID of each segment, INVALIDID if not found
+    *  @param [out] types -- type of each segment, FSTYPE.UNKNOWN if not found
+    *
+    *  @return number of leading segments resolved
+    *  @return -1 if query failed
+    */
+   static int resolve(SQLiteDatabase db, FsID startID, String[] names, FsID[] ids, SqlFsConst.FSTYPE[] types)
+   {
+      int depth = names.length;
+      for (int i = 0; i < depth; ++i) {
+         ids[i] = SqlFsConst.INVALIDID;
+         types[i] = SqlFsConst.FSTYPE.UNKNOWN;
+      }
+
+      if (depth == 0)
+         return 0;
+
+      String startPath = startID.equals(SqlFsConst.ROOTDIRID) ? "" : getPath(db, startID);
+      if (startPath == null)
+         return -1;
+
+      // path of each segment
+      String[] args = new String[depth];
+      HashMap<String, Integer> segByPath = new HashMap<String, Integer>(depth * 2);
+      StringBuilder sb = new StringBuilder(startPath);
+      for (int i = 0; i < depth; ++i) {
+         sb.append(SqlFsConst.PATHSEP).append(names[i]);
+         args[i] = sb.toString();
+         segByPath.put(args[i], i);
+      }
+
+      Cursor c = null;
+      try {
+         c = SqlFsExec.rawQuery(db, getResolveSql(depth), args);
+         if (c.moveToFirst()) {
+            do {
+               Integer i = segByPath.get(c.getString(2));
+               if (i == null)
+                  continue;
+
+               ids[i] = SqlFsFunc.getID(c, 0);
+               types[i] = SqlFsConst.FSTYPE.toFSTYPE(c.getInt(1));
+            } while (c.moveToNext());
+         }
+      }
+      catch (Exception e) {
+         SqlFsLog.debug(e);
+         SqlFsErrCode.setCurrentError(FsErr.NoEntryByName);
+         return -1;
+      }
+      finally {
+         SqlFsFunc.close(c);
+      }
+
+      int resolved = 0;
+      while (resolved < depth && types[resolved] != SqlFsConst.FSTYPE.UNKNOWN)
+         ++resolved;
+      return resolved;
+   }
+
+   /**
+    *  @return absolute path of a node, "" for root, null if not found
+    */
+   static String getPath(SQLiteDatabase db, FsID id)
+   {
+      try {
+         SQLiteStatement stmt = SqlFsStmtCache.getCache(db).getStatement(SQLGETPATH);
+         stmt.bindLong(1, id.getVal());
+         return SqlFsExec.simpleQueryForString(db, stmt, SQLGETPATH);
+      }
+      catch (SQLiteDoneException e) {
+         return null;
+      }
+   }
+
+   /**
+    *  Set path of a node from its parent and name, after it is renamed or moved, then update
+    *  paths of all nodes under it
+    *
+    *  @param [in] oldPath -- path before renamed or moved, null if nothing under it
+    */
+   static void setPath(SQLiteDatabase db, FsID id, String oldPath)
+   {
+      SqlFsStmtCache cache = SqlFsStmtCache.getCache(db);
+      SQLiteStatement stmt = cache.getStatement(SQLSETPATH);
+      stmt.bindLong(1, id.getVal());
+      SqlFsExec.execute(db, stmt, SQLSETPATH);
+
+      if (oldPath == null)
+         return;
+
+      String newPath = getPath(db, id);
+      stmt = cache.getStatement(SQLMOVEUNDER);
+      stmt.bindString(1, newPath);
+      stmt.bindString(2, oldPath);
+      stmt.bindString(3, oldPath + SqlFsConst.PATHSEP);
+      stmt.bindString(4, oldPath + PATHSEPNEXT);
+      SqlFsExec.execute(db, stmt, SQLMOVEUNDER);
+   }
+
+   /**
+    *  Fill paths of all nodes of an older DB
+    */
+   static void fillAll(SQLiteDatabase db)
+   {
+      db.execSQL(SQLFILLROOT);
+
+      SQLiteStatement stmt = db.compileStatement(SQLFILLLEVEL);
+      try {
+         SqlFsStmtCache cache = SqlFsStmtCache.getCache(db);
+         do {
+            stmt.execute();
+         } while (cache.changes() > 0);
+      }
+      finally {
+         stmt.close();
+      }
+   }
+}
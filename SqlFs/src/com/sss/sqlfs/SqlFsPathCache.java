@@ -0,0 +1,146 @@
+package com.sss.sqlfs;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *  A size-bounded LRU cache of absolute path --> IDs. There is one cache per DB,
+ *  kept by SqlFsLocker, so it is shared by all SqlFs instances on the same DB.
+ *
+ *  Each entry keeps the IDs of every segment of the path, so a node can be
+ *  invalidated together with all paths passing through it (i.e. the whole subtree of a dir).
+ *
+ *  Only paths found are cached. Since FsBlock IDs are never reused (autoincrement),
+ *  adding a dir or file can't make any entry stale; rename, move and delete must
+ *  call invalidate().
+ */
+class SqlFsPathCache
+{
+   /**
+    *  Cached result of a path
+    */
+   static class CacheEntry
+   {
+      final long[] ids;               ///< ID of each path segment, last one is the node itself
+      final SqlFsConst.FSTYPE type;   ///< type of the node
+
+      CacheEntry(long[] ids, SqlFsConst.FSTYPE type)
+      {
+         this.ids = ids;
+         this.type = type;
+      }
+
+      long getID()
+      {
+         return ids[ids.length - 1];
+      }
+   }
+
+   private final LinkedHashMap<String, CacheEntry> pathTable;
+   private final HashMap<Long, String> pathByID;   ///< node ID --> key in 'pathTable'
+   private int maxEntries;
+   private long hitCount = 0;
+   private long missCount = 0;
+
+   SqlFsPathCache(int maxEntries)
+   {
+      this.maxEntries = maxEntries;
+      this.pathByID = new HashMap<Long, String>();
+      this.pathTable = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {   // access order
+         private static final long serialVersionUID = 1L;
+
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest)
+         {
+            if (size() > SqlFsPathCache.this.maxEntries) {
+               pathByID.remove(eldest.getValue().getID());
+               return true;
+            }
+            return false;
+         }
+      };
+   }
+
+   synchronized CacheEntry get(String path)
+   {
+      CacheEntry e = pathTable.get(path);
+      if (e == null)
+         ++missCount;
+      else
+         ++hitCount;
+
+      return e;
+   }
+
+   synchronized void put(String path, long[] ids, SqlFsConst.FSTYPE type)
+   {
+      if (maxEntries <= 0)
+         return;
+
+      CacheEntry e = new CacheEntry(ids, type);
+      CacheEntry old = pathTable.put(path, e);
+      if (old != null)
+         pathByID.remove(old.getID());
+      pathByID.put(e.getID(), path);
+   }
+
+   /**
+    *  Remove a node from cache
+    *
+    *  @param [in] id -- ID of the node
+    *  @param [in] isSubtree -- true to remove all paths under it as well (for dir)
+    */
+   synchronized void invalidate(FsID id, boolean isSubtree)
+   {
+      long val = id.getVal();
+
+      String path = pathByID.remove(val);
+      if (path != null)
+         pathTable.remove(path);
+
+      if (!isSubtree)
+         return;
+
+      Iterator<CacheEntry> it = pathTable.values().iterator();
+      while (it.hasNext()) {
+         CacheEntry e = it.next();
+         for (int i = 0; i < e.ids.length - 1; ++i) {   // the last one is the node itself
+            if (e.ids[i] == val) {
+               pathByID.remove(e.getID());
+               it.remove();
+               break;
+            }
+         }
+      }
+   }
+
+   synchronized void clear()
+   {
+      pathTable.clear();
+      pathByID.clear();
+   }
+
+   synchronized void setMaxEntries(int maxEntries)
+   {
+      this.maxEntries = maxEntries;
+
+      // shrink by removing least recently used ones
+      Iterator<Map.Entry<String, CacheEntry>> it = pathTable.entrySet().iterator();
+      while (pathTable.size() > Math.max(maxEntries, 0) && it.hasNext()) {
+         pathByID.remove(it.next().getValue().getID());
+         it.remove();
+      }
+   }
+
+   synchronized long getHitCount()
+   {
+      return hitCount;
+   }
+
+   synchronized long getMissCount()
+   {
+      return missCount;
+   }
+}
@@ -0,0 +1,92 @@
+package com.sss.sqlfs;
+
+import java.util.HashMap;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ *  Cache of compiled statements of a connection. 
+ *
+ *  All SQL used by SqlFs on FsBlock and DataBlock is a fixed string with bound
+ *  arguments ('?'), so each one is compiled only once per connection.
+ */
+class SqlFsStmtCache
+{
+   private static HashMap<SQLiteDatabase, SqlFsStmtCache> cacheTable = null;
+
+   /**
+    *  Get/create the cache of a connection
+    */
+   final static synchronized SqlFsStmtCache getCache(SQLiteDatabase db)
+   {
+      if (cacheTable == null)
+         cacheTable = new HashMap<SQLiteDatabase, SqlFsStmtCache>();
+
+      SqlFsStmtCache cache = cacheTable.get(db);
+      if (cache == null) {
+         cache = new SqlFsStmtCache(db);
+         cacheTable.put(db, cache);
+      }
+
+      return cache;
+   }
+
+   /**
+    *  Close all statements of a connection, must be called before closing it
+    */
+   final static synchronized void close(SQLiteDatabase db)
+   {
+      if (cacheTable == null)
+         return;
+
+      SqlFsStmtCache cache = cacheTable.remove(db);
+      if (cache != null)
+         cache.close();
+   }
+
+   private static final String SQLCHANGES = "SELECT changes()";
+
+   private SQLiteDatabase db;
+   private HashMap<String, SQLiteStatement> stmtTable;
+
+   private SqlFsStmtCache(SQLiteDatabase db)
+   {
+      this.db = db;
+      this.stmtTable = new HashMap<String, SQLiteStatement>();
+   }
+
+   /**
+    *  Get a compiled statement, with all bindings cleared
+    *
+    *  @param [in] sql -- must be one of the constant SQL strings
+    */
+   SQLiteStatement getStatement(String sql)
+   {
+      SQLiteStatement stmt = stmtTable.get(sql);
+      if (stmt == null) {
+         stmt = db.compileStatement(sql);
+         stmtTable.put(sql, stmt);
+      }
+      else {
+         stmt.clearBindings();
+      }
+
+      return stmt;
+   }
+
+   /**
+    *  Number of rows changed by the last UPDATE or DELETE
+    */
+   int changes()
+   {
+      return (int)SqlFsExec.simpleQueryForLong(db, getStatement(SQLCHANGES), SQLCHANGES);
+   }
+
+   private void close()
+   {
+      for (SQLiteStatement stmt : stmtTable.values())
+         stmt.close();
+      stmtTable.clear();
+   }
+}
@@ -0,0 +1,395 @@
+package com.sss.sqlfs;
+
+import java.util.ArrayList;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.sss.sqlfs.SqlFsErrCode.FsErr;
+
+/**
+ *  IDs of a node and all nodes under it, kept in TEMP table "SubtreeNode" so that the
+ *  whole tree can be handled by a few set-based statements.
+ *
+ *  The nodes under the top one are collected by one INSERT ... SELECT on a range of the
+ *  index on fsPath (see SqlFsPath), the level of a node is the number of separators in
+ *  its path.
+ *
+ *  Statements on the TEMP table are not cached, the table is gone if the transaction
+ *  creating it is rolled back.
+ */
+class SqlFsSubtree
+{
+   static final String TABNAME = "SubtreeNode";
+   private static final String IDXNAME = "SubtreeNodeLevelIdx";
+   private static final String DATAIDXNAME = "SubtreeNodeDataIdx";
+
+   enum SUBTREENODE
+   {
+      id,         ///< fsID
+      type,       ///< fsType
+      level,      ///< 0 for the top node
+      dataID,     ///< data block ID of file, NULL for dir
+      newID       ///< fsID of the copy, filled by copy()
+   };
+
+   private static final String SQLCREATE = "CREATE TEMP TABLE IF NOT EXISTS " + TABNAME + " (" +
+                                           SUBTREENODE.id.toString() + " integer primary key, " +
+                                           SUBTREENODE.type.toString() + " integer, " +
+                                           SUBTREENODE.level.toString() + " integer, " +
+                                           SUBTREENODE.dataID.toString() + " integer, " +
+                                           SUBTREENODE.newID.toString() + " integer)";
+   private static final String SQLCREATEIDX = "CREATE INDEX IF NOT EXISTS " + IDXNAME + " ON " + TABNAME +
+                                              " (" + SUBTREENODE.level.toString() + ", " + 
+                                              SUBTREENODE.dataID.toString() + ")";
+   private static final String SQLCREATEDATAIDX = "CREATE INDEX IF NOT EXISTS " + DATAIDXNAME + " ON " + TABNAME +
+                                                  " (" + SUBTREENODE.dataID.toString() + ")";
+   private static final String SQLCLEAR = "DELETE FROM " + TABNAME;
+   private static final String SQLADDTOP = "INSERT INTO " + TABNAME + " (" +
+                                           SUBTREENODE.id.toString() + ", " +
+                                           SUBTREENODE.type.toString() + ", " +
+                                           SUBTREENODE.level.toString() + ") VALUES (?, ?, 0)";
+   // all nodes under the top one, ? are level of the top one, lower and upper bounds of paths
+   private static final String SQLADDUNDER = "INSERT OR IGNORE INTO " + TABNAME + " (" +
+                                             SUBTREENODE.id.toString() + ", " +
+                                             SUBTREENODE.type.toString() + ", " +
+                                             SUBTREENODE.level.toString() + ") SELECT " +
+                                             SqlFs.FSBLOCK.fsID.toString() + ", " +
+                                             SqlFs.FSBLOCK.fsType.toString() + ", length(" +
+                                             SqlFs.FSBLOCK.fsPath.toString() + ") - length(replace(" +
+                                             SqlFs.FSBLOCK.fsPath.toString() + ", '" + SqlFsConst.PATHSEP +
+                                             "', '')) - ? FROM " + SqlFs.DBNAMES.FsBlock.toString() + " WHERE " +
+                                             SqlFs.FSBLOCK.fsPath.toString() + " > ? AND " +
+                                             SqlFs.FSBLOCK.fsPath.toString() + " < ?";
+   private static final String SQLCOUNTLEVELS = "SELECT " + SUBTREENODE.level.toString() + ", count(*) FROM " +
+                                                TABNAME + " GROUP BY " + SUBTREENODE.level.toString() +
+                                                " ORDER BY " + SUBTREENODE.level.toString();
+   private static final String SQLGETFILEDATA = "SELECT " + SqlFs.FSBLOCK.fsID.toString() + ", " +
+                                                SqlFs.FSBLOCK.fsChild.toString() + " FROM " +
+                                                SqlFs.DBNAMES.FsBlock.toString() + " WHERE " +
+                                                SqlFs.FSBLOCK.fsID.toString() + " IN (SELECT " +
+                                                SUBTREENODE.id.toString() + " FROM " + TABNAME + " WHERE " +
+                                                SUBTREENODE.type.toString() + " = " +
+                                                SqlFsConst.FSTYPE.FILE.v() + ")";
+   private static final String SQLSETDATAID = "UPDATE " + TABNAME + " SET " +
+                                              SUBTREENODE.dataID.toString() + " = ? WHERE " +
+                                              SUBTREENODE.id.toString() + " = ?";
+
+   // SQL to copy the tree, copies get new IDs after all IDs ever used, one after another
+   private static final String SQLMAXFSID = "SELECT max(ifnull((SELECT seq FROM sqlite_sequence WHERE name = '" +
+                                            SqlFs.DBNAMES.FsBlock.toString() + "'), 0), ifnull((SELECT max(" +
+                                            SqlFs.FSBLOCK.fsID.toString() + ") FROM " +
+                                            SqlFs.DBNAMES.FsBlock.toString() + "), 0))";
+   private static final String SQLGETIDS = "SELECT " + SUBTREENODE.id.toString() + " FROM " + TABNAME +
+                                           " ORDER BY " + SUBTREENODE.level.toString() + ", " +
+                                           SUBTREENODE.id.toString();
+   private static final String SQLSETNEWID = "UPDATE " + TABNAME + " SET " +
+                                             SUBTREENODE.newID.toString() + " = ? WHERE " +
+                                             SUBTREENODE.id.toString() + " = ?";
+   private static final String SQLCOPYNODES = "INSERT INTO " + SqlFs.DBNAMES.FsBlock.toString() + " (" +
+                                              SqlFs.FSBLOCK.fsID.toString() + ", " +
+                                              SqlFs.FSBLOCK.fsType.toString() + ", " +
+                                              SqlFs.FSBLOCK.fsCreateTime.toString() + ", " +
+                                              SqlFs.FSBLOCK.fsLastModTime.toString() + ", " +
+                                              SqlFs.FSBLOCK.fsFileSize.toString() + ", " +
+                                              SqlFs.FSBLOCK.fsName.toString() + ", " +
+                                              SqlFs.FSBLOCK.fsParent.toString() + ", " +
+                                              SqlFs.FSBLOCK.fsChild.toString() + ", " +
+                                              SqlFs.FSBLOCK.fsPath.toString() + ") SELECT " +
+                                              "s." + SUBTREENODE.newID.toString() + ", " +
+                                              "b." + SqlFs.FSBLOCK.fsType.toString() + ", " +
+                                              "b." + SqlFs.FSBLOCK.fsCreateTime.toString() + ", " +
+                                              "b." + SqlFs.FSBLOCK.fsLastModTime.toString() + ", " +
+                                              "b." + SqlFs.FSBLOCK.fsFileSize.toString() + ", " +
+                                              "b." + SqlFs.FSBLOCK.fsName.toString() + ", " +
+                                              "CASE WHEN s." + SUBTREENODE.level.toString() + " = 0 THEN ? ELSE " +
+                                              "p." + SUBTREENODE.newID.toString() + " END, " +
+                                              "b." + SqlFs.FSBLOCK.fsChild.toString() + ", " +
+                                              "? || substr(b." + SqlFs.FSBLOCK.fsPath.toString() + ", length(?) + 1) FROM " +
+                                              SqlFs.DBNAMES.FsBlock.toString() + " b JOIN " + TABNAME + " s ON " +
+                                              "b." + SqlFs.FSBLOCK.fsID.toString() + " = s." + SUBTREENODE.id.toString() +
+                                              " LEFT JOIN " + TABNAME + " p ON p." + SUBTREENODE.id.toString() +
+                                              " = b." + SqlFs.FSBLOCK.fsParent.toString();
+   // copies of files share data blocks with the original ones
+   private static final String SQLADDDATAREFS = "UPDATE " + SqlFsDataRef.TABNAME + " SET " +
+                                                SqlFsDataRef.DATAREF.dRefCount.toString() + " = " +
+                                                SqlFsDataRef.DATAREF.dRefCount.toString() + " + (SELECT count(*) FROM " +
+                                                TABNAME + " s WHERE s." + SUBTREENODE.dataID.toString() + " = " +
+                                                SqlFsDataRef.TABNAME + "." + SqlFsDataRef.DATAREF.dID.toString() + 
+                                                ") WHERE " + SqlFsDataRef.DATAREF.dID.toString() + " IN (SELECT " +
+                                                SUBTREENODE.dataID.toString() + " FROM " + TABNAME + " WHERE " +
+                                                SUBTREENODE.dataID.toString() + " > 0)";
+   private static final String SQLGETTOPID = "SELECT " + SUBTREENODE.id.toString() + ", " +
+                                             SUBTREENODE.newID.toString() + " FROM " + TABNAME +
+                                             " WHERE " + SUBTREENODE.level.toString() + " = 0";
+
+   // sub-queries of nodes/data blocks of a level
+   static final String SELNODESOFLEVEL = "SELECT " + SUBTREENODE.id.toString() + " FROM " + TABNAME +
+                                         " WHERE " + SUBTREENODE.level.toString() + " = ?";
+   static final String SELDATAOFLEVEL = "SELECT " + SUBTREENODE.dataID.toString() + " FROM " + TABNAME +
+                                        " WHERE " + SUBTREENODE.level.toString() + " = ? AND " +
+                                        SUBTREENODE.dataID.toString() + " > 0";
+
+   private SqlFsSubtree() { }
+
+   /**
+    *  Collect a node and all nodes under it, and the data block ID of each file
+    *
+    *  @return number of nodes in each level, level 0 is the top node
+    *  @return null if failed
+    */
+   static int[] collect(SQLiteDatabase db, FsID topID, SqlFsConst.FSTYPE topType)
+   {
+      ArrayList<Integer> levelCount = new ArrayList<Integer>();
+      SQLiteStatement stmt = null;
+      Cursor c = null;
+
+      try {
+         SqlFsExec.execSQL(db, SQLCREATE);
+         SqlFsExec.execSQL(db, SQLCREATEIDX);
+         SqlFsExec.execSQL(db, SQLCREATEDATAIDX);
+         SqlFsExec.execSQL(db, SQLCLEAR);
+
+         stmt = db.compileStatement(SQLADDTOP);
+         stmt.bindLong(1, topID.getVal());
+         stmt.bindLong(2, topType.v());
+         SqlFsExec.execute(db, stmt, SQLADDTOP);
+         stmt.close();
+         stmt = null;
+
+         if (topType == SqlFsConst.FSTYPE.DIR) {
+            String topPath = SqlFsPath.getPath(db, topID);
+            if (topPath == null) {
+               SqlFsErrCode.setCurrentError(FsErr.CannotCollectSubtree);
+               return null;
+            }
+
+            int topLevel = 0;
+            for (int i = 0; i < topPath.length(); ++i) {
+               if (topPath.charAt(i) == SqlFsConst.PATHSEP)
+                  ++topLevel;
+            }
+
+            stmt = db.compileStatement(SQLADDUNDER);
+            stmt.bindLong(1, topLevel);
+            stmt.bindString(2, topPath + SqlFsConst.PATHSEP);
+            stmt.bindString(3, topPath + SqlFsPath.PATHSEPNEXT);
+            SqlFsExec.execute(db, stmt, SQLADDUNDER);
+            stmt.close();
+            stmt = null;
+         }
+
+         c = SqlFsExec.rawQuery(db, SQLCOUNTLEVELS, null);
+         if (c.moveToFirst()) {
+            do {
+               while (levelCount.size() < c.getInt(0))
+                  levelCount.add(0);
+               levelCount.add(c.getInt(1));
+            } while (c.moveToNext());
+         }
+         c.close();
+         c = null;
+
+         collectDataID(db);
+      }
+      catch (Exception e) {
+         SqlFsLog.debug(e);
+         SqlFsErrCode.setCurrentError(FsErr.CannotCollectSubtree);
+         return null;
+      }
+      finally {
+         SqlFsFunc.close(c);
+         if (stmt != null)
+            stmt.close();
+      }
+
+      int[] counts = new int[levelCount.size()];
+      for (int i = 0; i < counts.length; ++i)
+         counts[i] = levelCount.get(i);
+      return counts;
+   }
+
+   /**
+    *  Fill data block ID of files, which is kept in the fsChild blob
+    */
+   private static void collectDataID(SQLiteDatabase db)
+   {
+      // read all first, the table is not updated while the cursor is open
+      ArrayList<long[]> idPairs = new ArrayList<long[]>();
+      Cursor c = null;
+      try {
+         c = SqlFsExec.rawQuery(db, SQLGETFILEDATA, null);
+         if (c.moveToFirst()) {
+            do {
+               long[] dataIDs = SqlFsNode.blob2idList(c.getBlob(1));
+               if (dataIDs == null || dataIDs.length == 0)
+                  continue;
+
+               if (dataIDs[0] > SqlFsConst.INVALIDID.getVal())
+                  idPairs.add(new long[]{c.getLong(0), dataIDs[0]});
+            } while (c.moveToNext());
+         }
+      }
+      finally {
+         SqlFsFunc.close(c);
+      }
+
+      if (idPairs.isEmpty())
+         return;
+
+      SQLiteStatement stmt = db.compileStatement(SQLSETDATAID);
+      try {
+         for (long[] pair : idPairs) {
+            stmt.bindLong(1, pair[1]);
+            stmt.bindLong(2, pair[0]);
+            SqlFsExec.execute(db, stmt, SQLSETDATAID);
+         }
+      }
+      finally {
+         stmt.close();
+      }
+   }
+
+   /**
+    *  Remove all IDs collected
+    */
+   static void clear(SQLiteDatabase db)
+   {
+      try {
+         SqlFsExec.execSQL(db, SQLCLEAR);
+      }
+      catch (Exception e) {
+         SqlFsLog.debug(e);   // table not created
+      }
+   }
+
+   /**
+    *  Run a statement using SELNODESOFLEVEL or SELDATAOFLEVEL, the level is bound to 
+    *  all arguments
+    *
+    *  @return number of rows changed
+    */
+   static int execForLevel(SQLiteDatabase db, String sql, int level)
+   {
+      SQLiteStatement stmt = db.compileStatement(sql);
+      try {
+         for (int i = 0, argIdx = 0; i < sql.length(); ++i) {
+            if (sql.charAt(i) == '?')
+               stmt.bindLong(++argIdx, level);
+         }
+         SqlFsExec.execute(db, stmt, sql);
+      }
+      finally {
+         stmt.close();
+      }
+
+      return SqlFsStmtCache.getCache(db).changes();
+   }
+
+   /**
+    *  Fill newID of the nodes collected, top node first and then level by level, 
+    *  starting after all IDs ever used. A sparse tree is copied to dense IDs.
+    *
+    *  @return false if IDs run out
+    */
+   private static boolean assignNewIDs(SQLiteDatabase db)
+   {
+      SQLiteStatement stmt = db.compileStatement(SQLMAXFSID);
+      long lastID;
+      try {
+         lastID = SqlFsExec.simpleQueryForLong(db, stmt, SQLMAXFSID);
+      }
+      finally {
+         stmt.close();
+      }
+
+      // read all first, the table is not updated while the cursor is open
+      ArrayList<Long> ids = new ArrayList<Long>();
+      Cursor c = null;
+      try {
+         c = SqlFsExec.rawQuery(db, SQLGETIDS, null);
+         if (c.moveToFirst()) {
+            do {
+               ids.add(c.getLong(0));
+            } while (c.moveToNext());
+         }
+      }
+      finally {
+         SqlFsFunc.close(c);
+      }
+
+      if (!FsID.isLongID() && lastID + ids.size() > Integer.MAX_VALUE)
+         return false;
+
+      stmt = db.compileStatement(SQLSETNEWID);
+      try {
+         for (Long id : ids) {
+            stmt.bindLong(1, ++lastID);
+            stmt.bindLong(2, id);
+            SqlFsExec.execute(db, stmt, SQLSETNEWID);
+         }
+      }
+      finally {
+         stmt.close();
+      }
+      return true;
+   }
+
+   /**
+    *  Copy the collected tree to a dir by INSERT ... SELECT. Other fields (name, times, size) 
+    *  are kept. Copies of files share data blocks with the original ones.
+    *
+    *  @return ID of the copy of the top node, INVALIDID if failed
+    */
+   static FsID copy(SQLiteDatabase db, FsID destDirID)
+   {
+      Cursor c = null;
+      SQLiteStatement stmt = null;
+
+      try {
+         if (!assignNewIDs(db)) {
+            SqlFsErrCode.setCurrentError(FsErr.NoNewIDForNewFsNode);
+            return SqlFsConst.INVALIDID;
+         }
+
+         c = SqlFsExec.rawQuery(db, SQLGETTOPID, null);
+         c.moveToFirst();
+         FsID topID = FsID.toFsID(c.getLong(0));
+         FsID newTopID = FsID.toFsID(c.getLong(1));
+         c.close();
+         c = null;
+
+         // paths under the copy start with the dest dir's path instead
+         String oldTopPath = SqlFsPath.getPath(db, topID);
+         String destPath = SqlFsPath.getPath(db, destDirID);
+         if (oldTopPath == null || destPath == null) {
+            SqlFsErrCode.setCurrentError(FsErr.CannotCopyFsEntry);
+            return SqlFsConst.INVALIDID;
+         }
+         String newTopPath = destPath + oldTopPath.substring(oldTopPath.lastIndexOf(SqlFsConst.PATHSEP));
+
+         stmt = db.compileStatement(SQLCOPYNODES);
+         stmt.bindLong(1, destDirID.getVal());
+         stmt.bindString(2, newTopPath);
+         stmt.bindString(3, oldTopPath);
+         SqlFsExec.execute(db, stmt, SQLCOPYNODES);
+         stmt.close();
+         stmt = null;
+
+         SqlFsExec.execSQL(db, SQLADDDATAREFS);
+
+         return newTopID;
+      }
+      catch (Exception e) {
+         SqlFsLog.debug(e);
+         SqlFsErrCode.setCurrentError(FsErr.CannotCopyFsEntry);
+         return SqlFsConst.INVALIDID;
+      }
+      finally {
+         SqlFsFunc.close(c);
+         if (stmt != null)
+            stmt.close();
+      }
+   }
+}
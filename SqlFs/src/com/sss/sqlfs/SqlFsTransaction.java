@@ -6,20 +6,37 @@ import com.sss.sqlfs.helper.*;
 class SqlFsTransaction implements IDisposable
 {
    private SQLiteDatabase db;
+   private SqlFsBatch batch;       ///< batch this transaction is nested in, if any
+   private boolean isSuccess = false;
    
    SqlFsTransaction(SQLiteDatabase db)
    {
 	   this.db = db;
 	   this.db.beginTransaction();
+	   
+	   this.batch = SqlFsBatch.getBatch(db);
+	   if (this.batch != null)
+		   this.batch.opBegin();
    }
    
    void fsOpSuccess()
    {
 	   db.setTransactionSuccessful();
+	   isSuccess = true;
    }
 	
    public void dispose()
    {
-	   db.endTransaction();
+	   if (SqlFsOpTrace.isEnabled()) {
+		   long startTime = System.nanoTime();
+		   db.endTransaction();
+		   SqlFsOpTrace.addCommitTime(System.nanoTime() - startTime);
+	   }
+	   else {
+		   db.endTransaction();
+	   }
+	   
+	   if (batch != null)
+		   batch.opEnd(isSuccess);
    }
 }
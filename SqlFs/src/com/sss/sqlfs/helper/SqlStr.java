@@ -134,6 +134,91 @@ public class SqlStr
         return sb.toString();
 	}
 	
+	/**
+     *  Generate a "Create index" SQL query (no error if index already exists)
+     * 
+     *  @param [in] idxName -- index name
+     *  @param [in] tabName -- table name
+     *  @param [in] isUnique -- unique index or not
+     *  @param [in] cols -- column names
+     */
+	public static String genCreateIndex(String idxName, String tabName, boolean isUnique, String[] cols)
+	{
+		StringBuilder sb = new StringBuilder(128);
+
+        sb.append(isUnique ? "CREATE UNIQUE INDEX " : "CREATE INDEX ");
+        sb.append("IF NOT EXISTS ").append(idxName).append(" ON ").append(tabName).append(" (");
+        for (String col : cols) {
+           sb.append(col).append(",");
+        }
+        sb.deleteCharAt(sb.length() - 1); // remove the last comma
+        sb.append(")");
+
+        return sb.toString();
+	}
+	
+	/**
+     *  Generate a "SELECT" SQL query with bound arguments, e.g. 
+     *      SELECT a, b FROM tab WHERE c = ? AND d = ?
+     * 
+     *  @param [in] cols -- columns to select
+     *  @param [in] condCols -- columns in "WHERE", all compared with "="
+     */
+	public static String genSelect(String tabName, String[] cols, String... condCols)
+	{
+		StringBuilder sb = new StringBuilder(128);
+
+		sb.append("SELECT ");
+        for (int i = 0; i < cols.length; ++i) {
+           if (i > 0) sb.append(", ");
+           sb.append(cols[i]);
+        }
+        sb.append(" FROM ").append(tabName);
+        appendCond(sb, condCols);
+
+        return sb.toString();
+	}
+	
+	/**
+     *  Generate an "UPDATE" SQL query with bound arguments, e.g. 
+     *      UPDATE tab SET a = ?, b = ? WHERE c = ?
+     */
+	public static String genUpdate(String tabName, String[] cols, String... condCols)
+	{
+		StringBuilder sb = new StringBuilder(128);
+
+		sb.append("UPDATE ").append(tabName).append(" SET ");
+        for (int i = 0; i < cols.length; ++i) {
+           if (i > 0) sb.append(", ");
+           sb.append(cols[i]).append(" = ?");
+        }
+        appendCond(sb, condCols);
+
+        return sb.toString();
+	}
+	
+	/**
+     *  Generate a "DELETE" SQL query with bound arguments, e.g. 
+     *      DELETE FROM tab WHERE c = ?
+     */
+	public static String genDelete(String tabName, String... condCols)
+	{
+		StringBuilder sb = new StringBuilder(64);
+
+		sb.append("DELETE FROM ").append(tabName);
+        appendCond(sb, condCols);
+
+        return sb.toString();
+	}
+	
+	private static void appendCond(StringBuilder sb, String[] condCols)
+	{
+		for (int i = 0; i < condCols.length; ++i) {
+           sb.append((i == 0) ? " WHERE " : " AND ");
+           sb.append(condCols[i]).append(" = ?");
+        }
+	}
+	
 	/**
 	 *  Generate a "Drop table" SQL query
 	 */
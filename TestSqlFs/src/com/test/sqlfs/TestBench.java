@@ -0,0 +1,441 @@
+package com.test.sqlfs;
+
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Calendar;
+
+import com.sss.consolehelper.CmdApp;
+import com.sss.sqlfs.SimpleFileData;
+import com.sss.sqlfs.SqlDir;
+import com.sss.sqlfs.SqlFile;
+import com.sss.sqlfs.SqlFs;
+import com.sss.sqlfs.SqlFsBatch;
+import com.sss.sqlfs.SqlFsNode;
+import com.sss.sqlfs.SqlFsVersion;
+
+/**
+ *  Benchmarks of the core operations, results are written as JSON to RESULTFILE so that
+ *  runs of different versions can be compared.
+ *
+ *  Each case is run WARMUPS times, then ITERATIONS times measured. Setup of a case (e.g.
+ *  filling a dir) and of each run is not measured.
+ */
+public class TestBench
+{
+   private static final String BENCHDB = "/sdcard/consoleapps/bench.db";
+   private static final String RESULTFILE = "/sdcard/consoleapps/bench.json";
+   private static final int WARMUPS = 2;
+   private static final int ITERATIONS = 5;
+
+   private static final int[] PATHDEPTHS = new int[]{1, 4, 16, 32};
+   private static final int NUMLOOKUPS = 1000;
+   private static final int[] DIRSIZES = new int[]{0, 1000, 10000};
+   private static final int NUMADDS = 200;
+   private static final int[] PAYLOADSIZES = new int[]{1024, 64 * 1024, 1024 * 1024};
+   private static final int[] LISTSIZES = new int[]{100, 1000};
+   private static final int[] TREEFANOUTS = new int[]{4, 8};   ///< 3 levels of dirs, 4 files in each
+   private static final int[] NUMTHREADS = new int[]{1, 2, 4};
+   private static final int NUMMIXEDOPS = 500;                ///< done by each thread, 1 of 5 is a write
+
+   private static CmdApp cmdApp;
+
+   /**
+    *  A measured case, runOnce() returns number of operations done
+    */
+   private static abstract class Bench
+   {
+      final String name;
+      final String params;   ///< JSON object of parameters
+
+      Bench(String name, String params)
+      {
+         this.name = name;
+         this.params = params;
+      }
+
+      void setUp(SqlFs fs) { }
+      void beforeRun(SqlFs fs, int iteration) { }   ///< not measured
+      abstract int runOnce(SqlFs fs, int iteration) throws Exception;
+   }
+
+   /**
+    *  Result of a case in ns per operation
+    */
+   private static class Result
+   {
+      String name;
+      String params;
+      int ops;
+      long minNs = Long.MAX_VALUE;
+      long maxNs = 0;
+      long totalNs = 0;
+   }
+
+   public static void runAll(CmdApp cmdApp)
+   {
+      TestBench.cmdApp = cmdApp;
+      ArrayList<Result> results = new ArrayList<Result>();
+
+      try {
+         for (int depth : PATHDEPTHS)
+            results.add(measure(benchGetFile(depth)));
+         for (int dirSize : DIRSIZES)
+            results.add(measure(benchAddFile(dirSize)));
+         for (int payloadSize : PAYLOADSIZES) {
+            results.add(measure(benchSaveFileData(payloadSize)));
+            results.add(measure(benchGetFileData(payloadSize)));
+         }
+         for (int listSize : LISTSIZES)
+            results.add(measure(benchGetChildList(listSize)));
+         for (int fanout : TREEFANOUTS)
+            results.add(measure(benchTreeDelete(fanout)));
+         for (int numThreads : NUMTHREADS)
+            results.add(measure(benchReadWriteMix(numThreads)));
+
+         writeResults(results);
+      }
+      catch (Exception e) {
+         cmdApp.stdOut.println("Error: " + e.getMessage());
+      }
+   }
+
+   private static Result measure(Bench bench) throws Exception
+   {
+      TestMain.deleteFile(BENCHDB);
+      SqlFs fs = SqlFs.create(BENCHDB, cmdApp.appInst);
+      Result r = new Result();
+      r.name = bench.name;
+      r.params = bench.params;
+
+      try {
+         bench.setUp(fs);
+
+         for (int i = 0; i < WARMUPS + ITERATIONS; ++i) {
+            bench.beforeRun(fs, i);
+            long startTime = System.nanoTime();
+            int ops = bench.runOnce(fs, i);
+            long nsPerOp = (System.nanoTime() - startTime) / Math.max(ops, 1);
+            if (i < WARMUPS)
+               continue;
+
+            r.ops = ops;
+            r.minNs = Math.min(r.minNs, nsPerOp);
+            r.maxNs = Math.max(r.maxNs, nsPerOp);
+            r.totalNs += nsPerOp;
+         }
+      }
+      finally {
+         fs.close();
+      }
+
+      cmdApp.stdOut.println(r.name + " " + r.params + ": avg = " + (r.totalNs / ITERATIONS) +
+                            "ns/op, min = " + r.minNs + "ns/op");
+      return r;
+   }
+
+   /**
+    *  Add files to a dir in one batch
+    */
+   private static void addFiles(SqlFs fs, SqlDir dir, String prefix, int count)
+   {
+      SqlFsBatch batch = fs.beginBatch();
+      try {
+         for (int i = 0; i < count; ++i)
+            TestMain.__assert(dir.addFile(prefix + i) != null);
+      }
+      finally {
+         TestMain.__assert(batch.commit());
+      }
+   }
+
+   /**
+    *  Data different for each seed, so that data blocks are not shared
+    */
+   private static byte[] genPayload(int size, int seed)
+   {
+      byte[] data = new byte[size];
+      for (int i = 0; i < size; ++i)
+         data[i] = (byte)(i * 31);
+      for (int i = 0; i < 4 && i < size; ++i)
+         data[i] = (byte)(seed >>> (i * 8));
+      return data;
+   }
+
+   /**
+    *  Path lookup of a file 'depth' dirs down from root
+    */
+   private static Bench benchGetFile(final int depth)
+   {
+      return new Bench("getFile", "{\"depth\": " + depth + "}") {
+         String path;
+
+         void setUp(SqlFs fs)
+         {
+            StringBuilder sb = new StringBuilder();
+            SqlDir dir = fs.getRootDir();
+            for (int i = 0; i < depth; ++i) {
+               dir = dir.addDir("d" + i);
+               sb.append("/d").append(i);
+            }
+            TestMain.__assert(dir.addFile("f.txt") != null);
+            path = sb.append("/f.txt").toString();
+         }
+
+         int runOnce(SqlFs fs, int iteration)
+         {
+            for (int i = 0; i < NUMLOOKUPS; ++i)
+               TestMain.__assert(fs.getFile(path) != null);
+            return NUMLOOKUPS;
+         }
+      };
+   }
+
+   /**
+    *  Add files one by one into a dir which already has 'dirSize' files
+    */
+   private static Bench benchAddFile(final int dirSize)
+   {
+      return new Bench("addFile", "{\"dirSize\": " + dirSize + "}") {
+         SqlDir dir;
+
+         void setUp(SqlFs fs)
+         {
+            dir = fs.getRootDir().addDir("dir");
+            addFiles(fs, dir, "old_", dirSize);
+         }
+
+         int runOnce(SqlFs fs, int iteration)
+         {
+            for (int i = 0; i < NUMADDS; ++i)
+               TestMain.__assert(dir.addFile("new_" + iteration + "_" + i) != null);
+            return NUMADDS;
+         }
+      };
+   }
+
+   /**
+    *  Save data of different content (not shared) to a file
+    */
+   private static Bench benchSaveFileData(final int payloadSize)
+   {
+      final int numSaves = Math.max(2, (4 * 1024 * 1024) / payloadSize);
+
+      return new Bench("saveFileData", "{\"payloadSize\": " + payloadSize + "}") {
+         SqlFile file;
+
+         void setUp(SqlFs fs)
+         {
+            file = fs.getRootDir().addFile("f.bin");
+         }
+
+         int runOnce(SqlFs fs, int iteration)
+         {
+            SimpleFileData fd = new SimpleFileData();
+            for (int i = 0; i < numSaves; ++i) {
+               fd.setRawBinData(genPayload(payloadSize, iteration * numSaves + i));
+               TestMain.__assert(file.saveFileData(fd));
+            }
+            return numSaves;
+         }
+      };
+   }
+
+   private static Bench benchGetFileData(final int payloadSize)
+   {
+      final int numGets = Math.max(2, (8 * 1024 * 1024) / payloadSize);
+
+      return new Bench("getFileData", "{\"payloadSize\": " + payloadSize + "}") {
+         SqlFile file;
+
+         void setUp(SqlFs fs)
+         {
+            SimpleFileData fd = new SimpleFileData();
+            fd.setRawBinData(genPayload(payloadSize, 0));
+            file = fs.getRootDir().addFile("f.bin");
+            TestMain.__assert(file.saveFileData(fd));
+         }
+
+         int runOnce(SqlFs fs, int iteration)
+         {
+            SimpleFileData fd = new SimpleFileData();
+            for (int i = 0; i < numGets; ++i)
+               TestMain.__assert(file.getFileData(fd) && fd.getDataSizeInByte() == payloadSize);
+            return numGets;
+         }
+      };
+   }
+
+   private static Bench benchGetChildList(final int listSize)
+   {
+      final int numLists = Math.max(1, 20000 / listSize);
+
+      return new Bench("getChildList", "{\"dirSize\": " + listSize + "}") {
+         SqlDir dir;
+
+         void setUp(SqlFs fs)
+         {
+            dir = fs.getRootDir().addDir("dir");
+            addFiles(fs, dir, "f_", listSize);
+         }
+
+         int runOnce(SqlFs fs, int iteration)
+         {
+            for (int i = 0; i < numLists; ++i) {
+               ArrayList<SqlFsNode> childList = dir.getChildList();
+               TestMain.__assert(childList != null && childList.size() == listSize);
+            }
+            return numLists;
+         }
+      };
+   }
+
+   /**
+    *  Delete a tree of 3 levels of dirs with 'fanout' subdirs and 4 files in each, the tree
+    *  is built before each run, time is per node deleted
+    */
+   private static Bench benchTreeDelete(final int fanout)
+   {
+      return new Bench("treeDelete", "{\"fanout\": " + fanout + "}") {
+         SqlDir top;
+         int count;
+
+         void beforeRun(SqlFs fs, int iteration)
+         {
+            top = fs.getRootDir().addDir("tree");
+            count = 1 + addTree(fs, top, 3);
+         }
+
+         int runOnce(SqlFs fs, int iteration)
+         {
+            TestMain.__assert(top.delete());
+            return count;
+         }
+
+         int addTree(SqlFs fs, SqlDir dir, int levels)
+         {
+            int count = 0;
+            SqlFsBatch batch = fs.beginBatch();
+            try {
+               for (int i = 0; i < 4; ++i)
+                  TestMain.__assert(dir.addFile("f_" + i) != null);
+            }
+            finally {
+               TestMain.__assert(batch.commit());
+            }
+            count += 4;
+
+            if (levels == 0)
+               return count;
+
+            for (int i = 0; i < fanout; ++i)
+               count += 1 + addTree(fs, dir.addDir("d_" + i), levels - 1);
+            return count;
+         }
+      };
+   }
+
+   /**
+    *  Threads each with its own SqlFs, 4 of 5 operations are reads (path lookup and data),
+    *  1 of 5 saves data of a file
+    */
+   private static Bench benchReadWriteMix(final int numThreads)
+   {
+      final int numFiles = 100;
+
+      return new Bench("readWriteMix", "{\"threads\": " + numThreads + "}") {
+         void setUp(SqlFs fs)
+         {
+            SqlDir dir = fs.getRootDir().addDir("dir");
+            SimpleFileData fd = new SimpleFileData();
+            fd.setRawBinData(genPayload(1024, 0));
+            for (int i = 0; i < numFiles; ++i)
+               TestMain.__assert(dir.addFile("f_" + i).saveFileData(fd));
+         }
+
+         int runOnce(SqlFs fs, final int iteration) throws Exception
+         {
+            final int[] failCounts = new int[numThreads];
+            Thread[] threads = new Thread[numThreads];
+            for (int t = 0; t < numThreads; ++t) {
+               final int thrdIdx = t;
+               threads[t] = new Thread(new Runnable() {
+                  public void run()
+                  {
+                     SqlFs thrdFs = SqlFs.create(BENCHDB, cmdApp.appInst);
+                     try {
+                        SimpleFileData fd = new SimpleFileData();
+                        for (int i = 0; i < NUMMIXEDOPS; ++i) {
+                           SqlFile f = thrdFs.getFile("/dir/f_" + ((i * 7 + thrdIdx) % numFiles));
+                           if (f == null) {
+                              ++failCounts[thrdIdx];
+                              continue;
+                           }
+
+                           if (i % 5 == 4) {
+                              fd.setRawBinData(genPayload(1024, (iteration * numThreads + thrdIdx) * NUMMIXEDOPS + i));
+                              if (!f.saveFileData(fd))
+                                 ++failCounts[thrdIdx];
+                           }
+                           else if (!f.getFileData(fd)) {
+                              ++failCounts[thrdIdx];
+                           }
+                        }
+                     }
+                     catch (Exception e) {
+                        ++failCounts[thrdIdx];
+                     }
+                     finally {
+                        thrdFs.close();
+                     }
+                  }
+               });
+            }
+
+            for (Thread thrd : threads)
+               thrd.start();
+            for (Thread thrd : threads)
+               thrd.join();
+
+            for (int failCount : failCounts)
+               TestMain.__assert(failCount == 0);
+            return numThreads * NUMMIXEDOPS;
+         }
+      };
+   }
+
+   /**
+    *  {"version": "0.10.0", "time": 1400000000000, "warmups": 2, "iterations": 5,
+    *   "results": [{"name": "getFile", "params": {"depth": 4}, "ops": 1000,
+    *                "avgNsPerOp": 1, "minNsPerOp": 1, "maxNsPerOp": 1}, ...]}
+    */
+   private static void writeResults(ArrayList<Result> results) throws Exception
+   {
+      StringBuilder sb = new StringBuilder();
+      sb.append("{\"version\": \"").append(SqlFsVersion.getSqlFsVersion()).append("\",\n");
+      sb.append(" \"time\": ").append(Calendar.getInstance().getTimeInMillis()).append(",\n");
+      sb.append(" \"warmups\": ").append(WARMUPS).append(", \"iterations\": ").append(ITERATIONS).append(",\n");
+      sb.append(" \"results\": [");
+      for (int i = 0; i < results.size(); ++i) {
+         Result r = results.get(i);
+         sb.append((i == 0) ? "\n  " : ",\n  ");
+         sb.append("{\"name\": \"").append(r.name).append("\", \"params\": ").append(r.params);
+         sb.append(", \"ops\": ").append(r.ops);
+         sb.append(", \"avgNsPerOp\": ").append(r.totalNs / ITERATIONS);
+         sb.append(", \"minNsPerOp\": ").append(r.minNs);
+         sb.append(", \"maxNsPerOp\": ").append(r.maxNs).append('}');
+      }
+      sb.append("\n ]}\n");
+
+      Writer w = new OutputStreamWriter(new FileOutputStream(RESULTFILE), "UTF-8");
+      try {
+         w.write(sb.toString());
+      }
+      finally {
+         w.close();
+      }
+
+      cmdApp.stdOut.println("results written to " + RESULTFILE);
+   }
+}
@@ -2,7 +2,23 @@ package com.test.sqlfs;
 
 import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 import java.io.File;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Calendar;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import com.sss.consolehelper.CmdApp;
 import com.sss.sqlfs.FsID;
 import com.sss.sqlfs.*;
@@ -285,6 +301,34 @@ public class TestMain
       fs.close();
    }
    
+   static void testNodeInfo()
+   {
+      SqlFs fs = SqlFs.create(TESTDB, new UrlFileData(), cmdApp.appInst);
+      SqlDir rootDir = fs.getRootDir();
+
+      // listing comes with the snapshot filled
+      ArrayList<SqlFsNode> childList = rootDir.getChildList();
+      __assert(childList != null);
+      for (SqlFsNode n : childList) {
+         SqlFsNodeInfo info = n.getInfo();
+         __assert(info.getName().length() > 0);
+         __assert(info.getType() == (n.isDir() ? SqlFsConst.FSTYPE.DIR : SqlFsConst.FSTYPE.FILE));
+         __assert(info.getCreateTime() != null);
+      }
+
+      // changes made by another instance are seen only after refresh
+      SqlFile f = rootDir.getFile("What");
+      SqlFile f2 = rootDir.getFile("What");
+      __assert(f2.getName().equals("What"));
+      __assert(f.rename("What2"));
+      __assert(f.getName().equals("What2"));
+      __assert(f2.getName().equals("What"));
+      __assert(f2.refresh().getName().equals("What2"));
+      __assert(f.rename("What"));
+
+      fs.close();
+   }
+   
    static void testGetSingleDirFiles()
    {
 
@@ -320,6 +364,76 @@ public class TestMain
       fs.close();
    }
    
+   static void testGetDeepPath()
+   {
+      SqlFs fs = SqlFs.create(TESTDB, new UrlFileData(), cmdApp.appInst);
+      SqlDir rootDir = fs.getRootDir();
+
+      // deeper than a single path query can resolve
+      final int depth = 40;
+      StringBuilder path = new StringBuilder();
+      SqlDir d = rootDir.addDir("deep");
+      path.append("/deep");
+      for (int i = 0; i < depth; ++i) {
+         d = d.addDir("d" + i);
+         __assert(d != null);
+         path.append("/d").append(i);
+      }
+      __assert(d.addFile("leaf") != null);
+
+      __assert(fs.getDir(path.toString()) != null);
+      __assert(fs.getFile(path.toString() + "/leaf") != null);
+      __assert(fs.getFsNode(path.toString() + "/leaf") != null);
+      __assert(fs.getFsNode(path.toString() + "/leaf/abc") == null);
+      __assertEquErrCode(SqlFsErrCode.getLastError(), FsErr.NotDirInPath);
+      __assert(fs.getDir("/deep/d0/d1/d2") != null);
+      __assert(fs.getDir("/deep/d0/d1/d3") == null);
+      __assertEquErrCode(SqlFsErrCode.getLastError(), FsErr.ChildNotFound);
+      __assert(fs.getDir("/deep/d0/./d1/../d1/d2") != null);
+      __assert(rootDir.getDir("deep/d0/d1").getDir("d2/d3") != null);
+
+      __assert(rootDir.getDir("deep").delete());
+      fs.close();
+   }
+   
+   static void testPathCache()
+   {
+      SqlFs fs = SqlFs.create(TESTDB, new UrlFileData(), cmdApp.appInst);
+      SqlDir rootDir = fs.getRootDir();
+      SqlDir cacheDir = rootDir.addDir("cacheDir");
+      __assert(cacheDir.addDir("sub").addFile("f1") != null);
+
+      __assert(fs.getFile("/cacheDir/sub/f1") != null);
+      long hitCount = fs.getPathCacheHitCount();
+      __assert(fs.getFile("/cacheDir/sub/f1") != null);
+      __assert(fs.getDir("/cacheDir/sub") != null);
+      __assert(fs.getPathCacheHitCount() == hitCount + 2);
+
+      // rename invalidates the whole subtree
+      __assert(cacheDir.rename("cacheDir2"));
+      __assert(fs.getFile("/cacheDir/sub/f1") == null);
+      __assert(!fs.exists("/cacheDir/sub"));
+      __assert(fs.getFile("/cacheDir2/sub/f1") != null);
+
+      // move and delete
+      SqlFile f1 = fs.getFile("/cacheDir2/sub/f1");
+      __assert(f1.move("/cacheDir2"));
+      __assert(fs.getFile("/cacheDir2/sub/f1") == null);
+      __assert(fs.getFile("/cacheDir2/f1") != null);
+      __assert(fs.getDir("/cacheDir2").delete());
+      __assert(fs.getFile("/cacheDir2/f1") == null);
+      __assert(fs.getDir("/cacheDir2/sub") == null);
+
+      // disabled cache
+      fs.setPathCacheSize(0);
+      hitCount = fs.getPathCacheHitCount();
+      __assert(fs.getDir("/dir1") != null);
+      __assert(fs.getDir("/dir1") != null);
+      __assert(fs.getPathCacheHitCount() == hitCount);
+
+      fs.close();
+   }
+   
    static void testMove()
    {
 	  SqlFs fs = SqlFs.create(TESTDB, new UrlFileData(), cmdApp.appInst);
@@ -393,7 +507,10 @@ public class TestMain
 	   testAddFile();
 	   testGetDirs();
        testGetFiles();
+       testNodeInfo();
        testGetSingleDirFiles();
+       testGetDeepPath();
+       testPathCache();
 
        __sleep(delayMSec);
    }     
@@ -508,6 +625,1394 @@ public class TestMain
       rootDir.getFile("mytext.txt").delete();
       fs.close();
    }
+   private static final String CHUNKEDFILEDB = "/sdcard/consoleapps/chunkedfile.db";
+   
+   static byte[] genChunkedData(int size)
+   {
+	   byte[] data = new byte[size];
+	   for (int i = 0; i < size; ++i)
+		   data[i] = (byte)(i * 31 + i / 7);
+	   return data;
+   }
+   
+   static void checkChunkedFileData(SqlFile file, byte[] chkData)
+   {
+	   ChunkedFileData fd = new ChunkedFileData();
+	   ByteArrayOutputStream out = new ByteArrayOutputStream();
+	   fd.setSink(out);
+	   __assert(file.getFileData(fd));
+	   __assert(fd.getDataSizeInByte() == chkData.length);
+	   __assert(Arrays.equals(out.toByteArray(), chkData));
+   }
+   
+   static void ct_testChunkedFile()
+   {
+	  cmdApp.stdOut.println("Running " + getCallerMethodName());
+	  deleteFile(CHUNKEDFILEDB);
+	  SqlFs fs = SqlFs.create(CHUNKEDFILEDB, cmdApp.appInst);
+      SqlDir rootDir = fs.getRootDir();
+      
+      // 3.5 chunks
+      SqlFile file = rootDir.addFile("big.bin");
+      byte[] data = genChunkedData(SqlFsConst.CHUNKSIZE * 3 + SqlFsConst.CHUNKSIZE / 2);
+      ChunkedFileData fd = new ChunkedFileData();
+      fd.setSource(new ByteArrayInputStream(data));
+      __assert(file.saveFileData(fd));
+      __assert(file.getFileSize() == data.length);
+      checkChunkedFileData(file, data);
+      
+      // shrink to exactly one chunk, chunks left behind are removed
+      data = genChunkedData(SqlFsConst.CHUNKSIZE);
+      fd.setSource(new ByteArrayInputStream(data));
+      __assert(file.saveFileData(fd));
+      __assert(file.getFileSize() == data.length);
+      checkChunkedFileData(file, data);
+      
+      // empty file
+      data = new byte[0];
+      fd.setSource(new ByteArrayInputStream(data));
+      __assert(file.saveFileData(fd));
+      __assert(file.getFileSize() == 0);
+      checkChunkedFileData(file, data);
+      
+      // switch to SimpleFileData and back
+      SimpleFileData sfd = new SimpleFileData();
+      byte[] dataBin = new byte[]{0x34, 0x12, 0x09, 0x11, 0x08}; 
+      sfd.setRawBinData(dataBin);
+      __assert(file.saveFileData(sfd));
+      checkBinFileData(file, dataBin);
+      
+      // which is not read as chunks
+      ChunkedFileData notChunked = new ChunkedFileData();
+      ByteArrayOutputStream sink = new ByteArrayOutputStream();
+      notChunked.setSink(sink);
+      __assert(!file.getFileData(notChunked));
+      __assertEquErrCode(SqlFsErrCode.getLastError(), FsErr.DataNotChunked);
+      __assert(sink.size() == 0);
+      
+      data = genChunkedData(SqlFsConst.CHUNKSIZE + 1);
+      fd.setSource(new ByteArrayInputStream(data));
+      __assert(file.saveFileData(fd));
+      checkChunkedFileData(file, data);
+      
+      __assert(file.delete());
+      __assert(rootDir.getFile("big.bin") == null);
+      fs.close();
+   }
+   static byte[] readAll(InputStream in) throws Exception
+   {
+	   ByteArrayOutputStream out = new ByteArrayOutputStream();
+	   byte[] buf = new byte[1000];   // not a multiple of chunk size
+	   int n;
+	   while ((n = in.read(buf)) > 0)
+		   out.write(buf, 0, n);
+	   in.close();
+	   return out.toByteArray();
+   }
+   
+   static void ct_testFileStream() throws Exception
+   {
+	  cmdApp.stdOut.println("Running " + getCallerMethodName());
+	  deleteFile(CHUNKEDFILEDB);
+	  SqlFs fs = SqlFs.create(CHUNKEDFILEDB, cmdApp.appInst);
+      SqlDir rootDir = fs.getRootDir();
+      
+      // new file is empty
+      SqlFile file = rootDir.addFile("stream.bin");
+      __assert(readAll(file.openInputStream()).length == 0);
+      
+      // write in small pieces
+      byte[] data = genChunkedData(SqlFsConst.CHUNKSIZE * 2 + 123);
+      OutputStream out = file.openOutputStream();
+      __assert(out != null);
+      for (int i = 0; i < data.length; i += 777)
+    	  out.write(data, i, Math.min(777, data.length - i));
+      
+      // not saved until closed
+      __assert(file.getFileSize() == 0);
+      out.close();
+      __assert(file.getFileSize() == data.length);
+      __assert(Arrays.equals(readAll(file.openInputStream()), data));
+      checkChunkedFileData(file, data);
+      
+      // single byte read and skip across chunks
+      InputStream in = file.openInputStream();
+      __assert(in.read() == (data[0] & 0xff));
+      __assert(in.skip(SqlFsConst.CHUNKSIZE) == SqlFsConst.CHUNKSIZE);
+      __assert(in.read() == (data[SqlFsConst.CHUNKSIZE + 1] & 0xff));
+      in.close();
+      
+      // data changed in place while reading, never a mix of old and new chunks
+      in = file.openInputStream();
+      __assert(in.read() == (data[0] & 0xff));
+      __assert(file.write(SqlFsConst.CHUNKSIZE, new byte[]{1, 2, 3}, 0, 3));
+      boolean isThrown = false;
+      try {
+    	  in.skip(SqlFsConst.CHUNKSIZE);
+    	  in.read();
+      }
+      catch (IOException e) {
+    	  isThrown = true;
+      }
+      __assert(isThrown);
+      in.close();
+      
+      // channels
+      data = genChunkedData(SqlFsConst.CHUNKSIZE - 1);
+      WritableByteChannel wch = file.openWritableChannel();
+      __assert(wch.write(ByteBuffer.wrap(data)) == data.length);
+      wch.close();
+      __assert(file.getFileSize() == data.length);
+      
+      ReadableByteChannel rch = file.openReadableChannel();
+      ByteBuffer bb = ByteBuffer.allocate(data.length + 10);
+      while (rch.read(bb) > 0) { }
+      rch.close();
+      __assert(bb.position() == data.length);
+      byte[] dataRet = new byte[data.length];
+      bb.flip();
+      bb.get(dataRet);
+      __assert(Arrays.equals(dataRet, data));
+      
+      // data saved by SimpleFileData can't be streamed
+      SimpleFileData sfd = new SimpleFileData();
+      sfd.setRawBinData(new byte[]{0x34, 0x12, 0x09, 0x11, 0x08});
+      __assert(file.saveFileData(sfd));
+      __assert(file.openInputStream() == null);
+      __assertEquErrCode(SqlFsErrCode.getLastError(), FsErr.DataNotChunked);
+      
+      // and overwritten by a stream
+      out = file.openOutputStream();
+      out.write(data);
+      out.close();
+      __assert(Arrays.equals(readAll(file.openInputStream()), data));
+      
+      // more chunks than a stream keeps before writing them
+      byte[] bigData = genChunkedData(SqlFsConst.CHUNKSIZE * 20 + 5);
+      out = file.openOutputStream();
+      out.write(bigData);
+      out.close();
+      checkChunkedFileData(file, bigData);
+      
+      // a stream never closed, its chunks are deleted when the DB is opened again
+      out = file.openOutputStream();
+      out.write(genChunkedData(SqlFsConst.CHUNKSIZE * 20));
+      __assert(queryLong(CHUNKEDFILEDB, "SELECT count(*) FROM DataRef WHERE dRefCount = 0") == 1);
+      __assert(queryLong(CHUNKEDFILEDB, "SELECT count(*) FROM DataChunk") > 21);
+      fs.close();
+      fs = SqlFs.create(CHUNKEDFILEDB, cmdApp.appInst);
+      __assert(queryLong(CHUNKEDFILEDB, "SELECT count(*) FROM DataRef WHERE dRefCount = 0") == 0);
+      __assert(queryLong(CHUNKEDFILEDB, "SELECT count(*) FROM DataChunk") == 21);
+      file = fs.getFile("/stream.bin");
+      checkChunkedFileData(file, bigData);
+      
+      __assert(file.delete());
+      fs.close();
+   }
+   
+   static void checkFileRange(SqlFile file, long offset, byte[] chkData, int off, int len)
+   {
+	   byte[] buf = new byte[len];
+	   __assert(file.read(offset, buf, 0, len) == len);
+	   for (int i = 0; i < len; ++i)
+		   __assert(buf[i] == chkData[off + i]);
+   }
+   
+   static void ct_testRandomAccess() throws Exception
+   {
+	  cmdApp.stdOut.println("Running " + getCallerMethodName());
+	  deleteFile(CHUNKEDFILEDB);
+	  SqlFs fs = SqlFs.create(CHUNKEDFILEDB, cmdApp.appInst);
+      SqlDir rootDir = fs.getRootDir();
+      SqlFile file = rootDir.addFile("random.bin");
+      
+      // write to a new file
+      byte[] data = genChunkedData(SqlFsConst.CHUNKSIZE * 3);
+      __assert(file.write(0, data, 0, data.length));
+      __assert(file.getFileSize() == data.length);
+      
+      // patch across a chunk boundary
+      byte[] patch = new byte[100];
+      Arrays.fill(patch, (byte)0x5a);
+      __assert(file.write(SqlFsConst.CHUNKSIZE - 50, patch, 0, patch.length));
+      System.arraycopy(patch, 0, data, SqlFsConst.CHUNKSIZE - 50, patch.length);
+      __assert(file.getFileSize() == data.length);
+      checkFileRange(file, SqlFsConst.CHUNKSIZE - 60, data, SqlFsConst.CHUNKSIZE - 60, 120);
+      checkChunkedFileData(file, data);
+      
+      // read beyond end
+      byte[] buf = new byte[10];
+      __assert(file.read(data.length, buf, 0, buf.length) == 0);
+      __assert(file.read(data.length - 4, buf, 0, buf.length) == 4);
+      
+      // write beyond end, gap is zero
+      __assert(file.write(data.length + 10, patch, 0, 5));
+      __assert(file.getFileSize() == data.length + 15);
+      checkFileRange(file, data.length - 5, new byte[]{data[data.length - 5], data[data.length - 4], 
+    		         data[data.length - 3], data[data.length - 2], data[data.length - 1], 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 
+    		         0x5a, 0x5a, 0x5a, 0x5a, 0x5a}, 0, 20);
+      
+      // truncate in the middle of a chunk
+      __assert(file.truncate(SqlFsConst.CHUNKSIZE + 7));
+      __assert(file.getFileSize() == SqlFsConst.CHUNKSIZE + 7);
+      byte[] cut = new byte[SqlFsConst.CHUNKSIZE + 7];
+      System.arraycopy(data, 0, cut, 0, cut.length);
+      checkChunkedFileData(file, cut);
+      __assert(Arrays.equals(readAll(file.openInputStream()), cut));
+      
+      // channel
+      SqlFileChannel ch = file.openChannel();
+      __assert(ch.size() == cut.length);
+      ch.position(5);
+      __assert(ch.write(ByteBuffer.wrap(patch, 0, 3)) == 3);
+      __assert(ch.position() == 8);
+      ch.position(4);
+      ByteBuffer bb = ByteBuffer.allocate(5);
+      __assert(ch.read(bb) == 5);
+      __assert(bb.get(0) == cut[4] && bb.get(1) == 0x5a && bb.get(3) == 0x5a && bb.get(4) == cut[8]);
+      ch.truncate(3);
+      __assert(ch.position() == 3 && ch.size() == 3);
+      __assert(ch.read(ByteBuffer.allocate(5)) == -1);
+      ch.close();
+      
+      // data saved by SimpleFileData can't be accessed
+      SimpleFileData sfd = new SimpleFileData();
+      sfd.setRawBinData(new byte[]{0x34, 0x12, 0x09, 0x11, 0x08});
+      __assert(file.saveFileData(sfd));
+      __assert(!file.write(0, patch, 0, 1));
+      __assertEquErrCode(SqlFsErrCode.getLastError(), FsErr.DataNotChunked);
+      __assert(file.read(0, buf, 0, 1) == -1);
+      
+      __assert(file.delete());
+      fs.close();
+   }
+   
+   private static final String BATCHDB = "/sdcard/consoleapps/batch.db";
+   private static final String BATCHDB2 = "/sdcard/consoleapps/batch2.db";
+   
+   static void ct_testBatch()
+   {
+	  cmdApp.stdOut.println("Running " + getCallerMethodName());
+	  deleteFile(BATCHDB);
+	  SqlFs fs = SqlFs.create(BATCHDB, cmdApp.appInst);
+      SqlDir rootDir = fs.getRootDir();
+      SimpleFileData fd = new SimpleFileData();
+      fd.setTextData("a simple program to produce a signal, such as turning on an LED.");
+      final int numFiles = 200;
+      
+      // one transaction per operation
+      long startTime = System.currentTimeMillis();
+      SqlDir dir1 = rootDir.addDir("dir1");
+      for (int i = 0; i < numFiles; ++i)
+    	  __assert(dir1.addFile("file" + i).saveFileData(fd));
+      long elapsed = System.currentTimeMillis() - startTime;
+      
+      // all in one batch
+      startTime = System.currentTimeMillis();
+      SqlFsBatch batch = fs.beginBatch();
+      __assert(batch != null);
+      __assert(fs.beginBatch() == null);
+      __assertEquErrCode(SqlFsErrCode.getLastError(), FsErr.BatchAlreadyBegun);
+      SqlDir dir2 = rootDir.addDir("dir2");
+      for (int i = 0; i < numFiles; ++i)
+    	  __assert(dir2.addFile("file" + i).saveFileData(fd));
+      __assert(batch.getOpCount() == 1 + numFiles * 2);
+      __assert(batch.getFailedCount() == 0);
+      __assert(batch.commit());
+      long elapsedBatch = System.currentTimeMillis() - startTime;
+      cmdApp.stdOut.println("files = " + numFiles + ", time = " + elapsed + "ms, time in batch = " + elapsedBatch + "ms");
+      __assert(fs.getDir("/dir2").getChildCount() == numFiles);
+      
+      // all or nothing
+      batch = fs.beginBatch();
+      __assert(rootDir.addDir("dir3") != null);
+      __assert(rootDir.addDir("dir3") == null);
+      __assert(fs.getFile("/dir1/file0").rename("file0.txt"));
+      __assert(!batch.commit());
+      __assertEquErrCode(SqlFsErrCode.getLastError(), FsErr.BatchRolledBack);
+      __assert(batch.getOpCount() == 3);
+      __assertEquErrCode(batch.getError(0), FsErr.OK);
+      __assertEquErrCode(batch.getError(1), FsErr.NameAlreadyExists);
+      __assertEquErrCode(batch.getError(2), FsErr.OK);
+      __assert(fs.getDir("/dir3") == null);
+      __assert(fs.getFile("/dir1/file0") != null);
+      __assert(fs.getFile("/dir1/file0.txt") == null);
+      
+      // explicit rollback
+      batch = fs.beginBatch();
+      __assert(fs.getDir("/dir2").delete());
+      __assert(fs.getDir("/dir2") == null);
+      batch.rollback();
+      __assert(fs.getDir("/dir2").getChildCount() == numFiles);
+      
+      // batches on two DBs in the same thread, each one ends its own
+      deleteFile(BATCHDB2);
+      SqlFs otherFs = SqlFs.create(BATCHDB2, cmdApp.appInst);
+      batch = fs.beginBatch();
+      SqlFsBatch otherBatch = otherFs.beginBatch();
+      __assert(batch != null && otherBatch != null);
+      __assert(rootDir.addDir("dir4") != null);
+      __assert(otherFs.getRootDir().addDir("other") != null);
+      __assert(batch.getOpCount() == 1 && otherBatch.getOpCount() == 1);
+      __assert(batch.commit());
+      otherBatch.rollback();
+      __assert(fs.getDir("/dir4") != null);
+      __assert(otherFs.getDir("/other") == null);
+      otherFs.close();
+      
+      // but only one on a DB file, even by another SqlFs
+      SqlFs sameFs = SqlFs.create(BATCHDB, cmdApp.appInst);
+      batch = fs.beginBatch();
+      __assert(sameFs.beginBatch() == null);
+      __assertEquErrCode(SqlFsErrCode.getLastError(), FsErr.BatchAlreadyBegun);
+      __assert(batch.commit());
+      sameFs.close();
+      
+      fs.close();
+   }
+   
+   private static final String TREEDELETEDB = "/sdcard/consoleapps/treedelete.db";
+   
+   /**
+    *  Add 'numDirs' dirs, each with 'numFiles' files, under 'dir' for 'depth' levels
+    *
+    *  @return number of nodes added
+    */
+   static int addTree(SqlDir dir, int depth, int numDirs, int numFiles, IFileData fd)
+   {
+	   int count = 0;
+	   for (int i = 0; i < numFiles; ++i) {
+		   __assert(dir.addFile("file" + i).saveFileData(fd));
+		   ++count;
+	   }
+	   if (depth <= 0)
+		   return count;
+	   
+	   for (int i = 0; i < numDirs; ++i) {
+		   SqlDir subDir = dir.addDir("dir" + i);
+		   __assert(subDir != null);
+		   count += 1 + addTree(subDir, depth - 1, numDirs, numFiles, fd);
+	   }
+	   return count;
+   }
+   
+   static void ct_testTreeDelete()
+   {
+	  cmdApp.stdOut.println("Running " + getCallerMethodName());
+	  deleteFile(TREEDELETEDB);
+	  SqlFs fs = SqlFs.create(TREEDELETEDB, cmdApp.appInst);
+      SqlDir rootDir = fs.getRootDir();
+      SimpleFileData fd = new SimpleFileData();
+      fd.setTextData("a simple program to produce a signal, such as turning on an LED.");
+      
+      SqlFsBatch batch = fs.beginBatch();
+      SqlDir tree = rootDir.addDir("tree");
+      int numNodes = 1 + addTree(tree, 3, 4, 5, fd);
+      SqlFile chunked = tree.getDir("dir1/dir2").addFile("big.bin");
+      ChunkedFileData cfd = new ChunkedFileData();
+      byte[] data = genChunkedData(SqlFsConst.CHUNKSIZE * 2 + 1);
+      cfd.setSource(new ByteArrayInputStream(data));
+      __assert(chunked.saveFileData(cfd));
+      ++numNodes;
+      SqlDir other = rootDir.addDir("other");
+      __assert(addTree(other, 1, 2, 2, fd) == 8);
+      __assert(batch.commit());
+      
+      // cancelled half way, nothing is deleted
+      final int[] lastDone = new int[]{0, 0};
+      __assert(!tree.delete(new IFsProgress() {
+    	  public boolean onProgress(int done, int total) {
+    		  return false;
+    	  }
+      }));
+      __assertEquErrCode(SqlFsErrCode.getLastError(), FsErr.OpCancelled);
+      __assert(fs.getFile("/tree/dir1/dir2/big.bin") != null);
+      checkChunkedFileData(fs.getFile("/tree/dir1/dir2/big.bin"), data);
+      
+      // progress of each level
+      long startTime = System.currentTimeMillis();
+      __assert(tree.delete(new IFsProgress() {
+    	  public boolean onProgress(int done, int total) {
+    		  __assert(done > lastDone[0] && done <= total);
+    		  lastDone[0] = done;
+    		  lastDone[1] = total;
+    		  return true;
+    	  }
+      }));
+      cmdApp.stdOut.println("nodes = " + numNodes + ", time = " + (System.currentTimeMillis() - startTime) + "ms");
+      __assert(lastDone[0] == numNodes && lastDone[1] == numNodes);
+      __assert(fs.getDir("/tree") == null);
+      __assert(fs.getFile("/tree/dir1/dir2/big.bin") == null);
+      __assert(rootDir.getChildCount() == 1);
+      __assert(fs.getDir("/other").getChildCount() == 4);
+      __assert(fs.getFile("/other/dir1/file1") != null);
+      
+      // root keeps itself
+      __assert(rootDir.delete());
+      __assert(rootDir.getChildCount() == 0);
+      __assert(fs.getRootDir() != null);
+      
+      fs.close();
+   }
+   
+   private static final String COPYDB = "/sdcard/consoleapps/copy.db";
+   
+   static void ct_testCopy()
+   {
+	  cmdApp.stdOut.println("Running " + getCallerMethodName());
+	  deleteFile(COPYDB);
+	  SqlFs fs = SqlFs.create(COPYDB, cmdApp.appInst);
+      SqlDir rootDir = fs.getRootDir();
+      SimpleFileData fd = new SimpleFileData();
+      String text = "a simple program to produce a signal, such as turning on an LED.";
+      fd.setTextData(text);
+      
+      SqlFsBatch batch = fs.beginBatch();
+      SqlDir src = rootDir.addDir("src");
+      int numNodes = 1 + addTree(src, 2, 3, 4, fd);
+      SqlFile chunked = src.getDir("dir0/dir1").addFile("big.bin");
+      ChunkedFileData cfd = new ChunkedFileData();
+      byte[] data = genChunkedData(SqlFsConst.CHUNKSIZE * 2 + 1);
+      cfd.setSource(new ByteArrayInputStream(data));
+      __assert(chunked.saveFileData(cfd));
+      __assert(src.addFile("empty.txt") != null);   // no data yet
+      numNodes += 2;
+      SqlDir dest = rootDir.addDir("dest");
+      __assert(batch.commit());
+      
+      // can't copy into itself
+      __assert(src.copyTo(src) == null);
+      __assertEquErrCode(SqlFsErrCode.getLastError(), FsErr.CannotCopyToSubdir);
+      __assert(src.copyTo(fs.getDir("/src/dir2")) == null);
+      __assertEquErrCode(SqlFsErrCode.getLastError(), FsErr.CannotCopyToSubdir);
+      
+      long startTime = System.currentTimeMillis();
+      SqlFsNode copy = src.copyTo(dest);
+      cmdApp.stdOut.println("nodes = " + numNodes + ", time = " + (System.currentTimeMillis() - startTime) + "ms");
+      __assert(copy != null && copy.isDir());
+      __assert(copy.getName().equals("src"));
+      __assert(copy.getParent().getName().equals("dest"));
+      __assert(src.copyTo(dest) == null);
+      __assertEquErrCode(SqlFsErrCode.getLastError(), FsErr.NameAlreadyExists);
+      
+      // same tree and data
+      __assert(((SqlDir)copy).getChildCount() == src.getChildCount());
+      checkTextFileData(fs.getFile("/dest/src/dir2/dir1/file3"), text);
+      SqlFile chunkedCopy = fs.getFile("/dest/src/dir0/dir1/big.bin");
+      __assert(chunkedCopy.getFileSize() == data.length);
+      checkChunkedFileData(chunkedCopy, data);
+      __assert(fs.getFile("/dest/src/empty.txt") != null);
+      
+      // the copy is not linked to the original
+      fd.setTextData("changed");
+      __assert(fs.getFile("/dest/src/file0").saveFileData(fd));
+      checkTextFileData(fs.getFile("/src/file0"), text);
+      __assert(fs.getDir("/src").delete());
+      checkChunkedFileData(fs.getFile("/dest/src/dir0/dir1/big.bin"), data);
+      
+      // a single file
+      copy = fs.getFile("/dest/src/file0").copyTo(rootDir);
+      __assert(copy != null && !copy.isDir());
+      checkTextFileData((SqlFile)copy, "changed");
+      
+      // a sparse tree, nodes between its IDs are deleted; copies get IDs one after another
+      SqlDir sparse = rootDir.addDir("sparse");
+      int sparseNodes = 1;
+      for (int i = 0; i < 10; ++i) {
+    	  __assert(sparse.addDir("d" + i) != null);
+    	  __assert(rootDir.addDir("gap" + i) != null);
+    	  __assert(fs.getDir("/gap" + i).delete());
+    	  ++sparseNodes;
+      }
+      SqlDir copies = rootDir.addDir("copies");
+      long maxID;
+      for (int i = 0; i < 5; ++i) {
+    	  SqlDir to = copies.addDir("c" + i);
+    	  maxID = getMaxFsID(COPYDB);
+    	  __assert(sparse.copyTo(to) != null);
+    	  __assert(getMaxFsID(COPYDB) == maxID + sparseNodes);
+      }
+      __assert(fs.getDir("/copies/c4/sparse/d9") != null);
+      
+      fs.close();
+   }
+   
+   /**
+    *  max(fsID) read directly from the DB
+    */
+   static long getMaxFsID(String dbPath)
+   {
+	  return queryLong(dbPath, "SELECT max(fsID) FROM FsBlock");
+   }
+   
+   /**
+    *  Run a query returning a number directly on the DB
+    */
+   static long queryLong(String dbPath, String sql)
+   {
+	  SQLiteDatabase db = SQLiteDatabase.openDatabase(dbPath, null, SQLiteDatabase.OPEN_READONLY);
+	  try {
+		 Cursor c = db.rawQuery(sql, null);
+		 try {
+			c.moveToFirst();
+			return c.getLong(0);
+		 }
+		 finally {
+			c.close();
+		 }
+	  }
+	  finally {
+		 db.close();
+	  }
+   }
+   
+   private static final String DEDUPDB = "/sdcard/consoleapps/dedup.db";
+   
+   static void ct_testSharedData() throws Exception
+   {
+	  cmdApp.stdOut.println("Running " + getCallerMethodName());
+	  deleteFile(DEDUPDB);
+	  SqlFs fs = SqlFs.create(DEDUPDB, cmdApp.appInst);
+      SqlDir rootDir = fs.getRootDir();
+      SimpleFileData fd = new SimpleFileData();
+      String text = "a simple program to produce a signal, such as turning on an LED.";
+      fd.setTextData(text);
+      
+      // same content saved to many files
+      SqlFile f1 = rootDir.addFile("f1.txt");
+      SqlFile f2 = rootDir.addFile("f2.txt");
+      SqlFile f3 = rootDir.addFile("f3.txt");
+      __assert(f1.saveFileData(fd) && f2.saveFileData(fd) && f3.saveFileData(fd));
+      
+      // changing or deleting one never affects others
+      fd.setTextData("changed");
+      __assert(f2.saveFileData(fd));
+      checkTextFileData(f1, text);
+      checkTextFileData(f2, "changed");
+      checkTextFileData(f3, text);
+      __assert(f1.delete());
+      checkTextFileData(f3, text);
+      fd.setTextData(text);
+      __assert(f2.saveFileData(fd));
+      __assert(f3.delete());
+      checkTextFileData(f2, text);
+      
+      // chunks, saved by ChunkedFileData and by stream
+      byte[] data = genChunkedData(SqlFsConst.CHUNKSIZE * 2 + 10);
+      SqlFile c1 = rootDir.addFile("c1.bin");
+      ChunkedFileData cfd = new ChunkedFileData();
+      cfd.setSource(new ByteArrayInputStream(data));
+      __assert(c1.saveFileData(cfd));
+      SqlFile c2 = rootDir.addFile("c2.bin");
+      OutputStream out = c2.openOutputStream();
+      out.write(data);
+      out.close();
+      checkChunkedFileData(c2, data);
+      
+      // random access to a shared one is copy-on-write
+      byte[] patch = new byte[]{1, 2, 3};
+      __assert(c2.write(SqlFsConst.CHUNKSIZE - 1, patch, 0, patch.length));
+      checkChunkedFileData(c1, data);
+      byte[] c2Data = readAll(c2.openInputStream());
+      __assert(c2Data.length == data.length);
+      __assert(c2Data[SqlFsConst.CHUNKSIZE] == 2);
+      __assert(c1.truncate(10));
+      __assert(readAll(c1.openInputStream()).length == 10);
+      checkChunkedFileData(c2, c2Data);
+      
+      // copies share data with the original
+      SqlDir dir = rootDir.addDir("dir");
+      __assert(c2.copyTo(dir) != null);
+      __assert(f2.copyTo(dir) != null);
+      __assert(c2.delete());
+      __assert(f2.delete());
+      checkChunkedFileData(fs.getFile("/dir/c2.bin"), c2Data);
+      checkTextFileData(fs.getFile("/dir/f2.txt"), text);
+      __assert(dir.delete());
+      byte[] c1Data = new byte[10];
+      System.arraycopy(data, 0, c1Data, 0, c1Data.length);
+      checkChunkedFileData(c1, c1Data);
+      
+      fs.close();
+   }
+   
+   private static final String CODECDB = "/sdcard/consoleapps/codec.db";
+   private static final String RAWDB = "/sdcard/consoleapps/codecraw.db";
+   
+   // codec for test, counts data encoded
+   static class XorCodec implements IFsCodec
+   {
+	   int encodedCount = 0;
+	   
+	   public int getID() { return SqlFsCodec.USERID; }
+	   
+	   public byte[] encode(byte[] data)
+	   {
+		   ++encodedCount;
+		   // half of the size, so that it is worth it
+		   byte[] out = new byte[data.length / 2 + 1];
+		   return (data.length % 2 == 0 && isRepeated(data)) ? xor(data, out) : null;
+	   }
+	   
+	   public byte[] decode(byte[] data)
+	   {
+		   byte[] out = new byte[(data.length - 1) * 2];
+		   for (int i = 0; i < out.length; ++i)
+			   out[i] = (byte)(data[i / 2] ^ 0x5a);
+		   return out;
+	   }
+	   
+	   // each pair of bytes is the same
+	   private static boolean isRepeated(byte[] data)
+	   {
+		   for (int i = 0; i < data.length; i += 2)
+			   if (data[i] != data[i + 1])
+				   return false;
+		   return true;
+	   }
+	   
+	   private static byte[] xor(byte[] data, byte[] out)
+	   {
+		   for (int i = 0; i < data.length; i += 2)
+			   out[i / 2] = (byte)(data[i] ^ 0x5a);
+		   return out;
+	   }
+   }
+   
+   static byte[] genTextLikeData(int size)
+   {
+	   byte[] line = "a simple program to produce a signal, such as turning on an LED.\n".getBytes();
+	   byte[] data = new byte[size];
+	   for (int i = 0; i < size; ++i)
+		   data[i] = line[i % line.length];
+	   return data;
+   }
+   
+   static void ct_testCodec() throws Exception
+   {
+	  cmdApp.stdOut.println("Running " + getCallerMethodName());
+	  deleteFile(CODECDB);
+	  deleteFile(RAWDB);
+	  SqlFs fs = SqlFs.create(CODECDB, cmdApp.appInst);
+      SqlDir rootDir = fs.getRootDir();
+      
+      // text and binary, compressed by default codec
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < 200; ++i)
+    	  sb.append("line ").append(i % 10).append(": turning on an LED.\n");
+      String text = sb.toString();
+      SimpleFileData fd = new SimpleFileData();
+      fd.setTextData(text);
+      SqlFile txt = rootDir.addFile("big.txt");
+      __assert(txt.saveFileData(fd));
+      checkTextFileData(txt, text);
+      SimpleFileData fdRetrieve = new SimpleFileData();
+      __assert(txt.getFileData(fdRetrieve));
+      __assert(fdRetrieve.getDataSizeInByte() == fd.getDataSizeInByte());
+      
+      byte[] bin = genTextLikeData(5000);
+      fd.setRawBinData(bin);
+      SqlFile binFile = rootDir.addFile("big.bin");
+      __assert(binFile.saveFileData(fd));
+      fdRetrieve = new SimpleFileData();
+      __assert(binFile.getFileData(fdRetrieve));
+      __assert(!fdRetrieve.isTextFile());
+      __assert(Arrays.equals(fdRetrieve.getRawBinData(), bin));
+      
+      // small ones are saved as they are
+      fd.setTextData("small");
+      SqlFile small = rootDir.addFile("small.txt");
+      __assert(small.saveFileData(fd));
+      checkTextFileData(small, "small");
+      
+      // chunks
+      byte[] data = genTextLikeData(SqlFsConst.CHUNKSIZE * 3 + 100);
+      SqlFile chunked = rootDir.addFile("chunked.bin");
+      ChunkedFileData cfd = new ChunkedFileData();
+      cfd.setSource(new ByteArrayInputStream(data));
+      __assert(chunked.saveFileData(cfd));
+      checkChunkedFileData(chunked, data);
+      __assert(chunked.getFileSize() == data.length);
+      
+      // random access to compressed chunks
+      byte[] patch = new byte[]{1, 2, 3};
+      __assert(chunked.write(SqlFsConst.CHUNKSIZE - 1, patch, 0, patch.length));
+      System.arraycopy(patch, 0, data, SqlFsConst.CHUNKSIZE - 1, patch.length);
+      checkChunkedFileData(chunked, data);
+      byte[] part = new byte[10];
+      __assert(chunked.read(SqlFsConst.CHUNKSIZE * 2, part, 0, part.length) == part.length);
+      for (int i = 0; i < part.length; ++i)
+    	  __assert(part[i] == data[SqlFsConst.CHUNKSIZE * 2 + i]);
+      
+      // stream
+      SqlFile streamed = rootDir.addFile("streamed.bin");
+      OutputStream out = streamed.openOutputStream();
+      out.write(data);
+      out.close();
+      __assert(Arrays.equals(readAll(streamed.openInputStream()), data));
+      
+      // incompressible, and no codec
+      byte[] noise = new byte[SqlFsConst.CHUNKSIZE + 10];
+      new java.util.Random(7).nextBytes(noise);
+      SqlFile noiseFile = rootDir.addFile("noise.bin");
+      cfd = new ChunkedFileData();
+      cfd.setSource(new ByteArrayInputStream(noise));
+      __assert(noiseFile.saveFileData(cfd));
+      checkChunkedFileData(noiseFile, noise);
+      
+      SqlFile plain = rootDir.addFile("plain.bin");
+      cfd = new ChunkedFileData();
+      cfd.setCodec(null);
+      cfd.setSource(new ByteArrayInputStream(data));
+      __assert(plain.saveFileData(cfd));
+      checkChunkedFileData(plain, data);
+      
+      // own codec
+      XorCodec xorCodec = new XorCodec();
+      SqlFsCodec.register(xorCodec);
+      __assert(SqlFsCodec.get(SqlFsCodec.USERID) == xorCodec);
+      byte[] pairs = new byte[1000];
+      for (int i = 0; i < pairs.length; ++i)
+    	  pairs[i] = (byte)(i / 2);
+      fd = new SimpleFileData();
+      fd.setCodec(xorCodec);
+      fd.setRawBinData(pairs);
+      SqlFile xorFile = rootDir.addFile("xor.bin");
+      __assert(xorFile.saveFileData(fd));
+      __assert(xorCodec.encodedCount == 1);
+      fdRetrieve = new SimpleFileData();
+      __assert(xorFile.getFileData(fdRetrieve));
+      __assert(Arrays.equals(fdRetrieve.getRawBinData(), pairs));
+      
+      fs.close();
+      
+      // same data without codec take more space
+      fs = SqlFs.create(RAWDB, cmdApp.appInst);
+      cfd = new ChunkedFileData();
+      cfd.setCodec(null);
+      cfd.setSource(new ByteArrayInputStream(genTextLikeData(SqlFsConst.CHUNKSIZE * 20)));
+      __assert(fs.getRootDir().addFile("raw.bin").saveFileData(cfd));
+      fs.close();
+      fs = SqlFs.create(CODECDB, cmdApp.appInst);
+      cfd = new ChunkedFileData();
+      cfd.setSource(new ByteArrayInputStream(genTextLikeData(SqlFsConst.CHUNKSIZE * 20)));
+      __assert(fs.getRootDir().addFile("compressed.bin").saveFileData(cfd));
+      fs.close();
+      __assert(new File(CODECDB).length() < new File(RAWDB).length());
+   }
+   
+   private static final String LISTINGDB = "/sdcard/consoleapps/listing.db";
+   
+   static ArrayList<String> listNames(SqlFsDirListing listing)
+   {
+	   ArrayList<String> names = new ArrayList<String>();
+	   for (SqlFsNodeInfo entry : listing)
+		   names.add(entry.getName());
+	   return names;
+   }
+   
+   static void ct_testListing()
+   {
+	  cmdApp.stdOut.println("Running " + getCallerMethodName());
+	  deleteFile(LISTINGDB);
+	  SqlFs fs = SqlFs.create(LISTINGDB, cmdApp.appInst);
+      SqlDir rootDir = fs.getRootDir();
+      SqlDir dir = rootDir.addDir("big");
+      
+      // empty
+      __assert(!dir.listChildren().iterator().hasNext());
+      
+      // 20 files and 10 dirs, added not in order of name
+      SimpleFileData fd = new SimpleFileData();
+      fd.setTextData("12345");
+      for (int i = 19; i >= 0; --i)
+    	  __assert(dir.addFile(String.format("f%02d", i)).saveFileData(fd));
+      for (int i = 0; i < 10; ++i)
+    	  __assert(dir.addDir("d" + i) != null);
+      
+      ArrayList<String> names = listNames(dir.listChildren(SqlFsConst.FSTYPE.ANY, 7, false));
+      __assert(names.size() == 30);
+      for (int i = 1; i < names.size(); ++i)
+    	  __assert(names.get(i - 1).compareTo(names.get(i)) < 0);
+      __assert(names.get(0).equals("d0") && names.get(29).equals("f19"));
+      
+      // page size same as number of entries
+      __assert(listNames(dir.listChildren(SqlFsConst.FSTYPE.ANY, 30, false)).size() == 30);
+      
+      // by type, descending
+      int count = 0;
+      String prev = null;
+      for (SqlFsNodeInfo entry : dir.listChildren(SqlFsConst.FSTYPE.FILE, 3, true)) {
+    	  __assert(entry.getType() == SqlFsConst.FSTYPE.FILE);
+    	  __assert(entry.getFileSize() == fd.getDataSizeInByte());
+    	  __assert(entry.getLastModTime() != null);
+    	  __assert(prev == null || prev.compareTo(entry.getName()) > 0);
+    	  __assert(!dir.getChild(entry.getName()).isDir());
+    	  prev = entry.getName();
+    	  ++count;
+      }
+      __assert(count == 20);
+      names = listNames(dir.listChildren(SqlFsConst.FSTYPE.DIR, 4, false));
+      __assert(names.size() == 10 && names.get(0).equals("d0"));
+      
+      // changed between pages, others neither skipped nor repeated
+      Iterator<SqlFsNodeInfo> it = dir.listChildren(SqlFsConst.FSTYPE.FILE, 5, false).iterator();
+      names = new ArrayList<String>();
+      for (int i = 0; i < 5; ++i)
+    	  names.add(it.next().getName());
+      __assert(dir.getChild("f02").delete());
+      __assert(dir.getChild("f07").delete());
+      __assert(dir.addFile("f00a") != null);
+      __assert(dir.addFile("f99") != null);
+      while (it.hasNext())
+    	  names.add(it.next().getName());
+      // f02 listed already, f07 deleted, f00a added before last listed one, f99 added after
+      __assert(names.size() == 20);
+      __assert(names.contains("f02") && !names.contains("f07") && !names.contains("f00a") && names.contains("f99"));
+      
+      fs.close();
+   }
+   
+   private static void ct_testFsID()
+   {
+	   cmdApp.stdOut.println("Running " + getCallerMethodName());
+	   
+	   // value semantics, usable as a key
+	   FsID a = FsID.toFsID(3);
+	   FsID b = FsID.toFsID(3L);
+	   __assert(a.equals(b) && a.equals((Object)b) && a.hashCode() == b.hashCode());
+	   __assert(a.compare(FsID.toFsID(4)) < 0 && FsID.toFsID(4).compare(a) > 0 && a.compare(b) == 0);
+	   __assert(!a.equals((FsID)null));
+	   java.util.HashSet<FsID> idSet = new java.util.HashSet<FsID>();
+	   idSet.add(a);
+	   __assert(idSet.contains(b));
+	   __assert(a.toString().equals("3"));
+	   
+	   // same width as saved in DB
+	   long big = 0x100000005L;
+	   if (FsID.isLongID())
+		   __assert(FsID.toFsID(big).getVal() == big);
+	   else
+		   __assert(FsID.toFsID(big).getVal() == 5);
+   }
+   
+   private static final String FINDDB = "/sdcard/consoleapps/find.db";
+   
+   static void ct_testFind()
+   {
+	  cmdApp.stdOut.println("Running " + getCallerMethodName());
+	  deleteFile(FINDDB);
+	  SqlFs fs = SqlFs.create(FINDDB, cmdApp.appInst);
+      SqlDir rootDir = fs.getRootDir();
+      
+      // /logs/x.json, /logs/2014/{a.json, b.txt, 06/c.json}, /logs/sub, /data/d.json
+      SimpleFileData small = new SimpleFileData();
+      small.setTextData("1234");
+      SimpleFileData large = new SimpleFileData();
+      large.setTextData("12345678901234567890");
+      SqlDir logs = rootDir.addDir("logs");
+      SqlDir y2014 = logs.addDir("2014");
+      __assert(logs.addFile("x.json").saveFileData(small));
+      __assert(y2014.addFile("a.json").saveFileData(large));
+      __assert(y2014.addFile("b.txt").saveFileData(small));
+      __assert(y2014.addDir("06").addFile("c.json").saveFileData(large));
+      __assert(logs.addDir("sub") != null);
+      __assert(rootDir.addDir("data").addFile("d.json").saveFileData(small));
+      
+      ArrayList<String> paths = fs.find("/logs/**/*.json");
+      __assert(paths.size() == 3);
+      __assert(paths.get(0).equals("/logs/2014/06/c.json"));
+      __assert(paths.get(1).equals("/logs/2014/a.json"));
+      __assert(paths.get(2).equals("/logs/x.json"));
+      
+      paths = fs.find("/*/*.json");
+      __assert(paths.size() == 2 && paths.get(0).equals("/data/d.json") && paths.get(1).equals("/logs/x.json"));
+      __assert(fs.find("/logs/2014/*").size() == 3);
+      __assert(fs.find("/logs/2014/[ab].*").size() == 2);
+      __assert(fs.find("/logs/2014/a.json").size() == 1);
+      __assert(fs.find("/logs/**").size() == 7);
+      __assert(fs.find("/**/06/*").size() == 1);
+      __assert(fs.find("/nope/**").isEmpty());
+      __assert(fs.find("logs/*") == null);
+      __assert(SqlFsErrCode.getLastError() == FsErr.MustUseAbsolutePath);
+      
+      // filters
+      SqlFsFindFilter filter = new SqlFsFindFilter();
+      filter.setType(SqlFsConst.FSTYPE.DIR);
+      __assert(fs.find("/**", filter).size() == 5);
+      filter = new SqlFsFindFilter();
+      filter.setNamePattern("*.txt");
+      paths = fs.find("/**", filter);
+      __assert(paths.size() == 1 && paths.get(0).equals("/logs/2014/b.txt"));
+      filter = new SqlFsFindFilter();
+      filter.setType(SqlFsConst.FSTYPE.FILE);
+      filter.setSizeRange(large.getDataSizeInByte(), -1);
+      __assert(fs.find("/**", filter).size() == 2);
+      filter.setSizeRange(-1, small.getDataSizeInByte());
+      __assert(fs.find("/**", filter).size() == 3);
+      Calendar tomorrow = Calendar.getInstance();
+      tomorrow.add(Calendar.DAY_OF_MONTH, 1);
+      Calendar yesterday = Calendar.getInstance();
+      yesterday.add(Calendar.DAY_OF_MONTH, -1);
+      filter = new SqlFsFindFilter();
+      filter.setModTimeRange(tomorrow, null);
+      __assert(fs.find("/**", filter).isEmpty());
+      filter.setModTimeRange(yesterday, tomorrow);
+      __assert(fs.find("/**", filter).size() == 10);
+      
+      // callback, stopped at the first one
+      final ArrayList<SqlFsNodeInfo> found = new ArrayList<SqlFsNodeInfo>();
+      __assert(fs.find("/**/*.json", null, new IFsFindCallback() {
+    	  public boolean onFound(String path, SqlFsNodeInfo info)
+    	  {
+    		  found.add(info);
+    		  return false;
+    	  }
+      }));
+      __assert(found.size() == 1 && found.get(0).getName().equals("d.json"));
+      __assert(found.get(0).getFileSize() == small.getDataSizeInByte());
+      
+      // callback runs with the FS unlocked, a writer in another thread is not blocked
+      final boolean[] isAdded = new boolean[]{false};
+      __assert(fs.find("/logs/*.json", null, new IFsFindCallback() {
+    	  public boolean onFound(String path, SqlFsNodeInfo info)
+    	  {
+    		  Thread t = new Thread() {
+    			  public void run() {
+    				  SqlFs otherFs = SqlFs.create(FINDDB, cmdApp.appInst);
+    				  isAdded[0] = (otherFs.getRootDir().addDir("other") != null);
+    				  otherFs.close();
+    			  }
+    		  };
+    		  t.start();
+    		  try { t.join(5000); } catch (InterruptedException e) { }
+    		  return false;
+    	  }
+      }));
+      __assert(isAdded[0]);
+      __assert(fs.getDir("/other").delete());
+      
+      // in a batch
+      SqlFsBatch batch = fs.beginBatch();
+      try {
+    	  __assert(logs.addFile("y.json") != null);
+    	  __assert(fs.find("/logs/*.json").size() == 2);
+      }
+      finally {
+    	  __assert(batch.commit());
+      }
+      
+      fs.close();
+      
+      ct_testFindGlob();
+   }
+   
+   /**
+    *  Names under "**" are matched by SqlFsFind.matchName() in Java, not by SQLite,
+    *  so compare it with GLOB of SQLite on generated patterns and names
+    */
+   static void ct_testFindGlob()
+   {
+	  cmdApp.stdOut.println("Running " + getCallerMethodName());
+	  deleteFile(FINDDB);
+	  SqlFs fs = SqlFs.create(FINDDB, cmdApp.appInst);
+	  SqlDir globDir = fs.getRootDir().addDir("g");
+	  SQLiteDatabase memDb = SQLiteDatabase.create(null);
+	  Random rand = new Random(20141018);
+	  
+	  // each /g/<name> has a file "f"
+	  final String nameChars = "ab-^[]";
+	  ArrayList<String> names = new ArrayList<String>();
+	  while (names.size() < 40) {
+		  String name = randomString(rand, nameChars, 1 + rand.nextInt(4));
+		  if (names.contains(name))
+			  continue;
+		  names.add(name);
+		  __assert(globDir.addDir(name).addFile("f") != null);
+	  }
+	  
+	  final String patChars = "ab-^[]*?";
+	  for (int i = 0; i < 200; ++i) {
+		  String pat = randomString(rand, patChars, 1 + rand.nextInt(6));
+		  if (pat.equals("**"))
+			  continue;
+		  
+		  // "f" is matched by SQLite, the dir name only by Java
+		  ArrayList<String> paths = fs.find("/g/**/" + pat + "/f");
+		  __assert(paths != null);
+		  for (String name : names) {
+			  Cursor c = memDb.rawQuery("SELECT ? GLOB ?", new String[]{name, pat});
+			  __assert(c.moveToFirst());
+			  boolean isMatched = (c.getInt(0) != 0);
+			  c.close();
+			  if (isMatched != paths.contains("/g/" + name + "/f"))
+				  cmdApp.stdOut.println("GLOB mismatch: " + name + " " + pat);
+			  __assert(isMatched == paths.contains("/g/" + name + "/f"));
+		  }
+	  }
+	  
+	  memDb.close();
+	  fs.close();
+   }
+   
+   static String randomString(Random rand, String chars, int len)
+   {
+	  StringBuilder sb = new StringBuilder();
+	  for (int i = 0; i < len; ++i)
+		  sb.append(chars.charAt(rand.nextInt(chars.length())));
+	  return sb.toString();
+   }
+   
+   private static final String PATHDB = "/sdcard/consoleapps/path.db";
+   
+   static void ct_testFullPath()
+   {
+	  cmdApp.stdOut.println("Running " + getCallerMethodName());
+	  deleteFile(PATHDB);
+	  SqlFs fs = SqlFs.create(PATHDB, cmdApp.appInst);
+      SqlDir rootDir = fs.getRootDir();
+      
+      // /a/b/c.txt, /a/b/d/e.txt, /x
+      SqlDir a = rootDir.addDir("a");
+      SqlDir b = a.addDir("b");
+      __assert(b.addFile("c.txt") != null);
+      __assert(b.addDir("d").addFile("e.txt") != null);
+      SqlDir x = rootDir.addDir("x");
+      __assert(rootDir.getFullPath().equals("/"));
+      __assert(b.getFullPath().equals("/a/b"));
+      __assert(fs.getFile("/a/b/d/e.txt").getFullPath().equals("/a/b/d/e.txt"));
+      __assert(b.isAncestor(a) && !a.isAncestor(b) && b.isAncestor(rootDir) && !x.isAncestor(a));
+      
+      // paths of everything under a dir follow rename and move
+      __assert(b.rename("bb"));
+      __assert(fs.getFile("/a/bb/d/e.txt").getFullPath().equals("/a/bb/d/e.txt"));
+      __assert(fs.getFile("/a/b/d/e.txt") == null);
+      __assert(fs.getDir("/a/bb").move(x));
+      __assert(fs.getFile("/x/bb/c.txt").getFullPath().equals("/x/bb/c.txt"));
+      __assert(fs.getDir("/x/bb/d").getFullPath().equals("/x/bb/d"));
+      __assert(fs.getDir("/a/bb") == null);
+      
+      // a name sharing the leading part is not under it
+      __assert(rootDir.addDir("x!").addFile("f.txt") != null);
+      __assert(fs.getDir("/x").rename("y"));
+      __assert(fs.getFile("/x!/f.txt").getFullPath().equals("/x!/f.txt"));
+      __assert(fs.getFile("/y/bb/d/e.txt") != null);
+      
+      // copies
+      SqlFsNode copy = fs.getDir("/y/bb").copyTo(a);
+      __assert(copy != null && copy.getFullPath().equals("/a/bb"));
+      __assert(fs.getFile("/a/bb/d/e.txt").getFullPath().equals("/a/bb/d/e.txt"));
+      __assert(fs.getFile("/y/bb/d/e.txt").getFullPath().equals("/y/bb/d/e.txt"));
+      
+      // deeper than a single query resolves
+      SqlDir dir = rootDir;
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < 40; ++i) {
+    	  dir = dir.addDir("L" + i);
+    	  sb.append("/L").append(i);
+      }
+      __assert(dir.getFullPath().equals(sb.toString()));
+      __assert(fs.getDir(sb.toString()) != null);
+      __assert(fs.getDir("/L0").delete());
+      __assert(fs.getDir(sb.toString()) == null);
+      
+      fs.close();
+   }
+   
+   private static final String METRICSDB = "/sdcard/consoleapps/metrics.db";
+   
+   static void ct_testMetrics()
+   {
+	  cmdApp.stdOut.println("Running " + getCallerMethodName());
+	  
+	  // histogram, values read back are within 1/16
+	  SqlFsHistogram hist = new SqlFsHistogram();
+	  for (int i = 1; i <= 1000; ++i)
+		  hist.record(i);
+	  __assert(hist.getCount() == 1000 && hist.getMax() == 1000 && hist.getMean() == 500);
+	  __assert(Math.abs(hist.getValueAtPercentile(50) - 500) <= 500 / 16);
+	  __assert(Math.abs(hist.getValueAtPercentile(99) - 990) <= 990 / 16);
+	  __assert(hist.getValueAtPercentile(100) == 1000);
+	  hist.reset();
+	  __assert(hist.getCount() == 0 && hist.getValueAtPercentile(50) == 0);
+	  
+	  deleteFile(METRICSDB);
+	  SqlFs fs = SqlFs.create(METRICSDB, cmdApp.appInst);
+      SqlDir rootDir = fs.getRootDir();
+      __assert(fs.getMetrics() == null);
+      
+      SqlFsMetrics metrics = new SqlFsMetrics();
+      final ArrayList<SqlFsOpStats> ops = new ArrayList<SqlFsOpStats>();
+      fs.setMetrics(new IFsMetrics() {
+    	  public void onOpDone(SqlFsOpStats stats)
+    	  {
+    		  ops.add(stats);
+    	  }
+      });
+      
+      // nested calls are part of the operation
+      SqlDir dir = rootDir.addDir("dir");
+      __assert(ops.size() == 1 && ops.get(0).getOp() == IFsMetrics.FSOP.ADDDIR);
+      __assert(ops.get(0).getStmtCount() > 0 && ops.get(0).getError() == FsErr.OK);
+      __assert(ops.get(0).getLatencyNs() >= ops.get(0).getLockWaitNs() + ops.get(0).getCommitNs());
+      
+      fs.setMetrics(metrics);
+      __assert(fs.getMetrics() == metrics);
+      SimpleFileData fd = new SimpleFileData();
+      fd.setTextData("a simple program to produce a signal, such as turning on an LED.");
+      int size = fd.getDataSizeInByte();
+      SqlFile file = dir.addFile("a.txt");
+      __assert(file.saveFileData(fd));
+      __assert(file.getFileData(new SimpleFileData()));
+      __assert(dir.addFile("a.txt") == null);
+      __assert(fs.getFile("/dir/a.txt") != null);
+      __assert(file.rename("b.txt"));
+      __assert(metrics.getCount(IFsMetrics.FSOP.ADDFILE) == 2);
+      __assert(metrics.getErrorCount(IFsMetrics.FSOP.ADDFILE) == 1);
+      __assert(metrics.getBytesWritten(IFsMetrics.FSOP.SAVEFILEDATA) == size);
+      __assert(metrics.getBytesRead(IFsMetrics.FSOP.GETFILEDATA) == size);
+      __assert(metrics.getStmtCount(IFsMetrics.FSOP.SAVEFILEDATA) > 0);
+      __assert(metrics.getCount(IFsMetrics.FSOP.GETFSNODE) == 1);
+      __assert(metrics.getCount(IFsMetrics.FSOP.RENAME) == 1);
+      __assert(metrics.getCommitTime(IFsMetrics.FSOP.SAVEFILEDATA).getMax() > 0);
+      SqlFsHistogram latency = metrics.getLatency(IFsMetrics.FSOP.SAVEFILEDATA);
+      __assert(latency.getCount() == 1 && latency.getValueAtPercentile(99) <= latency.getMax());
+      
+      // opening a stream is an operation, so is saving it when closed
+      try {
+    	  OutputStream out = file.openOutputStream();
+    	  __assert(metrics.getCount(IFsMetrics.FSOP.WRITE) == 1);
+    	  out.close();
+    	  __assert(metrics.getCount(IFsMetrics.FSOP.WRITE) == 2);
+    	  file.openInputStream().close();
+    	  __assert(metrics.getCount(IFsMetrics.FSOP.READ) == 1);
+      }
+      catch (IOException e) {
+    	  throw new AssertionError(e.getMessage());
+      }
+      
+      // operations in a batch are one
+      SqlFsBatch batch = fs.beginBatch();
+      try {
+    	  __assert(dir.addFile("c.txt").saveFileData(fd));
+    	  __assert(dir.addFile("d.txt").saveFileData(fd));
+      }
+      finally {
+    	  __assert(batch.commit());
+      }
+      __assert(metrics.getCount(IFsMetrics.FSOP.BATCH) == 1);
+      __assert(metrics.getCount(IFsMetrics.FSOP.ADDFILE) == 2);
+      __assert(metrics.getBytesWritten(IFsMetrics.FSOP.BATCH) == 2 * size);
+      __assert(metrics.getCommitTime(IFsMetrics.FSOP.BATCH).getMax() > 0);
+      cmdApp.stdOut.println(metrics.toString());
+      
+      // disabled
+      fs.setMetrics(null);
+      __assert(dir.delete());
+      __assert(metrics.getCount(IFsMetrics.FSOP.DELETE) == 0);
+      metrics.reset();
+      __assert(metrics.getCount(IFsMetrics.FSOP.ADDFILE) == 0);
+      __assert(metrics.toString().length() == 0);
+      
+      fs.close();
+   }
+   
+   private static final String DIAGDB = "/sdcard/consoleapps/diag.db";
+   
+   static void ct_testDiagnostics()
+   {
+	  cmdApp.stdOut.println("Running " + getCallerMethodName());
+	  
+	  deleteFile(DIAGDB);
+	  SqlFs fs = SqlFs.create(DIAGDB, cmdApp.appInst);
+      SqlDir rootDir = fs.getRootDir();
+      SqlDir dir = rootDir.addDir("dir");
+      for (int i = 0; i < 20; ++i)
+    	  __assert(dir.addFile("f" + i) != null);
+      __assert(fs.getDiagnostics() == null);
+      
+      // every statement is slow with threshold 0
+      SqlFsDiagnostics diag = new SqlFsDiagnostics(0);
+      SqlFsMetrics metrics = new SqlFsMetrics();
+      diag.setMaxStmtsPerOp(1);
+      fs.setDiagnostics(diag);
+      fs.setMetrics(metrics);
+      __assert(fs.getDiagnostics() == diag && diag.getSlowThresholdMs() == 0);
+      
+      SqlFile file = fs.getFile("/dir/f10");
+      __assert(file != null);
+      __assert(file.getLastModTime() != null);
+      __assert(dir.getChildList().size() == 20);
+      __assert(diag.getOpCount(IFsMetrics.FSOP.GETFSNODE) == 1);
+      __assert(diag.getStmtCount(IFsMetrics.FSOP.GETFSNODE) == metrics.getStmtCount(IFsMetrics.FSOP.GETFSNODE));
+      __assert(diag.getMaxStmtCount(IFsMetrics.FSOP.GETINFO) > 0);
+      
+      List<SqlFsDiagnostics.StmtRecord> slowStmts = diag.getSlowStmts();
+      __assert(slowStmts.size() > 0);
+      int planCount = 0;
+      for (SqlFsDiagnostics.StmtRecord r : slowStmts) {
+    	  __assert(r.getSql().length() > 0 && r.getTimeNs() >= 0);
+    	  if (r.getPlan().length() > 0)
+    		  ++planCount;
+      }
+      __assert(planCount > 0);
+      
+      // lookups and listing use the indexes
+      for (SqlFsDiagnostics.StmtRecord r : diag.getFullScans()) {
+    	  cmdApp.stdOut.println(r.toString());
+    	  __assert(r.getOp() != IFsMetrics.FSOP.GETFSNODE && r.getOp() != IFsMetrics.FSOP.GETINFO &&
+    			   r.getOp() != IFsMetrics.FSOP.LIST);
+      }
+      cmdApp.stdOut.println(diag.toString());
+      
+      // disabled, metrics are kept
+      fs.setDiagnostics(null);
+      __assert(fs.getMetrics() == metrics);
+      __assert(fs.getFile("/dir/f11") != null);
+      __assert(diag.getOpCount(IFsMetrics.FSOP.GETFSNODE) == 1);
+      __assert(metrics.getCount(IFsMetrics.FSOP.GETFSNODE) == 2);
+      diag.reset();
+      __assert(diag.getSlowStmts().size() == 0 && diag.toString().length() == 0);
+      
+      fs.setMetrics(null);
+      fs.close();
+   }
+   
+   private static final String ASYNCDB = "/sdcard/consoleapps/async.db";
+   
+   static void ct_testAsync() throws Exception
+   {
+	  cmdApp.stdOut.println("Running " + getCallerMethodName());
+	  
+	  deleteFile(ASYNCDB);
+	  SqlFsAsync async = SqlFsAsync.create(ASYNCDB, cmdApp.appInst, SqlFsOptions.balanced(), 2, null);
+	  __assert(async != null);
+	  
+	  // nodes stay in the thread of the task
+	  SqlFsFuture<Boolean> dirFuture = async.submitWrite(new IFsTask<Boolean>() {
+		  public Boolean run(SqlFs fs) {
+			  return (fs.getRootDir().addDir("dir") != null);
+		  }
+	  }, null);
+	  __assert(dirFuture.get());
+	  
+	  // file added if not there, futures of writes done in order
+	  final ArrayList<String> called = new ArrayList<String>();
+	  SimpleFileData fd = new SimpleFileData();
+	  fd.setTextData("a simple program to produce a signal");
+	  SqlFsFuture<Boolean> saved = async.saveFileData("/dir/a.txt", fd, new IFsTaskCallback<Boolean>() {
+		  public void onDone(SqlFsFuture<Boolean> future) {
+			  synchronized (called) {
+				  called.add(Thread.currentThread().getName());
+			  }
+		  }
+	  });
+	  SqlFsFuture<Boolean> savedAgain = async.saveFileData("/dir/a.txt", fd, null);
+	  SqlFsFuture<Boolean> noDir = async.saveFileData("/nodir/a.txt", fd, null);
+	  __assert(saved.get() && savedAgain.get() && saved.getError() == FsErr.OK);
+	  __assert(!noDir.get() && noDir.getError() != FsErr.OK);
+	  
+	  __assert(async.exists("/dir/a.txt", null).get());
+	  __assert(!async.exists("/nodir", null).get());
+	  SimpleFileData readFd = new SimpleFileData();
+	  __assert(async.getFileData("/dir/a.txt", readFd, null).get());
+	  __assert(readFd.getText().equals(fd.getText()));
+	  __assert(async.submitRead(new IFsTask<Integer>() {
+		  public Integer run(SqlFs fs) {
+			  return fs.getDir("/dir").getChildCount();
+		  }
+	  }, null).get() == 1);
+	  
+	  __assert(async.delete("/dir", null).get());
+	  __assert(!async.exists("/dir/a.txt", null).get());
+	  
+	  // nothing submitted after close
+	  async.close();
+	  __assert(async.exists("/dir", null) == null);
+	  __assert(SqlFsErrCode.getLastError() == FsErr.AsyncClosed);
+	  
+	  // callback may still be running when get() returns, but not after close()
+	  synchronized (called) {
+		  __assert(called.size() == 1 && called.get(0).startsWith("SqlFsAsync-writer"));
+	  }
+	  
+	  // DB can't be opened, the future fails instead of returning null
+	  SqlFsAsync badAsync = SqlFsAsync.create("/sdcard/consoleapps/nodir/async.db", cmdApp.appInst, null, 0, null);
+	  SqlFsFuture<Boolean> badExists = badAsync.exists("/", null);
+	  boolean isThrown = false;
+	  try {
+		  badExists.get();
+	  }
+	  catch (ExecutionException e) {
+		  isThrown = true;
+	  }
+	  __assert(isThrown);
+	  __assertEquErrCode(badExists.getError(), FsErr.CannotOpenDB);
+	  badAsync.close();
+   }
+   
+   private static final String GROUPDB = "/sdcard/consoleapps/group.db";
+   
+   static void ct_testGroupCommit() throws Exception
+   {
+	  cmdApp.stdOut.println("Running " + getCallerMethodName());
+	  
+	  deleteFile(GROUPDB);
+	  SqlFs fs = SqlFs.create(GROUPDB, cmdApp.appInst);
+	  __assert(fs.getRootDir().addDir("dir") != null);
+	  SqlFsMetrics metrics = new SqlFsMetrics();
+	  fs.setMetrics(metrics);
+	  
+	  SqlFsAsync async = SqlFsAsync.create(GROUPDB, cmdApp.appInst, SqlFsOptions.balanced(), 1, null);
+	  async.setGroupCommit(16, 20);
+	  
+	  // hold the writer so that all saves below are queued
+	  async.submitWrite(new IFsTask<Boolean>() {
+		  public Boolean run(SqlFs writerFs) {
+			  __sleep(100);
+			  return true;
+		  }
+	  }, null);
+	  
+	  ArrayList<SqlFsFuture<Boolean>> saved = new ArrayList<SqlFsFuture<Boolean>>();
+	  for (int i = 0; i < 19; ++i) {
+		  SimpleFileData fd = new SimpleFileData();
+		  fd.setTextData("file " + i);
+		  saved.add(async.saveFileData("/dir/f" + i, fd, null));
+	  }
+	  SqlFsFuture<Boolean> cancelled = async.saveFileData("/dir/cancelled", new SimpleFileData(), null);
+	  __assert(cancelled.cancel(false));
+	  SqlFsFuture<Boolean> noDir = async.saveFileData("/nodir/a.txt", new SimpleFileData(), null);
+	  
+	  // not grouped, runs after the saves, and slow
+	  SqlFsFuture<Integer> count = async.submitWrite(new IFsTask<Integer>() {
+		  public Integer run(SqlFs writerFs) {
+			  __sleep(300);
+			  return writerFs.getDir("/dir").getChildCount();
+		  }
+	  }, null);
+	  
+	  // each caller gets its own result, without waiting for the task after the group
+	  for (SqlFsFuture<Boolean> f : saved)
+		  __assert(f.get() && f.getError() == FsErr.OK);
+	  __assert(!noDir.get() && noDir.getError() != FsErr.OK);
+	  __assert(!count.isDone());
+	  __assert(count.get() == 19);
+	  __assert(!async.exists("/dir/cancelled", null).get());
+	  
+	  // 20 saves in groups of 16 and 4
+	  __assert(metrics.getCount(IFsMetrics.FSOP.BATCH) == 2);
+	  __assert(metrics.getCount(IFsMetrics.FSOP.SAVEFILEDATA) == 0);
+	  
+	  SimpleFileData readFd = new SimpleFileData();
+	  __assert(async.getFileData("/dir/f7", readFd, null).get());
+	  __assert(readFd.getText().equals("file 7"));
+	  
+	  async.close();
+	  fs.setMetrics(null);
+	  fs.close();
+   }
+   
 /*   
    private static void __testFsID()
    {
@@ -534,6 +2039,7 @@ public class TestMain
 	   cmdApp = new CmdApp(args);
 	   cmdApp.stdOut.println("IDSize = " + FsID.getIDSize());
 	   
+	   ct_testFsID();
 	   ct_testAddDirFile();
 	   ct_testUpdateFile();
 	   ct_testGetDirFile();
@@ -542,8 +2048,31 @@ public class TestMain
 	   ct_testMoveDirFile();
 	   
 	   ct_testSimpleFile();
+	   ct_testBatch();
+	   ct_testTreeDelete();
+	   ct_testCopy();
+	   ct_testListing();
+	   ct_testFind();
+	   ct_testFullPath();
+	   ct_testMetrics();
+	   ct_testDiagnostics();
+	   ct_testChunkedFile();
+	   try {
+		   ct_testFileStream();
+		   ct_testRandomAccess();
+		   ct_testSharedData();
+		   ct_testCodec();
+		   ct_testAsync();
+		   ct_testGroupCommit();
+	   }
+	   catch (Exception e) {
+		   throw new AssertionError(e.getMessage());
+	   }
 	   
 	   TestMultiReadWrite.testReadWrite(cmdApp);
+	   TestMultiRead.testReaderScaling(cmdApp);
+	   TestOpenOptions.testPresets(cmdApp);
+	   //TestBench.runAll(cmdApp);   // benchmarks, slow and rewrites bench.json
 	   //__testFsID();
 	   //TestMultiReadWrite.checkFilesCount(cmdApp);
    }
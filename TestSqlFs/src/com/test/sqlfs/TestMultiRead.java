@@ -0,0 +1,129 @@
+package com.test.sqlfs;
+
+import java.util.ArrayList;
+
+import com.sss.consolehelper.CmdApp;
+import com.sss.sqlfs.SimpleFileData;
+import com.sss.sqlfs.SqlFile;
+import com.sss.sqlfs.SqlDir;
+import com.sss.sqlfs.SqlFs;
+import com.sss.sqlfs.SqlFsNode;
+
+/**
+ *  Measure read throughput with 1/2/4/8 reader threads, each with its own SqlFs
+ */
+public class TestMultiRead implements Runnable
+{
+   private static final String MULTIREADDB = "/sdcard/consoleapps/multiread.db";
+   private static final int NUMFILES = 100;
+   private static final int NUMREADS = 2000;     ///< reads done by each thread
+   private static final int[] NUMTHREADS = new int[]{1, 2, 4, 8};
+   private static CmdApp cmdApp;
+
+   private int failCount = 0;
+
+   public static void testReaderScaling(CmdApp cmdApp)
+   {
+      try {
+    	 TestMultiRead.cmdApp = cmdApp;
+    	 createFiles();
+
+    	 for (int numThreads : NUMTHREADS)
+    		 startReaders(numThreads);
+      }
+      catch(Exception e) {
+    	  cmdApp.stdOut.println("Error: " + e.getMessage());
+      }
+   }
+
+   private static String getFileName(int i)
+   {
+	   return "myText_" + i + ".txt";
+   }
+
+   private static void createFiles()
+   {
+	  TestMain.deleteFile(MULTIREADDB);
+
+	  SqlFs fs = SqlFs.create(MULTIREADDB, cmdApp.appInst);
+      SqlDir subDir = fs.getRootDir().addDir("subDir");
+
+      SimpleFileData fd = new SimpleFileData();
+      fd.setTextData("a simple program to produce a signal, such as turning on an LED.");
+	  for (int i = 0; i < NUMFILES; ++i) {
+		 SqlFile file = subDir.addFile(getFileName(i));
+		 TestMain.__assert(file.saveFileData(fd));
+	  }
+
+	  fs.close();
+   }
+
+   private static void startReaders(int numThreads) throws InterruptedException
+   {
+	  ArrayList<TestMultiRead> readers = new ArrayList<TestMultiRead>(numThreads);
+	  ArrayList<Thread> threads = new ArrayList<Thread>(numThreads);
+	  for (int i = 0; i < numThreads; ++i) {
+		 TestMultiRead inst = new TestMultiRead();
+		 readers.add(inst);
+		 threads.add(new Thread(inst));
+	  }
+
+	  long startTime = System.currentTimeMillis();
+	  for (Thread thrd : threads)
+		 thrd.start();
+	  for (Thread thrd : threads)
+		 thrd.join();
+	  long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+
+	  int totalReads = numThreads * NUMREADS;
+	  cmdApp.stdOut.println("readers = " + numThreads + ", reads = " + totalReads +
+			                ", time = " + elapsed + "ms, reads/sec = " + (totalReads * 1000L / elapsed));
+
+	  for (TestMultiRead inst : readers)
+		 TestMain.__assert(inst.failCount == 0);
+   }
+
+   private void readFunc()
+   {
+	  SqlFs fs = SqlFs.create(MULTIREADDB, cmdApp.appInst);
+	  SqlDir subDir = fs.getDir("/subDir");
+	  SimpleFileData fd = new SimpleFileData();
+
+	  for (int i = 0; i < NUMREADS; ++i) {
+		 String fName = getFileName(i % NUMFILES);
+
+		 // mix of path lookup, file data and child list reads
+		 switch (i % 4) {
+		  case 0:
+		  case 1:
+			 SqlFile f = fs.getFile("/subDir/" + fName);
+			 if (f == null || !f.getFileData(fd))
+				++failCount;
+			 break;
+		  case 2:
+			 if (!fs.exists("/subDir/" + fName))
+				++failCount;
+			 break;
+		  case 3:
+			 ArrayList<SqlFsNode> childList = subDir.getChildList();
+			 if (childList == null || childList.size() != NUMFILES)
+				++failCount;
+			 break;
+		 }
+	  }
+
+	  fs.close();
+   }
+
+   @Override
+   public void run()
+   {
+      try {
+    	  readFunc();
+      }
+	  catch(Exception e) {
+		  ++failCount;
+		  cmdApp.stdOut.println("readFunc Error: " + e.getMessage());
+	  }
+   }
+}
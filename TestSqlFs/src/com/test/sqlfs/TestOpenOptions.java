@@ -0,0 +1,66 @@
+package com.test.sqlfs;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.sss.consolehelper.CmdApp;
+import com.sss.sqlfs.SimpleFileData;
+import com.sss.sqlfs.SqlFile;
+import com.sss.sqlfs.SqlDir;
+import com.sss.sqlfs.SqlFs;
+import com.sss.sqlfs.SqlFsOptions;
+
+/**
+ *  Measure write throughput of each SqlFsOptions preset
+ */
+public class TestOpenOptions
+{
+   private static final String OPENOPTIONSDB = "/sdcard/consoleapps/openoptions.db";
+   private static final int NUMFILES = 200;
+
+   public static void testPresets(CmdApp cmdApp)
+   {
+      try {
+    	 writeFiles(cmdApp, null);
+    	 writeFiles(cmdApp, SqlFsOptions.durable());
+    	 writeFiles(cmdApp, SqlFsOptions.balanced());
+    	 writeFiles(cmdApp, SqlFsOptions.bulkLoad());
+      }
+      catch(Exception e) {
+    	  cmdApp.stdOut.println("Error: " + e.getMessage());
+      }
+   }
+
+   private static void writeFiles(CmdApp cmdApp, SqlFsOptions options)
+   {
+	  TestMain.deleteFile(OPENOPTIONSDB);
+
+	  SqlFs fs = SqlFs.create(OPENOPTIONSDB, new SimpleFileData(), cmdApp.appInst,
+			                  new AtomicBoolean(false), options);
+
+	  // the profile is recorded in FsInfo
+	  String profile = fs.getInfo(SqlFs.FSINFOFIELDS.openProfile.toString());
+	  if (options == null)
+		 TestMain.__assert(profile == null);
+	  else
+		 TestMain.__assert(profile != null && profile.startsWith(options.getProfile()));
+
+      SqlDir rootDir = fs.getRootDir();
+      SimpleFileData fd = new SimpleFileData();
+      fd.setTextData("a simple program to produce a signal, such as turning on an LED.");
+
+      // each file is added and saved in its own transactions
+	  long startTime = System.currentTimeMillis();
+	  for (int i = 0; i < NUMFILES; ++i) {
+		 SqlFile file = rootDir.addFile("myText_" + i + ".txt");
+		 TestMain.__assert(file.saveFileData(fd));
+	  }
+	  long elapsed = Math.max(System.currentTimeMillis() - startTime, 1);
+
+	  cmdApp.stdOut.println("options = " + ((options == null) ? "(default)" : options.toString()) +
+			                ", files = " + NUMFILES + ", time = " + elapsed +
+			                "ms, files/sec = " + (NUMFILES * 1000L / elapsed));
+
+	  TestMain.__assert(rootDir.getChildCount() == NUMFILES);
+	  fs.close();
+   }
+}